@@ -54,4 +54,187 @@ public class ApplicationConstants {
 	
 	/** Key into the project properties of the remote directory for destination of converted file. */
 	public static final String PDFA_PILOT_REMOTE_OUTPUT_DIR_PROP = "pdfaPilotRemoteOutputDir";
+
+	/** Key into the project properties of the minutes a converted file requested for deletion may remain if never closed. */
+	public static final String CONVERTED_FILE_TTL_MINUTES_PROP = "convertedFileTtlMinutes";
+
+	/** Key into the project properties of the size in bytes at which a tool log file is rotated. */
+	public static final String TOOL_LOG_MAX_BYTES_PROP = "toolLogMaxBytes";
+
+	/** Key into the project properties of the number of rotated tool log files to keep. */
+	public static final String TOOL_LOG_MAX_BACKUPS_PROP = "toolLogMaxBackups";
+
+	/** Key into the project properties of the number of conversions run concurrently when processing a directory. */
+	public static final String BATCH_WORKERS_PROP = "batchWorkers";
+
+	/** Key into the project properties of the milliseconds of scheduling priority a queued conversion gains per millisecond waited. */
+	public static final String SCHEDULER_AGING_FACTOR_PROP = "schedulerAgingFactor";
+
+	/** Key into the project properties of the file holding past conversion times used to estimate conversion cost. */
+	public static final String CONVERSION_HISTORY_FILE_PROP = "conversionHistoryFile";
+
+	/** Key into the project properties of the input size in bytes above which conversions run in the large file lane. */
+	public static final String LARGE_FILE_THRESHOLD_BYTES_PROP = "largeFileThresholdBytes";
+
+	/** Key into the project properties of the number of conversions run concurrently in the large file lane. */
+	public static final String LARGE_FILE_LANE_WORKERS_PROP = "largeFileLaneWorkers";
+
+	/** Key into the project properties of the total estimated memory in bytes of conversions running in the large file lane. */
+	public static final String LARGE_FILE_LANE_MEMORY_BYTES_PROP = "largeFileLaneMemoryBytes";
+
+	/** Key into the project properties of the number of long-running Calibre worker processes; 0 launches ebook-convert per file. */
+	public static final String CALIBRE_WORKERS_PROP = "calibreWorkers";
+
+	/** Key into the project properties of the seconds a Calibre worker may spend on one conversion before it is killed. */
+	public static final String CALIBRE_WORKER_JOB_TIMEOUT_SECONDS_PROP = "calibreWorkerJobTimeoutSeconds";
+
+	/** Key into the project properties of the soffice executable run by the office manager. */
+	public static final String OFFICE_COMMAND_PROP = "officeCommand";
+
+	/** Key into the project properties of the number of soffice processes kept running by the office manager; 0 runs unoconv per file. */
+	public static final String OFFICE_PROCESSES_PROP = "officeProcesses";
+
+	/** Key into the project properties of the local port of the first soffice process; the others use the following ports. */
+	public static final String OFFICE_BASE_PORT_PROP = "officeBasePort";
+
+	/** Key into the project properties of the number of documents an soffice process converts before it is restarted. */
+	public static final String OFFICE_MAX_DOCUMENTS_PER_PROCESS_PROP = "officeMaxDocumentsPerProcess";
+
+	/** Key into the project properties of the seconds an soffice process may spend on one conversion before it is killed. */
+	public static final String OFFICE_TASK_TIMEOUT_SECONDS_PROP = "officeTaskTimeoutSeconds";
+
+	/** Key into the project properties of the directory holding the LibreOffice profile template and pooled profiles. */
+	public static final String OFFICE_PROFILE_DIR_PROP = "officeProfileDir";
+
+	/** Key into the project properties of the number of LibreOffice profiles copied from the template up front. */
+	public static final String OFFICE_PROFILES_PROP = "officeProfiles";
+
+	/** Key into the project properties of the number of office documents converted per soffice run when no soffice processes are kept running. */
+	public static final String OFFICE_BATCH_SIZE_PROP = "officeBatchSize";
+
+	/** Prefix of the keys into the project properties declaring a conversion pipeline for the file extension following it. */
+	public static final String PIPELINE_PROP_PREFIX = "pipeline.";
+
+	/** Key into the project properties of the directory for intermediate files of conversion pipelines. */
+	public static final String PIPELINE_SCRATCH_DIR_PROP = "pipelineScratchDir";
+
+	/** Key into the project properties of the number of files that may wait in front of each pipeline stage. */
+	public static final String PIPELINE_QUEUE_CAPACITY_PROP = "pipelineQueueCapacity";
+
+	/** Key into the project properties of whether the number of concurrent conversions of each tool adapts to how they behave. */
+	public static final String ADAPTIVE_CONCURRENCY_PROP = "adaptiveConcurrency";
+
+	/** Key into the project properties of the load average per CPU above which adaptive concurrency backs off. */
+	public static final String ADAPTIVE_MAX_LOAD_PER_CPU_PROP = "adaptiveMaxLoadPerCpu";
+
+	/** Key into the project properties of the available memory in bytes below which adaptive concurrency backs off. */
+	public static final String ADAPTIVE_MIN_AVAILABLE_MEMORY_BYTES_PROP = "adaptiveMinAvailableMemoryBytes";
+
+	/** Prefix of the keys into the project properties of the resource profile settings of the tool named after it. */
+	public static final String TOOL_RESOURCES_PROP_PREFIX = "toolResources.";
+
+	/** Key into the project properties of whether conversions running far longer than usual are duplicated. */
+	public static final String HEDGE_CONVERSIONS_PROP = "hedgeConversions";
+
+	/** Key into the project properties of the percentile of recent latencies past which a conversion is duplicated. */
+	public static final String HEDGE_PERCENTILE_PROP = "hedgePercentile";
+
+	/** Key into the project properties of the number of conversions of a tool timed before its conversions are duplicated. */
+	public static final String HEDGE_MIN_SAMPLES_PROP = "hedgeMinSamples";
+
+	/** Key into the project properties of the number of duplicate conversions allowed to run at once. */
+	public static final String HEDGE_MAX_IN_FLIGHT_PROP = "hedgeMaxInFlight";
+
+	/** Key into the project properties of the number of failures after which an input is quarantined; not quarantined if less than 1. */
+	public static final String QUARANTINE_AFTER_FAILURES_PROP = "quarantineAfterFailures";
+
+	/** Key into the project properties of the directory holding quarantined inputs and the record of failures. */
+	public static final String QUARANTINE_DIR_PROP = "quarantineDir";
+
+	/** Key into the project properties of whether inputs are checked for encryption and damage before a tool is launched. */
+	public static final String PREFLIGHT_CHECKS_PROP = "preflightChecks";
+
+	/** Key into the project properties of the milliseconds a watched file must be unchanged before it is converted. */
+	public static final String WATCH_SETTLE_MILLIS_PROP = "watchSettleMillis";
+
+	/** Key into the project properties of the suffix of the marker file announcing a watched file is complete. */
+	public static final String WATCH_MARKER_SUFFIX_PROP = "watchMarkerSuffix";
+
+	/** Key into the project properties of the directory converted watched files are moved to. */
+	public static final String WATCH_DONE_DIR_PROP = "watchDoneDir";
+
+	/** Key into the project properties of the directory watched files that could not be converted are moved to. */
+	public static final String WATCH_FAILED_DIR_PROP = "watchFailedDir";
+
+	/** Key into the project properties of the ID of this node among those sharing a queue directory. */
+	public static final String QUEUE_NODE_ID_PROP = "queueNodeId";
+
+	/** Key into the project properties of the milliseconds without a heartbeat after which a node's queued inputs are reclaimed. */
+	public static final String QUEUE_LEASE_MILLIS_PROP = "queueLeaseMillis";
+
+	/** Key into the project properties of the milliseconds between a node's heartbeats. */
+	public static final String QUEUE_HEARTBEAT_MILLIS_PROP = "queueHeartbeatMillis";
+
+	/** Key into the project properties of the number of queued inputs a node claims ahead of converting them. */
+	public static final String QUEUE_PREFETCH_PROP = "queuePrefetch";
+
+	/** Key into the project properties of the directory of the local tier of the conversion cache. */
+	public static final String CACHE_DIR_PROP = "cacheDir";
+
+	/** Key into the project properties of the size in bytes of the local tier of the conversion cache. */
+	public static final String CACHE_MAX_BYTES_PROP = "cacheMaxBytes";
+
+	/** Key into the project properties of the directory on a shared filesystem of the shared tier of the conversion cache. */
+	public static final String SHARED_CACHE_DIR_PROP = "sharedCacheDir";
+
+	/** Key into the project properties of the size in bytes of the shared tier of the conversion cache. */
+	public static final String SHARED_CACHE_MAX_BYTES_PROP = "sharedCacheMaxBytes";
+
+	/** Key into the project properties of how files are transferred to and from a remote pdfaPilot: scp or tar. */
+	public static final String PDFA_PILOT_REMOTE_TRANSFER_PROP = "pdfaPilotRemoteTransfer";
+
+	/** Key into the project properties of the number of queued inputs streamed to a remote pdfaPilot in one round trip. */
+	public static final String PDFA_PILOT_REMOTE_BATCH_SIZE_PROP = "pdfaPilotRemoteBatchSize";
+
+	/** Key into the project properties of the host of a pdfaPilot agent used instead of ssh when set. */
+	public static final String PDFA_PILOT_AGENT_HOST_PROP = "pdfaPilotAgentHost";
+
+	/** Key into the project properties of the port a pdfaPilot agent listens on. */
+	public static final String PDFA_PILOT_AGENT_PORT_PROP = "pdfaPilotAgentPort";
+
+	/** Key into the project properties of the file holding the secret shared by a pdfaPilot agent and its clients. */
+	public static final String PDFA_PILOT_AGENT_SECRET_FILE_PROP = "pdfaPilotAgentSecretFile";
+
+	/** Key into the project properties of the scratch directory of a pdfaPilot agent. */
+	public static final String PDFA_PILOT_AGENT_SCRATCH_DIR_PROP = "pdfaPilotAgentScratchDir";
+
+	/** Key into the project properties of the number of conversions a pdfaPilot agent runs at once. */
+	public static final String PDFA_PILOT_AGENT_MAX_JOBS_PROP = "pdfaPilotAgentMaxJobs";
+
+	/** Key into the project properties of the seconds a pdfaPilot agent lets a conversion run before killing it. */
+	public static final String PDFA_PILOT_AGENT_JOB_TIMEOUT_SECONDS_PROP = "pdfaPilotAgentJobTimeoutSeconds";
+
+	/** Key into the project properties of the seconds a client waits for a pdfaPilot agent's result of a conversion. */
+	public static final String PDFA_PILOT_AGENT_RESULT_TIMEOUT_SECONDS_PROP = "pdfaPilotAgentResultTimeoutSeconds";
+
+	/** Key into the project properties of the number of remote pdfaPilot files removed at once without waiting for the interval. */
+	public static final String PDFA_PILOT_REMOTE_CLEANUP_BATCH_SIZE_PROP = "pdfaPilotRemoteCleanupBatchSize";
+
+	/** Key into the project properties of the milliseconds between removals of remote pdfaPilot files. */
+	public static final String PDFA_PILOT_REMOTE_CLEANUP_MILLIS_PROP = "pdfaPilotRemoteCleanupMillis";
+
+	/** Key into the project properties of the age in minutes of remote pdfaPilot files swept at start up. */
+	public static final String PDFA_PILOT_REMOTE_ORPHAN_MINUTES_PROP = "pdfaPilotRemoteOrphanMinutes";
+
+	/** Key into the project properties of the file the timing of each conversion of a directory is reported to. */
+	public static final String TIMING_REPORT_PROP = "timingReport";
+
+	/** Key into the project properties of the seconds between checks of the properties file for changes in daemon mode. */
+	public static final String CONFIG_RELOAD_SECONDS_PROP = "configReloadSeconds";
+
+	/** Key into the project properties of the seconds the result of checking a tool is used before checking it again. */
+	public static final String TOOL_PROBE_TTL_SECONDS_PROP = "toolProbeTtlSeconds";
+
+	/** Key into the project properties of the directory documents inside ZIP archives are copied to for their conversion. */
+	public static final String ARCHIVE_SCRATCH_DIR_PROP = "archiveScratchDir";
 }
@@ -0,0 +1,102 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reloads the properties file of a long-running converter when it changes, giving the converter the new snapshot
+ * for the conversions it starts from then on. Conversions under way finish with the configuration they started
+ * with. A file that cannot be loaded or holds a bad value is reported once and the current snapshot kept.
+ */
+public class ConfigReloader {
+
+	/** Default seconds between checks of the properties file for changes. */
+	public static final long DEFAULT_INTERVAL_SECONDS = 10;
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final PdfaConvert converter;
+	private final ScheduledExecutorService executor;
+	private long rejectedModifiedMillis; // modification time of a file that could not be loaded
+
+	/**
+	 * @param converter - The converter given the reloaded snapshots.
+	 */
+	ConfigReloader(PdfaConvert converter) {
+		this.converter = converter;
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "config-reloader");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Starts checking the converter's properties file for changes as configured in its properties.
+	 *
+	 * @return The reloader, or <code>null</code> if reloading is turned off or the properties were not loaded from a file.
+	 */
+	public static ConfigReloader start(PdfaConvert converter) {
+		ConverterConfig config = converter.getConfig();
+		long intervalSeconds = config.getLong(ApplicationConstants.CONFIG_RELOAD_SECONDS_PROP, DEFAULT_INTERVAL_SECONDS);
+		if (intervalSeconds <= 0 || config.getSourceFile() == null) {
+			return null;
+		}
+		ConfigReloader reloader = new ConfigReloader(converter);
+		reloader.executor.scheduleWithFixedDelay(reloader::reloadIfModified, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+		logger.info("Reloading {} when changed, checking every {} seconds", config.getSourceFile(), intervalSeconds);
+		return reloader;
+	}
+
+	/**
+	 * Reloads the properties file if it was modified since the converter's snapshot was loaded.
+	 *
+	 * @return <code>true</code> if the converter was given a new snapshot.
+	 */
+	boolean reloadIfModified() {
+		ConverterConfig current = converter.getConfig();
+		if (!current.isSourceModified()) {
+			return false;
+		}
+		long modified = current.getSourceFile().lastModified();
+		if (modified == rejectedModifiedMillis) {
+			return false;
+		}
+		ConverterConfig reloaded;
+		try {
+			reloaded = ConverterConfig.load(current.getSourceFile());
+		} catch (IOException | RuntimeException e) {
+			rejectedModifiedMillis = modified;
+			logger.warn("Could not reload {}, keeping the current configuration -- {}", current.getSourceFile(), e.getMessage());
+			return false;
+		}
+		converter.setConfig(reloaded);
+		// for the settings read from the project properties when used
+		if (PdfaConvert.getApplicationConfig() == current) {
+			PdfaConvert.setApplicationConfig(reloaded);
+		}
+		logger.info("Reloaded configuration from: {}", current.getSourceFile());
+		return true;
+	}
+
+	/**
+	 * Stops checking for changes.
+	 */
+	public void stop() {
+		executor.shutdownNow();
+	}
+}
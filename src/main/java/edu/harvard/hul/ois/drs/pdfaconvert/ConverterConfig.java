@@ -0,0 +1,321 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Properties;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.pdfapilot.PdfaPilotAgent;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.pdfapilot.PdfaPilotRemoteTool;
+
+/**
+ * An immutable snapshot of the project properties, with the settings the tools are built from parsed up front so
+ * that a bad value is reported when the properties are loaded rather than in the middle of a conversion. Tools are
+ * given the snapshot when constructed and keep it for their conversion, so a newer snapshot can replace the
+ * converter's at any time without changing conversions under way.
+ */
+public final class ConverterConfig {
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final Properties properties;
+	private final File sourceFile;
+	private final long sourceModifiedMillis;
+	private final String outputDir;
+	private final String unoconvHome;
+	private final String calibreHome;
+	private final String pdfaPilotHome;
+	private final boolean pdfaPilotRemote;
+	private final String pdfaPilotRemoteUser;
+	private final String pdfaPilotRemoteUrl;
+	private final String pdfaPilotRemoteTunnelling;
+	private final String pdfaPilotRemoteInputDir;
+	private final String pdfaPilotRemoteOutputDir;
+	private final boolean pdfaPilotRemoteStreaming;
+	private final String pdfaPilotAgentHost;
+	private final int pdfaPilotAgentPort;
+	private final String pdfaPilotAgentSecretFile;
+	// read when an agent is first used
+	private volatile byte[] pdfaPilotAgentSecret;
+
+	private ConverterConfig(Properties props, File sourceFile) {
+		properties = new Properties();
+		properties.putAll(props);
+		this.sourceFile = sourceFile;
+		sourceModifiedMillis = sourceFile == null ? 0 : sourceFile.lastModified();
+		outputDir = properties.getProperty(ApplicationConstants.OUTPUT_DIR_PROP);
+		unoconvHome = properties.getProperty(ApplicationConstants.UNOCONV_HOME_PROP);
+		calibreHome = properties.getProperty(ApplicationConstants.CALIBRE_HOME_PROP);
+		pdfaPilotHome = properties.getProperty(ApplicationConstants.PDFA_PILOT_HOME_PROP);
+		pdfaPilotRemote = Boolean.valueOf(properties.getProperty(ApplicationConstants.PDFA_PILOT_IS_REMOTE_PROP));
+		pdfaPilotRemoteUser = properties.getProperty(ApplicationConstants.PDFA_PILOT_REMOTE_USER_PROP);
+		pdfaPilotRemoteUrl = properties.getProperty(ApplicationConstants.PDFA_PILOT_REMOTE_URL_PROP);
+		pdfaPilotRemoteTunnelling = properties.getProperty(ApplicationConstants.PDFA_PILOT_REMOTE_TUNNELLING_STRING_PROP);
+		pdfaPilotRemoteInputDir = properties.getProperty(ApplicationConstants.PDFA_PILOT_REMOTE_INPUT_DIR_PROP);
+		pdfaPilotRemoteOutputDir = properties.getProperty(ApplicationConstants.PDFA_PILOT_REMOTE_OUTPUT_DIR_PROP);
+		pdfaPilotRemoteStreaming = PdfaPilotRemoteTool.TRANSFER_TAR.equalsIgnoreCase(
+				StringUtils.trimToEmpty(properties.getProperty(ApplicationConstants.PDFA_PILOT_REMOTE_TRANSFER_PROP)));
+		pdfaPilotAgentHost = StringUtils.trimToNull(properties.getProperty(ApplicationConstants.PDFA_PILOT_AGENT_HOST_PROP));
+		pdfaPilotAgentPort = getInt(ApplicationConstants.PDFA_PILOT_AGENT_PORT_PROP, PdfaPilotAgent.DEFAULT_PORT);
+		pdfaPilotAgentSecretFile = StringUtils.trimToEmpty(properties.getProperty(ApplicationConstants.PDFA_PILOT_AGENT_SECRET_FILE_PROP));
+	}
+
+	/**
+	 * Takes a snapshot of the given properties, which may be changed afterwards without changing the snapshot.
+	 *
+	 * @throws NumberFormatException - If a numeric setting of the tools is not a number.
+	 */
+	public static ConverterConfig fromProperties(Properties props) {
+		return new ConverterConfig(props, null);
+	}
+
+	/**
+	 * Loads the project properties from the file given by the {@link ApplicationConstants#ENV_PROJECT_PROPS} system
+	 * property, which may be a file path, a file URI or a URL, or from the default properties on the class path if
+	 * it is not set or cannot be read.
+	 *
+	 * @throws RuntimeException - If no properties could be loaded.
+	 */
+	public static ConverterConfig load() {
+		String environmentProjectPropsFile = System.getProperty(ApplicationConstants.ENV_PROJECT_PROPS);
+		logger.info("Have {} from environment: {}", ApplicationConstants.PROJECT_PROPS, environmentProjectPropsFile);
+		URI projectPropsUri = null;
+		if (environmentProjectPropsFile != null) {
+			try {
+				projectPropsUri = new URI(environmentProjectPropsFile);
+				// properties file needs a scheme in the URI so convert to file if necessary.
+				if (null == projectPropsUri.getScheme()) {
+					File projectProperties = new File(environmentProjectPropsFile);
+					if (projectProperties.exists() && projectProperties.isFile()) {
+						projectPropsUri = projectProperties.toURI();
+					} else {
+						// No scheme and not a file - yikes!!! Let's bail and
+						// use fall-back file.
+						projectPropsUri = null;
+						throw new URISyntaxException(environmentProjectPropsFile, "Not a valid file");
+					}
+				}
+			} catch (URISyntaxException e) {
+				// fall back to default file
+				logger.error("Unable to load properties file: {} -- reason: {}", environmentProjectPropsFile, e.getReason());
+				logger.error("Falling back to default {} file: {}", ApplicationConstants.PROJECT_PROPS, ApplicationConstants.PROJECT_PROPS);
+			}
+		}
+
+		// load properties if environment value set
+		if (projectPropsUri != null) {
+			try {
+				return load(new File(projectPropsUri));
+			} catch (IOException | IllegalArgumentException e) {
+				logger.error("Could not load environment properties file: {}", projectPropsUri, e);
+			}
+		}
+
+		Properties props = new Properties();
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		try {
+			InputStream resourceStream = loader.getResourceAsStream(ApplicationConstants.PROJECT_PROPS);
+			props.load(resourceStream);
+			logger.info("loaded default applicationProps: ");
+		} catch (IOException e) {
+			logger.error("Could not load properties file: {}", ApplicationConstants.PROJECT_PROPS, e);
+			// couldn't load default properties so bail...
+			throw new RuntimeException("Couldn't load an applications properties file.", e);
+		}
+		return new ConverterConfig(props, null);
+	}
+
+	/**
+	 * Loads the project properties from a file, which can be {@link #isSourceModified() checked} for changes.
+	 *
+	 * @throws IOException - If the file cannot be read.
+	 * @throws NumberFormatException - If a numeric setting of the tools is not a number.
+	 */
+	public static ConverterConfig load(File propertiesFile) throws IOException {
+		if (!propertiesFile.isFile() || !propertiesFile.canRead()) {
+			throw new IOException("Not a readable file: " + propertiesFile);
+		}
+		Properties props = new Properties();
+		try (Reader reader = new FileReader(propertiesFile)) {
+			logger.info("About to load {} from environment: {}", ApplicationConstants.PROJECT_PROPS, propertiesFile.getAbsolutePath());
+			props.load(reader);
+			logger.info("Success -- loaded properties file.");
+		}
+		return new ConverterConfig(props, propertiesFile);
+	}
+
+	/**
+	 * @return A copy of all the properties of the snapshot.
+	 */
+	public Properties getProperties() {
+		Properties copy = new Properties();
+		copy.putAll(properties);
+		return copy;
+	}
+
+	/**
+	 * @return The value of a property, or the default if it is not set or blank.
+	 */
+	public String getString(String key, String defaultValue) {
+		String value = properties.getProperty(key);
+		return StringUtils.isBlank(value) ? defaultValue : value.trim();
+	}
+
+	/**
+	 * @return The value of a numeric property, or the default if it is not set or blank.
+	 * @throws NumberFormatException - If the value is not a number.
+	 */
+	public int getInt(String key, int defaultValue) {
+		String value = properties.getProperty(key);
+		return StringUtils.isBlank(value) ? defaultValue : Integer.parseInt(value.trim());
+	}
+
+	/**
+	 * @return The value of a numeric property, or the default if it is not set or blank.
+	 * @throws NumberFormatException - If the value is not a number.
+	 */
+	public long getLong(String key, long defaultValue) {
+		String value = properties.getProperty(key);
+		return StringUtils.isBlank(value) ? defaultValue : Long.parseLong(value.trim());
+	}
+
+	/**
+	 * @return The file the snapshot was loaded from, or <code>null</code> if it was not loaded from a file.
+	 */
+	public File getSourceFile() {
+		return sourceFile;
+	}
+
+	/**
+	 * @return <code>true</code> if the file the snapshot was loaded from has been modified since.
+	 */
+	public boolean isSourceModified() {
+		return sourceFile != null && sourceFile.lastModified() != sourceModifiedMillis;
+	}
+
+	/**
+	 * @return The configured output directory for converted files.
+	 */
+	public String getOutputDir() {
+		return outputDir;
+	}
+
+	/**
+	 * @return The path to the Unoconv application home.
+	 */
+	public String getUnoconvHome() {
+		return unoconvHome;
+	}
+
+	/**
+	 * @return The path to the Calibre application home.
+	 */
+	public String getCalibreHome() {
+		return calibreHome;
+	}
+
+	/**
+	 * @return The path to the pdfaPilot application home, on the remote system if pdfaPilot is run remotely.
+	 */
+	public String getPdfaPilotHome() {
+		return pdfaPilotHome;
+	}
+
+	/**
+	 * @return <code>true</code> if pdfaPilot is run on a remote system through ssh.
+	 */
+	public boolean isPdfaPilotRemote() {
+		return pdfaPilotRemote;
+	}
+
+	/**
+	 * @return The user to log in to the remote pdfaPilot system as.
+	 */
+	public String getPdfaPilotRemoteUser() {
+		return pdfaPilotRemoteUser;
+	}
+
+	/**
+	 * @return The host of the remote pdfaPilot system.
+	 */
+	public String getPdfaPilotRemoteUrl() {
+		return pdfaPilotRemoteUrl;
+	}
+
+	/**
+	 * @return The port forwarding given to ssh for the remote pdfaPilot system.
+	 */
+	public String getPdfaPilotRemoteTunnelling() {
+		return pdfaPilotRemoteTunnelling;
+	}
+
+	/**
+	 * @return The directory on the remote pdfaPilot system input files are copied to.
+	 */
+	public String getPdfaPilotRemoteInputDir() {
+		return pdfaPilotRemoteInputDir;
+	}
+
+	/**
+	 * @return The directory on the remote pdfaPilot system converted files are written to.
+	 */
+	public String getPdfaPilotRemoteOutputDir() {
+		return pdfaPilotRemoteOutputDir;
+	}
+
+	/**
+	 * @return <code>true</code> if files are streamed to and from the remote pdfaPilot system as tar archives
+	 * 		   rather than copied with scp.
+	 */
+	public boolean isPdfaPilotRemoteStreaming() {
+		return pdfaPilotRemoteStreaming;
+	}
+
+	/**
+	 * @return The host of the pdfaPilot agent, or <code>null</code> if none is used.
+	 */
+	public String getPdfaPilotAgentHost() {
+		return pdfaPilotAgentHost;
+	}
+
+	/**
+	 * @return The port the pdfaPilot agent listens on.
+	 */
+	public int getPdfaPilotAgentPort() {
+		return pdfaPilotAgentPort;
+	}
+
+	/**
+	 * @return The secret shared with the pdfaPilot agent, read from its file when first needed.
+	 * @throws ExternalToolException - If the secret file cannot be read.
+	 */
+	public byte[] getPdfaPilotAgentSecret() {
+		byte[] secret = pdfaPilotAgentSecret;
+		if (secret == null) {
+			try {
+				secret = PdfaPilotAgent.readSecret(new File(pdfaPilotAgentSecretFile));
+			} catch (IOException e) {
+				throw new ExternalToolException("Could not read pdfaPilot agent secret file: " + pdfaPilotAgentSecretFile, e);
+			}
+			pdfaPilotAgentSecret = secret;
+		}
+		return secret.clone();
+	}
+}
@@ -10,19 +10,22 @@ See the License for the specific language governing permission and limitations u
 package edu.harvard.hul.ois.drs.pdfaconvert;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.Reader;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -31,27 +34,52 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import edu.harvard.hul.ois.drs.pdfaconvert.tools.PdfaConvertable;
+import edu.harvard.hul.ois.drs.pdfaconvert.batch.BatchListener;
+import edu.harvard.hul.ois.drs.pdfaconvert.batch.BatchScheduler;
+import edu.harvard.hul.ois.drs.pdfaconvert.batch.ConversionJob;
+import edu.harvard.hul.ois.drs.pdfaconvert.batch.TimingReport;
+import edu.harvard.hul.ois.drs.pdfaconvert.pipeline.ConversionPipeline;
+import edu.harvard.hul.ois.drs.pdfaconvert.pipeline.PipelineRunner;
+import edu.harvard.hul.ois.drs.pdfaconvert.queue.SharedWorkQueue;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.AbstractPdfaConverterTool;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.BatchConvertable;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.ToolProbe;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.ToolType;
 import edu.harvard.hul.ois.drs.pdfaconvert.tools.calibre.CalibreTool;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.pdfapilot.PdfaPilotAgentTool;
 import edu.harvard.hul.ois.drs.pdfaconvert.tools.pdfapilot.PdfaPilotRemoteTool;
 import edu.harvard.hul.ois.drs.pdfaconvert.tools.pdfapilot.PdfaPilotTool;
 import edu.harvard.hul.ois.drs.pdfaconvert.tools.unoconv.UnoconvTool;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ArchiveEntry;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ConversionCache;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ConvertedFileSweeper;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.FlightEvents;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.FlightEvents.Phase;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.InputPreflight;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.Quarantine;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ShutdownSequence;
+import edu.harvard.hul.ois.drs.pdfaconvert.watch.WatchFolderDaemon;
 
 /**
  * Converts an word processing input document to a PDF/A document.
  */
 public class PdfaConvert {
 
-	private static Properties applicationProps; // consider creating with Spring and injecting where needed
+	// loaded when first needed rather than when the class is loaded
+	private static volatile ConverterConfig applicationConfig;
 
-	private String unoconvHome;
-	private String pdfaPilotHome;
-	private String calibreHome;
+	private volatile ConverterConfig config; // tools are created from the current snapshot
 	private File outputDirFile; // output directory for converted files
-	private boolean isRemotePdfaPilot;
+	private Map<String, ConversionPipeline> pipelines; // multi-stage conversions keyed by file extension
+	private final Map<String, PipelineRunner> pipelineRunners = new HashMap<String, PipelineRunner>();
+	private Quarantine quarantine; // null unless inputs failing repeatedly are quarantined
+	private boolean preflight; // reject encrypted and corrupt inputs before launching a tool
+	private ConversionCache cache; // null unless conversions are reused
+	private ToolProbe toolProbe; // null unless tools are checked before use
 
 	private static String applicationVersion;
 
@@ -60,18 +88,11 @@ public class PdfaConvert {
 	private static final String PARAM_I = "i";
 	private static final String PARAM_H = "h";
 	private static final String PARAM_V = "v";
+	private static final String PARAM_R = "r";
+	private static final String PARAM_W = "w";
+	private static final String PARAM_Q = "q";
 
-	private static final String DOC_TYPE = "doc";
-	private static final String DOCM_TYPE = "docm";
-	private static final String DOCX_TYPE = "docx";
-	private static final String EPUB_TYPE = "epub";
-	private static final String ODT_TYPE = "odt";
-	private static final String PDF_TYPE = "pdf";
-	private static final String RTF_TYPE = "rtf";
-	private static final String WP_TYPE = "wp";
-	private static final String WPD_TYPE = "wpd";
-
-	private static List<String> VALID_FILE_TYPES;
+	private static final String DEFAULT_QUARANTINE_DIR_NAME = "quarantine";
 
 	private static Logger logger;
 
@@ -83,10 +104,7 @@ public class PdfaConvert {
         }
 		logger = LogManager.getLogger();
 		System.out.println("Finished initializing Log4j");
-		VALID_FILE_TYPES = Arrays.asList(DOC_TYPE, DOCM_TYPE, DOCX_TYPE, EPUB_TYPE, ODT_TYPE, PDF_TYPE, RTF_TYPE,
-				WP_TYPE, WPD_TYPE);
 		loadVersionFile();
-		loadApplicationPropertiesFile();
 	}
 
 	public static void main(String[] args) throws IOException {
@@ -105,6 +123,9 @@ public class PdfaConvert {
 		options.addOption(PARAM_V, false, "print version information");
 		options.addOption(PARAM_H, false, "help information");
 		options.addOption(PARAM_O, true, "output sub-directory");
+		options.addOption(PARAM_R, true, "release quarantined input by content hash");
+		options.addOption(PARAM_W, true, "watch directory for files to convert");
+		options.addOption(PARAM_Q, true, "shared queue directory to convert files from");
 
 		CommandLineParser parser = new DefaultParser();
 		CommandLine cmd = null;
@@ -131,6 +152,66 @@ public class PdfaConvert {
 			System.exit(0);
 		}
 
+		// release a quarantined input
+		if (cmd.hasOption(PARAM_R)) {
+			PdfaConvert convert = new PdfaConvert();
+			if (convert.getQuarantine() == null) {
+				System.err.println("Quarantine is not enabled, set " + ApplicationConstants.QUARANTINE_AFTER_FAILURES_PROP);
+				System.exit(1);
+			}
+			try {
+				File released = convert.getQuarantine().release(cmd.getOptionValue(PARAM_R).trim());
+				System.out.println("Released quarantined input: " + released);
+				System.exit(0);
+			} catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}
+		}
+
+		// watch a directory until terminated
+		if (cmd.hasOption(PARAM_W)) {
+			File watchDir = new File(cmd.getOptionValue(PARAM_W));
+			if (!watchDir.isDirectory()) {
+				logger.warn("{} is not a directory.", watchDir);
+				System.exit(1);
+			}
+			String subDir = cmd.getOptionValue(PARAM_O);
+			PdfaConvert convert = StringUtils.isEmpty(subDir) ? new PdfaConvert() : new PdfaConvert(subDir);
+			ConfigReloader.start(convert);
+			probeTools(convert);
+			WatchFolderDaemon daemon = WatchFolderDaemon.create(convert, watchDir, getApplicationProperties());
+			// on SIGTERM or Ctrl-C let running conversions finish before the tools and logs are shut down
+			ShutdownSequence.register(ShutdownSequence.Stage.WORK, "watch folder", () -> {
+				try {
+					daemon.stop();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			daemon.run();
+			// not System.exit() as that blocks when called while the shutdown hook runs
+			return;
+		}
+
+		// work on a queue shared with other nodes until terminated
+		if (cmd.hasOption(PARAM_Q)) {
+			String subDir = cmd.getOptionValue(PARAM_O);
+			PdfaConvert convert = StringUtils.isEmpty(subDir) ? new PdfaConvert() : new PdfaConvert(subDir);
+			ConfigReloader.start(convert);
+			probeTools(convert);
+			SharedWorkQueue queue = SharedWorkQueue.create(convert, new File(cmd.getOptionValue(PARAM_Q)), getApplicationProperties());
+			ShutdownSequence.register(ShutdownSequence.Stage.WORK, "shared queue", () -> {
+				try {
+					queue.stop();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			queue.run();
+			return;
+		}
+
 		// input parameter
 		if (cmd.hasOption(PARAM_I)) {
 			String input = cmd.getOptionValue(PARAM_I);
@@ -158,24 +239,11 @@ public class PdfaConvert {
 					System.exit(1);
 				} else {
 					logger.debug("Have directory: [{}] with file count: {}", inputFile.getAbsolutePath(), inputFile.listFiles().length);
-					DirectoryStream<Path> dirStream = null;
-						dirStream = Files.newDirectoryStream(inputFile.toPath());
-						for (Path filePath : dirStream) {
-							logger.debug("Have file name: {}", filePath.toString());
-							// Note: only handling files, not recursively going into sub-directories
-							if (filePath.toFile().isFile()) {
-								// Catch possible exception for each file so can handle other files in directory.
-								try {
-									convert.examine(filePath.toFile());
-								} catch (Exception e) {
-									logger.error("Problem processing file: {} -- Error message: {}", filePath.getFileName(), e.getMessage());
-								}
-							} else {
-								logger.warn("Not a file so not processing: {}", filePath.toString()); // could be a directory but not recursing
-							}
-						}
-						dirStream.close();
+					processDirectory(convert, inputFile);
 				}
+			} else if (ArchiveEntry.isArchive(inputFile)) {
+				logger.debug("About to process archive: {}", inputFile.getPath());
+				processFiles(convert, Collections.singletonList(inputFile));
 			} else {
 				logger.debug("About to process file: {}", inputFile.getPath());
 				try {
@@ -194,10 +262,144 @@ public class PdfaConvert {
 		System.exit(0);
 	}
 	
+	/*
+	 * Converts the files in a directory, scheduling the shortest estimated conversions first.
+	 */
+	private static void processDirectory(PdfaConvert convert, File inputDir) throws IOException {
+		List<File> inputFiles = new ArrayList<File>();
+		try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(inputDir.toPath())) {
+			for (Path filePath : dirStream) {
+				logger.debug("Have file name: {}", filePath.toString());
+				// Note: only handling files, not recursively going into sub-directories
+				if (filePath.toFile().isFile()) {
+					inputFiles.add(filePath.toFile());
+				} else {
+					logger.warn("Not a file so not processing: {}", filePath.toString()); // could be a directory but not recursing
+				}
+			}
+		}
+		processFiles(convert, inputFiles);
+	}
+
+	/*
+	 * Converts the files, and the documents inside those that are ZIP archives, scheduling the shortest estimated
+	 * conversions first.
+	 */
+	private static void processFiles(PdfaConvert convert, List<File> inputFiles) throws IOException {
+		probeTools(convert);
+		BatchScheduler scheduler = BatchScheduler.create(convert, getApplicationProperties());
+		scheduler.addListener(new BatchListener() {
+			@Override
+			public void jobSucceeded(ConversionJob job, PdfaConverterOutput output) {
+				logger.debug("Converted file: {} in {} ms (estimated {} ms)", job.getInputFile().getName(),
+						job.getFinishedMillis() - job.getStartedMillis(), job.getEstimatedMillis());
+			}
+
+			@Override
+			public void jobFailed(ConversionJob job, Exception e) {
+				logger.error("Problem processing file: {} -- Error message: {}", job.getInputFile().getName(), e.getMessage());
+			}
+		});
+		TimingReport timingReport = TimingReport.create(getApplicationProperties());
+		if (timingReport != null) {
+			scheduler.addListener(timingReport);
+		}
+		List<File> pipelinedFiles = new ArrayList<File>();
+		for (File file : inputFiles) {
+			if (ArchiveEntry.isArchive(file)) {
+				// only the entries' sizes are read now, each entry is copied out when its conversion starts
+				try {
+					List<ArchiveEntry> entries = ArchiveEntry.list(file);
+					for (ArchiveEntry entry : entries) {
+						scheduler.submit(entry);
+					}
+					logger.info("Have {} documents to convert in archive: {}", entries.size(), file.getPath());
+				} catch (IOException e) {
+					logger.error("Problem reading archive: {} -- Error message: {}", file.getName(), e.getMessage());
+				}
+			} else if (convert.isPipelined(file)) {
+				pipelinedFiles.add(file);
+			} else {
+				scheduler.submit(file);
+			}
+		}
+		String eta = DurationFormatUtils.formatDurationHMS(scheduler.estimateCompletionMillis());
+		System.out.println("Converting " + scheduler.getPendingCount() + " files with " + scheduler.getWorkerCount() + " workers, estimated time: " + eta);
+		logger.info("Converting {} files with {} workers, estimated time: {}", scheduler.getPendingCount(), scheduler.getWorkerCount(), eta);
+		if (!pipelinedFiles.isEmpty()) {
+			System.out.println("Converting " + pipelinedFiles.size() + " files through conversion pipelines");
+			logger.info("Converting {} files through conversion pipelines", pipelinedFiles.size());
+		}
+		scheduler.start();
+		try {
+			List<CompletableFuture<PdfaConverterOutput>> pipelined = new ArrayList<CompletableFuture<PdfaConverterOutput>>();
+			for (File file : pipelinedFiles) {
+				pipelined.add(convert.examineAsync(file, false).whenComplete((output, e) -> {
+					if (e != null) {
+						logger.error("Problem processing file: {} -- Error message: {}", file.getName(), e.getMessage());
+					} else {
+						logger.debug("Converted file: {} through pipeline", file.getName());
+					}
+				}));
+			}
+			scheduler.shutdown();
+			for (CompletableFuture<PdfaConverterOutput> future : pipelined) {
+				try {
+					future.join();
+				} catch (RuntimeException e) {
+					// already logged
+				}
+			}
+			convert.shutdownPipelines();
+			if (scheduler.getHedger() != null && scheduler.getHedger().getHedgeCount() > 0) {
+				System.out.println("Hedged " + scheduler.getHedger().getHedgeCount() + " slow conversions, "
+						+ scheduler.getHedger().getHedgeWinCount() + " finished sooner for it");
+				logger.info("Hedged {} slow conversions, {} finished sooner for it", scheduler.getHedger().getHedgeCount(),
+						scheduler.getHedger().getHedgeWinCount());
+			}
+			if (convert.getCache() != null && convert.getCache().getHitCount() > 0) {
+				System.out.println("Reused " + convert.getCache().getHitCount() + " cached conversions");
+				logger.info("Reused {} cached conversions", convert.getCache().getHitCount());
+			}
+			if (!scheduler.getConcurrencyLimits().isEmpty()) {
+				System.out.println("Concurrency limits settled at: " + scheduler.getConcurrencyLimits());
+				logger.info("Concurrency limits settled at: {}", scheduler.getConcurrencyLimits());
+			}
+			if (timingReport != null) {
+				System.out.println(timingReport.getSummary());
+				logger.info(timingReport.getSummary());
+			}
+		} catch (InterruptedException e) {
+			logger.error("Interrupted while waiting for conversions to finish", e);
+			Thread.currentThread().interrupt();
+		} finally {
+			if (timingReport != null) {
+				timingReport.close();
+			}
+		}
+	}
+
+	/*
+	 * Checks all the tools at once before any file is scheduled, reporting those that are unavailable.
+	 */
+	private static void probeTools(PdfaConvert convert) {
+		if (convert.getToolProbe() == null) {
+			return;
+		}
+		for (ToolProbe.Result result : convert.getToolProbe().probeAll().values()) {
+			if (!result.isAvailable()) {
+				System.out.println("Files for " + result.getToolType() + " will be rejected, its tool is not available: " + result.getProblem());
+			}
+		}
+	}
+
 	private static void displayHelp() {
 		System.out.println("PDF/A Utility help");
-		System.out.println("-i follow by path to input file to process");
+		System.out.println("-i follow by path to input file, ZIP archive or directory to process");
 		System.out.println("-o output sub-directory");
+		System.out.println("-r followed by content hash to release a quarantined input");
+		System.out.println("-w followed by path to directory to watch for files to convert until terminated");
+		System.out.println("-q followed by path to queue directory shared with other nodes to convert files from until terminated");
 		System.out.println("-v for version of this application");
 		System.out.println("-h to display this help");
 	}
@@ -221,71 +423,6 @@ public class PdfaConvert {
 		}
 	}
 	
-	private static void loadApplicationPropertiesFile() {
-		// Set the projects properties.
-		// First look for a system property pointing to a project properties file.
-		// This value can be either a file path, file protocol (e.g. - file:/path/to/file),
-		// or a URL (http://some/server/file).
-		// If this value either does not exist or is not valid, the default
-		// file that comes with this application will be used for initialization.
-		String environmentProjectPropsFile = System.getProperty(ApplicationConstants.ENV_PROJECT_PROPS);
-		logger.info("Have {} from environment: {}", ApplicationConstants.PROJECT_PROPS, environmentProjectPropsFile);
-		URI projectPropsUri = null;
-		if (environmentProjectPropsFile != null) {
-			try {
-				projectPropsUri = new URI(environmentProjectPropsFile);
-				// properties file needs a scheme in the URI so convert to file if necessary.
-				if (null == projectPropsUri.getScheme()) {
-					File projectProperties = new File(environmentProjectPropsFile);
-					if (projectProperties.exists() && projectProperties.isFile()) {
-						projectPropsUri = projectProperties.toURI();
-					} else {
-						// No scheme and not a file - yikes!!! Let's bail and
-						// use fall-back file.
-						projectPropsUri = null;
-						throw new URISyntaxException(environmentProjectPropsFile, "Not a valid file");
-					}
-				}
-			} catch (URISyntaxException e) {
-				// fall back to default file
-				logger.error("Unable to load properties file: {} -- reason: {}", environmentProjectPropsFile, e.getReason());
-				logger.error("Falling back to default {} file: {}", ApplicationConstants.PROJECT_PROPS, ApplicationConstants.PROJECT_PROPS);
-			}
-		}
-		
-		applicationProps = new Properties();
-		// load properties if environment value set
-		if (projectPropsUri != null) {
-			File envPropFile = new File(projectPropsUri);
-			if (envPropFile.exists() && envPropFile.isFile() && envPropFile.canRead()) {
-				Reader reader;
-				try {
-					reader = new FileReader(envPropFile);
-					logger.info("About to load {} from environment: {}", ApplicationConstants.PROJECT_PROPS, envPropFile.getAbsolutePath());
-					applicationProps.load(reader);
-					logger.info("Success -- loaded properties file.");
-				} catch (IOException e) {
-					logger.error("Could not load environment properties file: {}", projectPropsUri, e);
-					// set URI back to null so default prop file loaded
-					projectPropsUri = null;
-				}
-			}
-		}
-
-		if (projectPropsUri == null) {
-			ClassLoader loader = Thread.currentThread().getContextClassLoader();
-			try {
-				InputStream resourceStream = loader.getResourceAsStream(ApplicationConstants.PROJECT_PROPS);
-				applicationProps.load(resourceStream);
-				logger.info("loaded default applicationProps: ");
-			} catch (IOException e) {
-				logger.error("Could not load properties file: {}", ApplicationConstants.PROJECT_PROPS, e);
-				// couldn't load default properties so bail...
-				throw new RuntimeException("Couldn't load an applications properties file.", e);
-			}
-		}
-	}
-
 	/**
 	 * No-arg constructor; Put converted files into configured sub-directory.
 	 */
@@ -299,8 +436,20 @@ public class PdfaConvert {
 	 * @param subDir - Sub-directory of configured output directory to place converted files if not <code>null</code>.
 	 */
 	public PdfaConvert(String subDir) {
+		this(getApplicationConfig(), subDir);
+	}
+
+	/**
+	 * Constructor with the given configuration rather than the project properties.
+	 * 
+	 * @param config - Configuration of the converter and its tools.
+	 * @param subDir - Sub-directory of configured output directory to place converted files if not <code>null</code>.
+	 */
+	public PdfaConvert(ConverterConfig config, String subDir) {
 		super();
-		
+		this.config = config;
+		Properties applicationProps = config.getProperties();
+
 		logger.info("Have the following application properties:");
 		Enumeration<Object> keys = applicationProps.keys();
 		while (keys.hasMoreElements()) {
@@ -308,14 +457,9 @@ public class PdfaConvert {
 			logger.info("Key: {} -- value: {}", key, applicationProps.get(key));
 		}
 
-		// load converter application locations
-		unoconvHome = applicationProps.getProperty(ApplicationConstants.UNOCONV_HOME_PROP);
-		pdfaPilotHome = applicationProps.getProperty(ApplicationConstants.PDFA_PILOT_HOME_PROP);
-		calibreHome = applicationProps.getProperty(ApplicationConstants.CALIBRE_HOME_PROP);
-		isRemotePdfaPilot = Boolean.valueOf(applicationProps.getProperty(ApplicationConstants.PDFA_PILOT_IS_REMOTE_PROP));
-		String outputDir = PdfaConvert.applicationProps.getProperty(ApplicationConstants.OUTPUT_DIR_PROP);
-		logger.debug("Converter homes:\n unconvHome: {}, pdfaPilotHome: {}, calibreHome: {}", unoconvHome,
-				pdfaPilotHome, calibreHome);
+		String outputDir = config.getOutputDir();
+		logger.debug("Converter homes:\n unconvHome: {}, pdfaPilotHome: {}, calibreHome: {}", config.getUnoconvHome(),
+				config.getPdfaPilotHome(), config.getCalibreHome());
 		File baseOutputDirFile = new File(outputDir);
 		boolean outputDirExists = baseOutputDirFile.exists();
 		logger.debug("Output directory for PDF files and external application log files: {}  -- exists: {}", outputDir, outputDirExists);
@@ -336,6 +480,28 @@ public class PdfaConvert {
 			outputDirFile = baseOutputDirFile;
 		}
 		logger.debug("Output directory: {}", outputDirFile.getAbsoluteFile());
+
+		String maxFailures = applicationProps.getProperty(ApplicationConstants.QUARANTINE_AFTER_FAILURES_PROP);
+		if (!StringUtils.isBlank(maxFailures) && Integer.parseInt(maxFailures.trim()) > 0) {
+			String quarantineDir = applicationProps.getProperty(ApplicationConstants.QUARANTINE_DIR_PROP);
+			quarantine = Quarantine.forDirectory(StringUtils.isBlank(quarantineDir) ? new File(baseOutputDirFile, DEFAULT_QUARANTINE_DIR_NAME)
+					: new File(quarantineDir.trim()), Integer.parseInt(maxFailures.trim()));
+			logger.debug("Quarantining inputs after {} failures in: {}", maxFailures.trim(), quarantine.getDirectory());
+		}
+
+		preflight = Boolean.parseBoolean(applicationProps.getProperty(ApplicationConstants.PREFLIGHT_CHECKS_PROP, "true").trim());
+
+		cache = ConversionCache.fromProperties(applicationProps);
+
+		long probeTtlSeconds = config.getLong(ApplicationConstants.TOOL_PROBE_TTL_SECONDS_PROP, ToolProbe.DEFAULT_TTL_SECONDS);
+		if (probeTtlSeconds > 0) {
+			toolProbe = new ToolProbe(this::getConfig, TimeUnit.SECONDS.toMillis(probeTtlSeconds));
+		}
+
+		pipelines = ConversionPipeline.fromProperties(applicationProps);
+		for (ConversionPipeline pipeline : pipelines.values()) {
+			logger.info("Have conversion pipeline: {}", pipeline);
+		}
 	}
 
 	/**
@@ -357,13 +523,16 @@ public class PdfaConvert {
 	 * Converts the input file to PDF format using the appropriate application.
 	 * 
 	 * @param inputFile - The input file to convert
-	 * @param deleteConvertedFile - <code>true</code> delete the converted file upon completion;
-	 * 		  <code>false</code> leave converted file in configured output directory.
+	 * @param deleteConvertedFile - <code>true</code> delete the converted file when the returned output is closed
+	 * 		  (or once abandoned past the configured time-to-live); <code>false</code> leave converted file in configured output directory.
 	 * @return PdfaConverterOutput - Contains the input converted to PDF/A and other relevant data.
 	 * @throws GeneratedFileUnavailableException - If the generated file is either unavailable or unreadable.
 	 * @throws UnknownFileTypeException - The input file extension cannot be processed into a PDF/A.
 	 * @throws IllegalArgumentException - If the input is null.
 	 * @throws ExternalToolException - When there is a problem with the external tool being executed.
+	 * @throws EncryptedInputException - If the input is password protected.
+	 * @throws CorruptInputException - If the input is empty or truncated.
+	 * @throws QuarantinedInputException - If the input failed too many times before.
 	 */
 	public PdfaConverterOutput examine(File inputFile, boolean deleteConvertedFile) {
 		if (inputFile == null) {
@@ -371,32 +540,333 @@ public class PdfaConvert {
 			throw new IllegalArgumentException("inputFile parameter is null.");
 		}
 		
-	    String path = inputFile.getPath().toLowerCase();
-		String ext = path.substring(path.lastIndexOf(".") + 1);
-		
-		PdfaConvertable converter;
-		
-		switch(ext) {
-			case DOC_TYPE:
-			case DOCM_TYPE:
-			case DOCX_TYPE:
-			case ODT_TYPE:
-			case RTF_TYPE:
-			case WP_TYPE:
-			case WPD_TYPE:
-				converter = new UnoconvTool(unoconvHome, outputDirFile);
+		ToolType toolType = ToolType.forFile(inputFile);
+		if (toolType == null) {
+			throw new UnknownFileTypeException("File type unknown. Cannot process: " + inputFile.getName());
+		}
+
+		if (isPipelined(inputFile)) {
+			try {
+				return examineAsync(inputFile, deleteConvertedFile).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ExternalToolException("Interrupted converting: " + inputFile.getName(), e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException)e.getCause();
+				}
+				throw new ExternalToolException("Problem converting: " + inputFile.getName(), e.getCause());
+			}
+		}
+
+		if (preflight) {
+			InputPreflight.check(inputFile);
+		}
+		AbstractPdfaConverterTool converter = createTool(toolType, outputDirFile);
+		if (quarantine != null) {
+			return quarantine.guard(inputFile, () -> convert(converter, inputFile, outputDirFile, deleteConvertedFile));
+		}
+		PdfaConverterOutput output = convert(converter, inputFile, outputDirFile, deleteConvertedFile);
+		return output;
+	}
+
+	/**
+	 * Converts the input file into the given directory rather than the configured output directory, with the tool
+	 * for its file type and bypassing any pipeline, e.g. so that duplicate conversions of the same input don't
+	 * write to the same file.
+	 * 
+	 * @param inputFile - The input file to convert
+	 * @param outputDir - Directory into which the converted file is written; its tool output log is still written
+	 * 		  to the configured output directory.
+	 * @return PdfaConverterOutput - Contains the input converted to PDF/A and other relevant data.
+	 * @throws GeneratedFileUnavailableException - If the generated file is either unavailable or unreadable.
+	 * @throws UnknownFileTypeException - The input file extension cannot be processed into a PDF/A.
+	 * @throws IllegalArgumentException - If the input is null.
+	 * @throws ExternalToolException - When there is a problem with the external tool being executed.
+	 */
+	public PdfaConverterOutput examine(File inputFile, File outputDir) {
+		if (inputFile == null) {
+			logger.warn("Invalid null file -- no-op");
+			throw new IllegalArgumentException("inputFile parameter is null.");
+		}
+		ToolType toolType = ToolType.forFile(inputFile);
+		if (toolType == null) {
+			throw new UnknownFileTypeException("File type unknown. Cannot process: " + inputFile.getName());
+		}
+		if (preflight) {
+			InputPreflight.check(inputFile);
+		}
+		outputDir.mkdirs();
+		return convert(createTool(toolType, outputDir), inputFile, outputDir, false);
+	}
+
+	/**
+	 * Converts a document inside a ZIP archive. The entry is copied out of the archive to a scratch directory of its
+	 * own just for the conversion, and converted to a directory named after the archive and the entry's path in it,
+	 * e.g. docs/report.docx in deposit.zip to deposit/docs/report.pdf in the output directory. Conversion pipelines
+	 * and quarantine are bypassed as for {@link #examine(File, File)}.
+	 * 
+	 * @param entry - The archive entry to convert
+	 * @return PdfaConverterOutput - Contains the input converted to PDF/A and other relevant data.
+	 * @throws GeneratedFileUnavailableException - If the generated file is either unavailable or unreadable.
+	 * @throws UnknownFileTypeException - The entry's file extension cannot be processed into a PDF/A.
+	 * @throws IllegalArgumentException - If the entry is null.
+	 * @throws ExternalToolException - When the entry cannot be copied out of the archive or there is a problem
+	 * 		   with the external tool being executed.
+	 */
+	public PdfaConverterOutput examineEntry(ArchiveEntry entry) {
+		if (entry == null) {
+			logger.warn("Invalid null archive entry -- no-op");
+			throw new IllegalArgumentException("entry parameter is null.");
+		}
+		String scratchDir = config.getString(ApplicationConstants.ARCHIVE_SCRATCH_DIR_PROP, null);
+		File scratchRoot = scratchDir == null ? new File(System.getProperty("java.io.tmpdir"), "pdfa-converter-archive") : new File(scratchDir);
+		File jobDir;
+		try {
+			Files.createDirectories(scratchRoot.toPath());
+			jobDir = Files.createTempDirectory(scratchRoot.toPath(), "entry-").toFile();
+		} catch (IOException e) {
+			throw new ExternalToolException("Could not create scratch directory in: " + scratchRoot, e);
+		}
+		File inputFile = null;
+		try {
+			try {
+				inputFile = entry.extractTo(jobDir);
+			} catch (IOException e) {
+				throw new ExternalToolException("Could not copy out of archive: " + entry, e);
+			}
+			logger.debug("Copied archive entry: {} to: {}", entry, inputFile);
+			return examine(inputFile, entry.getOutputDirectory(outputDirFile));
+		} finally {
+			if (inputFile != null && !inputFile.delete() && inputFile.exists()) {
+				logger.warn("Could not delete scratch file: {}", inputFile);
+			}
+			if (!jobDir.delete()) {
+				logger.warn("Could not delete scratch directory: {}", jobDir);
+			}
+		}
+	}
+
+	/*
+	 * Converts with the tool unless a conversion of the same content by the same tool is cached, recording the
+	 * conversion as a Flight Recorder event.
+	 */
+	private PdfaConverterOutput convert(AbstractPdfaConverterTool tool, File inputFile, File toolOutputDir, boolean deleteConvertedFile) {
+		FlightEvents.Span conversionEvent = FlightEvents.begin(Phase.CONVERSION, tool.getClass().getSimpleName(), inputFile);
+		try {
+			String key = cache == null ? null : cache.key(inputFile, tool);
+			if (key != null) {
+				PdfaConverterOutput cached = cache.retrieve(key, new File(toolOutputDir, tool.getGeneratedPdfFilename(inputFile)), deleteConvertedFile);
+				if (cached != null) {
+					if (deleteConvertedFile) {
+						ConvertedFileSweeper.getInstance(config).track(cached.getPdfaConvertedFile());
+					}
+					recordOutputSize(conversionEvent, cached);
+					return cached;
+				}
+			}
+			PdfaConverterOutput output = tool.convert(inputFile, deleteConvertedFile);
+			if (key != null) {
+				cache.store(key, output.getPdfaConvertedFile());
+			}
+			recordOutputSize(conversionEvent, output);
+			return output;
+		} catch (RuntimeException e) {
+			conversionEvent.setFailure(e);
+			throw e;
+		} finally {
+			conversionEvent.end();
+		}
+	}
+
+	private static void recordOutputSize(FlightEvents.Span event, PdfaConverterOutput output) {
+		if (event.isRecording() && output.getPdfaConvertedFile() != null) {
+			event.setBytes(output.getPdfaConvertedFile().length());
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the input file is converted by a multi-stage pipeline declared in the application properties.
+	 */
+	public boolean isPipelined(File inputFile) {
+		return pipelines.containsKey(ToolType.getExtension(inputFile));
+	}
+
+	/**
+	 * Queues an input file on its conversion pipeline and returns without waiting for the conversion, so that
+	 * several files can be in different stages at once. Waits only if the first stage's queue is full.
+	 * 
+	 * @param inputFile - The input file to convert, which must be one for which {@link #isPipelined(File)} is true.
+	 * @param deleteConvertedFile - <code>true</code> delete the converted file when the returned output is closed.
+	 * @return Completes with the output of the last stage, or exceptionally with the failure of any stage.
+	 * @throws InterruptedException - If interrupted while waiting for room in the first stage's queue.
+	 * @throws UnknownFileTypeException - If no pipeline is declared for the input file type.
+	 * @throws QuarantinedInputException - If the input is quarantined.
+	 * @throws EncryptedInputException - If the input is password protected.
+	 * @throws CorruptInputException - If the input is empty or truncated.
+	 */
+	public CompletableFuture<PdfaConverterOutput> examineAsync(File inputFile, boolean deleteConvertedFile) throws InterruptedException {
+		ConversionPipeline pipeline = pipelines.get(ToolType.getExtension(inputFile));
+		if (pipeline == null) {
+			throw new UnknownFileTypeException("No pipeline for file type. Cannot process: " + inputFile.getName());
+		}
+		if (preflight) {
+			InputPreflight.check(inputFile);
+		}
+		PipelineRunner runner;
+		synchronized (pipelineRunners) {
+			runner = pipelineRunners.get(pipeline.getExtension());
+			if (runner == null) {
+				ConverterConfig current = config;
+				String scratchDir = current.getString(ApplicationConstants.PIPELINE_SCRATCH_DIR_PROP, null);
+				runner = new PipelineRunner(pipeline, this::createTool,
+						scratchDir == null ? new File(System.getProperty("java.io.tmpdir"), "pdfa-converter-pipeline") : new File(scratchDir),
+						current.getInt(ApplicationConstants.PIPELINE_QUEUE_CAPACITY_PROP, PipelineRunner.DEFAULT_QUEUE_CAPACITY));
+				pipelineRunners.put(pipeline.getExtension(), runner);
+			}
+		}
+		if (quarantine == null) {
+			return runner.submit(inputFile, outputDirFile, deleteConvertedFile);
+		}
+		String hash = quarantine.check(inputFile);
+		return runner.submit(inputFile, outputDirFile, deleteConvertedFile).whenComplete((output, e) -> {
+			if (e == null) {
+				quarantine.recordSuccess(hash);
+			} else {
+				quarantine.recordFailure(hash, inputFile, e);
+			}
+		});
+	}
+
+	/**
+	 * Lets files queued on conversion pipelines finish, then stops the pipelines' threads.
+	 */
+	public void shutdownPipelines() throws InterruptedException {
+		synchronized (pipelineRunners) {
+			for (PipelineRunner runner : pipelineRunners.values()) {
+				runner.shutdown();
+			}
+			pipelineRunners.clear();
+		}
+	}
+
+	/*
+	 * Creates the tool of the given type writing converted files to the given directory and its output log to the
+	 * configured output directory, unless the tool was found to be unavailable. The tool keeps the configuration it
+	 * is created with for its conversion, and a tool's backend, e.g. its pool of worker processes, is only started by
+	 * the first tool of its type.
+	 */
+	private AbstractPdfaConverterTool createTool(ToolType toolType, File toolOutputDir) {
+		if (toolProbe != null) {
+			ToolProbe.Result probed = toolProbe.getResult(toolType);
+			if (!probed.isAvailable()) {
+				throw new ExternalToolException("Tool for " + toolType + " is not available: " + probed.getProblem());
+			}
+		}
+		ConverterConfig current = config;
+		AbstractPdfaConverterTool tool;
+		switch(toolType) {
+			case UNOCONV:
+				tool = new UnoconvTool(current, toolOutputDir);
 				break;
-			case EPUB_TYPE:
-				converter = new CalibreTool(calibreHome, outputDirFile);
+			case CALIBRE:
+				tool = new CalibreTool(current, toolOutputDir);
 				break;
-			case PDF_TYPE:
-				converter = isRemotePdfaPilot ? new PdfaPilotRemoteTool(pdfaPilotHome, outputDirFile) : new PdfaPilotTool(pdfaPilotHome, outputDirFile);
+			case PDFA_PILOT:
+				if (current.getPdfaPilotAgentHost() != null) {
+					tool = new PdfaPilotAgentTool(current, current.getPdfaPilotAgentHost(), current.getPdfaPilotAgentPort(),
+							current.getPdfaPilotAgentSecret(), toolOutputDir);
+				} else {
+					tool = current.isPdfaPilotRemote() ? new PdfaPilotRemoteTool(current, toolOutputDir) : new PdfaPilotTool(current, toolOutputDir);
+				}
 				break;
 			default:
-				throw new UnknownFileTypeException("File type unknown. Cannot process: " + inputFile.getName());
+				throw new UnknownFileTypeException("No tool of type: " + toolType);
 		}
-		PdfaConverterOutput output = converter.convert(inputFile, deleteConvertedFile);
-		return output;
+		tool.setLogDirectory(outputDirFile);
+		return tool;
+	}
+
+	/**
+	 * Converts several input files in as few external tool runs as possible. Only inputs of a tool able to convert
+	 * several files at once are converted together: office documents, and documents for a remote pdfaPilot when
+	 * files are streamed to it; other inputs are left for {@link #examine(File)}. Converted files are left in the
+	 * configured output directory.
+	 * 
+	 * @param inputFiles - The input files to convert
+	 * @return The output of each input file that was converted. Inputs missing from the map were not converted and
+	 * 		   should be converted with {@link #examine(File)}, which reports why one fails.
+	 */
+	public Map<File, PdfaConverterOutput> examineBatch(List<File> inputFiles) {
+		Map<File, PdfaConverterOutput> outputs = new HashMap<File, PdfaConverterOutput>();
+		Map<File, String> cacheKeys = new HashMap<File, String>();
+		Map<File, String> quarantineHashes = new HashMap<File, String>();
+		Map<ToolType, AbstractPdfaConverterTool> tools = new EnumMap<ToolType, AbstractPdfaConverterTool>(ToolType.class);
+		Map<ToolType, List<File>> toolInputs = new EnumMap<ToolType, List<File>>(ToolType.class);
+		for (File inputFile : inputFiles) {
+			ToolType toolType = ToolType.forFile(inputFile);
+			if (toolType == null) {
+				continue;
+			}
+			if (preflight) {
+				try {
+					InputPreflight.check(inputFile);
+				} catch (PdfaConversionException e) {
+					// left out so that examine reports it
+					continue;
+				}
+			}
+			if (toolProbe != null && !toolProbe.getResult(toolType).isAvailable()) {
+				// left out so that examine reports it
+				continue;
+			}
+			if (quarantine != null) {
+				try {
+					quarantineHashes.put(inputFile, quarantine.check(inputFile));
+				} catch (QuarantinedInputException e) {
+					// left out so that examine rejects it
+					continue;
+				}
+			}
+			AbstractPdfaConverterTool tool = tools.get(toolType);
+			if (tool == null) {
+				tool = createTool(toolType, outputDirFile);
+				tools.put(toolType, tool);
+			}
+			if (!(tool instanceof BatchConvertable)) {
+				continue;
+			}
+			String key = cache == null ? null : cache.key(inputFile, tool);
+			if (key != null) {
+				PdfaConverterOutput cached = cache.retrieve(key, new File(outputDirFile, tool.getGeneratedPdfFilename(inputFile)), false);
+				if (cached != null) {
+					outputs.put(inputFile, cached);
+					continue;
+				}
+				cacheKeys.put(inputFile, key);
+			}
+			List<File> batch = toolInputs.get(toolType);
+			if (batch == null) {
+				batch = new ArrayList<File>();
+				toolInputs.put(toolType, batch);
+			}
+			batch.add(inputFile);
+		}
+		for (Map.Entry<ToolType, List<File>> batch : toolInputs.entrySet()) {
+			Map<File, PdfaConverterOutput> converted = ((BatchConvertable)tools.get(batch.getKey())).convertBatch(batch.getValue(), false);
+			for (Map.Entry<File, PdfaConverterOutput> entry : converted.entrySet()) {
+				String key = cacheKeys.get(entry.getKey());
+				if (key != null) {
+					cache.store(key, entry.getValue().getPdfaConvertedFile());
+				}
+				// the failures of inputs left unconverted are recorded when examine converts them on their own
+				if (quarantine != null) {
+					quarantine.recordSuccess(quarantineHashes.get(entry.getKey()));
+				}
+			}
+			outputs.putAll(converted);
+		}
+		return outputs;
 	}
 	
 	/**
@@ -421,11 +891,90 @@ public class PdfaConvert {
 		return fileDeleted;
 	}
 	
+	/**
+	 * @return The quarantine of inputs failing repeatedly, or <code>null</code> if not enabled.
+	 */
+	public Quarantine getQuarantine() {
+		return quarantine;
+	}
+
+	/**
+	 * @return The cache of conversions or <code>null</code> if conversions are not reused.
+	 */
+	public ConversionCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * @return The directory into which converted files are written.
+	 */
+	public File getOutputDirectory() {
+		return outputDirFile;
+	}
+
+	/**
+	 * @return The configuration new tools are created from.
+	 */
+	public ConverterConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * Replaces the configuration new tools are created from. Conversions under way finish with the tools they
+	 * were created with. Settings of the converter itself, such as its output directory, cache, quarantine and
+	 * pipelines, and of tool backends already started, such as the office and calibre worker pools, stay as they
+	 * were when they were created. The tools are probed again when next used.
+	 * 
+	 * @param config - The new configuration.
+	 */
+	public void setConfig(ConverterConfig config) {
+		this.config = config;
+		if (toolProbe != null) {
+			toolProbe.invalidate();
+		}
+	}
+
+	/**
+	 * @return The probe of the tools' availability or <code>null</code> if tools are not checked before use.
+	 */
+	public ToolProbe getToolProbe() {
+		return toolProbe;
+	}
+
 	public String getVersion() {
 		return applicationVersion;
 	}
-	
+
+	/**
+	 * @return The snapshot of the project properties, loaded when first needed.
+	 */
+	public static ConverterConfig getApplicationConfig() {
+		ConverterConfig current = applicationConfig;
+		if (current == null) {
+			synchronized (PdfaConvert.class) {
+				current = applicationConfig;
+				if (current == null) {
+					current = ConverterConfig.load();
+					applicationConfig = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Replaces the snapshot of the project properties, e.g. with one reloaded from the changed properties file.
+	 * 
+	 * @param config - The new snapshot.
+	 */
+	public static void setApplicationConfig(ConverterConfig config) {
+		applicationConfig = config;
+	}
+
+	/**
+	 * @return A copy of the project properties of the current snapshot.
+	 */
 	public static Properties getApplicationProperties() {
-		return applicationProps;
+		return getApplicationConfig().getProperties();
 	}
 }
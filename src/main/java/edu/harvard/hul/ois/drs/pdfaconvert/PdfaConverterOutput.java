@@ -12,21 +12,43 @@ package edu.harvard.hul.ois.drs.pdfaconvert;
 import java.io.File;
 import java.io.Serializable;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ConvertedFileSweeper;
+
 /**
  * Wrapper class for a file converted to PDF/A format as well as any other relevant data.
+ * When the converted file was requested to be deleted, closing this output deletes it from the file system.
+ * Outputs that are never closed are removed by the {@link ConvertedFileSweeper} once their time-to-live expires.
  * 
  * @author dan179
  */
-public class PdfaConverterOutput implements Serializable {
+public class PdfaConverterOutput implements Serializable, AutoCloseable {
 	private static final long serialVersionUID = 8657370419144639361L;
 
+	private static final Logger logger = LogManager.getLogger();
+
 	private File pdfaConvertedFile;
 	private String toolLoggingOutput;
+	// Not serialized so that a deserialized copy never deletes a file it does not own.
+	private transient boolean deleteOnClose;
+	private transient boolean closed;
 
 	public PdfaConverterOutput(File pdfaConvertedFile, String toolLoggingOutput) {
+		this(pdfaConvertedFile, toolLoggingOutput, false);
+	}
+
+	/**
+	 * @param pdfaConvertedFile The converted file.
+	 * @param toolLoggingOutput Output from the tool that performed the conversion.
+	 * @param deleteOnClose <code>true</code> delete the converted file when this output is closed.
+	 */
+	public PdfaConverterOutput(File pdfaConvertedFile, String toolLoggingOutput, boolean deleteOnClose) {
 		super();
 		this.pdfaConvertedFile = pdfaConvertedFile;
 		this.toolLoggingOutput = toolLoggingOutput;
+		this.deleteOnClose = deleteOnClose;
 	}
 
 	public File getPdfaConvertedFile() {
@@ -37,4 +59,29 @@ public class PdfaConverterOutput implements Serializable {
 		return toolLoggingOutput;
 	}
 
+	public boolean isDeleteOnClose() {
+		return deleteOnClose;
+	}
+
+	/**
+	 * Deletes the converted file if it was requested to be deleted, otherwise releases it from tracking
+	 * so that it remains in the output directory. Calling this more than once has no further effect.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		// only files to be deleted are tracked
+		if (pdfaConvertedFile == null || !deleteOnClose) {
+			return;
+		}
+		ConvertedFileSweeper.releaseShared(pdfaConvertedFile);
+		if (pdfaConvertedFile.exists()) {
+			boolean deleted = pdfaConvertedFile.delete();
+			logger.debug("Deleted converted file on close: {} -- success: {}", pdfaConvertedFile, deleted);
+		}
+	}
+
 }
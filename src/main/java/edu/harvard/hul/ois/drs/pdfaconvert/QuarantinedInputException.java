@@ -0,0 +1,39 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert;
+
+/**
+ * Thrown to indicate that the input failed to convert too many times before and is not attempted again until released from quarantine.
+ */
+public class QuarantinedInputException extends PdfaConversionException {
+	private static final long serialVersionUID = 3318724057719964212L;
+
+	public QuarantinedInputException() {
+		super();
+	}
+
+	public QuarantinedInputException(String message) {
+		super(message);
+	}
+
+	public QuarantinedInputException(Throwable cause) {
+		super(cause);
+	}
+
+	public QuarantinedInputException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+	public QuarantinedInputException(String message, Throwable cause, boolean enableSuppression,
+			boolean writableStackTrace) {
+		super(message, cause, enableSuppression, writableStackTrace);
+	}
+
+}
@@ -0,0 +1,152 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.batch;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.util.SystemLoad;
+
+/**
+ * Limits how many conversions of one tool run at once, adjusting the limit from how conversions behave (AIMD).
+ * While the limit is in use and conversions take no longer than usual the limit grows by about one each time
+ * that many conversions finish. It is cut back when conversions slow down, when many fail, or when the machine
+ * is overloaded.
+ * <p>
+ * As inputs differ in size, latency is measured as the ratio of the actual to the estimated conversion time.
+ * A conversion is slow when the recent average ratio is well above the long-term average.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+	// weight of each sample in the recent and long-term latency averages
+	private static final double RECENT_WEIGHT = 0.3;
+	private static final double LONG_TERM_WEIGHT = 0.05;
+	// recent latency this much above the long-term average counts as slowing down
+	private static final double LATENCY_TOLERANCE = 1.5;
+	private static final double FAILURE_WEIGHT = 0.1;
+	private static final double MAX_FAILURE_RATE = 0.3;
+	private static final double BACKOFF = 0.75;
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final String name;
+	private final int maxLimit;
+	private final SystemLoad systemLoad;
+	private double limit;
+	private int inFlight = 0;
+	private boolean hasSamples = false;
+	private double recentLatency;
+	private double longTermLatency;
+	private double failureRate = 0;
+	// completions to wait after backing off before backing off again, so one slow spell isn't punished repeatedly
+	private int cooldown = 0;
+
+	/**
+	 * @param name - Name of what is limited, for logging.
+	 * @param initialLimit - Starting limit.
+	 * @param maxLimit - Highest limit allowed.
+	 * @param systemLoad - Checked for overload after each conversion; may be <code>null</code>.
+	 */
+	public AdaptiveConcurrencyLimiter(String name, int initialLimit, int maxLimit, SystemLoad systemLoad) {
+		this.name = name;
+		this.maxLimit = Math.max(1, maxLimit);
+		this.limit = Math.max(1, Math.min(initialLimit, this.maxLimit));
+		this.systemLoad = systemLoad;
+	}
+
+	/**
+	 * @return The number of conversions allowed at once.
+	 */
+	public synchronized int getLimit() {
+		return (int)limit;
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Starts a conversion if the limit allows.
+	 *
+	 * @return <code>true</code> if started; the caller must then report its outcome.
+	 */
+	public synchronized boolean tryAcquire() {
+		if (inFlight < getLimit()) {
+			inFlight++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Reports a successful conversion.
+	 *
+	 * @param latencyRatio - Actual conversion time divided by the estimated time.
+	 */
+	public synchronized void onSuccess(double latencyRatio) {
+		boolean limitReached = inFlight >= getLimit();
+		inFlight--;
+		failureRate *= 1 - FAILURE_WEIGHT;
+		if (!hasSamples) {
+			recentLatency = longTermLatency = latencyRatio;
+			hasSamples = true;
+		} else {
+			recentLatency += RECENT_WEIGHT * (latencyRatio - recentLatency);
+			longTermLatency += LONG_TERM_WEIGHT * (latencyRatio - longTermLatency);
+		}
+		adjust(limitReached);
+	}
+
+	/**
+	 * Reports a failed conversion.
+	 */
+	public synchronized void onFailure() {
+		boolean limitReached = inFlight >= getLimit();
+		inFlight--;
+		failureRate += FAILURE_WEIGHT * (1 - failureRate);
+		adjust(limitReached);
+	}
+
+	/**
+	 * Reports a conversion whose outcome says nothing about the tool's capacity, such as one converting several inputs.
+	 */
+	public synchronized void onIgnore() {
+		inFlight--;
+	}
+
+	private void adjust(boolean limitReached) {
+		String overload = systemLoad == null ? null : systemLoad.getOverloadReason();
+		String reason = null;
+		if (overload != null) {
+			reason = overload;
+		} else if (failureRate > MAX_FAILURE_RATE) {
+			reason = String.format("failure rate %.2f", failureRate);
+		} else if (hasSamples && recentLatency > longTermLatency * LATENCY_TOLERANCE) {
+			reason = String.format("latency %.2f times the usual", recentLatency / longTermLatency);
+		}
+		int before = getLimit();
+		if (reason != null) {
+			if (cooldown > 0) {
+				cooldown--;
+				return;
+			}
+			limit = Math.max(1, limit * BACKOFF);
+			cooldown = getLimit();
+		} else if (limitReached) {
+			// grow only while the limit is what holds conversions back
+			cooldown = Math.max(0, cooldown - 1);
+			limit = Math.min(maxLimit, limit + 1 / limit);
+		}
+		if (getLimit() != before) {
+			logger.info("Concurrency limit for {} {} to {}{}", name, getLimit() > before ? "raised" : "lowered", getLimit(),
+					reason == null ? "" : " -- " + reason);
+		}
+	}
+}
@@ -0,0 +1,34 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.batch;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+
+/**
+ * Notified by a {@link BatchScheduler} as each job finishes. Called on the worker thread that ran the job.
+ */
+public interface BatchListener {
+
+	/**
+	 * A job was converted successfully.
+	 *
+	 * @param job - The finished job.
+	 * @param output - The conversion output.
+	 */
+	void jobSucceeded(ConversionJob job, PdfaConverterOutput output);
+
+	/**
+	 * A job could not be converted.
+	 *
+	 * @param job - The finished job.
+	 * @param error - The reason the conversion failed.
+	 */
+	void jobFailed(ConversionJob job, Exception error);
+}
@@ -0,0 +1,605 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.batch;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ApplicationConstants;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConvert;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.ToolType;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.pdfapilot.PdfaPilotRemoteTool;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ArchiveEntry;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ConversionTrace;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.SystemLoad;
+
+/**
+ * Converts many input files using a pool of worker threads, running the jobs with the shortest estimated
+ * conversion time first to minimize mean turnaround. Estimates come from a {@link ConversionCostModel} which
+ * learns from every successful conversion.
+ * <p>
+ * To keep large jobs from waiting forever behind a stream of small ones, a job's priority improves the
+ * longer it waits: priority = estimate - agingFactor * time waited. As every queued job ages at the same
+ * rate this equals estimate + agingFactor * time enqueued (less a common term), so the ordering never
+ * needs to be recomputed.
+ * <p>
+ * Inputs larger than a configured threshold can be isolated in a separate lane with its own workers and
+ * memory budget, so that normal-size documents keep flowing on the main lane however many large ones are queued.
+ * <p>
+ * For tools that can convert several inputs in one run, a worker can take further queued jobs for the same tool
+ * along with the one it picked and hand them to the converter together; any the batch run did not convert are
+ * then converted one at a time.
+ * <p>
+ * With adaptive concurrency enabled, how many conversions of each tool run at once is decided by an
+ * {@link AdaptiveConcurrencyLimiter} for the tool, up to the number of workers; jobs of a tool at its limit
+ * are passed over in favour of jobs of other tools.
+ * <p>
+ * With hedging enabled, conversions that run far longer than usual are duplicated by a {@link StragglerHedger}.
+ */
+public class BatchScheduler {
+
+	/** Default number of worker threads if not configured. */
+	public static final int DEFAULT_WORKERS = 1;
+
+	/** Default milliseconds of priority gained per millisecond waited if not configured. */
+	public static final double DEFAULT_AGING_FACTOR = 1.0;
+
+	/** Default number of workers in the large file lane if not configured. */
+	public static final int DEFAULT_LARGE_FILE_LANE_WORKERS = 1;
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final PdfaConvert converter;
+	private final ConversionCostModel costModel;
+	private final Lane mainLane;
+	private final double agingFactor;
+	private final long createdMillis = System.currentTimeMillis();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private Lane largeFileLane;
+	private long largeFileThresholdBytes = 0;
+	private final Map<ToolType, Integer> batchSizes = new EnumMap<ToolType, Integer>(ToolType.class);
+	private final Map<ToolType, AdaptiveConcurrencyLimiter> limiters = new EnumMap<ToolType, AdaptiveConcurrencyLimiter>(ToolType.class);
+	private SystemLoad adaptiveSystemLoad;
+	private boolean adaptive = false;
+	private StragglerHedger hedger;
+	private final List<BatchListener> listeners = new CopyOnWriteArrayList<BatchListener>();
+	private final List<Thread> workers = new ArrayList<Thread>();
+	private long sequence = 0;
+	private boolean shuttingDown = false;
+
+	/**
+	 * @param converter - Performs each conversion.
+	 * @param costModel - Estimates and learns conversion times.
+	 * @param workerCount - Number of conversions run concurrently on the main lane.
+	 * @param agingFactor - Milliseconds of priority a job gains for each millisecond it waits.
+	 */
+	public BatchScheduler(PdfaConvert converter, ConversionCostModel costModel, int workerCount, double agingFactor) {
+		this.converter = converter;
+		this.costModel = costModel;
+		this.mainLane = new Lane("main", workerCount, 0);
+		this.agingFactor = agingFactor;
+	}
+
+	/**
+	 * Creates a scheduler using the worker count, aging factor and conversion history file from the application properties.
+	 */
+	public static BatchScheduler create(PdfaConvert converter, Properties props) {
+		String workers = props.getProperty(ApplicationConstants.BATCH_WORKERS_PROP);
+		String aging = props.getProperty(ApplicationConstants.SCHEDULER_AGING_FACTOR_PROP);
+		String historyFile = props.getProperty(ApplicationConstants.CONVERSION_HISTORY_FILE_PROP);
+		File history = StringUtils.isBlank(historyFile)
+				? new File(props.getProperty(ApplicationConstants.OUTPUT_DIR_PROP), ConversionCostModel.DEFAULT_HISTORY_FILE_NAME)
+				: new File(historyFile.trim());
+		BatchScheduler scheduler = new BatchScheduler(converter, new ConversionCostModel(history),
+				StringUtils.isBlank(workers) ? DEFAULT_WORKERS : Integer.parseInt(workers.trim()),
+				StringUtils.isBlank(aging) ? DEFAULT_AGING_FACTOR : Double.parseDouble(aging.trim()));
+		String threshold = props.getProperty(ApplicationConstants.LARGE_FILE_THRESHOLD_BYTES_PROP);
+		if (!StringUtils.isBlank(threshold) && Long.parseLong(threshold.trim()) > 0) {
+			String laneWorkers = props.getProperty(ApplicationConstants.LARGE_FILE_LANE_WORKERS_PROP);
+			String laneMemory = props.getProperty(ApplicationConstants.LARGE_FILE_LANE_MEMORY_BYTES_PROP);
+			scheduler.configureLargeFileLane(Long.parseLong(threshold.trim()),
+					StringUtils.isBlank(laneWorkers) ? DEFAULT_LARGE_FILE_LANE_WORKERS : Integer.parseInt(laneWorkers.trim()),
+					StringUtils.isBlank(laneMemory) ? 0 : Long.parseLong(laneMemory.trim()));
+		}
+		// batched soffice runs only pay off when there are no running soffice processes to send documents to
+		String officeBatchSize = props.getProperty(ApplicationConstants.OFFICE_BATCH_SIZE_PROP);
+		String officeProcesses = props.getProperty(ApplicationConstants.OFFICE_PROCESSES_PROP);
+		if (!StringUtils.isBlank(officeBatchSize) && (StringUtils.isBlank(officeProcesses) || Integer.parseInt(officeProcesses.trim()) < 1)) {
+			scheduler.configureBatching(ToolType.UNOCONV, Integer.parseInt(officeBatchSize.trim()));
+		}
+		// only streamed transfers can take several inputs to the remote pdfaPilot at once
+		String remoteBatchSize = props.getProperty(ApplicationConstants.PDFA_PILOT_REMOTE_BATCH_SIZE_PROP);
+		if (Boolean.parseBoolean(props.getProperty(ApplicationConstants.PDFA_PILOT_IS_REMOTE_PROP)) && !StringUtils.isBlank(remoteBatchSize)
+				&& PdfaPilotRemoteTool.TRANSFER_TAR.equalsIgnoreCase(StringUtils.trimToEmpty(props.getProperty(ApplicationConstants.PDFA_PILOT_REMOTE_TRANSFER_PROP)))) {
+			scheduler.configureBatching(ToolType.PDFA_PILOT, Integer.parseInt(remoteBatchSize.trim()));
+		}
+		if (Boolean.parseBoolean(props.getProperty(ApplicationConstants.ADAPTIVE_CONCURRENCY_PROP, "false").trim())) {
+			String maxLoad = props.getProperty(ApplicationConstants.ADAPTIVE_MAX_LOAD_PER_CPU_PROP);
+			String minMemory = props.getProperty(ApplicationConstants.ADAPTIVE_MIN_AVAILABLE_MEMORY_BYTES_PROP);
+			scheduler.enableAdaptiveConcurrency(new SystemLoad(
+					StringUtils.isBlank(maxLoad) ? 0 : Double.parseDouble(maxLoad.trim()),
+					StringUtils.isBlank(minMemory) ? 0 : Long.parseLong(minMemory.trim())));
+		}
+		if (Boolean.parseBoolean(props.getProperty(ApplicationConstants.HEDGE_CONVERSIONS_PROP, "false").trim())) {
+			String percentile = props.getProperty(ApplicationConstants.HEDGE_PERCENTILE_PROP);
+			String minSamples = props.getProperty(ApplicationConstants.HEDGE_MIN_SAMPLES_PROP);
+			String maxInFlight = props.getProperty(ApplicationConstants.HEDGE_MAX_IN_FLIGHT_PROP);
+			// remote inputs are copied to fixed paths on the one remote host, so a duplicate there would clash
+			Set<ToolType> toolTypes = EnumSet.allOf(ToolType.class);
+			if (Boolean.parseBoolean(props.getProperty(ApplicationConstants.PDFA_PILOT_IS_REMOTE_PROP))) {
+				toolTypes.remove(ToolType.PDFA_PILOT);
+			}
+			scheduler.enableHedging(new StragglerHedger(converter, toolTypes,
+					StringUtils.isBlank(percentile) ? StragglerHedger.DEFAULT_PERCENTILE : Double.parseDouble(percentile.trim()),
+					StringUtils.isBlank(minSamples) ? StragglerHedger.DEFAULT_MIN_SAMPLES : Integer.parseInt(minSamples.trim()),
+					StringUtils.isBlank(maxInFlight) ? StragglerHedger.DEFAULT_MAX_IN_FLIGHT : Integer.parseInt(maxInFlight.trim())));
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Sends inputs larger than the threshold to a separate lane. Must be called before {@link #start()}.
+	 *
+	 * @param thresholdBytes - Inputs larger than this many bytes go to the large file lane.
+	 * @param workers - Number of conversions run concurrently in the large file lane.
+	 * @param memoryBudgetBytes - Total estimated memory of conversions running concurrently in the large file lane;
+	 * 		  unlimited if less than 1.
+	 */
+	public void configureLargeFileLane(long thresholdBytes, int workers, long memoryBudgetBytes) {
+		lock.lock();
+		try {
+			if (!this.workers.isEmpty()) {
+				throw new IllegalStateException("Lanes cannot be changed once the scheduler is started");
+			}
+			largeFileLane = new Lane("large-file", workers, memoryBudgetBytes);
+			largeFileThresholdBytes = thresholdBytes;
+			logger.info("Inputs over {} bytes use a separate lane with {} workers and memory budget of {} bytes",
+					thresholdBytes, workers, memoryBudgetBytes);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Lets a worker convert up to the given number of queued jobs for a tool in one call to
+	 * {@link PdfaConvert#examineBatch(List)}. Must be called before {@link #start()}.
+	 *
+	 * @param toolType - Tool whose inputs are batched.
+	 * @param maxBatchSize - Maximum number of inputs per batch; 1 or less converts each input on its own.
+	 */
+	public void configureBatching(ToolType toolType, int maxBatchSize) {
+		lock.lock();
+		try {
+			if (!workers.isEmpty()) {
+				throw new IllegalStateException("Batching cannot be changed once the scheduler is started");
+			}
+			batchSizes.put(toolType, maxBatchSize);
+			logger.info("Converting up to {} {} inputs per batch", maxBatchSize, toolType);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Lets the number of conversions run at once for each tool adapt to how the conversions behave, up to the
+	 * number of workers. Must be called before {@link #start()}.
+	 *
+	 * @param systemLoad - Checked after each conversion to back off when the machine is overloaded; may be <code>null</code>.
+	 */
+	public void enableAdaptiveConcurrency(SystemLoad systemLoad) {
+		lock.lock();
+		try {
+			if (!workers.isEmpty()) {
+				throw new IllegalStateException("Adaptive concurrency cannot be enabled once the scheduler is started");
+			}
+			adaptive = true;
+			adaptiveSystemLoad = systemLoad;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Converts each job through the hedger, which duplicates conversions that run far longer than usual.
+	 * Must be called before {@link #start()}.
+	 */
+	public void enableHedging(StragglerHedger hedger) {
+		lock.lock();
+		try {
+			if (!workers.isEmpty()) {
+				throw new IllegalStateException("Hedging cannot be enabled once the scheduler is started");
+			}
+			this.hedger = hedger;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The hedger, or <code>null</code> if hedging is not enabled.
+	 */
+	public StragglerHedger getHedger() {
+		return hedger;
+	}
+
+	/**
+	 * @return The current concurrency limit of each tool, or an empty map if adaptive concurrency is not enabled.
+	 */
+	public Map<ToolType, Integer> getConcurrencyLimits() {
+		Map<ToolType, Integer> limits = new EnumMap<ToolType, Integer>(ToolType.class);
+		lock.lock();
+		try {
+			for (Map.Entry<ToolType, AdaptiveConcurrencyLimiter> entry : limiters.entrySet()) {
+				limits.put(entry.getKey(), entry.getValue().getLimit());
+			}
+		} finally {
+			lock.unlock();
+		}
+		return limits;
+	}
+
+	public void addListener(BatchListener listener) {
+		listeners.add(listener);
+	}
+
+	public ConversionCostModel getCostModel() {
+		return costModel;
+	}
+
+	/**
+	 * @return The total number of workers in all lanes.
+	 */
+	public int getWorkerCount() {
+		return mainLane.getWorkerCount() + (largeFileLane == null ? 0 : largeFileLane.getWorkerCount());
+	}
+
+	/**
+	 * Queues an input file for conversion.
+	 *
+	 * @param inputFile - The file to convert.
+	 * @return The queued job.
+	 * @throws IllegalStateException - If the scheduler is shutting down.
+	 */
+	public ConversionJob submit(File inputFile) {
+		return submit(inputFile, null, inputFile.length());
+	}
+
+	/**
+	 * Queues a document inside a ZIP archive for conversion. Nothing is copied out of the archive until the
+	 * conversion starts. The document is converted on its own, without batching or hedging.
+	 *
+	 * @param entry - The archive entry to convert.
+	 * @return The queued job.
+	 * @throws IllegalStateException - If the scheduler is shutting down.
+	 */
+	public ConversionJob submit(ArchiveEntry entry) {
+		return submit(entry.getPath(), entry, entry.getSizeBytes());
+	}
+
+	private ConversionJob submit(File inputFile, ArchiveEntry entry, long size) {
+		ToolType toolType = ToolType.forFile(inputFile);
+		long estimate = costModel.estimateMillis(toolType, size);
+		long memory = costModel.estimateMemoryBytes(toolType, size);
+		long now = System.currentTimeMillis();
+		lock.lock();
+		try {
+			if (shuttingDown) {
+				throw new IllegalStateException("Scheduler is shutting down, cannot accept: " + inputFile);
+			}
+			double priority = estimate + agingFactor * (now - createdMillis);
+			ConversionJob job = new ConversionJob(inputFile, entry, toolType, size, estimate, memory, now, sequence++, priority);
+			Lane lane = laneFor(job);
+			lane.add(job);
+			logger.debug("Queued {} in lane: {}", job, lane.getName());
+			changed.signalAll();
+			return job;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of jobs waiting to be started.
+	 */
+	public int getPendingCount() {
+		lock.lock();
+		try {
+			return mainLane.getPendingCount() + (largeFileLane == null ? 0 : largeFileLane.getPendingCount());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Estimates how long the queued jobs will take. Lanes run side by side so this is the longest of the lanes' estimates.
+	 *
+	 * @return Estimated milliseconds until all queued jobs finish.
+	 */
+	public long estimateCompletionMillis() {
+		lock.lock();
+		try {
+			long estimate = mainLane.estimateCompletionMillis();
+			if (largeFileLane != null) {
+				estimate = Math.max(estimate, largeFileLane.estimateCompletionMillis());
+			}
+			return estimate;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Starts the worker threads.
+	 */
+	public void start() {
+		lock.lock();
+		try {
+			if (!workers.isEmpty()) {
+				return;
+			}
+			if (adaptive) {
+				for (ToolType toolType : ToolType.values()) {
+					// start low and let the limit grow while conversions keep up
+					limiters.put(toolType, new AdaptiveConcurrencyLimiter(toolType.name(), 1, getWorkerCount(), adaptiveSystemLoad));
+				}
+				logger.info("Adaptive concurrency enabled with up to {} conversions per tool", getWorkerCount());
+			}
+			startWorkers(mainLane);
+			if (largeFileLane != null) {
+				startWorkers(largeFileLane);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until no jobs are queued or running.
+	 */
+	public void awaitIdle() throws InterruptedException {
+		lock.lock();
+		try {
+			while (!mainLane.isIdle() || (largeFileLane != null && !largeFileLane.isIdle())) {
+				changed.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the jobs not yet started, e.g. to stop quickly with {@link #shutdown()} waiting only for running jobs.
+	 * Listeners are not notified of the removed jobs.
+	 *
+	 * @return The removed jobs.
+	 */
+	public List<ConversionJob> cancelPending() {
+		lock.lock();
+		try {
+			List<ConversionJob> cancelled = mainLane.removePending();
+			if (largeFileLane != null) {
+				cancelled.addAll(largeFileLane.removePending());
+			}
+			changed.signalAll();
+			return cancelled;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops accepting jobs, waits for queued and running jobs to finish, then stops the workers
+	 * and saves the conversion history.
+	 */
+	public void shutdown() throws InterruptedException {
+		lock.lock();
+		try {
+			shuttingDown = true;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		costModel.save();
+	}
+
+	private void startWorkers(Lane lane) {
+		for (int i = 0; i < lane.getWorkerCount(); i++) {
+			Thread worker = new Thread(() -> runWorker(lane), "batch-" + lane.getName() + "-worker-" + i);
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	private Lane laneFor(ConversionJob job) {
+		if (largeFileLane != null && job.getSizeBytes() > largeFileThresholdBytes) {
+			return largeFileLane;
+		}
+		return mainLane;
+	}
+
+	/*
+	 * Body of each worker thread -- takes the highest priority job of its lane until shut down and nothing is queued.
+	 */
+	private void runWorker(Lane lane) {
+		while (true) {
+			ConversionJob job;
+			List<ConversionJob> batch;
+			lock.lock();
+			try {
+				while ((job = lane.take(this::acquire)) == null) {
+					if (shuttingDown && !lane.hasPending()) {
+						return;
+					}
+					changed.awaitUninterruptibly();
+				}
+				Integer batchSize = batchSizes.get(job.getToolType());
+				if (batchSize == null || batchSize < 2 || job.getArchiveEntry() != null) {
+					batch = Collections.singletonList(job);
+				} else {
+					batch = new ArrayList<ConversionJob>();
+					batch.add(job);
+					batch.addAll(lane.takeCompanions(job, batchSize - 1));
+				}
+			} finally {
+				lock.unlock();
+			}
+			boolean succeeded = false;
+			try {
+				if (batch.size() > 1) {
+					runBatch(batch);
+				} else {
+					succeeded = runJob(job);
+				}
+			} finally {
+				// a batch run takes one slot but its time isn't comparable to a single conversion
+				release(job, succeeded, batch.size() == 1);
+				lock.lock();
+				try {
+					for (ConversionJob finished : batch) {
+						lane.finished(finished);
+					}
+					changed.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Reserves room for the job under its tool's concurrency limit. Jobs no tool handles fail at once so need no room.
+	 */
+	private boolean acquire(ConversionJob job) {
+		AdaptiveConcurrencyLimiter limiter = job.getToolType() == null ? null : limiters.get(job.getToolType());
+		return limiter == null || limiter.tryAcquire();
+	}
+
+	/*
+	 * Reports the outcome of a job to its tool's concurrency limiter, which frees the room reserved for it.
+	 */
+	private void release(ConversionJob job, boolean succeeded, boolean comparable) {
+		AdaptiveConcurrencyLimiter limiter = job.getToolType() == null ? null : limiters.get(job.getToolType());
+		if (limiter == null) {
+			return;
+		}
+		if (!comparable) {
+			limiter.onIgnore();
+		} else if (succeeded) {
+			long elapsed = job.getFinishedMillis() - job.getStartedMillis();
+			limiter.onSuccess((double)elapsed / Math.max(1, job.getEstimatedMillis()));
+		} else {
+			limiter.onFailure();
+		}
+	}
+
+	/*
+	 * Converts the jobs in one call to the converter, then converts on their own any it did not convert
+	 * so their failures are reported individually.
+	 */
+	private void runBatch(List<ConversionJob> batch) {
+		List<File> inputFiles = new ArrayList<File>();
+		long totalEstimate = 0;
+		long start = System.currentTimeMillis();
+		for (ConversionJob job : batch) {
+			job.setStartedMillis(start);
+			inputFiles.add(job.getInputFile());
+			totalEstimate += job.getEstimatedMillis();
+		}
+		logger.debug("Starting batch of {} jobs: {}", batch.size(), batch);
+		Map<File, PdfaConverterOutput> outputs;
+		ConversionTrace.begin();
+		try {
+			outputs = converter.examineBatch(inputFiles);
+		} catch (Exception e) {
+			logger.warn("Batch conversion failed, converting {} jobs one at a time -- {}", batch.size(), e.getMessage());
+			outputs = Collections.emptyMap();
+		}
+		// the jobs converted together share the one run
+		ConversionTrace trace = ConversionTrace.end();
+		long finish = System.currentTimeMillis();
+		for (ConversionJob job : batch) {
+			PdfaConverterOutput output = outputs.get(job.getInputFile());
+			if (output == null) {
+				runJob(job);
+				continue;
+			}
+			job.setTrace(trace);
+			job.setFinishedMillis(finish);
+			// each job is charged a share of the run in proportion to its estimate
+			long share = totalEstimate > 0 ? (finish - start) * job.getEstimatedMillis() / totalEstimate : (finish - start) / batch.size();
+			costModel.record(job.getToolType(), job.getSizeBytes(), share);
+			notifyListeners(job, output, null);
+		}
+	}
+
+	/*
+	 * Converts the job's input and notifies the listeners; returns whether it succeeded.
+	 */
+	private boolean runJob(ConversionJob job) {
+		job.setStartedMillis(System.currentTimeMillis());
+		logger.debug("Starting {} after waiting {} ms", job, job.getStartedMillis() - job.getEnqueuedMillis());
+		PdfaConverterOutput output;
+		ConversionTrace.begin();
+		try {
+			if (job.getArchiveEntry() != null) {
+				output = converter.examineEntry(job.getArchiveEntry());
+			} else {
+				output = hedger == null ? converter.examine(job.getInputFile()) : hedger.convert(job);
+			}
+		} catch (Exception e) {
+			job.setTrace(ConversionTrace.end());
+			job.setFinishedMillis(System.currentTimeMillis());
+			notifyListeners(job, null, e);
+			return false;
+		}
+		job.setTrace(ConversionTrace.end());
+		job.setFinishedMillis(System.currentTimeMillis());
+		costModel.record(job.getToolType(), job.getSizeBytes(), job.getFinishedMillis() - job.getStartedMillis());
+		notifyListeners(job, output, null);
+		return true;
+	}
+
+	/*
+	 * A misbehaving listener must not stop the worker thread.
+	 */
+	private void notifyListeners(ConversionJob job, PdfaConverterOutput output, Exception error) {
+		for (BatchListener listener : listeners) {
+			try {
+				if (error == null) {
+					listener.jobSucceeded(job, output);
+				} else {
+					listener.jobFailed(job, error);
+				}
+			} catch (RuntimeException e) {
+				logger.error("Batch listener failed for {}", job, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,240 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.batch;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.ToolType;
+
+/**
+ * Estimates how long a conversion will take from the input size, using a linear fit
+ * (fixed overhead plus time per byte) of past conversion times for each tool.
+ * Older samples are gradually decayed so the model follows changes in hardware and document mix.
+ * The history is persisted to a properties file so estimates improve across runs.
+ */
+public class ConversionCostModel {
+
+	/** Name of the history file if not configured. */
+	public static final String DEFAULT_HISTORY_FILE_NAME = "conversion-history.properties";
+
+	// weight kept by existing samples each time a new one is recorded
+	private static final double DECAY = 0.995;
+	// samples needed before the fitted line replaces the default estimate
+	private static final double MIN_SAMPLES = 3;
+	private static final double BYTES_PER_MB = 1024 * 1024;
+	// in-memory expansion of a document relative to its size on disk
+	private static final long MEMORY_PER_INPUT_BYTE = 10;
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final File historyFile;
+	private final Map<ToolType, Stats> stats = new EnumMap<ToolType, Stats>(ToolType.class);
+
+	/**
+	 * @param historyFile - File from which history is loaded and to which it is saved; may be <code>null</code> to not persist.
+	 */
+	public ConversionCostModel(File historyFile) {
+		this.historyFile = historyFile;
+		for (ToolType toolType : ToolType.values()) {
+			stats.put(toolType, new Stats());
+		}
+		load();
+	}
+
+	/**
+	 * Estimated conversion time in milliseconds.
+	 *
+	 * @param toolType - Tool that converts the input; <code>null</code> if no tool handles it.
+	 * @param sizeBytes - Size of the input file.
+	 * @return The estimate, which is 0 for inputs no tool handles as they fail immediately.
+	 */
+	public synchronized long estimateMillis(ToolType toolType, long sizeBytes) {
+		if (toolType == null) {
+			return 0;
+		}
+		Stats s = stats.get(toolType);
+		double overhead;
+		double perByte;
+		if (s.count < MIN_SAMPLES) {
+			overhead = defaultOverheadMillis(toolType);
+			perByte = defaultMillisPerMb(toolType) / BYTES_PER_MB;
+		} else {
+			double meanSize = s.sumSize / s.count;
+			double meanMillis = s.sumMillis / s.count;
+			double variance = s.sumSizeSq / s.count - meanSize * meanSize;
+			if (variance > 1) {
+				perByte = (s.sumSizeMillis / s.count - meanSize * meanMillis) / variance;
+			} else {
+				// all samples about the same size; treat time as proportional to size
+				perByte = meanSize > 0 ? meanMillis / meanSize : 0;
+			}
+			perByte = Math.max(0, perByte);
+			overhead = Math.max(0, meanMillis - perByte * meanSize);
+		}
+		return Math.max(1, Math.round(overhead + perByte * sizeBytes));
+	}
+
+	/**
+	 * Rough peak memory of the external tool converting the input, used to keep concurrent conversions of
+	 * large inputs within a memory budget.
+	 *
+	 * @param toolType - Tool that converts the input; <code>null</code> if no tool handles it.
+	 * @param sizeBytes - Size of the input file.
+	 * @return The estimate in bytes, which is 0 for inputs no tool handles.
+	 */
+	public long estimateMemoryBytes(ToolType toolType, long sizeBytes) {
+		if (toolType == null) {
+			return 0;
+		}
+		return baseMemoryBytes(toolType) + sizeBytes * MEMORY_PER_INPUT_BYTE;
+	}
+
+	/**
+	 * Adds the measured time of a successful conversion to the history.
+	 */
+	public synchronized void record(ToolType toolType, long sizeBytes, long elapsedMillis) {
+		if (toolType == null) {
+			return;
+		}
+		Stats s = stats.get(toolType);
+		s.count = s.count * DECAY + 1;
+		s.sumSize = s.sumSize * DECAY + sizeBytes;
+		s.sumMillis = s.sumMillis * DECAY + elapsedMillis;
+		s.sumSizeSq = s.sumSizeSq * DECAY + (double)sizeBytes * sizeBytes;
+		s.sumSizeMillis = s.sumSizeMillis * DECAY + (double)sizeBytes * elapsedMillis;
+	}
+
+	/**
+	 * Writes the history to the history file, replacing it atomically.
+	 */
+	public synchronized void save() {
+		if (historyFile == null) {
+			return;
+		}
+		Properties props = new Properties();
+		for (Map.Entry<ToolType, Stats> entry : stats.entrySet()) {
+			String prefix = entry.getKey().name() + ".";
+			Stats s = entry.getValue();
+			props.setProperty(prefix + "count", Double.toString(s.count));
+			props.setProperty(prefix + "sumSize", Double.toString(s.sumSize));
+			props.setProperty(prefix + "sumMillis", Double.toString(s.sumMillis));
+			props.setProperty(prefix + "sumSizeSq", Double.toString(s.sumSizeSq));
+			props.setProperty(prefix + "sumSizeMillis", Double.toString(s.sumSizeMillis));
+		}
+		File tempFile = new File(historyFile.getAbsolutePath() + ".tmp");
+		try (Writer writer = new FileWriter(tempFile)) {
+			props.store(writer, "Conversion time history used to estimate conversion cost");
+		} catch (IOException e) {
+			logger.error("Could not write conversion history file: {}", tempFile, e);
+			return;
+		}
+		try {
+			Files.move(tempFile.toPath(), historyFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.error("Could not replace conversion history file: {}", historyFile, e);
+		}
+	}
+
+	private void load() {
+		if (historyFile == null || !historyFile.isFile()) {
+			return;
+		}
+		Properties props = new Properties();
+		try (Reader reader = new FileReader(historyFile)) {
+			props.load(reader);
+		} catch (IOException e) {
+			logger.error("Could not read conversion history file: {} -- starting without history", historyFile, e);
+			return;
+		}
+		try {
+			for (Map.Entry<ToolType, Stats> entry : stats.entrySet()) {
+				String prefix = entry.getKey().name() + ".";
+				Stats s = entry.getValue();
+				s.count = Double.parseDouble(props.getProperty(prefix + "count", "0"));
+				s.sumSize = Double.parseDouble(props.getProperty(prefix + "sumSize", "0"));
+				s.sumMillis = Double.parseDouble(props.getProperty(prefix + "sumMillis", "0"));
+				s.sumSizeSq = Double.parseDouble(props.getProperty(prefix + "sumSizeSq", "0"));
+				s.sumSizeMillis = Double.parseDouble(props.getProperty(prefix + "sumSizeMillis", "0"));
+			}
+			logger.debug("Loaded conversion history from: {}", historyFile);
+		} catch (NumberFormatException e) {
+			logger.error("Invalid conversion history file: {} -- starting without history", historyFile, e);
+			for (Stats s : stats.values()) {
+				s.count = s.sumSize = s.sumMillis = s.sumSizeSq = s.sumSizeMillis = 0;
+			}
+		}
+	}
+
+	/*
+	 * Rough start-up cost of each tool used until enough history is available.
+	 */
+	private static double defaultOverheadMillis(ToolType toolType) {
+		switch (toolType) {
+			case CALIBRE:
+				return 8000;
+			case UNOCONV:
+				return 4000;
+			default:
+				return 3000;
+		}
+	}
+
+	/*
+	 * Rough cost per megabyte of input of each tool used until enough history is available.
+	 */
+	private static double defaultMillisPerMb(ToolType toolType) {
+		switch (toolType) {
+			case CALIBRE:
+				return 3000;
+			case UNOCONV:
+				return 2000;
+			default:
+				return 1000;
+		}
+	}
+
+	/*
+	 * Rough memory used by each tool regardless of input size.
+	 */
+	private static long baseMemoryBytes(ToolType toolType) {
+		switch (toolType) {
+			case CALIBRE:
+				return 400L * 1024 * 1024;
+			case UNOCONV:
+				return 500L * 1024 * 1024;
+			default:
+				return 200L * 1024 * 1024;
+		}
+	}
+
+	/*
+	 * Exponentially decayed sums for a least-squares fit of elapsed time against input size.
+	 */
+	private static class Stats {
+		double count;
+		double sumSize;
+		double sumMillis;
+		double sumSizeSq;
+		double sumSizeMillis;
+	}
+}
@@ -0,0 +1,139 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.batch;
+
+import java.io.File;
+import java.util.Comparator;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.ToolType;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ArchiveEntry;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ConversionTrace;
+
+/**
+ * A single input file, or document inside a ZIP archive, queued in a {@link BatchScheduler} along with its estimated cost.
+ */
+public class ConversionJob {
+
+	/** Orders jobs by priority, lowest first, then by submission order. */
+	static final Comparator<ConversionJob> PRIORITY_ORDER = new Comparator<ConversionJob>() {
+		@Override
+		public int compare(ConversionJob a, ConversionJob b) {
+			int result = Double.compare(a.priority, b.priority);
+			return result != 0 ? result : Long.compare(a.sequence, b.sequence);
+		}
+	};
+
+	private final File inputFile;
+	private final ArchiveEntry archiveEntry;
+	private final ToolType toolType;
+	private final long sizeBytes;
+	private final long estimatedMillis;
+	private final long estimatedMemoryBytes;
+	private final long enqueuedMillis;
+	private final long sequence;
+	private final double priority;
+	private volatile long startedMillis;
+	private volatile long finishedMillis;
+	private volatile ConversionTrace trace;
+
+	ConversionJob(File inputFile, ToolType toolType, long sizeBytes, long estimatedMillis, long estimatedMemoryBytes,
+			long enqueuedMillis, long sequence, double priority) {
+		this(inputFile, null, toolType, sizeBytes, estimatedMillis, estimatedMemoryBytes, enqueuedMillis, sequence, priority);
+	}
+
+	ConversionJob(File inputFile, ArchiveEntry archiveEntry, ToolType toolType, long sizeBytes, long estimatedMillis,
+			long estimatedMemoryBytes, long enqueuedMillis, long sequence, double priority) {
+		this.inputFile = inputFile;
+		this.archiveEntry = archiveEntry;
+		this.toolType = toolType;
+		this.sizeBytes = sizeBytes;
+		this.estimatedMillis = estimatedMillis;
+		this.estimatedMemoryBytes = estimatedMemoryBytes;
+		this.enqueuedMillis = enqueuedMillis;
+		this.sequence = sequence;
+		this.priority = priority;
+	}
+
+	/**
+	 * @return The input file, or for a document inside an archive its path as if the archive were a directory.
+	 */
+	public File getInputFile() {
+		return inputFile;
+	}
+
+	/**
+	 * @return The document inside an archive to convert or <code>null</code> if the input is a file.
+	 */
+	public ArchiveEntry getArchiveEntry() {
+		return archiveEntry;
+	}
+
+	/**
+	 * @return The tool that converts the input or <code>null</code> if no tool handles its type.
+	 */
+	public ToolType getToolType() {
+		return toolType;
+	}
+
+	public long getSizeBytes() {
+		return sizeBytes;
+	}
+
+	public long getEstimatedMillis() {
+		return estimatedMillis;
+	}
+
+	public long getEstimatedMemoryBytes() {
+		return estimatedMemoryBytes;
+	}
+
+	public long getEnqueuedMillis() {
+		return enqueuedMillis;
+	}
+
+	/**
+	 * @return Time the conversion was started or 0 if not yet started.
+	 */
+	public long getStartedMillis() {
+		return startedMillis;
+	}
+
+	/**
+	 * @return Time the conversion finished or 0 if not yet finished.
+	 */
+	public long getFinishedMillis() {
+		return finishedMillis;
+	}
+
+	/**
+	 * @return Times of the phases of the conversion or <code>null</code> if not yet finished.
+	 */
+	public ConversionTrace getTrace() {
+		return trace;
+	}
+
+	void setStartedMillis(long startedMillis) {
+		this.startedMillis = startedMillis;
+	}
+
+	void setFinishedMillis(long finishedMillis) {
+		this.finishedMillis = finishedMillis;
+	}
+
+	void setTrace(ConversionTrace trace) {
+		this.trace = trace;
+	}
+
+	@Override
+	public String toString() {
+		return "ConversionJob [inputFile=" + inputFile + ", toolType=" + toolType + ", sizeBytes=" + sizeBytes
+				+ ", estimatedMillis=" + estimatedMillis + "]";
+	}
+}
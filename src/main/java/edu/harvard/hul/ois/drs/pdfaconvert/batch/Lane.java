@@ -0,0 +1,168 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.batch;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+import java.util.TreeSet;
+
+/**
+ * A queue of jobs with its own workers and memory budget within a {@link BatchScheduler}.
+ * Isolating inputs in lanes keeps a few very large conversions from occupying every worker.
+ * Not thread-safe; guarded by the scheduler's lock.
+ */
+class Lane {
+
+	private final String name;
+	private final int workerCount;
+	private final long memoryBudgetBytes;
+	private final TreeSet<ConversionJob> pending = new TreeSet<ConversionJob>(ConversionJob.PRIORITY_ORDER);
+	private int running = 0;
+	private long runningMemoryBytes = 0;
+
+	/**
+	 * @param name - Name of the lane for logging.
+	 * @param workerCount - Number of conversions run concurrently in this lane.
+	 * @param memoryBudgetBytes - Total estimated memory of concurrently running conversions; unlimited if less than 1.
+	 */
+	Lane(String name, int workerCount, long memoryBudgetBytes) {
+		if (workerCount < 1) {
+			throw new IllegalArgumentException("workerCount must be at least 1 for lane " + name + ": " + workerCount);
+		}
+		this.name = name;
+		this.workerCount = workerCount;
+		this.memoryBudgetBytes = memoryBudgetBytes;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	int getWorkerCount() {
+		return workerCount;
+	}
+
+	void add(ConversionJob job) {
+		pending.add(job);
+	}
+
+	boolean isIdle() {
+		return pending.isEmpty() && running == 0;
+	}
+
+	int getPendingCount() {
+		return pending.size();
+	}
+
+	boolean hasPending() {
+		return !pending.isEmpty();
+	}
+
+	/**
+	 * Removes and returns all jobs not yet started.
+	 */
+	List<ConversionJob> removePending() {
+		List<ConversionJob> removed = new ArrayList<ConversionJob>(pending);
+		pending.clear();
+		return removed;
+	}
+
+	/**
+	 * Removes and returns the highest priority job if it fits in the memory budget. Jobs are taken strictly
+	 * in order so a large job is not passed over indefinitely by smaller ones. A job larger than the whole
+	 * budget still runs once nothing else in the lane is running.
+	 *
+	 * @return The job to run or <code>null</code> if none can be started now.
+	 */
+	ConversionJob take() {
+		return take(job -> true);
+	}
+
+	/**
+	 * Like {@link #take()} but passes over jobs that may not start now, e.g. because their tool is at its
+	 * concurrency limit. The memory budget is still applied strictly to the first job that may start.
+	 *
+	 * @param mayStart - Whether a job may start now; called in priority order until it accepts a job, which is
+	 * 		  then returned, so it may reserve capacity when it accepts.
+	 * @return The job to run or <code>null</code> if none can be started now.
+	 */
+	ConversionJob take(Predicate<ConversionJob> mayStart) {
+		ConversionJob job = null;
+		for (ConversionJob candidate : pending) {
+			if (memoryBudgetBytes > 0 && running > 0 && runningMemoryBytes + candidate.getEstimatedMemoryBytes() > memoryBudgetBytes) {
+				return null;
+			}
+			if (mayStart.test(candidate)) {
+				job = candidate;
+				break;
+			}
+		}
+		if (job == null) {
+			return null;
+		}
+		pending.remove(job);
+		running++;
+		runningMemoryBytes += job.getEstimatedMemoryBytes();
+		return job;
+	}
+
+	/**
+	 * Removes and returns further pending jobs for the same tool as a job just taken, in priority order,
+	 * so they can be converted together with it. Stops at the memory budget.
+	 *
+	 * @param job - The job already taken.
+	 * @param max - Maximum number of jobs to return.
+	 * @return The jobs to run along with the taken one, possibly none.
+	 */
+	List<ConversionJob> takeCompanions(ConversionJob job, int max) {
+		List<ConversionJob> companions = new ArrayList<ConversionJob>();
+		Iterator<ConversionJob> it = pending.iterator();
+		while (it.hasNext() && companions.size() < max) {
+			ConversionJob candidate = it.next();
+			if (candidate.getToolType() != job.getToolType() || candidate.getArchiveEntry() != null) {
+				continue;
+			}
+			if (memoryBudgetBytes > 0 && runningMemoryBytes + candidate.getEstimatedMemoryBytes() > memoryBudgetBytes) {
+				break;
+			}
+			it.remove();
+			running++;
+			runningMemoryBytes += candidate.getEstimatedMemoryBytes();
+			companions.add(candidate);
+		}
+		return companions;
+	}
+
+	void finished(ConversionJob job) {
+		running--;
+		runningMemoryBytes -= job.getEstimatedMemoryBytes();
+	}
+
+	/**
+	 * Estimates how long the queued jobs will take by assigning them, in scheduling order,
+	 * to whichever worker becomes free first.
+	 */
+	long estimateCompletionMillis() {
+		PriorityQueue<Long> workerFreeAt = new PriorityQueue<Long>();
+		for (int i = 0; i < workerCount; i++) {
+			workerFreeAt.add(0L);
+		}
+		long makespan = 0;
+		for (ConversionJob job : pending) {
+			long finish = workerFreeAt.poll() + job.getEstimatedMillis();
+			workerFreeAt.add(finish);
+			makespan = Math.max(makespan, finish);
+		}
+		return makespan;
+	}
+}
@@ -0,0 +1,368 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConvert;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.ToolType;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ConversionTrace;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.Quarantine;
+
+/**
+ * Cuts the time lost to straggling conversions by hedging: when a conversion runs past a percentile of its tool's
+ * recent latencies, a duplicate conversion of the same input is started. The first to succeed wins; the other is
+ * interrupted, which kills its external tool process, and its files are removed.
+ * <p>
+ * As inputs differ in size, latency is measured as the ratio of the actual to the estimated conversion time, so a
+ * conversion is hedged once it has taken longer than the percentile ratio times its estimate. Each attempt writes
+ * to a scratch directory of its own within the output directory and the winner's file is moved into the output
+ * directory. Only a limited number of duplicates run at once so that a general slowdown doesn't double the load.
+ * Each attempt is traced on its own thread, and only the trace of the attempt whose outcome is returned, the winner
+ * or else the first to fail, is added to the conversion's {@link ConversionTrace}.
+ */
+public class StragglerHedger {
+
+	/** Default percentile of recent latencies past which a conversion is hedged if not configured. */
+	public static final double DEFAULT_PERCENTILE = 95;
+
+	/** Default number of latencies recorded for a tool before its conversions are hedged if not configured. */
+	public static final int DEFAULT_MIN_SAMPLES = 20;
+
+	/** Default number of duplicate conversions allowed to run at once if not configured. */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 1;
+
+	// recent latencies kept per tool
+	private static final int WINDOW_SIZE = 200;
+	private static final String SCRATCH_DIR_NAME = ".hedge";
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final PdfaConvert converter;
+	private final Set<ToolType> toolTypes;
+	private final double percentile;
+	private final int minSamples;
+	private final int maxInFlight;
+	private final Map<ToolType, LinkedList<Double>> latencyRatios = new EnumMap<ToolType, LinkedList<Double>>(ToolType.class);
+	private final AtomicInteger hedgesInFlight = new AtomicInteger();
+	private final AtomicLong attemptSequence = new AtomicLong();
+	private final AtomicLong hedgesStarted = new AtomicLong();
+	private final AtomicLong hedgesWon = new AtomicLong();
+
+	/**
+	 * @param converter - Performs each conversion attempt.
+	 * @param toolTypes - Tools whose conversions may be hedged; conversions by other tools run once.
+	 * @param percentile - Percentile (0 to 100) of recent latencies past which a conversion is hedged.
+	 * @param minSamples - Number of latencies recorded for a tool before its conversions are hedged.
+	 * @param maxInFlight - Number of duplicate conversions allowed to run at once.
+	 */
+	public StragglerHedger(PdfaConvert converter, Set<ToolType> toolTypes, double percentile, int minSamples, int maxInFlight) {
+		this.converter = converter;
+		this.toolTypes = toolTypes.isEmpty() ? EnumSet.noneOf(ToolType.class) : EnumSet.copyOf(toolTypes);
+		this.percentile = Math.max(0, Math.min(100, percentile));
+		this.minSamples = Math.max(1, minSamples);
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * @return The number of duplicate conversions started.
+	 */
+	public long getHedgeCount() {
+		return hedgesStarted.get();
+	}
+
+	/**
+	 * @return The number of duplicate conversions that finished before the conversion they duplicated.
+	 */
+	public long getHedgeWinCount() {
+		return hedgesWon.get();
+	}
+
+	/**
+	 * @return The number of recent latencies recorded for the tool, which are those of conversions not won by a duplicate.
+	 */
+	public int getLatencySampleCount(ToolType toolType) {
+		synchronized (latencyRatios) {
+			LinkedList<Double> ratios = latencyRatios.get(toolType);
+			return ratios == null ? 0 : ratios.size();
+		}
+	}
+
+	/**
+	 * Converts the job's input into the converter's output directory, hedging if it runs long.
+	 *
+	 * @return The output of the winning attempt.
+	 * @throws RuntimeException - The failure of the conversion, or of the first attempt if all attempts failed.
+	 */
+	public PdfaConverterOutput convert(ConversionJob job) {
+		long delay = hedgeDelayMillis(job);
+		long start = System.currentTimeMillis();
+		if (delay < 0 || converter.isPipelined(job.getInputFile())) {
+			PdfaConverterOutput output = converter.examine(job.getInputFile());
+			record(job, System.currentTimeMillis() - start);
+			return output;
+		}
+		Quarantine quarantine = converter.getQuarantine();
+		if (quarantine != null) {
+			return quarantine.guard(job.getInputFile(), () -> convertHedged(job, delay, start));
+		}
+		return convertHedged(job, delay, start);
+	}
+
+	/*
+	 * Runs the conversion on a thread of its own and a duplicate if it takes longer than the delay.
+	 */
+	private PdfaConverterOutput convertHedged(ConversionJob job, long delay, long start) {
+		BlockingQueue<Attempt> finished = new LinkedBlockingQueue<Attempt>();
+		List<Attempt> attempts = new ArrayList<Attempt>();
+		attempts.add(startAttempt(job, finished, false));
+		Attempt winner = null;
+		Attempt failed = null;
+		RuntimeException failure = null;
+		try {
+			int pending = 1;
+			Attempt done = finished.poll(delay, TimeUnit.MILLISECONDS);
+			if (done == null && tryReserveHedge()) {
+				logger.info("Hedging {} still running after {} ms", job, System.currentTimeMillis() - start);
+				hedgesStarted.incrementAndGet();
+				attempts.add(startAttempt(job, finished, true));
+				pending++;
+			}
+			while (pending > 0) {
+				if (done == null) {
+					done = finished.take();
+				}
+				pending--;
+				if (done.error == null) {
+					winner = done;
+					break;
+				}
+				if (failure == null) {
+					failure = done.error;
+					failed = done;
+				}
+				done = null;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failure = new ExternalToolException("Interrupted converting: " + job.getInputFile().getName(), e);
+		} finally {
+			for (Attempt attempt : attempts) {
+				if (attempt != winner) {
+					attempt.abandon();
+				}
+			}
+		}
+		if (winner == null) {
+			if (failed != null) {
+				ConversionTrace.add(failed.trace);
+			}
+			throw failure;
+		}
+		ConversionTrace.add(winner.trace);
+		if (winner.hedge) {
+			// the original's latency is unknown, only that it was past the hedge delay, and recording the time the
+			// hedge took instead would cut off the tail that sets the delay
+			hedgesWon.incrementAndGet();
+			logger.info("Hedge won for {} after {} ms", job, System.currentTimeMillis() - start);
+		} else {
+			record(job, System.currentTimeMillis() - start);
+		}
+		try {
+			return claim(winner);
+		} finally {
+			deleteRecursively(winner.dir);
+		}
+	}
+
+	/*
+	 * How long to wait before hedging the job, or -1 if it is not hedged.
+	 */
+	private long hedgeDelayMillis(ConversionJob job) {
+		if (job.getToolType() == null || !toolTypes.contains(job.getToolType()) || job.getEstimatedMillis() <= 0) {
+			return -1;
+		}
+		List<Double> sorted;
+		synchronized (latencyRatios) {
+			LinkedList<Double> ratios = latencyRatios.get(job.getToolType());
+			if (ratios == null || ratios.size() < minSamples) {
+				return -1;
+			}
+			sorted = new ArrayList<Double>(ratios);
+		}
+		Collections.sort(sorted);
+		int index = (int)Math.ceil(percentile / 100 * sorted.size()) - 1;
+		double ratio = sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+		return (long)(ratio * job.getEstimatedMillis());
+	}
+
+	private void record(ConversionJob job, long elapsedMillis) {
+		if (job.getToolType() == null || job.getEstimatedMillis() <= 0) {
+			return;
+		}
+		synchronized (latencyRatios) {
+			LinkedList<Double> ratios = latencyRatios.get(job.getToolType());
+			if (ratios == null) {
+				ratios = new LinkedList<Double>();
+				latencyRatios.put(job.getToolType(), ratios);
+			}
+			ratios.add((double)elapsedMillis / job.getEstimatedMillis());
+			if (ratios.size() > WINDOW_SIZE) {
+				ratios.removeFirst();
+			}
+		}
+	}
+
+	private boolean tryReserveHedge() {
+		while (true) {
+			int current = hedgesInFlight.get();
+			if (current >= maxInFlight) {
+				return false;
+			}
+			if (hedgesInFlight.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	private Attempt startAttempt(ConversionJob job, BlockingQueue<Attempt> finished, boolean hedge) {
+		File dir = new File(new File(converter.getOutputDirectory(), SCRATCH_DIR_NAME), "attempt-" + attemptSequence.incrementAndGet());
+		Attempt attempt = new Attempt(job.getInputFile(), dir, hedge, finished);
+		attempt.thread = new Thread(attempt, "hedge-" + dir.getName());
+		attempt.thread.setDaemon(true);
+		attempt.thread.start();
+		return attempt;
+	}
+
+	/*
+	 * Moves the winning attempt's converted file into the output directory.
+	 */
+	private PdfaConverterOutput claim(Attempt winner) {
+		File converted = winner.output.getPdfaConvertedFile();
+		File target = new File(converter.getOutputDirectory(), converted.getName());
+		try {
+			Files.move(converted.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new ExternalToolException("Could not move converted file: " + converted + " to: " + target, e);
+		}
+		return new PdfaConverterOutput(target, winner.output.getToolLoggingOutput());
+	}
+
+	private static void deleteRecursively(File dir) {
+		if (!dir.exists()) {
+			return;
+		}
+		try {
+			Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					Files.delete(file);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path path, IOException e) throws IOException {
+					Files.delete(path);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			logger.warn("Could not delete hedge scratch directory: {} -- {}", dir, e.getMessage());
+		}
+	}
+
+	/*
+	 * One conversion of the input on a thread of its own, writing to its own directory.
+	 */
+	private class Attempt implements Runnable {
+		final File inputFile;
+		final File dir;
+		final BlockingQueue<Attempt> finished;
+		final boolean hedge;
+		Thread thread;
+		volatile PdfaConverterOutput output;
+		volatile RuntimeException error;
+		volatile ConversionTrace trace;
+		private boolean done;
+		private boolean abandoned;
+
+		Attempt(File inputFile, File dir, boolean hedge, BlockingQueue<Attempt> finished) {
+			this.inputFile = inputFile;
+			this.dir = dir;
+			this.hedge = hedge;
+			this.finished = finished;
+		}
+
+		@Override
+		public void run() {
+			ConversionTrace.begin();
+			try {
+				output = converter.examine(inputFile, dir);
+			} catch (RuntimeException e) {
+				error = e;
+			} finally {
+				trace = ConversionTrace.end();
+				if (hedge) {
+					hedgesInFlight.decrementAndGet();
+				}
+				boolean cleanUp;
+				synchronized (this) {
+					done = true;
+					cleanUp = abandoned;
+				}
+				if (cleanUp) {
+					deleteRecursively(dir);
+				}
+				finished.add(this);
+			}
+		}
+
+		/*
+		 * Kills the attempt if still running; whichever of this and the attempt finishing comes last removes its files.
+		 */
+		void abandon() {
+			boolean cleanUp;
+			synchronized (this) {
+				abandoned = true;
+				cleanUp = done;
+			}
+			if (cleanUp) {
+				deleteRecursively(dir);
+			} else {
+				thread.interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.batch;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ApplicationConstants;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ConversionTrace;
+
+/**
+ * Writes a record of where the time went for each job of a batch as it finishes: when it was queued, dispatched to
+ * a worker, when its tool was launched and exited, the time spent transferring files to and from a remote system,
+ * when it finished and when its result was published to the listeners, along with its sizes, tool and outcome.
+ * Records are written as JSON lines, or CSV if the report file name ends with <code>.csv</code>, and flushed one by
+ * one so that no batch is too large to report on and a report of a batch still running can be read. Only fixed
+ * size histograms of the durations are kept, to give a {@link #getSummary() summary} with percentiles at the end.
+ * <p>
+ * Times are in milliseconds since the epoch; those of phases a job did not go through are left empty.
+ */
+public class TimingReport implements BatchListener, Closeable {
+
+	/** Formats of the records. */
+	public enum Format { JSONL, CSV }
+
+	private static final String[] FIELDS = { "input", "tool", "outcome", "exitCode", "inputBytes", "outputBytes",
+			"enqueued", "dispatched", "spawned", "toolExited", "transferMillis", "finished", "published", "error" };
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final Writer writer;
+	private final Format format;
+	private final Histogram queuedMillis = new Histogram();
+	private final Histogram convertingMillis = new Histogram();
+	private final Histogram toolMillis = new Histogram();
+	private final Histogram transferMillis = new Histogram();
+	private int succeeded;
+	private int failed;
+
+	/**
+	 * @param writer - Where the records are written.
+	 * @param format - Format of the records.
+	 */
+	public TimingReport(Writer writer, Format format) throws IOException {
+		this.writer = writer;
+		this.format = format;
+		if (format == Format.CSV) {
+			writer.write(StringUtils.join(FIELDS, ','));
+			writer.write('\n');
+			writer.flush();
+		}
+	}
+
+	/**
+	 * Creates the report configured in the project properties.
+	 *
+	 * @return The report or <code>null</code> if none is configured.
+	 */
+	public static TimingReport create(Properties props) throws IOException {
+		String path = props.getProperty(ApplicationConstants.TIMING_REPORT_PROP);
+		if (StringUtils.isBlank(path)) {
+			return null;
+		}
+		File file = new File(path.trim());
+		Format format = file.getName().toLowerCase().endsWith(".csv") ? Format.CSV : Format.JSONL;
+		logger.info("Writing timing report to: {}", file.getAbsolutePath());
+		return new TimingReport(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8), format);
+	}
+
+	@Override
+	public void jobSucceeded(ConversionJob job, PdfaConverterOutput output) {
+		File converted = output == null ? null : output.getPdfaConvertedFile();
+		record(job, converted == null ? null : converted.length(), null);
+	}
+
+	@Override
+	public void jobFailed(ConversionJob job, Exception error) {
+		record(job, null, error);
+	}
+
+	private synchronized void record(ConversionJob job, Long outputBytes, Exception error) {
+		long published = System.currentTimeMillis();
+		ConversionTrace trace = job.getTrace();
+		String tool = trace != null && trace.getTool() != null ? trace.getTool() : (job.getToolType() == null ? null : job.getToolType().name());
+		Object[] values = { job.getInputFile().getName(), tool, error == null ? "succeeded" : "failed",
+				trace == null || trace.getExitCode() < 0 ? null : trace.getExitCode(), job.getSizeBytes(), outputBytes,
+				job.getEnqueuedMillis(), time(job.getStartedMillis()), trace == null ? null : time(trace.getSpawnMillis()),
+				trace == null ? null : time(trace.getExitMillis()), trace == null ? null : trace.getTransferMillis(),
+				time(job.getFinishedMillis()), published, error == null ? null : String.valueOf(error.getMessage()) };
+		if (error == null) {
+			succeeded++;
+		} else {
+			failed++;
+		}
+		queuedMillis.add(job.getStartedMillis() - job.getEnqueuedMillis());
+		convertingMillis.add(job.getFinishedMillis() - job.getStartedMillis());
+		if (trace != null && trace.getSpawnMillis() > 0) {
+			toolMillis.add(trace.getExitMillis() - trace.getSpawnMillis());
+		}
+		if (trace != null && trace.getTransferMillis() > 0) {
+			transferMillis.add(trace.getTransferMillis());
+		}
+		try {
+			writer.write(format == Format.CSV ? csv(values) : json(values));
+			writer.write('\n');
+			writer.flush();
+		} catch (IOException e) {
+			logger.warn("Could not write timing of: {} -- {}", job.getInputFile().getName(), e.getMessage());
+		}
+	}
+
+	/**
+	 * @return The number of jobs and the 50th, 90th and 99th percentiles and maximum of the time they spent queued,
+	 * 		   converting, running their tool and transferring files.
+	 */
+	public synchronized String getSummary() {
+		StringBuilder summary = new StringBuilder();
+		summary.append("Timing of ").append(succeeded + failed).append(" conversions (").append(succeeded)
+				.append(" succeeded, ").append(failed).append(" failed), p50/p90/p99/max ms:");
+		appendLine(summary, "queued", queuedMillis);
+		appendLine(summary, "converting", convertingMillis);
+		appendLine(summary, "tool", toolMillis);
+		appendLine(summary, "transfer", transferMillis);
+		return summary.toString();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		writer.close();
+	}
+
+	private static void appendLine(StringBuilder summary, String name, Histogram histogram) {
+		if (histogram.count == 0) {
+			return;
+		}
+		summary.append("\n  ").append(name).append(": ").append(histogram.percentile(50)).append('/')
+				.append(histogram.percentile(90)).append('/').append(histogram.percentile(99)).append('/').append(histogram.max);
+	}
+
+	private static Long time(long millis) {
+		return millis > 0 ? millis : null;
+	}
+
+	private static String json(Object[] values) {
+		StringBuilder json = new StringBuilder("{");
+		for (int i = 0; i < FIELDS.length; i++) {
+			if (values[i] == null) {
+				continue;
+			}
+			json.append(json.length() > 1 ? "," : "").append('"').append(FIELDS[i]).append("\":");
+			if (values[i] instanceof String) {
+				json.append('"');
+				for (char c : ((String)values[i]).toCharArray()) {
+					if (c == '"' || c == '\\') {
+						json.append('\\').append(c);
+					} else if (c < 0x20) {
+						json.append(String.format("\\u%04x", (int)c));
+					} else {
+						json.append(c);
+					}
+				}
+				json.append('"');
+			} else {
+				json.append(values[i]);
+			}
+		}
+		return json.append('}').toString();
+	}
+
+	private static String csv(Object[] values) {
+		StringBuilder csv = new StringBuilder();
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				csv.append(',');
+			}
+			String value = values[i] == null ? "" : values[i].toString();
+			if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+				value = '"' + value.replace("\"", "\"\"") + '"';
+			}
+			csv.append(value);
+		}
+		return csv.toString();
+	}
+
+	/*
+	 * Counts of durations in buckets growing by 5%, so percentiles are within 5% whatever the number of jobs.
+	 */
+	private static class Histogram {
+		private static final double GROWTH = Math.log(1.05);
+		// enough buckets for over a year
+		private final long[] counts = new long[600];
+		long count;
+		long max;
+
+		void add(long millis) {
+			long value = Math.max(0, millis);
+			counts[Math.min(counts.length - 1, (int)(Math.log1p(value) / GROWTH))]++;
+			count++;
+			max = Math.max(max, value);
+		}
+
+		long percentile(int percent) {
+			long rank = (long)Math.ceil(count * percent / 100.0);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					// the upper bound of the bucket
+					return Math.min(max, (long)Math.expm1((i + 1) * GROWTH));
+				}
+			}
+			return max;
+		}
+	}
+}
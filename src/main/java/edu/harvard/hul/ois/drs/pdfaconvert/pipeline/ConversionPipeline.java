@@ -0,0 +1,97 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.lang3.StringUtils;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ApplicationConstants;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.ToolType;
+
+/**
+ * A sequence of tools that together convert one file type, each stage converting the PDF produced by the one before.
+ * Declared in the application properties as, for example, <code>pipeline.epub=CALIBRE,PDFA_PILOT</code>.
+ */
+public class ConversionPipeline {
+
+	private final String extension;
+	private final List<ToolType> stages;
+
+	/**
+	 * @param extension - Lower case file extension, without leading period, of the inputs the pipeline converts.
+	 * @param stages - The tools in the order they run.
+	 * @throws IllegalArgumentException - If there are no stages, the first stage does not handle the extension,
+	 * 		   or a later stage does not handle PDF input.
+	 */
+	public ConversionPipeline(String extension, List<ToolType> stages) {
+		if (stages.isEmpty()) {
+			throw new IllegalArgumentException("Pipeline for " + extension + " has no stages");
+		}
+		if (!stages.get(0).getExtensions().contains(extension)) {
+			throw new IllegalArgumentException("First stage " + stages.get(0) + " of pipeline for " + extension + " does not handle " + extension);
+		}
+		for (ToolType stage : stages.subList(1, stages.size())) {
+			if (!stage.getExtensions().contains("pdf")) {
+				throw new IllegalArgumentException("Stage " + stage + " of pipeline for " + extension + " does not handle the PDF output of the stage before");
+			}
+		}
+		this.extension = extension;
+		this.stages = Collections.unmodifiableList(new ArrayList<ToolType>(stages));
+	}
+
+	/**
+	 * Reads the pipelines declared in the application properties.
+	 *
+	 * @return The pipelines keyed by the extension they convert.
+	 * @throws IllegalArgumentException - If a declared pipeline names an unknown tool or is otherwise invalid.
+	 */
+	public static Map<String, ConversionPipeline> fromProperties(Properties props) {
+		Map<String, ConversionPipeline> pipelines = new HashMap<String, ConversionPipeline>();
+		for (String key : props.stringPropertyNames()) {
+			if (!key.startsWith(ApplicationConstants.PIPELINE_PROP_PREFIX)) {
+				continue;
+			}
+			String extension = key.substring(ApplicationConstants.PIPELINE_PROP_PREFIX.length()).toLowerCase();
+			String value = props.getProperty(key);
+			if (StringUtils.isBlank(value)) {
+				continue;
+			}
+			List<ToolType> stages = new ArrayList<ToolType>();
+			for (String stage : value.split(",")) {
+				try {
+					stages.add(ToolType.valueOf(stage.trim().toUpperCase()));
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException("Unknown tool " + stage.trim() + " in " + key, e);
+				}
+			}
+			pipelines.put(extension, new ConversionPipeline(extension, stages));
+		}
+		return pipelines;
+	}
+
+	public String getExtension() {
+		return extension;
+	}
+
+	public List<ToolType> getStages() {
+		return stages;
+	}
+
+	@Override
+	public String toString() {
+		return extension + " -> " + StringUtils.join(stages, " -> ");
+	}
+}
@@ -0,0 +1,228 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.PdfaConvertable;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.ToolFactory;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ConversionTrace;
+
+/**
+ * Runs the stages of a {@link ConversionPipeline} on their own threads with a bounded queue in front of each,
+ * so that while one file is in a later stage the next file is already in an earlier one. When a stage falls
+ * behind its queue fills and the stage before it (or the submitter) waits rather than piling up intermediate files.
+ * <p>
+ * Intermediate files are written to a scratch directory of their own for each file, which is removed once the
+ * file leaves the pipeline. Only the last stage writes to the output directory.
+ * <p>
+ * A file submitted while a {@link ConversionTrace} is begun has its stages traced on that trace, which the
+ * submitter should not end before the file leaves the pipeline.
+ */
+public class PipelineRunner {
+
+	/** Default number of files that may wait in front of each stage if not configured. */
+	public static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+	private static final long POLL_MILLIS = 200;
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final ConversionPipeline pipeline;
+	private final ToolFactory tools;
+	private final File scratchDir;
+	private final List<BlockingQueue<PipelineJob>> queues = new ArrayList<BlockingQueue<PipelineJob>>();
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private volatile boolean stopping = false;
+
+	/**
+	 * Starts a thread for each stage.
+	 *
+	 * @param pipeline - The stages to run.
+	 * @param tools - Creates the tool for each stage.
+	 * @param scratchDir - Directory for intermediate files, preferably on fast local storage.
+	 * @param queueCapacity - Number of files that may wait in front of each stage.
+	 */
+	public PipelineRunner(ConversionPipeline pipeline, ToolFactory tools, File scratchDir, int queueCapacity) {
+		this.pipeline = pipeline;
+		this.tools = tools;
+		this.scratchDir = scratchDir;
+		for (int i = 0; i < pipeline.getStages().size(); i++) {
+			queues.add(new ArrayBlockingQueue<PipelineJob>(queueCapacity));
+		}
+		for (int i = 0; i < pipeline.getStages().size(); i++) {
+			final int stage = i;
+			Thread thread = new Thread(() -> runStage(stage),
+					"pipeline-" + pipeline.getExtension() + "-" + pipeline.getStages().get(i).name().toLowerCase());
+			thread.setDaemon(true);
+			threads.add(thread);
+			thread.start();
+		}
+		logger.info("Started pipeline: {} with scratch directory: {}", pipeline, scratchDir);
+	}
+
+	public ConversionPipeline getPipeline() {
+		return pipeline;
+	}
+
+	/**
+	 * Queues a file at the first stage, waiting if its queue is full.
+	 *
+	 * @param inputFile - The file to convert.
+	 * @param outputDir - Directory into which the last stage writes the converted file.
+	 * @param deleteConvertedFile - <code>true</code> delete the converted file when the returned output is closed.
+	 * @return Completes with the output of the last stage, or exceptionally with the failure of any stage or
+	 * 		of creating the file's scratch directory.
+	 * @throws InterruptedException - If interrupted while waiting for room in the first queue.
+	 * @throws IllegalStateException - If the runner is stopping.
+	 */
+	public CompletableFuture<PdfaConverterOutput> submit(File inputFile, File outputDir, boolean deleteConvertedFile) throws InterruptedException {
+		if (stopping) {
+			throw new IllegalStateException("Pipeline is stopping, cannot accept: " + inputFile);
+		}
+		File jobScratchDir;
+		try {
+			// unique across converters sharing the scratch directory, not only within this one
+			Files.createDirectories(scratchDir.toPath());
+			jobScratchDir = Files.createTempDirectory(scratchDir.toPath(), pipeline.getExtension() + "-").toFile();
+		} catch (IOException e) {
+			CompletableFuture<PdfaConverterOutput> failed = new CompletableFuture<PdfaConverterOutput>();
+			failed.completeExceptionally(new IOException("Could not create scratch directory in: " + scratchDir, e));
+			return failed;
+		}
+		PipelineJob job = new PipelineJob(inputFile, jobScratchDir, outputDir, deleteConvertedFile);
+		queues.get(0).put(job);
+		return job.result;
+	}
+
+	/**
+	 * Lets the queued files finish, then stops the stage threads.
+	 */
+	public void shutdown() throws InterruptedException {
+		stopping = true;
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+	/*
+	 * Body of each stage thread -- converts the file of each job in its queue and passes the job on.
+	 * A thread only exits once the stages before it have exited and its queue is empty.
+	 */
+	private void runStage(int stage) {
+		BlockingQueue<PipelineJob> queue = queues.get(stage);
+		boolean last = stage == queues.size() - 1;
+		while (true) {
+			PipelineJob job;
+			try {
+				job = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (job == null) {
+				if (stopping && (stage == 0 || !threads.get(stage - 1).isAlive()) && queue.isEmpty()) {
+					return;
+				}
+				continue;
+			}
+			try {
+				File stageOutputDir = last ? job.outputDir : new File(job.scratchDir, "stage-" + stage);
+				stageOutputDir.mkdirs();
+				PdfaConvertable tool = tools.create(pipeline.getStages().get(stage), stageOutputDir);
+				logger.debug("Pipeline stage {} converting: {}", pipeline.getStages().get(stage), job.currentFile);
+				PdfaConverterOutput output;
+				// the stages of a file run one after the other, each handing the trace on with the job
+				ConversionTrace.resume(job.trace);
+				try {
+					output = tool.convert(job.currentFile, last && job.deleteConvertedFile);
+				} finally {
+					ConversionTrace.end();
+				}
+				job.toolOutput.append(output.getToolLoggingOutput());
+				if (last) {
+					deleteScratch(job);
+					job.result.complete(new PdfaConverterOutput(output.getPdfaConvertedFile(), job.toolOutput.toString(), job.deleteConvertedFile));
+				} else {
+					job.currentFile = output.getPdfaConvertedFile();
+					queues.get(stage + 1).put(job);
+				}
+			} catch (InterruptedException e) {
+				deleteScratch(job);
+				job.result.completeExceptionally(e);
+				Thread.currentThread().interrupt();
+				return;
+			} catch (Exception e) {
+				deleteScratch(job);
+				job.result.completeExceptionally(e);
+			}
+		}
+	}
+
+	private void deleteScratch(PipelineJob job) {
+		if (!job.scratchDir.exists()) {
+			return;
+		}
+		try {
+			Files.walkFileTree(job.scratchDir.toPath(), new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					Files.delete(file);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+					Files.delete(dir);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			logger.warn("Could not delete pipeline scratch directory: {} -- {}", job.scratchDir, e.getMessage());
+		}
+	}
+
+	/*
+	 * One file on its way through the pipeline.
+	 */
+	private static class PipelineJob {
+		final File scratchDir;
+		final File outputDir;
+		final boolean deleteConvertedFile;
+		final StringBuilder toolOutput = new StringBuilder();
+		final CompletableFuture<PdfaConverterOutput> result = new CompletableFuture<PdfaConverterOutput>();
+		// the submitter's, or null if it traces nothing
+		final ConversionTrace trace = ConversionTrace.current();
+		File currentFile;
+
+		PipelineJob(File inputFile, File scratchDir, File outputDir, boolean deleteConvertedFile) {
+			this.currentFile = inputFile;
+			this.scratchDir = scratchDir;
+			this.outputDir = outputDir;
+			this.deleteConvertedFile = deleteConvertedFile;
+		}
+	}
+}
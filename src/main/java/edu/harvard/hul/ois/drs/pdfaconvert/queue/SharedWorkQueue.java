@@ -0,0 +1,471 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.queue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ApplicationConstants;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConvert;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+import edu.harvard.hul.ois.drs.pdfaconvert.batch.BatchListener;
+import edu.harvard.hul.ois.drs.pdfaconvert.batch.BatchScheduler;
+import edu.harvard.hul.ois.drs.pdfaconvert.batch.ConversionJob;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.FileMoves;
+
+/**
+ * Shares conversions between nodes mounting the same storage, with the storage itself as the only coordination.
+ * Inputs to convert are placed in the <code>pending</code> directory of the queue directory. Each node claims inputs
+ * by moving them into its own directory under <code>claimed</code>, which only one node can do for a given input,
+ * converts them with its local {@link BatchScheduler} and moves them to <code>done</code> or <code>failed</code>.
+ * A node only claims as many inputs as it can soon start, so faster and additional nodes take a larger share.
+ * <p>
+ * Inputs are moved by hard-linking them at the target and then removing the source, so unlike a rename a move never
+ * replaces a file of the same name: an input is not claimed while one of the same name is in flight on the node, and
+ * an input returned to <code>pending</code> or moved to <code>done</code> or <code>failed</code> where the name is
+ * taken is given a numbered name. The shared storage must support hard links.
+ * <p>
+ * Each node keeps a lease file under <code>leases</code> whose content changes with every heartbeat. When another
+ * node sees a lease unchanged for longer than the lease period, by its own clock so clock skew between nodes does
+ * not matter, it returns that node's claimed inputs to <code>pending</code>. A node stopped cleanly returns the
+ * inputs it has not started and removes its lease.
+ */
+public class SharedWorkQueue {
+
+	/** Name of the directory within the queue directory holding inputs waiting to be claimed. */
+	public static final String PENDING_DIR_NAME = "pending";
+
+	/** Name of the directory within the queue directory holding each node's directory of claimed inputs. */
+	public static final String CLAIMED_DIR_NAME = "claimed";
+
+	/** Name of the directory within the queue directory holding each node's lease file. */
+	public static final String LEASES_DIR_NAME = "leases";
+
+	/** Name of the directory within the queue directory converted inputs are moved to. */
+	public static final String DONE_DIR_NAME = "done";
+
+	/** Name of the directory within the queue directory inputs that could not be converted are moved to. */
+	public static final String FAILED_DIR_NAME = "failed";
+
+	/** Suffix of the file written next to a failed input giving the reason it failed. */
+	public static final String ERROR_FILE_SUFFIX = ".error";
+
+	/** Default milliseconds without a heartbeat after which a node's claimed inputs are returned to the queue. */
+	public static final long DEFAULT_LEASE_MILLIS = 60000;
+
+	/** Default milliseconds between heartbeats. */
+	public static final long DEFAULT_HEARTBEAT_MILLIS = 10000;
+
+	// how often the pending directory is looked at when nothing could be claimed
+	private static final long POLL_MILLIS = 500;
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final PdfaConvert converter;
+	private final BatchScheduler scheduler;
+	private final String nodeId;
+	private final Path pendingDir;
+	private final Path claimedRoot;
+	private final Path claimedDir;
+	private final Path leasesDir;
+	private final Path leaseFile;
+	private final Path doneDir;
+	private final Path failedDir;
+	private final long leaseMillis;
+	private final long heartbeatMillis;
+	private final int prefetch;
+	private final Map<String, ObservedLease> observedLeases = new HashMap<String, ObservedLease>(); // only used by the claiming thread
+	private final Set<Path> inFlight = ConcurrentHashMap.newKeySet();
+	private final Set<CompletableFuture<PdfaConverterOutput>> pipelined = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger doneCount = new AtomicInteger();
+	private final AtomicInteger failedCount = new AtomicInteger();
+	private final CountDownLatch stopped = new CountDownLatch(1);
+	private volatile boolean stopping = false;
+	private long heartbeat = 0;
+
+	/**
+	 * @param converter - Converts the inputs, through its pipelines if it has one for an input.
+	 * @param scheduler - Schedules the other conversions; started by {@link #run()} and shut down when stopped.
+	 * @param queueDir - The queue directory shared by all nodes.
+	 * @param nodeId - Identifies this node among those sharing the queue; must be unique and a valid file name.
+	 * @param leaseMillis - Milliseconds without a heartbeat after which a node's claimed inputs are returned to the queue.
+	 * @param heartbeatMillis - Milliseconds between heartbeats; well below the lease period.
+	 * @param prefetch - Number of inputs claimed but not yet finished at a time; at least 1.
+	 */
+	public SharedWorkQueue(PdfaConvert converter, BatchScheduler scheduler, File queueDir, String nodeId,
+			long leaseMillis, long heartbeatMillis, int prefetch) {
+		this.converter = converter;
+		this.scheduler = scheduler;
+		this.nodeId = nodeId;
+		Path queuePath = queueDir.toPath().toAbsolutePath();
+		this.pendingDir = queuePath.resolve(PENDING_DIR_NAME);
+		this.claimedRoot = queuePath.resolve(CLAIMED_DIR_NAME);
+		this.claimedDir = claimedRoot.resolve(nodeId);
+		this.leasesDir = queuePath.resolve(LEASES_DIR_NAME);
+		this.leaseFile = leasesDir.resolve(nodeId);
+		this.doneDir = queuePath.resolve(DONE_DIR_NAME);
+		this.failedDir = queuePath.resolve(FAILED_DIR_NAME);
+		this.leaseMillis = leaseMillis;
+		this.heartbeatMillis = heartbeatMillis;
+		this.prefetch = Math.max(1, prefetch);
+		scheduler.addListener(new BatchListener() {
+			@Override
+			public void jobSucceeded(ConversionJob job, PdfaConverterOutput output) {
+				finish(job.getInputFile(), null);
+			}
+
+			@Override
+			public void jobFailed(ConversionJob job, Exception error) {
+				finish(job.getInputFile(), error);
+			}
+		});
+	}
+
+	/**
+	 * Creates a node working on a queue directory as configured in the project properties. Unless configured, the
+	 * node ID is made from the host name and process ID, and as many inputs are claimed at a time as there are workers.
+	 */
+	public static SharedWorkQueue create(PdfaConvert converter, File queueDir, Properties props) {
+		BatchScheduler scheduler = BatchScheduler.create(converter, props);
+		String nodeId = props.getProperty(ApplicationConstants.QUEUE_NODE_ID_PROP);
+		String lease = props.getProperty(ApplicationConstants.QUEUE_LEASE_MILLIS_PROP);
+		String heartbeat = props.getProperty(ApplicationConstants.QUEUE_HEARTBEAT_MILLIS_PROP);
+		String prefetch = props.getProperty(ApplicationConstants.QUEUE_PREFETCH_PROP);
+		return new SharedWorkQueue(converter, scheduler, queueDir,
+				StringUtils.isBlank(nodeId) ? defaultNodeId() : nodeId.trim(),
+				StringUtils.isBlank(lease) ? DEFAULT_LEASE_MILLIS : Long.parseLong(lease.trim()),
+				StringUtils.isBlank(heartbeat) ? DEFAULT_HEARTBEAT_MILLIS : Long.parseLong(heartbeat.trim()),
+				StringUtils.isBlank(prefetch) ? scheduler.getWorkerCount() : Integer.parseInt(prefetch.trim()));
+	}
+
+	/**
+	 * Claims and converts inputs from the queue until {@link #stop()} is called.
+	 * Returns once running conversions have finished.
+	 *
+	 * @throws IOException - If the queue directories cannot be created.
+	 */
+	public void run() throws IOException {
+		ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "queue-heartbeat");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			for (Path dir : new Path[] {pendingDir, claimedDir, leasesDir, doneDir, failedDir}) {
+				Files.createDirectories(dir);
+			}
+			heartbeat();
+			// left over if this node was restarted under the same ID after a crash
+			requeue(claimedDir);
+			// keeps beating while waiting for running conversions once stopped
+			heartbeats.scheduleWithFixedDelay(this::heartbeat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+			scheduler.start();
+			logger.info("Node: {} converting inputs from queue: {}", nodeId, pendingDir.getParent());
+			long nextReclaimMillis = 0;
+			while (!stopping) {
+				long now = System.currentTimeMillis();
+				if (now >= nextReclaimMillis) {
+					reclaimStale(now);
+					nextReclaimMillis = now + heartbeatMillis;
+				}
+				if (claim() == 0) {
+					Thread.sleep(POLL_MILLIS);
+				}
+			}
+		} catch (InterruptedException e) {
+			logger.warn("Interrupted while claiming inputs from queue: {}", pendingDir.getParent());
+			Thread.currentThread().interrupt();
+		} finally {
+			drain();
+			heartbeats.shutdownNow();
+			try {
+				Files.deleteIfExists(leaseFile);
+				Files.deleteIfExists(claimedDir);
+			} catch (IOException e) {
+				logger.warn("Could not remove lease of node: {} -- {}", nodeId, e.getMessage());
+			}
+			stopped.countDown();
+		}
+	}
+
+	/**
+	 * Stops claiming inputs and waits until running conversions have finished. Suitable for a shutdown hook.
+	 */
+	public void stop() throws InterruptedException {
+		stopping = true;
+		stopped.await();
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	public int getDoneCount() {
+		return doneCount.get();
+	}
+
+	public int getFailedCount() {
+		return failedCount.get();
+	}
+
+	/*
+	 * Claims the oldest pending inputs while there is room, returning the number claimed.
+	 */
+	private int claim() throws IOException {
+		int room = prefetch - inFlight.size();
+		if (room <= 0) {
+			return 0;
+		}
+		Map<Path, Long> modified = new HashMap<Path, Long>();
+		try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(pendingDir)) {
+			for (Path file : dirStream) {
+				// hidden names let submitters write an input and rename it into place once complete
+				if (!file.getFileName().toString().startsWith(".") && Files.isRegularFile(file)) {
+					modified.put(file, file.toFile().lastModified());
+				}
+			}
+		}
+		List<Path> candidates = new ArrayList<Path>(modified.keySet());
+		candidates.sort(Comparator.comparing(modified::get));
+		// recreated in case another node took this node for dead during a long pause
+		Files.createDirectories(claimedDir);
+		int claimed = 0;
+		for (Path file : candidates) {
+			if (claimed >= room || stopping) {
+				break;
+			}
+			Path target = claimedDir.resolve(file.getFileName());
+			try {
+				FileMoves.moveNoReplace(file, target);
+			} catch (FileAlreadyExistsException e) {
+				logger.trace("Input of the same name in flight, leaving for later: {}", file);
+				continue;
+			} catch (IOException e) {
+				logger.trace("Input claimed by another node: {}", file);
+				continue;
+			}
+			claimed++;
+			submit(target);
+		}
+		return claimed;
+	}
+
+	private void submit(Path file) {
+		File inputFile = file.toFile();
+		inFlight.add(file);
+		logger.debug("Node: {} claimed input: {}", nodeId, file.getFileName());
+		try {
+			if (converter.isPipelined(inputFile)) {
+				CompletableFuture<PdfaConverterOutput> future = converter.examineAsync(inputFile, false);
+				pipelined.add(future);
+				future.whenComplete((output, e) -> {
+					pipelined.remove(future);
+					finish(inputFile, e == null ? null : e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+				});
+			} else {
+				scheduler.submit(inputFile);
+			}
+		} catch (InterruptedException e) {
+			requeue(file);
+			inFlight.remove(file);
+			stopping = true;
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			// rejected before conversion, e.g. by the pre-flight checks
+			finish(inputFile, e);
+		}
+	}
+
+	/*
+	 * Moves a finished input to the done or failed directory.
+	 */
+	private void finish(File inputFile, Throwable error) {
+		Path source = inputFile.toPath();
+		Path targetDir = error == null ? doneDir : failedDir;
+		if (error == null) {
+			doneCount.incrementAndGet();
+			logger.info("Node: {} converted input: {}", nodeId, inputFile.getName());
+		} else {
+			failedCount.incrementAndGet();
+			logger.error("Problem processing queued input: {} -- Error message: {}", inputFile.getName(), error.getMessage());
+		}
+		try {
+			Path target = FileMoves.moveToDirectory(source, targetDir);
+			if (error != null) {
+				String reason = error.getClass().getSimpleName() + ": " + StringUtils.defaultString(error.getMessage()) + System.lineSeparator();
+				Files.write(targetDir.resolve(target.getFileName() + ERROR_FILE_SUFFIX), reason.getBytes(StandardCharsets.UTF_8));
+			}
+		} catch (NoSuchFileException e) {
+			// quarantined, or returned to the queue by another node that took this one for dead
+			logger.warn("Finished input no longer claimed by node: {} -- {}", nodeId, source);
+		} catch (IOException e) {
+			logger.error("Could not move finished input: {} to: {}", source, targetDir, e);
+		} finally {
+			inFlight.remove(source);
+		}
+	}
+
+	/*
+	 * Returns the claimed inputs of nodes whose lease has not changed for the lease period to the queue.
+	 */
+	private void reclaimStale(long now) {
+		File[] nodeDirs = claimedRoot.toFile().listFiles(File::isDirectory);
+		if (nodeDirs == null) {
+			return;
+		}
+		for (File nodeDir : nodeDirs) {
+			String otherNode = nodeDir.getName();
+			if (otherNode.equals(nodeId)) {
+				continue;
+			}
+			String lease = readLease(leasesDir.resolve(otherNode));
+			ObservedLease observed = observedLeases.get(otherNode);
+			if (observed == null || !observed.content.equals(lease)) {
+				observedLeases.put(otherNode, new ObservedLease(lease, now));
+				continue;
+			}
+			if (now - observed.sinceMillis < leaseMillis) {
+				continue;
+			}
+			logger.warn("Node: {} has not renewed its lease for {} ms, returning its claimed inputs to the queue", otherNode, now - observed.sinceMillis);
+			requeue(nodeDir.toPath());
+			try {
+				Files.deleteIfExists(leasesDir.resolve(otherNode));
+				Files.deleteIfExists(nodeDir.toPath());
+			} catch (IOException e) {
+				logger.debug("Could not remove lease of node: {} -- {}", otherNode, e.getMessage());
+			}
+			observedLeases.remove(otherNode);
+		}
+	}
+
+	/*
+	 * Moves an input, or every input in a claimed directory, back to the pending directory.
+	 * Another node returning the same inputs at the same time is harmless as only one move of each succeeds.
+	 */
+	private void requeue(Path path) {
+		List<Path> files = new ArrayList<Path>();
+		if (Files.isDirectory(path)) {
+			try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(path)) {
+				dirStream.forEach(files::add);
+			} catch (IOException e) {
+				logger.debug("Could not list claimed inputs: {} -- {}", path, e.getMessage());
+			}
+		} else {
+			files.add(path);
+		}
+		for (Path file : files) {
+			try {
+				Path target = FileMoves.moveToDirectory(file, pendingDir);
+				logger.info("Returned input to queue: {}", target.getFileName());
+			} catch (IOException e) {
+				logger.debug("Could not return input to queue: {} -- {}", file, e.getMessage());
+			}
+		}
+	}
+
+	/*
+	 * Renews this node's lease by replacing its content; the content, not the modification time, is compared.
+	 */
+	private synchronized void heartbeat() {
+		Path tempFile = leasesDir.resolve("." + nodeId + ".tmp");
+		try {
+			Files.write(tempFile, (Long.toString(++heartbeat) + " " + System.currentTimeMillis()).getBytes(StandardCharsets.US_ASCII));
+			Files.move(tempFile, leaseFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.error("Could not renew lease of node: {} -- {}", nodeId, e.getMessage());
+		}
+	}
+
+	private static String readLease(Path leaseFile) {
+		try {
+			return new String(Files.readAllBytes(leaseFile), StandardCharsets.US_ASCII);
+		} catch (IOException e) {
+			// no lease at all is treated as one that never changes
+			return "";
+		}
+	}
+
+	/*
+	 * Leaves queued inputs to other nodes and waits for running conversions.
+	 */
+	private void drain() {
+		stopping = true;
+		List<ConversionJob> cancelled = scheduler.cancelPending();
+		for (ConversionJob job : cancelled) {
+			requeue(job.getInputFile().toPath());
+			inFlight.remove(job.getInputFile().toPath());
+		}
+		logger.info("Node: {} stopped claiming inputs -- returned {} to the queue, waiting for {} running conversions",
+				nodeId, cancelled.size(), inFlight.size());
+		try {
+			scheduler.shutdown();
+			for (CompletableFuture<PdfaConverterOutput> future : pipelined) {
+				try {
+					future.join();
+				} catch (RuntimeException e) {
+					// already handled
+				}
+			}
+			converter.shutdownPipelines();
+		} catch (InterruptedException e) {
+			logger.error("Interrupted while waiting for conversions to finish", e);
+			Thread.currentThread().interrupt();
+		}
+		logger.info("Node: {} converted {} and failed {} queued inputs", nodeId, doneCount.get(), failedCount.get());
+	}
+
+	private static String defaultNodeId() {
+		// the runtime name is of the form pid@host
+		String[] runtimeName = ManagementFactory.getRuntimeMXBean().getName().split("@", 2);
+		String nodeId = runtimeName.length == 2 ? runtimeName[1] + "-" + runtimeName[0] : runtimeName[0];
+		return nodeId.replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+	/*
+	 * The content of another node's lease and when this node first saw it.
+	 */
+	private static class ObservedLease {
+		final String content;
+		final long sinceMillis;
+
+		ObservedLease(String content, long sinceMillis) {
+			this.content = content;
+			this.sinceMillis = sinceMillis;
+		}
+	}
+}
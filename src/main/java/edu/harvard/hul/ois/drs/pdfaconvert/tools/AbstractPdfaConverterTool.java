@@ -11,17 +11,23 @@ package edu.harvard.hul.ois.drs.pdfaconvert.tools;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import edu.harvard.hul.ois.drs.pdfaconvert.ConverterConfig;
 import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
 import edu.harvard.hul.ois.drs.pdfaconvert.GeneratedFileUnavailableException;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ConversionTrace;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ConvertedFileSweeper;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.FlightEvents;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.FlightEvents.Phase;
 import edu.harvard.hul.ois.drs.pdfaconvert.util.StreamGobbler;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ToolLogWriter;
 
 /**
  * This code taken from FITS.
@@ -31,17 +37,45 @@ import edu.harvard.hul.ois.drs.pdfaconvert.util.StreamGobbler;
  */
 public abstract class AbstractPdfaConverterTool implements PdfaConvertable {
 	
+	// the configuration snapshot the tool was created with
+	private final ConverterConfig config;
 	// the sub-directory within the output directory for storing converted documents
 	private File outputDir;
+	// where the tool output log is written; the output directory unless set
+	private File logDir;
+
+	// details of the most recently executed command for logging the tool output
+	private long commandStartMillis;
+	private long commandEndMillis;
+	private int commandExitCode = -1;
+	private ByteArrayOutputStream commandOutput;
 
 	private static final Logger logger = LogManager.getLogger();
 
-	protected AbstractPdfaConverterTool(File outputDir) {
+	protected AbstractPdfaConverterTool(ConverterConfig config, File outputDir) {
 		super();
+		this.config = config;
 		this.outputDir = outputDir;
 	}
+
+	/**
+	 * @return The configuration the tool was created with.
+	 */
+	protected ConverterConfig getConfig() {
+		return config;
+	}
 	
 	abstract protected String getToolName();
+
+	/**
+	 * The parts of the tool's command that determine the content of a converted file, i.e. the command without its
+	 * input and output locations, so that a conversion of the same content with the same options can be reused.
+	 * 
+	 * @return The tool's command options; none unless overridden.
+	 */
+	public List<String> getConversionOptions() {
+		return Collections.emptyList();
+	}
 	
 	/**
 	 * Output directory for converted files. May be a sub-directory of the value configured in properties file.
@@ -52,41 +86,85 @@ public abstract class AbstractPdfaConverterTool implements PdfaConvertable {
 	protected String getOutputDirectory() {
 		return outputDir.getAbsolutePath();
 	}
+
+	/**
+	 * Directory of the tool output log, which is the output directory unless set otherwise, e.g. when the tool
+	 * writes to a scratch directory as an intermediate stage of a pipeline.
+	 * Does not contain a trailing slash character.
+	 * 
+	 * @return The path to directory where the tool output log is written.
+	 */
+	protected String getLogDirectory() {
+		return logDir == null ? getOutputDirectory() : logDir.getAbsolutePath();
+	}
+
+	/**
+	 * @param logDir - Directory where the tool output log is written instead of the output directory.
+	 */
+	public void setLogDirectory(File logDir) {
+		this.logDir = logDir;
+	}
 	
 	/**
 	 * Executes the command on the external tool using the supplied directory if not <code>null</code>.
+	 * The command runs under the tool's {@link ResourceProfile}, if any. If the calling thread is interrupted
+	 * the process is killed. The launch, run and draining of the output of the process are recorded as
+	 * {@link FlightEvents}.
 	 * 
 	 * @param cmd - The command to execute
 	 * @param directory - The directory where to execute the command if not <code>null</code>.
+	 * @param inputFile - The file the command converts or copies, recorded with the events, or <code>null</code>
+	 * 		if it works on several.
 	 * @return The output from the executed tool.
 	 * @throws ExternalToolException - If there is a problem executing the command on the external tool.
 	 */
-	protected ByteArrayOutputStream processCommand(List<String> cmd, File directory) {
+	protected ByteArrayOutputStream processCommand(List<String> cmd, File directory, File inputFile) {
 		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		commandOutput = bos;
+		commandExitCode = -1;
+		commandStartMillis = System.currentTimeMillis();
+		FlightEvents.Span processEvent = FlightEvents.begin(Phase.PROCESS, getToolName(), inputFile);
+		Process proc = null;
 		try {
-			ProcessBuilder builder = new ProcessBuilder(cmd);
+			ProcessBuilder builder = new ProcessBuilder(ResourceProfile.forTool(config, getToolName()).wrap(cmd));
 			if(directory != null) {
 				builder.directory(directory);
 			}
-			Process proc = builder.start();
+			FlightEvents.Span spawnEvent = FlightEvents.begin(Phase.PROCESS_SPAWN, getToolName(), inputFile);
+			proc = builder.start();
+			spawnEvent.end();
 	
 			StreamGobbler errorGobbler = new StreamGobbler(proc.getErrorStream(),bos);
 			StreamGobbler outputGobbler = new StreamGobbler(proc.getInputStream(),bos);
 			errorGobbler.start();
 			outputGobbler.start();
 			proc.waitFor();
+			FlightEvents.Span drainEvent = FlightEvents.begin(Phase.OUTPUT_DRAIN, getToolName(), inputFile);
 		    errorGobbler.join();
 		    outputGobbler.join();
 		    bos.flush();
+		    drainEvent.setBytes(bos.size()).end();
 		    int exitCode = proc.exitValue();
+		    commandExitCode = exitCode;
+		    processEvent.setExitCode(exitCode);
 		    if (exitCode != 0) {
 		    	throw new ExternalToolException("Error executing external command line tool: " + getToolName() + " -- with exit code: " + exitCode);
 		    }
 		}
-		catch (IOException | InterruptedException e) {
+		catch (IOException e) {
+			processEvent.setFailure(e);
 			throw new ExternalToolException("Error executing external command line tool: " + getToolName(), e);
 		}
+		catch (InterruptedException e) {
+			// e.g. a hedged conversion that lost to its duplicate -- don't leave the tool running
+			proc.destroyForcibly();
+			processEvent.setFailure(e);
+			Thread.currentThread().interrupt();
+			throw new ExternalToolException("Interrupted executing external command line tool: " + getToolName(), e);
+		}
 		finally {
+			commandEndMillis = System.currentTimeMillis();
+			processEvent.setBytes(bos.size()).end();
 			try {
 				bos.close();
 			} catch (IOException e) {
@@ -98,17 +176,21 @@ public abstract class AbstractPdfaConverterTool implements PdfaConvertable {
 	}
 
 	/*
-	 * Log output from application performing the conversion, appending output if file already exists.
+	 * Log output of the most recently executed command as a record appended to the tool's log file.
+	 * The record is written in the background so this never blocks the conversion.
 	 */
-	protected void logApplicationOutput(String outputFilePath, ByteArrayOutputStream baos) {
-		try {
-			FileOutputStream outFile = new FileOutputStream(outputFilePath, true);
-			outFile.write(baos.toByteArray());
-			outFile.flush();
-			outFile.close();
-		} catch(IOException ioe) {
-			logger.error("Problem writing to application logging output:", ioe);
-		}
+	protected void logApplicationOutput(String outputFilePath, File inputFile) {
+		byte[] output = commandOutput == null ? new byte[0] : commandOutput.toByteArray();
+		logApplicationOutput(outputFilePath, inputFile, commandStartMillis, commandEndMillis, commandExitCode, output);
+	}
+
+	/*
+	 * Log output of a conversion not run through processCommand as a record appended to the tool's log file.
+	 * Every run of a tool is logged, so this also marks the run in the conversion's trace.
+	 */
+	protected void logApplicationOutput(String outputFilePath, File inputFile, long startMillis, long endMillis, int exitCode, byte[] output) {
+		ConversionTrace.toolRan(getToolName(), startMillis, endMillis, exitCode);
+		ToolLogWriter.forFile(outputFilePath, config).submit(getToolName(), inputFile, startMillis, endMillis, exitCode, output);
 	}
 	
 	/*
@@ -121,25 +203,36 @@ public abstract class AbstractPdfaConverterTool implements PdfaConvertable {
 	}
 
 	/**
-	 * Returns the converted file for the given input.
+	 * Returns the converted file for the given input, recording a {@link FlightEvents} event.
 	 * 
+	 * @param inputFile - The file that was converted.
 	 * @param outputFilename - The file name to set on the converted file.
-	 * @param deleteConvertedFile - Delete the converted file from file system on JVM termination.
+	 * @param deleteConvertedFile - Track the converted file so it is deleted if its output is not closed within the configured time-to-live.
 	 * @throws GeneratedFileUnavailableException If the file is not available to be returned.
 	 */
-	protected File retrieveGeneratedFile(String outputFilename, boolean deleteConvertedFile) {
+	protected File retrieveGeneratedFile(File inputFile, String outputFilename, boolean deleteConvertedFile) {
+		FlightEvents.Span retrievalEvent = FlightEvents.begin(Phase.FILE_RETRIEVAL, getToolName(), inputFile);
 		String filePath = getOutputDirectory() + File.separator + outputFilename;
 		File generatedFile = new File(filePath);
 		if ( !generatedFile.isFile() || !generatedFile.canRead()) {
-			throw new GeneratedFileUnavailableException("The generated file [" + generatedFile + "] is not available to be returned.");
+			GeneratedFileUnavailableException e = new GeneratedFileUnavailableException("The generated file [" + generatedFile + "] is not available to be returned.");
+			retrievalEvent.setFailure(e).end();
+			throw e;
 		}
 		if (deleteConvertedFile) {
-			generatedFile.deleteOnExit();
+			ConvertedFileSweeper.getInstance(config).track(generatedFile);
 		}
+		if (retrievalEvent.isRecording()) {
+			retrievalEvent.setBytes(generatedFile.length());
+		}
+		retrievalEvent.end();
 		return generatedFile;
 	}
 
-	protected String getGeneratedPdfFilename(File inputFile) {
+	/**
+	 * @return The file name of the converted file for the given input.
+	 */
+	public String getGeneratedPdfFilename(File inputFile) {
 		String outputFilenameBase = inputFile.getName().substring(0, inputFile.getName().indexOf('.'));
 		String generatedPdfFilename = outputFilenameBase + ".pdf";
         logger.debug("outputFilename: {}", generatedPdfFilename);
@@ -0,0 +1,32 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.tools;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+
+/**
+ * Implemented by tools that can convert several input files together more cheaply than one at a time.
+ */
+public interface BatchConvertable {
+
+	/**
+	 * Converts several input files together. Converted files remain in the tool's output directory.
+	 * 
+	 * @param inputFiles - The files to convert.
+	 * @param deleteConvertedFile - <code>true</code> delete each converted file when its output is closed.
+	 * @return The output of each file that was converted; files missing from the map were not converted and should
+	 * 		   be converted on their own, which reports why one fails.
+	 */
+	Map<File, PdfaConverterOutput> convertBatch(List<File> inputFiles, boolean deleteConvertedFile);
+}
@@ -42,7 +42,7 @@ public interface PdfaConvertable {
 	 * If method not implemented by class then this default implementation will be used.
 	 * 
 	 * @param inputFile The file to convert.
-	 * @param deleteConvertedFile <code>true</code> delete the converted file once returned; <code>false</code> leave 
+	 * @param deleteConvertedFile <code>true</code> delete the converted file when the returned output is closed; <code>false</code> leave 
 	 * 			converted file in configured output directory.
 	 * @return PdfaConverterOutput - Contains the input converted to PDF/A and other relevant data.
 	 * @throws GeneratedFileUnavailableException (RuntimeException) - If the generated file is either unavailable or unreadable.
@@ -0,0 +1,206 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.tools;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ApplicationConstants;
+import edu.harvard.hul.ois.drs.pdfaconvert.ConverterConfig;
+
+/**
+ * Operating system resources given to the processes of one external tool on Linux: the CPUs they may run on
+ * (taskset), their scheduling priority (nice), their I/O scheduling class (ionice), and caps on their virtual
+ * memory and CPU time (prlimit). A tool's command is wrapped in the utilities needed for its profile.
+ * Declared in the application properties as <code>toolResources.&lt;tool name&gt;.&lt;setting&gt;</code>,
+ * e.g. <code>toolResources.UnoconvTool.nice=10</code>. On other systems, or where a utility is missing,
+ * the settings it applies are ignored.
+ */
+public class ResourceProfile {
+
+	/** The profile of a tool with no settings, which leaves its commands unchanged. */
+	public static final ResourceProfile NONE = new ResourceProfile(null, null, null, null, null, null);
+
+	private static final boolean IS_LINUX = System.getProperty("os.name", "").toLowerCase().contains("linux");
+
+	private static final Logger logger = LogManager.getLogger();
+
+	// profiles are read once per configuration snapshot, so a reloaded configuration applies to the tools created from it
+	private static final Map<ConverterConfig, Map<String, ResourceProfile>> profiles = new WeakHashMap<ConverterConfig, Map<String, ResourceProfile>>();
+	private static final Map<String, Boolean> availableCommands = new HashMap<String, Boolean>();
+
+	private final String cpuSet;
+	private final Integer nice;
+	private final Integer ioClass;
+	private final Integer ioLevel;
+	private final Long memoryLimitBytes;
+	private final Long cpuTimeLimitSeconds;
+
+	/**
+	 * @param cpuSet - CPUs the processes may run on in taskset list format, e.g. "0-3,6"; <code>null</code> for any.
+	 * @param nice - Niceness adjustment; <code>null</code> to leave unchanged.
+	 * @param ioClass - ionice scheduling class: 1 realtime, 2 best-effort, 3 idle; <code>null</code> to leave unchanged.
+	 * @param ioLevel - ionice priority within the class from 0 (highest) to 7; <code>null</code> for the default.
+	 * @param memoryLimitBytes - Cap on the virtual memory of each process; <code>null</code> for none.
+	 * @param cpuTimeLimitSeconds - Cap on the CPU time of each process; <code>null</code> for none.
+	 */
+	public ResourceProfile(String cpuSet, Integer nice, Integer ioClass, Integer ioLevel, Long memoryLimitBytes, Long cpuTimeLimitSeconds) {
+		this.cpuSet = cpuSet;
+		this.nice = nice;
+		this.ioClass = ioClass;
+		this.ioLevel = ioLevel;
+		this.memoryLimitBytes = memoryLimitBytes;
+		this.cpuTimeLimitSeconds = cpuTimeLimitSeconds;
+	}
+
+	/**
+	 * Returns the profile of a tool, reading it from the configuration on first use.
+	 *
+	 * @param config - The configuration the tool was created with.
+	 * @param toolName - Name of the tool as used in its log records, e.g. UnoconvTool.
+	 */
+	public static synchronized ResourceProfile forTool(ConverterConfig config, String toolName) {
+		Map<String, ResourceProfile> configProfiles = profiles.get(config);
+		if (configProfiles == null) {
+			configProfiles = new HashMap<String, ResourceProfile>();
+			profiles.put(config, configProfiles);
+		}
+		ResourceProfile profile = configProfiles.get(toolName);
+		if (profile == null) {
+			profile = fromProperties(toolName, config.getProperties());
+			configProfiles.put(toolName, profile);
+			if (profile != NONE) {
+				logger.info("Resource profile for {}: {}", toolName, profile);
+			}
+		}
+		return profile;
+	}
+
+	/**
+	 * Reads the profile of a tool from properties.
+	 *
+	 * @return The profile, which is {@link #NONE} if no settings are declared for the tool.
+	 * @throws NumberFormatException - If a numeric setting is not a number.
+	 */
+	public static ResourceProfile fromProperties(String toolName, Properties props) {
+		String prefix = ApplicationConstants.TOOL_RESOURCES_PROP_PREFIX + toolName + ".";
+		String cpuSet = StringUtils.trimToNull(props.getProperty(prefix + "cpuSet"));
+		Integer nice = toInteger(props.getProperty(prefix + "nice"));
+		Integer ioClass = toInteger(props.getProperty(prefix + "ioClass"));
+		Integer ioLevel = toInteger(props.getProperty(prefix + "ioLevel"));
+		Long memory = toLong(props.getProperty(prefix + "memoryLimitBytes"));
+		Long cpuTime = toLong(props.getProperty(prefix + "cpuTimeLimitSeconds"));
+		if (cpuSet == null && nice == null && ioClass == null && memory == null && cpuTime == null) {
+			return NONE;
+		}
+		return new ResourceProfile(cpuSet, nice, ioClass, ioLevel, memory, cpuTime);
+	}
+
+	/**
+	 * Wraps a command that converts one file.
+	 *
+	 * @param command - The tool command.
+	 * @return The command prefixed with the utilities applying this profile.
+	 */
+	public List<String> wrap(List<String> command) {
+		return wrap(command, true);
+	}
+
+	/**
+	 * Wraps a command, optionally without the CPU time cap, which would eventually kill a process that lives
+	 * on to convert many files.
+	 *
+	 * @param command - The tool command.
+	 * @param limitCpuTime - Whether to apply the CPU time cap.
+	 * @return The command prefixed with the utilities applying this profile.
+	 */
+	public List<String> wrap(List<String> command, boolean limitCpuTime) {
+		if (this == NONE || !IS_LINUX) {
+			return command;
+		}
+		List<String> wrapped = new ArrayList<String>();
+		if (cpuSet != null && isAvailable("taskset")) {
+			wrapped.add("taskset");
+			wrapped.add("--cpu-list");
+			wrapped.add(cpuSet);
+		}
+		if (nice != null && isAvailable("nice")) {
+			wrapped.add("nice");
+			wrapped.add("-n");
+			wrapped.add(nice.toString());
+		}
+		if (ioClass != null && isAvailable("ionice")) {
+			wrapped.add("ionice");
+			wrapped.add("-c");
+			wrapped.add(ioClass.toString());
+			if (ioLevel != null && ioClass != 3) {
+				wrapped.add("-n");
+				wrapped.add(ioLevel.toString());
+			}
+		}
+		Long cpuTime = limitCpuTime ? cpuTimeLimitSeconds : null;
+		if ((memoryLimitBytes != null || cpuTime != null) && isAvailable("prlimit")) {
+			wrapped.add("prlimit");
+			if (memoryLimitBytes != null) {
+				wrapped.add("--as=" + memoryLimitBytes);
+			}
+			if (cpuTime != null) {
+				wrapped.add("--cpu=" + cpuTime);
+			}
+			wrapped.add("--");
+		}
+		wrapped.addAll(command);
+		return wrapped;
+	}
+
+	@Override
+	public String toString() {
+		return "cpuSet=" + cpuSet + ", nice=" + nice + ", ioClass=" + ioClass + ", ioLevel=" + ioLevel
+				+ ", memoryLimitBytes=" + memoryLimitBytes + ", cpuTimeLimitSeconds=" + cpuTimeLimitSeconds;
+	}
+
+	/*
+	 * Looks for the utility on the PATH once, warning if it's missing.
+	 */
+	private static synchronized boolean isAvailable(String command) {
+		Boolean available = availableCommands.get(command);
+		if (available == null) {
+			available = false;
+			for (String dir : System.getenv().getOrDefault("PATH", "").split(File.pathSeparator)) {
+				if (new File(dir, command).canExecute()) {
+					available = true;
+					break;
+				}
+			}
+			if (!available) {
+				logger.warn("{} not found on the PATH, ignoring resource profile settings that need it", command);
+			}
+			availableCommands.put(command, available);
+		}
+		return available;
+	}
+
+	private static Integer toInteger(String value) {
+		return StringUtils.isBlank(value) ? null : Integer.valueOf(value.trim());
+	}
+
+	private static Long toLong(String value) {
+		return StringUtils.isBlank(value) ? null : Long.valueOf(value.trim());
+	}
+}
@@ -0,0 +1,274 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ApplicationConstants;
+import edu.harvard.hul.ois.drs.pdfaconvert.ConverterConfig;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.unoconv.UnoconvTool;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.StreamGobbler;
+
+/**
+ * Checks that the tool of each {@link ToolType} can be used, so that inputs of a type whose tool is unavailable are
+ * rejected at once instead of after launching it. A tool is available if its executable is there and reports its
+ * version, which for a remote pdfaPilot also shows the remote host is reachable and pdfaPilot licensed there (an
+ * unlicensed pdfaPilot fails even to give its version), and for a pdfaPilot agent that it accepts connections.
+ * <p>
+ * The tools are probed in parallel and each result is kept for a time-to-live, after which the next use of it
+ * probes the tool again.
+ */
+public class ToolProbe {
+
+	/** Default seconds a probe's result is used before probing the tool again. */
+	public static final long DEFAULT_TTL_SECONDS = 300;
+
+	// a version check should answer within seconds, even over ssh
+	private static final long PROBE_TIMEOUT_SECONDS = 30;
+	private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+	// ssh exits with this when it cannot connect or log in
+	private static final int SSH_ERROR_EXIT_CODE = 255;
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final Supplier<ConverterConfig> config;
+	private final long ttlMillis;
+	private final ExecutorService executor;
+	// guarded by this
+	private final Map<ToolType, CompletableFuture<Result>> results = new EnumMap<ToolType, CompletableFuture<Result>>(ToolType.class);
+
+	/**
+	 * @param config - Gives the current configuration of the tools.
+	 * @param ttlMillis - Milliseconds a result is used before probing the tool again.
+	 */
+	public ToolProbe(Supplier<ConverterConfig> config, long ttlMillis) {
+		this.config = config;
+		this.ttlMillis = ttlMillis;
+		executor = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "tool-probe");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Probes in parallel every tool with no current result and waits for them.
+	 *
+	 * @return The result of each tool.
+	 */
+	public Map<ToolType, Result> probeAll() {
+		Map<ToolType, CompletableFuture<Result>> futures = new EnumMap<ToolType, CompletableFuture<Result>>(ToolType.class);
+		for (ToolType toolType : ToolType.values()) {
+			futures.put(toolType, refresh(toolType));
+		}
+		Map<ToolType, Result> all = new EnumMap<ToolType, Result>(ToolType.class);
+		for (Map.Entry<ToolType, CompletableFuture<Result>> entry : futures.entrySet()) {
+			all.put(entry.getKey(), entry.getValue().join());
+		}
+		return all;
+	}
+
+	/**
+	 * @return The current result of the tool, probing it first, or waiting for a probe under way, if there is none.
+	 */
+	public Result getResult(ToolType toolType) {
+		return refresh(toolType).join();
+	}
+
+	/**
+	 * Drops the results, e.g. when the configuration of the tools changes, so each tool is probed again when next used.
+	 */
+	public synchronized void invalidate() {
+		results.clear();
+	}
+
+	private synchronized CompletableFuture<Result> refresh(ToolType toolType) {
+		CompletableFuture<Result> future = results.get(toolType);
+		if (future == null || (future.isDone() && System.currentTimeMillis() - future.join().getProbedMillis() > ttlMillis)) {
+			future = CompletableFuture.supplyAsync(() -> probe(toolType), executor);
+			results.put(toolType, future);
+		}
+		return future;
+	}
+
+	/*
+	 * Checks the tool as it is currently configured.
+	 */
+	Result probe(ToolType toolType) {
+		ConverterConfig current = config.get();
+		Result result;
+		switch (toolType) {
+			case UNOCONV:
+				result = probeExecutable(toolType, new File(StringUtils.trimToEmpty(current.getUnoconvHome()), "unoconv"));
+				// soffice processes are used instead of unoconv when configured
+				if (!result.isAvailable() && current.getInt(ApplicationConstants.OFFICE_PROCESSES_PROP, 0) > 0) {
+					Result office = probeCommand(toolType, Arrays.asList(UnoconvTool.getOfficeCommand(current), "--version"));
+					result = office.isAvailable() ? office : result;
+				}
+				break;
+			case CALIBRE:
+				result = probeExecutable(toolType, new File(StringUtils.trimToEmpty(current.getCalibreHome()), "ebook-convert"));
+				break;
+			case PDFA_PILOT:
+				if (current.getPdfaPilotAgentHost() != null) {
+					result = probeAgent(current.getPdfaPilotAgentHost(), current.getPdfaPilotAgentPort());
+				} else if (current.isPdfaPilotRemote()) {
+					List<String> command = new ArrayList<String>(Arrays.asList("ssh", "-o", "BatchMode=yes", "-o",
+							"ConnectTimeout=" + TimeUnit.MILLISECONDS.toSeconds(CONNECT_TIMEOUT_MILLIS),
+							current.getPdfaPilotRemoteUser() + "@" + current.getPdfaPilotRemoteUrl(),
+							StringUtils.trimToEmpty(current.getPdfaPilotHome()) + "pdfaPilot --version"));
+					result = probeCommand(toolType, command);
+				} else {
+					result = probeExecutable(toolType, new File(StringUtils.trimToEmpty(current.getPdfaPilotHome()) + "pdfaPilot"));
+				}
+				break;
+			default:
+				result = new Result(toolType, false, null, "Unknown tool");
+		}
+		if (result.isAvailable()) {
+			logger.info("{} is available: {}", toolType, result.getVersion());
+		} else {
+			logger.warn("{} is not available: {}", toolType, result.getProblem());
+		}
+		return result;
+	}
+
+	private Result probeExecutable(ToolType toolType, File executable) {
+		if (!executable.isFile() || !executable.canExecute()) {
+			return new Result(toolType, false, null, "No executable at: " + executable.getPath());
+		}
+		return probeCommand(toolType, Arrays.asList(executable.getPath(), "--version"));
+	}
+
+	private Result probeCommand(ToolType toolType, List<String> command) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Process proc = null;
+		try {
+			proc = new ProcessBuilder(command).redirectErrorStream(true).start();
+			proc.getOutputStream().close();
+			StreamGobbler outputGobbler = new StreamGobbler(proc.getInputStream(), output);
+			outputGobbler.start();
+			if (!proc.waitFor(PROBE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				proc.destroyForcibly();
+				return new Result(toolType, false, null, "No answer within " + PROBE_TIMEOUT_SECONDS + " seconds from: " + command);
+			}
+			outputGobbler.join();
+		} catch (IOException e) {
+			return new Result(toolType, false, null, "Could not run: " + command + " -- " + e.getMessage());
+		} catch (InterruptedException e) {
+			proc.destroyForcibly();
+			Thread.currentThread().interrupt();
+			return new Result(toolType, false, null, "Interrupted running: " + command);
+		}
+		String firstLine = firstLine(output.toString());
+		int exitCode = proc.exitValue();
+		if (exitCode == 0) {
+			return new Result(toolType, true, firstLine, null);
+		}
+		if ("ssh".equals(command.get(0)) && exitCode == SSH_ERROR_EXIT_CODE) {
+			return new Result(toolType, false, null, "Remote host unreachable -- " + firstLine);
+		}
+		if (output.toString().toLowerCase().contains("licen")) {
+			return new Result(toolType, false, null, "Not licensed -- " + firstLine);
+		}
+		return new Result(toolType, false, null, "Exit code " + exitCode + " from: " + command + " -- " + firstLine);
+	}
+
+	private Result probeAgent(String host, int port) {
+		try (Socket socket = new Socket()) {
+			socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+			return new Result(ToolType.PDFA_PILOT, true, "pdfaPilot agent at " + host + ":" + port, null);
+		} catch (IOException e) {
+			return new Result(ToolType.PDFA_PILOT, false, null, "pdfaPilot agent at " + host + ":" + port + " unreachable -- " + e.getMessage());
+		}
+	}
+
+	private static String firstLine(String output) {
+		for (String line : output.split("\\r?\\n")) {
+			if (!line.trim().isEmpty()) {
+				return StringUtils.abbreviate(line.trim(), 200);
+			}
+		}
+		return "";
+	}
+
+	/**
+	 * The outcome of probing a tool.
+	 */
+	public static final class Result {
+		private final ToolType toolType;
+		private final boolean available;
+		private final String version;
+		private final String problem;
+		private final long probedMillis = System.currentTimeMillis();
+
+		Result(ToolType toolType, boolean available, String version, String problem) {
+			this.toolType = toolType;
+			this.available = available;
+			this.version = version;
+			this.problem = problem;
+		}
+
+		public ToolType getToolType() {
+			return toolType;
+		}
+
+		/**
+		 * @return <code>true</code> if the tool can be used.
+		 */
+		public boolean isAvailable() {
+			return available;
+		}
+
+		/**
+		 * @return What the tool reported as its version, or <code>null</code> if not available.
+		 */
+		public String getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return Why the tool is not available, or <code>null</code> if it is.
+		 */
+		public String getProblem() {
+			return problem;
+		}
+
+		/**
+		 * @return Time of the probe.
+		 */
+		public long getProbedMillis() {
+			return probedMillis;
+		}
+
+		@Override
+		public String toString() {
+			return toolType + ": " + (available ? "available, " + version : "unavailable, " + problem);
+		}
+	}
+}
@@ -0,0 +1,77 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.tools;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The external tools used for conversion and the file types (by extension) each one handles.
+ */
+public enum ToolType {
+
+	/** LibreOffice via unoconv for word processing documents. */
+	UNOCONV("doc", "docm", "docx", "odt", "rtf", "wp", "wpd"),
+
+	/** Calibre for e-books. */
+	CALIBRE("epub"),
+
+	/** Callas pdfaPilot, locally or remotely, for PDF documents. */
+	PDFA_PILOT("pdf");
+
+	private final List<String> extensions;
+
+	private ToolType(String... extensions) {
+		this.extensions = Collections.unmodifiableList(Arrays.asList(extensions));
+	}
+
+	/**
+	 * @return The lower case file extensions, without leading period, handled by this tool.
+	 */
+	public List<String> getExtensions() {
+		return extensions;
+	}
+
+	/**
+	 * Returns the tool that handles the given file extension.
+	 *
+	 * @param extension - File extension, without leading period, in any case.
+	 * @return The tool for the extension or <code>null</code> if no tool handles it.
+	 */
+	public static ToolType forExtension(String extension) {
+		String ext = extension.toLowerCase();
+		for (ToolType toolType : values()) {
+			if (toolType.extensions.contains(ext)) {
+				return toolType;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the tool that handles the given file based on its extension.
+	 *
+	 * @param file - The input file.
+	 * @return The tool for the file or <code>null</code> if no tool handles it.
+	 */
+	public static ToolType forFile(File file) {
+		return forExtension(getExtension(file));
+	}
+
+	/**
+	 * @return The lower case extension of the file name without the leading period.
+	 */
+	public static String getExtension(File file) {
+		String path = file.getPath().toLowerCase();
+		return path.substring(path.lastIndexOf(".") + 1);
+	}
+}
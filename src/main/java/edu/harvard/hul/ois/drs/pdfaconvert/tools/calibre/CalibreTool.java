@@ -11,32 +11,45 @@ package edu.harvard.hul.ois.drs.pdfaconvert.tools.calibre;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import edu.harvard.hul.ois.drs.pdfaconvert.ConverterConfig;
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
 import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
 import edu.harvard.hul.ois.drs.pdfaconvert.tools.AbstractPdfaConverterTool;
 
 /**
  * Java wrapper for Calibre tool for converting EPUB documents into PDF/A.
+ * Conversions are sent to a pool of long-running Calibre workers when configured, otherwise (or if a worker dies)
+ * ebook-convert is launched for each file.
  * 
  * @author dan179
  */
 public class CalibreTool extends AbstractPdfaConverterTool {
 
-	private static final String TOOL_NAME = "CalibreTool";
+	static final String TOOL_NAME = "CalibreTool";
 	private static final String TOOL_LOG_FILE_NAME = "calibre-output.txt";
 	private static final String CALIBRE_COMMAND = "/ebook-convert";
 	private static final Logger logger = LogManager.getLogger();
 	
 	private List<String> unixCommand = new ArrayList<String>();
+	private CalibreWorkerPool workerPool;
 
-	public CalibreTool(String calibreHome, File outputDir) {
-		super(outputDir);
+	/**
+	 * @param config Configuration giving the Calibre home and its worker pool.
+	 * @param outputDir Output directory for converted files.
+	 */
+	public CalibreTool(ConverterConfig config, File outputDir) {
+		super(config, outputDir);
 		logger.debug("Entering C-tor for: {}", CalibreTool.class.getSimpleName());
+		String calibreHome = config.getCalibreHome();
         
         File calibreHomeDir = new File(calibreHome);
         logger.info("Calibre home: {} -- isDirectory: ", calibreHome, (calibreHome == null ? "false" : calibreHomeDir.isDirectory()) );
@@ -44,6 +57,7 @@ public class CalibreTool extends AbstractPdfaConverterTool {
         String command = calibreHome + CALIBRE_COMMAND;
 		logger.debug("Have command: {}", command);
 		unixCommand.add(command);
+		workerPool = CalibreWorkerPool.getInstance(config);
 	}
 
 	@Override
@@ -51,6 +65,11 @@ public class CalibreTool extends AbstractPdfaConverterTool {
 		return TOOL_NAME;
 	}
 
+	@Override
+	public List<String> getConversionOptions() {
+		return Collections.unmodifiableList(unixCommand);
+	}
+
 	/**
 	 * @see edu.harvard.hul.ois.drs.pdfaconvert.tools.PdfaConvertable#convert(java.io.File)
 	 */
@@ -69,19 +88,67 @@ public class CalibreTool extends AbstractPdfaConverterTool {
         logger.debug("file absolute path: {}", inputFile.getAbsolutePath());
 
         String generatedPdfFilename = getGeneratedPdfFilename(inputFile);
+		String logFilename = getLogDirectory() + File.separator + TOOL_LOG_FILE_NAME;
+		String toolOutput = null;
+		if (workerPool.isEnabled()) {
+			toolOutput = convertWithWorker(inputFile, generatedPdfFilename, logFilename);
+		}
+		if (toolOutput == null) {
+			toolOutput = convertWithProcess(inputFile, generatedPdfFilename, logFilename);
+		}
+
+		File pdfaOutputFile = retrieveGeneratedFile(inputFile, generatedPdfFilename, deleteConvertedFile);
+		PdfaConverterOutput converterOutput = new PdfaConverterOutput(pdfaOutputFile, toolOutput, deleteConvertedFile);		
+		logger.debug("Finished running {}", TOOL_NAME);
+		return converterOutput;
+	}
+
+	/*
+	 * Converts using a pooled long-running Calibre worker.
+	 * Returns the tool output or null if no worker could be started or it died before accepting the file, so the
+	 * caller can launch ebook-convert instead. A file the worker timed out on or died converting is not retried.
+	 */
+	private String convertWithWorker(File inputFile, String generatedPdfFilename, String logFilename) {
+		String inputPath = inputFile.getAbsolutePath();
+		if (inputPath.indexOf('\t') >= 0 || inputPath.indexOf('\n') >= 0 || inputPath.indexOf('\r') >= 0) {
+			// can't be sent to the worker on a single line
+			return null;
+		}
+		File outputFile = new File(getOutputDirectory(), generatedPdfFilename);
+		logger.debug("Sending {} to Calibre worker", inputPath);
+		long start = System.currentTimeMillis();
+		CalibreWorker.Result result;
+		try {
+			result = workerPool.convert(inputFile, outputFile);
+		} catch (IOException e) {
+			logger.warn("Calibre worker unavailable, falling back to {} for {} -- reason: {}", CALIBRE_COMMAND, inputPath, e.getMessage());
+			return null;
+		}
+		long end = System.currentTimeMillis();
+		int exitCode = result.isSuccess() ? 0 : 1;
+		logApplicationOutput(logFilename, inputFile, start, end, exitCode, result.getOutput().getBytes(StandardCharsets.UTF_8));
+		if (!result.isSuccess()) {
+			throw new ExternalToolException("Error executing external command line tool: " + TOOL_NAME + " -- with worker status: " + result.getStatus());
+		}
+		return result.getOutput();
+	}
+
+	/*
+	 * Converts by launching ebook-convert for this file alone.
+	 */
+	private String convertWithProcess(File inputFile, String generatedPdfFilename, String logFilename) {
         List<String> execCommand = new ArrayList<String>();
 		execCommand.addAll(unixCommand);
 		execCommand.add(inputFile.getAbsolutePath()); // input file first
 		execCommand.add( getOutputDirectory() + File.separator + generatedPdfFilename);
 		logger.debug("Launching {}, with command: {}",  TOOL_NAME, execCommand);
-		ByteArrayOutputStream baos = processCommand(execCommand, null);
-		String logFilename = getOutputDirectory() + File.separator + TOOL_LOG_FILE_NAME;
-		logApplicationOutput(logFilename, baos);
-
-		File pdfaOutputFile = retrieveGeneratedFile(generatedPdfFilename, deleteConvertedFile);
-		String toolOutput = getToolLoggingOutput(baos);
-		PdfaConverterOutput converterOutput = new PdfaConverterOutput(pdfaOutputFile, toolOutput);		
-		logger.debug("Finished running {}", TOOL_NAME);
-		return converterOutput;
+		ByteArrayOutputStream baos;
+		try {
+			baos = processCommand(execCommand, null, inputFile);
+		} finally {
+			// log the tool output even if the conversion failed
+			logApplicationOutput(logFilename, inputFile);
+		}
+		return getToolLoggingOutput(baos);
 	}
 }
@@ -0,0 +1,244 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.tools.calibre;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
+
+/**
+ * A long-running Calibre process which converts one job at a time sent over its standard input.
+ * Calibre's conversion code is loaded once when the worker starts rather than for every file.
+ * See calibre-worker.py for the protocol. Not thread-safe; used by one conversion at a time via {@link CalibreWorkerPool}.
+ */
+class CalibreWorker {
+
+	static final String READY = "READY";
+	static final String ACCEPTED = "ACCEPTED";
+	static final String OK = "OK";
+	static final String JOB_END_MARKER = "==== END OF JOB ====";
+
+	// stands in for end of stream in the line queues since they can't hold null
+	private static final String EOF = new String("<EOF>");
+	// the output marker is written before the status so it is at most moments behind
+	private static final long OUTPUT_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final Process process;
+	private final Writer jobWriter;
+	private final BlockingQueue<String> statusLines = new LinkedBlockingQueue<String>();
+	private final BlockingQueue<String> jobOutputs = new LinkedBlockingQueue<String>();
+	private int jobCount = 0;
+
+	/**
+	 * Launches the worker process and waits until it is ready to accept jobs.
+	 *
+	 * @param command - Command that launches the worker script.
+	 * @param startupTimeoutMillis - How long to wait for the worker to be ready.
+	 * @throws IOException - If the worker could not be started.
+	 */
+	CalibreWorker(List<String> command, long startupTimeoutMillis) throws IOException {
+		process = new ProcessBuilder(command).start();
+		jobWriter = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+		startReader(process.getInputStream(), "calibre-worker-status", this::readStatus, statusLines);
+		startReader(process.getErrorStream(), "calibre-worker-output", this::readOutput, jobOutputs);
+		String ready = poll(statusLines, startupTimeoutMillis);
+		if (!READY.equals(ready)) {
+			destroy();
+			throw new IOException("Calibre worker did not start, received: " + ready + " -- output: " + jobOutputs.poll());
+		}
+		logger.debug("Started Calibre worker with command: {}", command);
+	}
+
+	/**
+	 * Converts one file.
+	 *
+	 * @param inputFile - File to convert.
+	 * @param outputFile - Where the converted file is written.
+	 * @param timeoutMillis - How long to wait for the conversion.
+	 * @return The result of the conversion.
+	 * @throws IOException - If the worker is not running or died before it accepted the job, so the file may be
+	 * 		   converted some other way; the worker is no longer usable.
+	 * @throws ExternalToolException - If the worker died during the conversion, did not finish it in time or the
+	 * 		   wait was interrupted; the worker is no longer usable.
+	 */
+	Result convert(File inputFile, File outputFile, long timeoutMillis) throws IOException {
+		if (!isAlive()) {
+			throw new IOException("Calibre worker is not running");
+		}
+		jobCount++;
+		jobWriter.write(inputFile.getAbsolutePath() + "\t" + outputFile.getAbsolutePath() + "\n");
+		jobWriter.flush();
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		String accepted = pollJob(statusLines, timeoutMillis, inputFile);
+		if (accepted == EOF) {
+			throw new IOException("Calibre worker exited before accepting: " + inputFile);
+		}
+		if (!ACCEPTED.equals(accepted)) {
+			destroy();
+			throw new ExternalToolException("Calibre worker sent: " + accepted + " -- instead of accepting: " + inputFile);
+		}
+		String status = pollJob(statusLines, deadline - System.currentTimeMillis(), inputFile);
+		if (status == EOF) {
+			throw new ExternalToolException("Calibre worker exited while converting: " + inputFile);
+		}
+		String output = poll(jobOutputs, OUTPUT_WAIT_MILLIS);
+		if (output == null || output == EOF) {
+			// a late marker would be taken as the next job's output
+			logger.warn("Discarding Calibre worker, no end of output for: {}", inputFile);
+			destroy();
+			output = "";
+		}
+		return new Result(OK.equals(status), status, output);
+	}
+
+	int getJobCount() {
+		return jobCount;
+	}
+
+	boolean isAlive() {
+		return process.isAlive();
+	}
+
+	/**
+	 * Asks the worker to exit by closing its input, killing it if it does not.
+	 */
+	void destroy() {
+		try {
+			jobWriter.close();
+		} catch (IOException e) {
+			// nothing more to do, the process is killed below
+		}
+		try {
+			if (!process.waitFor(2, TimeUnit.SECONDS)) {
+				// so the worker is no longer alive when this returns
+				process.destroyForcibly().waitFor(2, TimeUnit.SECONDS);
+			}
+		} catch (InterruptedException e) {
+			process.destroyForcibly();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void readStatus(BufferedReader reader) throws IOException {
+		String line;
+		while ((line = reader.readLine()) != null) {
+			statusLines.add(line);
+		}
+	}
+
+	private void readOutput(BufferedReader reader) throws IOException {
+		StringBuilder output = new StringBuilder();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (JOB_END_MARKER.equals(line)) {
+				jobOutputs.add(output.toString());
+				output.setLength(0);
+			} else {
+				output.append(line).append(System.lineSeparator());
+			}
+		}
+		if (output.length() > 0) {
+			jobOutputs.add(output.toString());
+		}
+	}
+
+	/*
+	 * Reads the stream on a thread of its own, marking the end of the stream in its queue only, so the end of one
+	 * stream is not taken for the end of the other before its last lines are read.
+	 */
+	private void startReader(InputStream stream, String name, LineConsumer consumer, BlockingQueue<String> queue) {
+		Thread thread = new Thread(() -> {
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+				consumer.accept(reader);
+			} catch (IOException e) {
+				logger.debug("Calibre worker stream closed: {}", e.getMessage());
+			} finally {
+				queue.add(EOF);
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/*
+	 * Waits for the next status line of a job, killing the worker if it does not come in time.
+	 */
+	private String pollJob(BlockingQueue<String> queue, long timeoutMillis, File inputFile) {
+		String line;
+		try {
+			line = queue.poll(Math.max(0, timeoutMillis), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			destroy();
+			Thread.currentThread().interrupt();
+			throw new ExternalToolException("Interrupted waiting for Calibre worker converting: " + inputFile, e);
+		}
+		if (line == null) {
+			destroy();
+			throw new ExternalToolException("Calibre worker timed out converting: " + inputFile);
+		}
+		return line;
+	}
+
+	private static String poll(BlockingQueue<String> queue, long timeoutMillis) {
+		try {
+			return queue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ExternalToolException("Interrupted waiting for Calibre worker", e);
+		}
+	}
+
+	private interface LineConsumer {
+		void accept(BufferedReader reader) throws IOException;
+	}
+
+	/**
+	 * Outcome of one job run by a worker.
+	 */
+	static class Result {
+		private final boolean success;
+		private final String status;
+		private final String output;
+
+		Result(boolean success, String status, String output) {
+			this.success = success;
+			this.status = status;
+			this.output = output;
+		}
+
+		boolean isSuccess() {
+			return success;
+		}
+
+		String getStatus() {
+			return status;
+		}
+
+		String getOutput() {
+			return output;
+		}
+	}
+}
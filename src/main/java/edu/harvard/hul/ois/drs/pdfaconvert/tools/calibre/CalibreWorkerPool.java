@@ -0,0 +1,202 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.tools.calibre;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ApplicationConstants;
+import edu.harvard.hul.ois.drs.pdfaconvert.ConverterConfig;
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.ResourceProfile;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ShutdownSequence;
+
+/**
+ * A small pool of long-running {@link CalibreWorker} processes shared by all Calibre conversions.
+ * Workers are started on demand up to the configured size and replaced when one dies.
+ */
+class CalibreWorkerPool {
+
+	/** Default seconds a worker may spend on one conversion if not configured. */
+	public static final long DEFAULT_JOB_TIMEOUT_SECONDS = 600;
+
+	private static final String CALIBRE_DEBUG_COMMAND = "/calibre-debug";
+	private static final String WORKER_SCRIPT_RESOURCE = "calibre/calibre-worker.py";
+	private static final long STARTUP_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private static final Map<String, CalibreWorkerPool> pools = new HashMap<String, CalibreWorkerPool>();
+	private static File workerScript;
+
+	private final String calibreHome;
+	private final int size;
+	private final long jobTimeoutMillis;
+	private final ResourceProfile resourceProfile;
+	private final BlockingQueue<CalibreWorker> idleWorkers = new LinkedBlockingQueue<CalibreWorker>();
+	private final List<CalibreWorker> allWorkers = new ArrayList<CalibreWorker>();
+
+	/**
+	 * @param calibreHome - Calibre installation directory.
+	 * @param size - Maximum number of worker processes; the pool is disabled if less than 1.
+	 * @param jobTimeoutMillis - How long a worker may spend on one conversion before it is killed.
+	 * @param resourceProfile - Resources given to the worker processes.
+	 */
+	CalibreWorkerPool(String calibreHome, int size, long jobTimeoutMillis, ResourceProfile resourceProfile) {
+		this.calibreHome = calibreHome;
+		this.size = size;
+		this.jobTimeoutMillis = jobTimeoutMillis;
+		this.resourceProfile = resourceProfile;
+	}
+
+	/**
+	 * Returns the pool for the configured Calibre installation, creating it from the configuration on first use.
+	 * A pool keeps the settings it was created with.
+	 */
+	static synchronized CalibreWorkerPool getInstance(ConverterConfig config) {
+		String calibreHome = config.getCalibreHome();
+		CalibreWorkerPool pool = pools.get(calibreHome);
+		if (pool == null) {
+			pool = new CalibreWorkerPool(calibreHome,
+					config.getInt(ApplicationConstants.CALIBRE_WORKERS_PROP, 0),
+					TimeUnit.SECONDS.toMillis(config.getLong(ApplicationConstants.CALIBRE_WORKER_JOB_TIMEOUT_SECONDS_PROP, DEFAULT_JOB_TIMEOUT_SECONDS)),
+					ResourceProfile.forTool(config, CalibreTool.TOOL_NAME));
+			if (pools.isEmpty()) {
+				ShutdownSequence.register(ShutdownSequence.Stage.TOOLS, "calibre workers", CalibreWorkerPool::shutdownAll);
+			}
+			pools.put(calibreHome, pool);
+			logger.info("Calibre worker pool for {} has size: {}", calibreHome, pool.size);
+		}
+		return pool;
+	}
+
+	static synchronized void shutdownAll() {
+		for (CalibreWorkerPool pool : pools.values()) {
+			pool.shutdown();
+		}
+	}
+
+	boolean isEnabled() {
+		return size > 0;
+	}
+
+	/**
+	 * Converts a file on a pooled worker, waiting for one to be free if all are busy.
+	 *
+	 * @param inputFile - File to convert.
+	 * @param outputFile - Where the converted file is written.
+	 * @return The result of the conversion.
+	 * @throws IOException - If no worker could be started or the worker died before accepting the file.
+	 * @throws ExternalToolException - If the worker died during the conversion, did not finish it in time or the
+	 * 		   wait was interrupted.
+	 */
+	CalibreWorker.Result convert(File inputFile, File outputFile) throws IOException {
+		CalibreWorker worker = borrow();
+		boolean healthy = false;
+		try {
+			CalibreWorker.Result result = worker.convert(inputFile, outputFile, jobTimeoutMillis);
+			healthy = true;
+			return result;
+		} finally {
+			if (healthy && worker.isAlive()) {
+				idleWorkers.add(worker);
+			} else {
+				logger.warn("Discarding Calibre worker after {} jobs", worker.getJobCount());
+				discard(worker);
+			}
+		}
+	}
+
+	/**
+	 * Stops all workers.
+	 */
+	synchronized void shutdown() {
+		for (CalibreWorker worker : allWorkers) {
+			worker.destroy();
+		}
+		allWorkers.clear();
+		idleWorkers.clear();
+	}
+
+	private CalibreWorker borrow() throws IOException {
+		try {
+			while (true) {
+				CalibreWorker worker = idleWorkers.poll();
+				if (worker != null && worker.isAlive()) {
+					return worker;
+				} else if (worker != null) {
+					discard(worker);
+				}
+				synchronized (this) {
+					if (allWorkers.size() < size) {
+						worker = new CalibreWorker(buildCommand(), STARTUP_TIMEOUT_MILLIS);
+						allWorkers.add(worker);
+						logger.info("Started Calibre worker {} of {}", allWorkers.size(), size);
+						return worker;
+					}
+				}
+				// re-check periodically in case a busy worker died rather than being returned
+				worker = idleWorkers.poll(1, TimeUnit.SECONDS);
+				if (worker != null) {
+					idleWorkers.add(worker);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ExternalToolException("Interrupted waiting for a Calibre worker", e);
+		}
+	}
+
+	private synchronized void discard(CalibreWorker worker) {
+		worker.destroy();
+		allWorkers.remove(worker);
+	}
+
+	private List<String> buildCommand() throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(calibreHome + CALIBRE_DEBUG_COMMAND);
+		command.add("-e");
+		command.add(getWorkerScript().getAbsolutePath());
+		// the worker lives on across conversions so a CPU time cap would eventually kill it
+		return resourceProfile.wrap(command, false);
+	}
+
+	/*
+	 * The worker script is packaged in the JAR so copy it to a file Calibre can run.
+	 */
+	private static synchronized File getWorkerScript() throws IOException {
+		if (workerScript == null || !workerScript.isFile()) {
+			File script = File.createTempFile("calibre-worker", ".py");
+			script.deleteOnExit();
+			ClassLoader loader = Thread.currentThread().getContextClassLoader();
+			try (InputStream in = loader.getResourceAsStream(WORKER_SCRIPT_RESOURCE)) {
+				if (in == null) {
+					throw new IOException("Missing resource: " + WORKER_SCRIPT_RESOURCE);
+				}
+				Files.copy(in, script.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			workerScript = script;
+		}
+		return workerScript;
+	}
+}
@@ -0,0 +1,313 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.tools.pdfapilot;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.ToolType;
+
+/**
+ * The client end of a connection to a {@link PdfaPilotAgent}, shared by all conversions sent to that agent. Each
+ * conversion uploads its input in chunks between those of other conversions, then waits while a reading thread
+ * writes the converted file as its chunks arrive. A lost connection fails the conversions waiting on it, and the
+ * next conversion opens a new one. A conversion whose result doesn't arrive in time fails on its own, the
+ * connection staying open for the others; the agent's result for it is skipped if it comes later.
+ * <p>
+ * Frames are written by a writer thread of the connection rather than by the conversions: a channel closes when a
+ * thread writing to it is interrupted, so an interrupted conversion, e.g. a hedged one that lost, would otherwise
+ * fail every conversion sharing the connection. An interrupted conversion stops sending its input and cancels it.
+ */
+final class AgentConnection {
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private static final Map<String, AgentConnection> connections = new HashMap<String, AgentConnection>();
+
+	private final String address;
+	private final SocketChannel channel;
+	private final ExecutorService writer;
+	private final Map<Integer, Job> jobs = new ConcurrentHashMap<Integer, Job>();
+	private final AtomicInteger lastJobId = new AtomicInteger();
+	private volatile boolean closed;
+
+	/**
+	 * @return The open connection to the agent, connecting and authenticating if there is none.
+	 * @throws IOException - If the agent cannot be reached or rejects the secret.
+	 */
+	static synchronized AgentConnection get(String host, int port, byte[] secret) throws IOException {
+		String address = host + ":" + port;
+		AgentConnection connection = connections.get(address);
+		if (connection == null || connection.closed) {
+			connection = new AgentConnection(address, new InetSocketAddress(host, port), secret);
+			connections.put(address, connection);
+		}
+		return connection;
+	}
+
+	private AgentConnection(String address, InetSocketAddress socketAddress, byte[] secret) throws IOException {
+		this.address = address;
+		this.writer = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "pdfaPilot-agent-writer-" + address);
+			thread.setDaemon(true);
+			return thread;
+		});
+		channel = SocketChannel.open();
+		ScheduledFuture<?> handshakeTimeout = null;
+		try {
+			channel.socket().connect(socketAddress, (int)AgentProtocol.HANDSHAKE_TIMEOUT_MILLIS);
+			handshakeTimeout = AgentProtocol.closeAfter(channel, AgentProtocol.HANDSHAKE_TIMEOUT_MILLIS);
+			ByteBuffer hello = ByteBuffer.allocate(8 + AgentProtocol.CHALLENGE_LENGTH);
+			AgentProtocol.readFully(channel, hello, false);
+			hello.flip();
+			if (hello.getInt() != AgentProtocol.MAGIC || hello.getInt() != AgentProtocol.VERSION) {
+				throw new IOException("Not a pdfaPilot agent of this version at: " + address);
+			}
+			byte[] challenge = new byte[AgentProtocol.CHALLENGE_LENGTH];
+			hello.get(challenge);
+			AgentProtocol.writeFully(channel, ByteBuffer.wrap(AgentProtocol.respond(secret, challenge)));
+			ByteBuffer status = ByteBuffer.allocate(1);
+			AgentProtocol.readFully(channel, status, false);
+			if (status.get(0) != AgentProtocol.AUTH_OK) {
+				throw new IOException("pdfaPilot agent rejected the secret: " + address);
+			}
+		} catch (IOException e) {
+			channel.close();
+			writer.shutdown();
+			if (handshakeTimeout != null && handshakeTimeout.isDone() && !handshakeTimeout.isCancelled()) {
+				throw new IOException("No handshake from pdfaPilot agent at: " + address + " within " + AgentProtocol.HANDSHAKE_TIMEOUT_MILLIS + " ms", e);
+			}
+			throw e;
+		} finally {
+			if (handshakeTimeout != null) {
+				handshakeTimeout.cancel(false);
+			}
+		}
+		Thread reader = new Thread(this::read, "pdfaPilot-agent-reader-" + address);
+		reader.setDaemon(true);
+		reader.start();
+		logger.debug("Connected to pdfaPilot agent: {}", address);
+	}
+
+	/**
+	 * Sends the input to the agent and waits for its conversion.
+	 *
+	 * @param inputFile - The file to convert.
+	 * @param outputFile - Where to write the converted file.
+	 * @param timeoutMillis - How long to wait for the result once the input is sent, including any time the job
+	 * 		waits for a free slot at the agent.
+	 * @return The result of the conversion.
+	 * @throws IOException - If the input cannot be read, the connection is lost or no result arrives in time.
+	 */
+	Result convert(File inputFile, File outputFile, long timeoutMillis) throws IOException, InterruptedException {
+		int jobId = lastJobId.incrementAndGet();
+		Job job = new Job(outputFile);
+		jobs.put(jobId, job);
+		try (FileChannel input = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ)) {
+			upload(jobId, ToolType.getExtension(inputFile), input);
+			return job.result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			throw (IOException)e.getCause();
+		} catch (TimeoutException e) {
+			throw new IOException("No result from pdfaPilot agent at: " + address + " within " + timeoutMillis + " ms");
+		} finally {
+			jobs.remove(jobId);
+			job.close();
+		}
+	}
+
+	private void upload(int jobId, String extension, FileChannel input) throws IOException, InterruptedException {
+		boolean interrupted = send(() -> AgentProtocol.writeFrame(channel, AgentProtocol.JOB_START, jobId, extension.getBytes(StandardCharsets.UTF_8)));
+		long size = input.size();
+		for (long position = 0; position < size && !interrupted; position += AgentProtocol.CHUNK_SIZE) {
+			long chunkPosition = position;
+			int length = (int)Math.min(AgentProtocol.CHUNK_SIZE, size - position);
+			// one chunk at a time so the uploads of concurrent conversions interleave
+			interrupted = send(() -> AgentProtocol.writeChunk(channel, AgentProtocol.JOB_DATA, jobId, input, chunkPosition, length));
+		}
+		byte end = interrupted ? AgentProtocol.JOB_CANCEL : AgentProtocol.JOB_END;
+		interrupted |= send(() -> AgentProtocol.writeFrame(channel, end, jobId, new byte[0]));
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedException("Interrupted sending job " + jobId + " to pdfaPilot agent: " + address);
+		}
+	}
+
+	/*
+	 * Writes a frame on the writer thread and waits for it, even if interrupted meanwhile as the frame may be
+	 * a chunk of a file the caller closes once this returns; returns whether the caller was interrupted.
+	 */
+	private boolean send(FrameWrite write) throws IOException {
+		Future<?> written;
+		try {
+			written = writer.submit(() -> {
+				write.run();
+				return null;
+			});
+		} catch (RejectedExecutionException e) {
+			throw new IOException("Connection to pdfaPilot agent closed: " + address);
+		}
+		boolean interrupted = false;
+		while (true) {
+			try {
+				written.get();
+				return interrupted;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			} catch (ExecutionException e) {
+				IOException cause = e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+				// a frame may have been cut short, so nothing more can be sent on this connection
+				close(cause);
+				throw cause;
+			}
+		}
+	}
+
+	private interface FrameWrite {
+		void run() throws IOException;
+	}
+
+	private void read() {
+		ByteBuffer headerBuffer = ByteBuffer.allocate(AgentProtocol.HEADER_LENGTH);
+		try {
+			AgentProtocol.Header header;
+			while ((header = AgentProtocol.readHeader(channel, headerBuffer)) != null) {
+				// no job if the conversion was abandoned by an interrupt
+				Job job = jobs.get(header.jobId);
+				switch (header.type) {
+					case AgentProtocol.RESULT_DATA:
+						if (job == null) {
+							AgentProtocol.skip(channel, header.length);
+						} else {
+							job.write(channel, header.length);
+						}
+						break;
+					case AgentProtocol.RESULT_END:
+					case AgentProtocol.RESULT_FAILED:
+						ByteBuffer payload = ByteBuffer.wrap(AgentProtocol.readPayload(channel, header.length));
+						int exitCode = payload.getInt();
+						String output = new String(payload.array(), 4, header.length - 4, StandardCharsets.UTF_8);
+						if (job != null) {
+							job.close();
+							job.result.complete(new Result(header.type == AgentProtocol.RESULT_END, exitCode, output));
+						}
+						break;
+					default:
+						throw new IOException("Unknown frame type: " + header.type);
+				}
+			}
+			close(new IOException("pdfaPilot agent closed the connection: " + address));
+		} catch (IOException e) {
+			close(e);
+		}
+	}
+
+	private synchronized void close(IOException cause) {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		logger.warn("Connection to pdfaPilot agent {} lost -- {}", address, cause.getMessage());
+		writer.shutdown();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.trace("Could not close connection -- {}", e.getMessage());
+		}
+		for (Job job : jobs.values()) {
+			job.result.completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * The result of a conversion by the agent.
+	 */
+	static class Result {
+		final boolean converted;
+		final int exitCode;
+		final String output;
+
+		Result(boolean converted, int exitCode, String output) {
+			this.converted = converted;
+			this.exitCode = exitCode;
+			this.output = output;
+		}
+	}
+
+	/*
+	 * A conversion waiting for its converted file.
+	 */
+	private static class Job {
+		final File outputFile;
+		final CompletableFuture<Result> result = new CompletableFuture<Result>();
+		FileChannel output;
+		long size;
+		boolean closed;
+
+		Job(File outputFile) {
+			this.outputFile = outputFile;
+		}
+
+		/*
+		 * Writes a chunk of the converted file from the connection, or skips it if the file cannot be written,
+		 * failing only this conversion.
+		 */
+		synchronized void write(SocketChannel channel, int length) throws IOException {
+			if (output == null && !closed) {
+				try {
+					output = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+				} catch (IOException e) {
+					closed = true;
+					result.completeExceptionally(e);
+				}
+			}
+			if (closed) {
+				AgentProtocol.skip(channel, length);
+				return;
+			}
+			AgentProtocol.readChunk(channel, output, size, length);
+			size += length;
+		}
+
+		synchronized void close() {
+			closed = true;
+			if (output != null) {
+				try {
+					output.close();
+				} catch (IOException e) {
+					logger.debug("Could not close converted file: {} -- {}", outputFile, e.getMessage());
+				}
+				output = null;
+			}
+		}
+	}
+}
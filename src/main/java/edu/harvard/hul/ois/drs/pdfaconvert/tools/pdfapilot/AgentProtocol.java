@@ -0,0 +1,239 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.tools.pdfapilot;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The binary protocol between a {@link PdfaPilotAgent} and its clients. After the handshake, in which the client
+ * proves it knows the shared secret by returning the HMAC-SHA256 of a random challenge, both sides exchange frames,
+ * each a header of a type byte, a job ID and a payload length followed by the payload. Many jobs share the
+ * connection: files are sent in chunks of at most {@link #CHUNK_SIZE} bytes, each its own frame, so the chunks of
+ * concurrent jobs interleave. Chunks are moved between files and the socket with channel transfers, so file content
+ * is not copied through the Java heap.
+ * <p>
+ * Client to agent: {@link #JOB_START} with the input's extension, {@link #JOB_DATA} chunks, {@link #JOB_END}, or
+ * {@link #JOB_CANCEL} in place of the end if the client gave up on the job part way through sending it.
+ * Agent to client: {@link #RESULT_DATA} chunks of the converted file followed by {@link #RESULT_END}, or only
+ * {@link #RESULT_FAILED}, both with the exit code and the output of pdfaPilot.
+ */
+final class AgentProtocol {
+
+	static final int MAGIC = 0x50444641; // "PDFA"
+	static final int VERSION = 2;
+	static final int CHALLENGE_LENGTH = 32;
+	static final int CHUNK_SIZE = 1024 * 1024;
+	static final int HEADER_LENGTH = 9;
+	/** How long either side waits for the other's part of the handshake before dropping the connection. */
+	static final long HANDSHAKE_TIMEOUT_MILLIS = 30000;
+
+	static final byte AUTH_OK = 0;
+	static final byte AUTH_FAILED = 1;
+
+	static final byte JOB_START = 1;
+	static final byte JOB_DATA = 2;
+	static final byte JOB_END = 3;
+	static final byte RESULT_DATA = 4;
+	static final byte RESULT_END = 5;
+	static final byte RESULT_FAILED = 6;
+	static final byte JOB_CANCEL = 7;
+
+	// a payload other than a file chunk is never this large; guards against reading garbage as a length
+	private static final int MAX_PAYLOAD = CHUNK_SIZE;
+	private static final String HMAC = "HmacSHA256";
+	private static final SecureRandom random = new SecureRandom();
+	// blocking channel reads ignore the socket timeout, so a read is bounded by closing its channel
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "pdfaPilot-agent-timer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private AgentProtocol() {
+	}
+
+	/**
+	 * @return The shared secret read from the file, without surrounding white space.
+	 */
+	static byte[] readSecret(File secretFile) throws IOException {
+		String secret = StringUtils.trimToEmpty(new String(Files.readAllBytes(secretFile.toPath()), StandardCharsets.UTF_8));
+		if (secret.isEmpty()) {
+			throw new IOException("Empty agent secret file: " + secretFile);
+		}
+		return secret.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Closes the channel after the delay unless the returned future is cancelled first, waking a thread blocked
+	 * reading or writing it.
+	 */
+	static ScheduledFuture<?> closeAfter(SocketChannel channel, long delayMillis) {
+		return timer.schedule(() -> {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// nothing more to do with it
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	static byte[] newChallenge() {
+		byte[] challenge = new byte[CHALLENGE_LENGTH];
+		random.nextBytes(challenge);
+		return challenge;
+	}
+
+	static byte[] respond(byte[] secret, byte[] challenge) {
+		try {
+			Mac mac = Mac.getInstance(HMAC);
+			mac.init(new SecretKeySpec(secret, HMAC));
+			return mac.doFinal(challenge);
+		} catch (GeneralSecurityException e) {
+			// HmacSHA256 is required of every Java platform
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A frame header, read or to be written.
+	 */
+	static class Header {
+		byte type;
+		int jobId;
+		int length;
+	}
+
+	/**
+	 * Reads the next frame header.
+	 *
+	 * @return The header or <code>null</code> if the connection was closed between frames.
+	 */
+	static Header readHeader(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.clear().limit(HEADER_LENGTH);
+		if (!readFully(channel, buffer, true)) {
+			return null;
+		}
+		buffer.flip();
+		Header header = new Header();
+		header.type = buffer.get();
+		header.jobId = buffer.getInt();
+		header.length = buffer.getInt();
+		if (header.length < 0 || header.length > MAX_PAYLOAD) {
+			throw new IOException("Bad frame length: " + header.length);
+		}
+		return header;
+	}
+
+	/**
+	 * Reads a payload that is not file content.
+	 */
+	static byte[] readPayload(SocketChannel channel, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		readFully(channel, buffer, false);
+		return buffer.array();
+	}
+
+	/**
+	 * Transfers a payload of file content straight into the file channel at its position.
+	 */
+	static void readChunk(SocketChannel channel, FileChannel file, long position, int length) throws IOException {
+		long done = 0;
+		while (done < length) {
+			long read = file.transferFrom(channel, position + done, length - done);
+			// from a blocking channel nothing is transferred only at the end of the stream
+			if (read <= 0) {
+				throw new EOFException("Connection closed within a frame");
+			}
+			done += read;
+		}
+	}
+
+	/**
+	 * Discards a payload.
+	 */
+	static void skip(SocketChannel channel, int length) throws IOException {
+		readFully(channel, ByteBuffer.allocate(length), false);
+	}
+
+	/**
+	 * Writes a frame with a payload that is not file content. The caller holds the connection's write lock.
+	 */
+	static void writeFrame(SocketChannel channel, byte type, int jobId, byte[] payload) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+		buffer.put(type).putInt(jobId).putInt(payload.length).put(payload).flip();
+		writeFully(channel, buffer);
+	}
+
+	/**
+	 * Writes a frame whose payload is a chunk of the file, transferred from the file channel straight to the socket.
+	 * The caller holds the connection's write lock.
+	 */
+	static void writeChunk(SocketChannel channel, byte type, int jobId, FileChannel file, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+		buffer.put(type).putInt(jobId).putInt(length).flip();
+		writeFully(channel, buffer);
+		long done = 0;
+		while (done < length) {
+			long written = file.transferTo(position + done, length - done, channel);
+			if (written <= 0) {
+				throw new EOFException("File shorter than expected while sending it");
+			}
+			done += written;
+		}
+	}
+
+	/**
+	 * @return The result payload of an exit code followed by the tool's output.
+	 */
+	static byte[] resultPayload(int exitCode, byte[] output) {
+		return ByteBuffer.allocate(4 + output.length).putInt(exitCode).put(output).array();
+	}
+
+	static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * @return <code>false</code> if the stream ended before any byte and that is allowed.
+	 */
+	static boolean readFully(SocketChannel channel, ByteBuffer buffer, boolean endAllowed) throws IOException {
+		boolean any = false;
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) == -1) {
+				if (!any && endAllowed) {
+					return false;
+				}
+				throw new EOFException("Connection closed within a frame");
+			}
+			any = true;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,442 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.tools.pdfapilot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ApplicationConstants;
+import edu.harvard.hul.ois.drs.pdfaconvert.ConverterConfig;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConvert;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ShutdownSequence;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.StreamGobbler;
+
+/**
+ * Runs on the pdfaPilot host in place of ssh access, converting files sent by {@link PdfaPilotAgentTool} clients
+ * with the local pdfaPilot. Each client holds one authenticated connection over which it sends any number of
+ * concurrent jobs; up to a maximum number of conversions run at once, the rest waiting their turn. Inputs and
+ * converted files live in a scratch directory owned by the agent: each job's files are deleted once its result has
+ * been sent, a connection's unfinished uploads when it closes, and anything left by an earlier run at start up.
+ * A conversion running past the job timeout is killed and reported failed, and a client that doesn't complete the
+ * handshake in time is disconnected.
+ * <p>
+ * Started with <code>java -cp pdfa-converter.jar edu.harvard.hul.ois.drs.pdfaconvert.tools.pdfapilot.PdfaPilotAgent</code>
+ * using the same project properties as the converter.
+ */
+public class PdfaPilotAgent {
+
+	/** Port the agent listens on if none is configured. */
+	public static final int DEFAULT_PORT = 7878;
+
+	/** Seconds a conversion may run if no job timeout is configured. */
+	public static final long DEFAULT_JOB_TIMEOUT_SECONDS = 600;
+
+	// after killing pdfaPilot, how long to wait for the rest of its output, which a process it started may hold open
+	private static final long OUTPUT_DRAIN_MILLIS = 5000;
+
+	// the end of longer output is what tells why a conversion failed
+	private static final int MAX_OUTPUT_BYTES = 64 * 1024;
+	private static final String INPUT_NAME = "input.";
+	private static final String OUTPUT_NAME = "output.pdf";
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final InetSocketAddress bindAddress;
+	private final byte[] secret;
+	private final File scratchDir;
+	private final List<String> pdfaPilotCommand;
+	private final long jobTimeoutMillis;
+	private final long handshakeTimeoutMillis;
+	private final ExecutorService conversions;
+	private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger connectionCount = new AtomicInteger();
+	private final AtomicInteger jobCount = new AtomicInteger();
+	private ServerSocketChannel server;
+	private volatile boolean stopped;
+
+	/**
+	 * @param bindAddress - Address to listen on; port 0 for any free port.
+	 * @param secret - The secret shared with the clients.
+	 * @param scratchDir - Directory for inputs and converted files, emptied at start up.
+	 * @param pdfaPilotCommand - The pdfaPilot command and options, lacking the output file and input file.
+	 * @param maxJobs - The number of conversions run at once.
+	 * @param jobTimeoutMillis - How long a conversion may run before pdfaPilot is killed and the job failed.
+	 */
+	public PdfaPilotAgent(InetSocketAddress bindAddress, byte[] secret, File scratchDir, List<String> pdfaPilotCommand, int maxJobs, long jobTimeoutMillis) {
+		this(bindAddress, secret, scratchDir, pdfaPilotCommand, maxJobs, jobTimeoutMillis, AgentProtocol.HANDSHAKE_TIMEOUT_MILLIS);
+	}
+
+	PdfaPilotAgent(InetSocketAddress bindAddress, byte[] secret, File scratchDir, List<String> pdfaPilotCommand, int maxJobs,
+			long jobTimeoutMillis, long handshakeTimeoutMillis) {
+		this.bindAddress = bindAddress;
+		this.secret = secret.clone();
+		this.scratchDir = scratchDir;
+		this.pdfaPilotCommand = new ArrayList<String>(pdfaPilotCommand);
+		this.jobTimeoutMillis = jobTimeoutMillis;
+		this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+		this.conversions = Executors.newFixedThreadPool(Math.max(1, maxJobs), runnable -> {
+			Thread thread = new Thread(runnable, "pdfaPilot-agent-job");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * @return The secret shared by an agent and its clients, read from the file without surrounding white space.
+	 * @throws IOException - If the file cannot be read or is empty.
+	 */
+	public static byte[] readSecret(File secretFile) throws IOException {
+		return AgentProtocol.readSecret(secretFile);
+	}
+
+	/**
+	 * Starts the agent configured in the project properties, running until the process is stopped.
+	 */
+	public static void main(String[] args) throws IOException {
+		ConverterConfig config = PdfaConvert.getApplicationConfig();
+		String secretFile = config.getString(ApplicationConstants.PDFA_PILOT_AGENT_SECRET_FILE_PROP, null);
+		String scratch = config.getString(ApplicationConstants.PDFA_PILOT_AGENT_SCRATCH_DIR_PROP, null);
+		if (secretFile == null) {
+			System.err.println("No agent secret file configured in property: " + ApplicationConstants.PDFA_PILOT_AGENT_SECRET_FILE_PROP);
+			System.exit(1);
+		}
+		List<String> command = new PdfaPilotTool(config, null).getConversionOptions();
+		PdfaPilotAgent agent = new PdfaPilotAgent(new InetSocketAddress(config.getInt(ApplicationConstants.PDFA_PILOT_AGENT_PORT_PROP, DEFAULT_PORT)),
+				readSecret(new File(secretFile)),
+				scratch == null ? new File(System.getProperty("java.io.tmpdir"), "pdfaPilot-agent") : new File(scratch),
+				command,
+				config.getInt(ApplicationConstants.PDFA_PILOT_AGENT_MAX_JOBS_PROP, Runtime.getRuntime().availableProcessors()),
+				TimeUnit.SECONDS.toMillis(config.getLong(ApplicationConstants.PDFA_PILOT_AGENT_JOB_TIMEOUT_SECONDS_PROP, DEFAULT_JOB_TIMEOUT_SECONDS)));
+		ShutdownSequence.register(ShutdownSequence.Stage.WORK, "pdfaPilot agent", agent::stop);
+		agent.start();
+	}
+
+	/**
+	 * Empties the scratch directory, binds the port and accepts connections on a background thread.
+	 */
+	public synchronized void start() throws IOException {
+		deleteContents(scratchDir);
+		scratchDir.mkdirs();
+		server = ServerSocketChannel.open();
+		server.bind(bindAddress);
+		logger.info("pdfaPilot agent listening on: {}, scratch directory: {}", server.getLocalAddress(), scratchDir);
+		Thread acceptor = new Thread(this::accept, "pdfaPilot-agent-accept");
+		acceptor.start();
+	}
+
+	/**
+	 * @return The port the agent listens on.
+	 */
+	public int getPort() throws IOException {
+		return ((InetSocketAddress)server.getLocalAddress()).getPort();
+	}
+
+	/**
+	 * @return The number of conversions finished, successfully or not.
+	 */
+	public int getJobCount() {
+		return jobCount.get();
+	}
+
+	/**
+	 * Stops accepting connections, closes those open and deletes the scratch directory.
+	 */
+	public void stop() {
+		stopped = true;
+		try {
+			if (server != null) {
+				server.close();
+			}
+		} catch (IOException e) {
+			logger.debug("Could not close server socket -- {}", e.getMessage());
+		}
+		for (SocketChannel connection : connections) {
+			closeQuietly(connection);
+		}
+		conversions.shutdownNow();
+		try {
+			conversions.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		deleteContents(scratchDir);
+	}
+
+	private void accept() {
+		while (!stopped) {
+			SocketChannel channel;
+			try {
+				channel = server.accept();
+			} catch (IOException e) {
+				if (!stopped) {
+					logger.error("pdfaPilot agent stopped accepting connections", e);
+				}
+				return;
+			}
+			Connection connection = new Connection(channel, connectionCount.incrementAndGet());
+			new Thread(connection::serve, "pdfaPilot-agent-connection-" + connection.id).start();
+		}
+	}
+
+	/*
+	 * One client connection: a thread reading frames and storing uploads, the conversions writing results.
+	 */
+	private class Connection {
+
+		final SocketChannel channel;
+		final int id;
+		final Object writeLock = new Object();
+		// uploads not yet complete by job ID, only touched by the reading thread
+		final Map<Integer, Upload> uploads = new HashMap<Integer, Upload>();
+
+		Connection(SocketChannel channel, int id) {
+			this.channel = channel;
+			this.id = id;
+		}
+
+		void serve() {
+			connections.add(channel);
+			try {
+				// a client that connects and sends nothing would otherwise hold this thread forever
+				ScheduledFuture<?> handshakeTimeout = AgentProtocol.closeAfter(channel, handshakeTimeoutMillis);
+				boolean accepted;
+				try {
+					accepted = authenticate();
+				} finally {
+					handshakeTimeout.cancel(false);
+				}
+				if (!accepted) {
+					logger.warn("Rejected pdfaPilot agent connection from: {}", channel.getRemoteAddress());
+					return;
+				}
+				logger.debug("Accepted pdfaPilot agent connection from: {}", channel.getRemoteAddress());
+				ByteBuffer headerBuffer = ByteBuffer.allocate(AgentProtocol.HEADER_LENGTH);
+				AgentProtocol.Header header;
+				while ((header = AgentProtocol.readHeader(channel, headerBuffer)) != null) {
+					handle(header);
+				}
+			} catch (IOException e) {
+				if (!stopped) {
+					logger.debug("pdfaPilot agent connection {} closed -- {}", id, e.getMessage());
+				}
+			} finally {
+				connections.remove(channel);
+				closeQuietly(channel);
+				for (Upload upload : uploads.values()) {
+					upload.discard();
+				}
+			}
+		}
+
+		private boolean authenticate() throws IOException {
+			byte[] challenge = AgentProtocol.newChallenge();
+			ByteBuffer hello = ByteBuffer.allocate(8 + challenge.length);
+			hello.putInt(AgentProtocol.MAGIC).putInt(AgentProtocol.VERSION).put(challenge).flip();
+			AgentProtocol.writeFully(channel, hello);
+			byte[] response = AgentProtocol.readPayload(channel, AgentProtocol.CHALLENGE_LENGTH);
+			boolean accepted = MessageDigest.isEqual(AgentProtocol.respond(secret, challenge), response);
+			AgentProtocol.writeFully(channel, ByteBuffer.wrap(new byte[] { accepted ? AgentProtocol.AUTH_OK : AgentProtocol.AUTH_FAILED }));
+			return accepted;
+		}
+
+		private void handle(AgentProtocol.Header header) throws IOException {
+			Upload upload = uploads.get(header.jobId);
+			switch (header.type) {
+				case AgentProtocol.JOB_START:
+					String extension = new String(AgentProtocol.readPayload(channel, header.length), StandardCharsets.UTF_8);
+					if (upload != null || !extension.matches("[A-Za-z0-9]{1,10}")) {
+						throw new IOException("Bad start of job: " + header.jobId);
+					}
+					uploads.put(header.jobId, new Upload(header.jobId, extension));
+					break;
+				case AgentProtocol.JOB_DATA:
+					if (upload == null) {
+						throw new IOException("Data for unknown job: " + header.jobId);
+					}
+					AgentProtocol.readChunk(channel, upload.file, upload.size, header.length);
+					upload.size += header.length;
+					break;
+				case AgentProtocol.JOB_END:
+					AgentProtocol.skip(channel, header.length);
+					if (upload == null) {
+						throw new IOException("End of unknown job: " + header.jobId);
+					}
+					uploads.remove(header.jobId);
+					upload.file.close();
+					conversions.execute(() -> convert(upload));
+					break;
+				case AgentProtocol.JOB_CANCEL:
+					AgentProtocol.skip(channel, header.length);
+					if (upload == null) {
+						throw new IOException("Cancel of unknown job: " + header.jobId);
+					}
+					uploads.remove(header.jobId);
+					upload.discard();
+					break;
+				default:
+					throw new IOException("Unknown frame type: " + header.type);
+			}
+		}
+
+		/*
+		 * Converts an uploaded input and sends back the result, deleting the job's files either way.
+		 */
+		private void convert(Upload upload) {
+			if (!channel.isOpen()) {
+				// nobody left to send the result to
+				upload.discard();
+				return;
+			}
+			File output = new File(upload.dir, OUTPUT_NAME);
+			ByteArrayOutputStream toolOutput = new ByteArrayOutputStream();
+			int exitCode = -1;
+			try {
+				List<String> command = new ArrayList<String>(pdfaPilotCommand);
+				command.add("--outputfile=" + output.getAbsolutePath());
+				command.add(upload.input.getAbsolutePath());
+				Process proc = new ProcessBuilder(command).redirectErrorStream(true).start();
+				StreamGobbler outputGobbler = new StreamGobbler(proc.getInputStream(), toolOutput);
+				outputGobbler.start();
+				try {
+					if (proc.waitFor(jobTimeoutMillis, TimeUnit.MILLISECONDS)) {
+						exitCode = proc.exitValue();
+						outputGobbler.join();
+					} else {
+						// reported as failed with the exit code left at -1
+						proc.destroyForcibly();
+						outputGobbler.join(OUTPUT_DRAIN_MILLIS);
+						logger.warn("pdfaPilot timed out converting job {} on connection {}", upload.jobId, id);
+						byte[] message = ("pdfaPilot killed after running for " + jobTimeoutMillis + " ms").getBytes(StandardCharsets.UTF_8);
+						toolOutput.write(message, 0, message.length);
+					}
+				} catch (InterruptedException e) {
+					proc.destroyForcibly();
+					Thread.currentThread().interrupt();
+					byte[] message = "Conversion interrupted by agent shutdown".getBytes(StandardCharsets.UTF_8);
+					toolOutput.write(message, 0, message.length);
+				}
+			} catch (IOException e) {
+				byte[] message = ("Could not run pdfaPilot: " + e.getMessage()).getBytes(StandardCharsets.UTF_8);
+				toolOutput.write(message, 0, message.length);
+			}
+			try {
+				sendResult(upload.jobId, exitCode, output, tail(toolOutput.toByteArray()));
+			} catch (IOException e) {
+				logger.debug("Could not send result of job {} on connection {} -- {}", upload.jobId, id, e.getMessage());
+			} finally {
+				deleteContents(upload.dir);
+				upload.dir.delete();
+				jobCount.incrementAndGet();
+			}
+		}
+
+		private void sendResult(int jobId, int exitCode, File output, byte[] toolOutput) throws IOException {
+			if (exitCode != 0 || !output.isFile()) {
+				synchronized (writeLock) {
+					AgentProtocol.writeFrame(channel, AgentProtocol.RESULT_FAILED, jobId, AgentProtocol.resultPayload(exitCode, toolOutput));
+				}
+				return;
+			}
+			try (FileChannel file = FileChannel.open(output.toPath(), StandardOpenOption.READ)) {
+				long size = file.size();
+				for (long position = 0; position < size; position += AgentProtocol.CHUNK_SIZE) {
+					int length = (int)Math.min(AgentProtocol.CHUNK_SIZE, size - position);
+					// released between chunks so the results of concurrent jobs interleave
+					synchronized (writeLock) {
+						AgentProtocol.writeChunk(channel, AgentProtocol.RESULT_DATA, jobId, file, position, length);
+					}
+				}
+			}
+			synchronized (writeLock) {
+				AgentProtocol.writeFrame(channel, AgentProtocol.RESULT_END, jobId, AgentProtocol.resultPayload(exitCode, toolOutput));
+			}
+		}
+
+		/*
+		 * An input being received into its own directory under the scratch directory.
+		 */
+		private class Upload {
+			final int jobId;
+			final File dir;
+			final File input;
+			final FileChannel file;
+			long size;
+
+			Upload(int jobId, String extension) throws IOException {
+				this.jobId = jobId;
+				this.dir = new File(scratchDir, id + "-" + jobId);
+				if (!dir.mkdirs() && !dir.isDirectory()) {
+					throw new IOException("Could not create scratch directory: " + dir);
+				}
+				this.input = new File(dir, INPUT_NAME + extension);
+				this.file = FileChannel.open(input.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			}
+
+			void discard() {
+				closeQuietly(file);
+				deleteContents(dir);
+				dir.delete();
+			}
+		}
+	}
+
+	private static byte[] tail(byte[] output) {
+		if (output.length <= MAX_OUTPUT_BYTES) {
+			return output;
+		}
+		byte[] tail = new byte[MAX_OUTPUT_BYTES];
+		System.arraycopy(output, output.length - MAX_OUTPUT_BYTES, tail, 0, MAX_OUTPUT_BYTES);
+		return tail;
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			logger.trace("Could not close -- {}", e.getMessage());
+		}
+	}
+
+	private static void deleteContents(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) {
+					deleteContents(file);
+				}
+				file.delete();
+			}
+		}
+	}
+}
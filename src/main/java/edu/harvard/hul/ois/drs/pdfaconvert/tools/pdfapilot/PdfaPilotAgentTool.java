@@ -0,0 +1,98 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.tools.pdfapilot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ApplicationConstants;
+import edu.harvard.hul.ois.drs.pdfaconvert.ConverterConfig;
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.AbstractPdfaConverterTool;
+
+/**
+ * Converts PDF documents into PDF/A with pdfaPilot on another host through a {@link PdfaPilotAgent} running there,
+ * instead of ssh and scp. All conversions sent to an agent share one connection.
+ */
+public class PdfaPilotAgentTool extends AbstractPdfaConverterTool {
+
+	private static final String TOOL_NAME = "PdfaPilotAgentTool";
+
+	/** Seconds to wait for the agent's result if no result timeout is configured. */
+	public static final long DEFAULT_RESULT_TIMEOUT_SECONDS = 1800;
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final String host;
+	private final int port;
+	private final byte[] secret;
+
+	/**
+	 * @param config - Configuration the tool is created with.
+	 * @param host - Host the agent runs on.
+	 * @param port - Port the agent listens on.
+	 * @param secret - The secret shared with the agent.
+	 * @param outputDir - Output directory for converted files.
+	 */
+	public PdfaPilotAgentTool(ConverterConfig config, String host, int port, byte[] secret, File outputDir) {
+		super(config, outputDir);
+		this.host = host;
+		this.port = port;
+		this.secret = secret;
+	}
+
+	@Override
+	protected String getToolName() {
+		return TOOL_NAME;
+	}
+
+	/**
+	 * @see edu.harvard.hul.ois.drs.pdfaconvert.tools.PdfaConvertable#convert(java.io.File)
+	 */
+	@Override
+	public PdfaConverterOutput convert(File inputFile) {
+		return convert(inputFile, false);
+	}
+
+	/**
+	 * @see edu.harvard.hul.ois.drs.pdfaconvert.tools.PdfaConvertable#convert(java.io.File, boolean)
+	 */
+	@Override
+	public PdfaConverterOutput convert(File inputFile, boolean deleteConvertedFile) {
+		logger.debug("{}.convert() starting on file: [{}] with agent: {}:{}", TOOL_NAME, inputFile, host, port);
+		String generatedPdfFilename = getGeneratedPdfFilename(inputFile);
+		String logFilename = getLogDirectory() + File.separator + PdfaPilotTool.TOOL_LOG_FILE_NAME;
+		long timeoutMillis = TimeUnit.SECONDS.toMillis(getConfig().getLong(ApplicationConstants.PDFA_PILOT_AGENT_RESULT_TIMEOUT_SECONDS_PROP, DEFAULT_RESULT_TIMEOUT_SECONDS));
+		long start = System.currentTimeMillis();
+		AgentConnection.Result result;
+		try {
+			result = AgentConnection.get(host, port, secret).convert(inputFile, new File(getOutputDirectory(), generatedPdfFilename), timeoutMillis);
+		} catch (IOException e) {
+			logApplicationOutput(logFilename, inputFile, start, System.currentTimeMillis(), -1, String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+			throw new ExternalToolException("Error converting with pdfaPilot agent at: " + host + ":" + port, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ExternalToolException("Interrupted converting with pdfaPilot agent at: " + host + ":" + port, e);
+		}
+		logApplicationOutput(logFilename, inputFile, start, System.currentTimeMillis(), result.exitCode, result.output.getBytes(StandardCharsets.UTF_8));
+		if (!result.converted) {
+			throw new ExternalToolException("Error executing external command line tool: " + TOOL_NAME + " -- with exit code: " + result.exitCode);
+		}
+		File pdfaOutputFile = retrieveGeneratedFile(inputFile, generatedPdfFilename, deleteConvertedFile);
+		logger.debug("Finished running {}", TOOL_NAME);
+		return new PdfaConverterOutput(pdfaOutputFile, result.output, deleteConvertedFile);
+	}
+}
@@ -9,46 +9,123 @@ See the License for the specific language governing permission and limitations u
 */
 package edu.harvard.hul.ois.drs.pdfaconvert.tools.pdfapilot;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import edu.harvard.hul.ois.drs.pdfaconvert.ApplicationConstants;
-import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConvert;
+import edu.harvard.hul.ois.drs.pdfaconvert.ConverterConfig;
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
 import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.BatchConvertable;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.ResourceProfile;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.ToolType;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ConversionTrace;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.FlightEvents;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.FlightEvents.Phase;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ShutdownSequence;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.StreamGobbler;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.TarStreams;
 
 /**
  * Java wrapper for Callas Software pdfaPilot CLI tool for converting PDF documents into PDF/A to be
  * executed on a remote system via SSH tunneling.
+ * <p>
+ * Files are copied to and from the remote system with <code>scp</code> one at a time, or, with the
+ * {@link #TRANSFER_TAR} transfer mode, streamed as compressed tar archives through a single ssh connection
+ * that also runs the conversions, so that several files can be converted in one round trip.
  * 
  * @author dan179
  */
-public class PdfaPilotRemoteTool extends PdfaPilotTool {
+public class PdfaPilotRemoteTool extends PdfaPilotTool implements BatchConvertable {
 	
+	/** Transfer mode copying each input and converted file with its own scp command. */
+	public static final String TRANSFER_SCP = "scp";
+
+	/** Transfer mode streaming inputs and converted files as compressed tar archives through the ssh connection. */
+	public static final String TRANSFER_TAR = "tar";
+
 	private static final String TOOL_NAME = "PdfaPilotRemoteTool";
+	private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+	// how long a failed batch waits for its upload thread to end once the remote command is killed
+	private static final long UPLOAD_STOP_MILLIS = 5000;
+
+	// cleanups of the remote systems used so far, keyed by the command logging in to them
+	private static final Map<List<String>, RemoteCleanup> remoteCleanups = new HashMap<List<String>, RemoteCleanup>();
 
 	private File inputFile;
-	private static List<String> tunnelingPrefixCommand;
+	private final List<String> tunnelingPrefixCommand;
+	private final boolean streamTransfers;
+	private final RemoteCleanup remoteCleanup; // null when streaming transfers
 	
 	private static final Logger logger = LogManager.getLogger();
 
-	static {
-		// Part of command that does tunneling across network
-		tunnelingPrefixCommand = new ArrayList<String>();
-		tunnelingPrefixCommand.add("ssh");
-		tunnelingPrefixCommand.add(PdfaConvert.getApplicationProperties().getProperty(ApplicationConstants.PDFA_PILOT_REMOTE_USER_PROP) + "@" + PdfaConvert.getApplicationProperties().getProperty(ApplicationConstants.PDFA_PILOT_REMOTE_URL_PROP));
-		tunnelingPrefixCommand.add("-L");
-		tunnelingPrefixCommand.add(PdfaConvert.getApplicationProperties().getProperty(ApplicationConstants.PDFA_PILOT_REMOTE_TUNNELLING_STRING_PROP));
-	}
 	/**
-	 * @param pdfaPilotHome
+	 * @param config Configuration giving the remote system, its pdfaPilot home and directories, and the transfer mode.
+	 * @param outputDir Output directory for transformed files on local system.
 	 */
-	public PdfaPilotRemoteTool(String pdfaPilotHome, File outputDir) {
-		super(pdfaPilotHome, outputDir, tunnelingPrefixCommand);
+	public PdfaPilotRemoteTool(ConverterConfig config, File outputDir) {
+		this(config, outputDir, createTunnelingPrefixCommand(config));
+	}
+
+	private PdfaPilotRemoteTool(ConverterConfig config, File outputDir, List<String> tunnelingPrefixCommand) {
+		super(config, outputDir, tunnelingPrefixCommand);
+		this.tunnelingPrefixCommand = tunnelingPrefixCommand;
+		streamTransfers = config.isPdfaPilotRemoteStreaming();
+		remoteCleanup = streamTransfers ? null : getRemoteCleanup(config, tunnelingPrefixCommand);
+	}
+
+	/*
+	 * Part of command that does tunneling across network.
+	 */
+	private static List<String> createTunnelingPrefixCommand(ConverterConfig config) {
+		List<String> command = new ArrayList<String>();
+		command.add("ssh");
+		command.add(config.getPdfaPilotRemoteUser() + "@" + config.getPdfaPilotRemoteUrl());
+		command.add("-L");
+		command.add(config.getPdfaPilotRemoteTunnelling());
+		return Collections.unmodifiableList(command);
+	}
+
+	/*
+	 * The cleanup of the remote system, started by the first tool using the system, which first sweeps the files
+	 * left behind there by earlier runs.
+	 */
+	private static RemoteCleanup getRemoteCleanup(ConverterConfig config, List<String> tunnelingPrefixCommand) {
+		synchronized (remoteCleanups) {
+			RemoteCleanup cleanup = remoteCleanups.get(tunnelingPrefixCommand);
+			if (cleanup == null) {
+				cleanup = new RemoteCleanup(tunnelingPrefixCommand,
+						config.getInt(ApplicationConstants.PDFA_PILOT_REMOTE_CLEANUP_BATCH_SIZE_PROP, RemoteCleanup.DEFAULT_BATCH_SIZE),
+						config.getLong(ApplicationConstants.PDFA_PILOT_REMOTE_CLEANUP_MILLIS_PROP, RemoteCleanup.DEFAULT_INTERVAL_MILLIS));
+				long orphanAge = config.getLong(ApplicationConstants.PDFA_PILOT_REMOTE_ORPHAN_MINUTES_PROP, RemoteCleanup.DEFAULT_ORPHAN_MINUTES);
+				if (orphanAge > 0) {
+					cleanup.sweepOrphans(Arrays.asList(config.getPdfaPilotRemoteInputDir(), config.getPdfaPilotRemoteOutputDir()), orphanAge);
+				}
+				ShutdownSequence.register(ShutdownSequence.Stage.TOOLS, "pdfaPilot remote cleanup", cleanup::shutdown);
+				remoteCleanups.put(tunnelingPrefixCommand, cleanup);
+			}
+			return cleanup;
+		}
 	}
 	
 	/**
@@ -64,27 +141,198 @@ public class PdfaPilotRemoteTool extends PdfaPilotTool {
 	 */
 	@Override
 	public PdfaConverterOutput convert(File inputFile, boolean deleteConvertedFile) {
+		if (streamTransfers) {
+			StreamedBatch batch = streamBatch(Collections.singletonList(inputFile), deleteConvertedFile);
+			PdfaConverterOutput output = batch.outputs.get(inputFile);
+			if (output == null) {
+				throw new ExternalToolException("Error executing external command line tool: " + TOOL_NAME + " -- with exit code: "
+						+ batch.exitCode + " and no converted file returned for: " + inputFile.getName());
+			}
+			return output;
+		}
 		this.inputFile = inputFile;
+		String remoteInputFile = getRemoteInputPath();
+		String remoteDerivativeFile = getRemoteDerivativePath();
+		// an earlier conversion's pending removal of the same names must not remove this one's files
+		remoteCleanup.claim(remoteInputFile);
+		remoteCleanup.claim(remoteDerivativeFile);
 		
 		copyFileToRemote();
 		PdfaConverterOutput output = null;
 		try {
 			output = super.convert(inputFile, deleteConvertedFile);
 		} finally {
-			// attempt to clean up on remote server even if a problem
-			removeRemoteInputFile();
-			removeRemoteDerivativeFile();
+			// clean up on remote server even if a problem, in the background once the derivative is retrieved
+			remoteCleanup.remove(remoteInputFile);
+			remoteCleanup.remove(remoteDerivativeFile);
 		}
 		logger.debug("Finished running {}", TOOL_NAME);
 		return output;
 	}
 	
 	/**
-	 * @see edu.harvard.hul.ois.drs.pdfaconvert.tools.pdfapilot.PdfaPilotTool#retrieveGeneratedOutput(java.lang.String, java.io.ByteArrayOutputStream, boolean)
+	 * Converts several files in one round trip when streaming transfers; with scp transfers converts none, leaving
+	 * each file to be converted on its own. Files whose converted files would have the same name as another's in
+	 * the batch are left out.
+	 * 
+	 * @see edu.harvard.hul.ois.drs.pdfaconvert.tools.BatchConvertable#convertBatch(java.util.List, boolean)
+	 */
+	@Override
+	public Map<File, PdfaConverterOutput> convertBatch(List<File> inputFiles, boolean deleteConvertedFile) {
+		if (!streamTransfers) {
+			return Collections.emptyMap();
+		}
+		return streamBatch(inputFiles, deleteConvertedFile).outputs;
+	}
+
+	/*
+	 * Streams the inputs to a remote shell as a compressed tar archive on its standard input. The shell unpacks them
+	 * into a scratch directory, converts each one with pdfaPilot, and streams the converted files back as a compressed
+	 * tar archive on its standard output, which is unpacked straight into the output directory. Inputs are renamed to
+	 * their position in the batch for the transfer so that no file name is ever interpreted by the remote shell.
+	 */
+	private StreamedBatch streamBatch(List<File> inputFiles, boolean deleteConvertedFile) {
+		Map<String, File> archiveEntries = new LinkedHashMap<String, File>();
+		Map<String, File> inputsByConvertedName = new HashMap<String, File>();
+		Map<String, File> taken = new HashMap<String, File>();
+		for (File file : inputFiles) {
+			String generatedPdfFilename = getGeneratedPdfFilename(file);
+			if (taken.containsKey(generatedPdfFilename)) {
+				logger.debug("Leaving {} out of batch as its converted file name is already taken", file);
+				continue;
+			}
+			taken.put(generatedPdfFilename, file);
+			int index = archiveEntries.size();
+			archiveEntries.put(index + "." + ToolType.getExtension(file), file);
+			inputsByConvertedName.put(index + ".pdf", file);
+		}
+
+		List<String> command = new ArrayList<String>(tunnelingPrefixCommand);
+		command.add(remoteBatchScript(getConversionOptions()));
+		logger.debug("About to stream {} files to {}, command: {}", archiveEntries.size(), TOOL_NAME, command);
+		ByteArrayOutputStream toolOutput = new ByteArrayOutputStream();
+		StreamedBatch batch = new StreamedBatch();
+		long start = System.currentTimeMillis();
+		List<String> extracted = Collections.emptyList();
+		Process proc = null;
+		Thread uploader = null;
+		try {
+			proc = new ProcessBuilder(ResourceProfile.forTool(getConfig(), getToolName()).wrap(command)).start();
+			StreamGobbler errorGobbler = new StreamGobbler(proc.getErrorStream(), toolOutput);
+			errorGobbler.start();
+			Process running = proc;
+			AtomicReference<IOException> uploadFailure = new AtomicReference<IOException>();
+			uploader = new Thread(() -> {
+				try (OutputStream out = new GZIPOutputStream(new BufferedOutputStream(running.getOutputStream(), STREAM_BUFFER_SIZE), STREAM_BUFFER_SIZE)) {
+					TarStreams.write(out, archiveEntries);
+				} catch (IOException e) {
+					uploadFailure.set(e);
+				}
+			}, "pdfaPilot-upload");
+			uploader.start();
+			try (PushbackInputStream in = new PushbackInputStream(new BufferedInputStream(proc.getInputStream(), STREAM_BUFFER_SIZE))) {
+				int first = in.read();
+				// nothing at all comes back if the remote shell failed before archiving
+				if (first != -1) {
+					in.unread(first);
+					extracted = TarStreams.extract(new GZIPInputStream(in, STREAM_BUFFER_SIZE), name -> inputsByConvertedName.containsKey(name)
+							? new File(getOutputDirectory(), getGeneratedPdfFilename(inputsByConvertedName.get(name))) : null);
+					// let the remote side finish writing its archive
+					drain(in);
+				}
+			}
+			uploader.join();
+			proc.waitFor();
+			errorGobbler.join();
+			batch.exitCode = proc.exitValue();
+			if (uploadFailure.get() != null) {
+				logger.warn("Streaming inputs to {} failed -- {}", TOOL_NAME, uploadFailure.get().getMessage());
+			}
+		} catch (IOException e) {
+			stop(proc, uploader);
+			throw new ExternalToolException("Error streaming files to external command line tool: " + TOOL_NAME, e);
+		} catch (InterruptedException e) {
+			stop(proc, uploader);
+			Thread.currentThread().interrupt();
+			throw new ExternalToolException("Interrupted executing external command line tool: " + TOOL_NAME, e);
+		} finally {
+			long end = System.currentTimeMillis();
+			String logFilename = getLogDirectory() + File.separator + TOOL_LOG_FILE_NAME;
+			for (File file : archiveEntries.values()) {
+				logApplicationOutput(logFilename, file, start, end, batch.exitCode, toolOutput.toByteArray());
+			}
+		}
+		String output = getToolLoggingOutput(toolOutput);
+		for (String name : extracted) {
+			File file = inputsByConvertedName.get(name);
+			File pdfaOutputFile = retrieveGeneratedFile(file, getGeneratedPdfFilename(file), deleteConvertedFile);
+			batch.outputs.put(file, new PdfaConverterOutput(pdfaOutputFile, output, deleteConvertedFile));
+		}
+		logger.debug("Streamed batch converted {} of {} files with exit code: {}", batch.outputs.size(), archiveEntries.size(), batch.exitCode);
+		return batch;
+	}
+
+	/*
+	 * The remote shell command converting the streamed inputs. pdfaPilot's own output goes to standard error so
+	 * standard output carries only the archive of converted files. A failed conversion's file is not returned.
+	 * The scratch directory is removed however the command ends.
+	 */
+	private static String remoteBatchScript(List<String> pdfaPilotCommand) {
+		return "d=$(mktemp -d) || exit 1; "
+				+ "trap 'rm -rf \"$d\"' EXIT; trap 'rm -rf \"$d\"; exit 1' HUP INT TERM; "
+				+ "mkdir \"$d/in\" \"$d/out\" && tar -xzf - -C \"$d/in\" || exit 1; "
+				+ "for f in \"$d\"/in/*; do n=$(basename \"$f\"); n=${n%.*}; "
+				+ StringUtils.join(pdfaPilotCommand, ' ') + " --outputfile=\"$d/out/$n.pdf\" \"$f\" >&2"
+				+ " || { echo \"pdfaPilot failed on batch input $n\" >&2; rm -f \"$d/out/$n.pdf\"; }; done; "
+				+ "tar -czf - -C \"$d/out\" .";
+	}
+
+	/*
+	 * Kills the remote command of a failed batch, which ends the upload thread blocked writing to it, and waits
+	 * for that thread; the caller's interrupt, if any, is kept.
+	 */
+	private static void stop(Process proc, Thread uploader) {
+		if (proc != null) {
+			proc.destroyForcibly();
+		}
+		if (uploader == null) {
+			return;
+		}
+		boolean interrupted = Thread.interrupted();
+		try {
+			uploader.join(UPLOAD_STOP_MILLIS);
+		} catch (InterruptedException e) {
+			interrupted = true;
+		}
+		if (uploader.isAlive()) {
+			logger.warn("Upload to {} still running after the batch failed", TOOL_NAME);
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void drain(InputStream in) throws IOException {
+		byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+		while (in.read(buffer) != -1) {
+			// discard
+		}
+	}
+
+	/*
+	 * Result of one streamed round trip.
+	 */
+	private static class StreamedBatch {
+		final Map<File, PdfaConverterOutput> outputs = new LinkedHashMap<File, PdfaConverterOutput>();
+		int exitCode = -1;
+	}
+
+	/**
+	 * @see edu.harvard.hul.ois.drs.pdfaconvert.tools.pdfapilot.PdfaPilotTool#retrieveGeneratedOutput(java.io.File, java.lang.String, java.io.ByteArrayOutputStream, boolean)
 	 */
-	protected PdfaConverterOutput retrieveGeneratedOutput(String filename, ByteArrayOutputStream baos, boolean deleteConvertedFile) {
+	protected PdfaConverterOutput retrieveGeneratedOutput(File inputFile, String filename, ByteArrayOutputStream baos, boolean deleteConvertedFile) {
 		copyDerivativeFileFromRemote(); // Must copy file from remote server before able to return it.
-		return super.retrieveGeneratedOutput(filename, baos, deleteConvertedFile);
+		return super.retrieveGeneratedOutput(inputFile, filename, baos, deleteConvertedFile);
 	}
 
 	/**
@@ -102,13 +350,20 @@ public class PdfaPilotRemoteTool extends PdfaPilotTool {
         List<String> scpExecCommand = new ArrayList<String>();
         scpExecCommand.add("scp");
         scpExecCommand.add(inputFile.getAbsolutePath());
-        scpExecCommand.add(PdfaConvert.getApplicationProperties().getProperty(ApplicationConstants.PDFA_PILOT_REMOTE_USER_PROP) +
+        scpExecCommand.add(getConfig().getPdfaPilotRemoteUser() +
         		"@" +
-        		PdfaConvert.getApplicationProperties().getProperty(ApplicationConstants.PDFA_PILOT_REMOTE_URL_PROP) +
+        		getConfig().getPdfaPilotRemoteUrl() +
         		":~/" +
-        		PdfaConvert.getApplicationProperties().getProperty(ApplicationConstants.PDFA_PILOT_REMOTE_INPUT_DIR_PROP));
+        		getConfig().getPdfaPilotRemoteInputDir());
 		logger.debug("About to launch {}, with command: {}", getToolName(), scpExecCommand);
-        processCommand(scpExecCommand, null);
+		ConversionTrace.transferStarted();
+		FlightEvents.Span uploadEvent = FlightEvents.begin(Phase.REMOTE_UPLOAD, getToolName(), inputFile);
+		try {
+			processCommand(scpExecCommand, null, inputFile);
+		} finally {
+			uploadEvent.end();
+			ConversionTrace.transferEnded();
+		}
 	}
 
 	/*
@@ -119,40 +374,39 @@ public class PdfaPilotRemoteTool extends PdfaPilotTool {
         List<String> scpExecCommand = new ArrayList<String>();
 		scpExecCommand.clear();
 		scpExecCommand.add("scp");
-        scpExecCommand.add(PdfaConvert.getApplicationProperties().getProperty(ApplicationConstants.PDFA_PILOT_REMOTE_USER_PROP) +
+        scpExecCommand.add(getConfig().getPdfaPilotRemoteUser() +
         		"@" +
-        		PdfaConvert.getApplicationProperties().getProperty(ApplicationConstants.PDFA_PILOT_REMOTE_URL_PROP) +
+        		getConfig().getPdfaPilotRemoteUrl() +
         		":~/" +
-        		PdfaConvert.getApplicationProperties().getProperty(ApplicationConstants.PDFA_PILOT_REMOTE_OUTPUT_DIR_PROP) +
+        		getConfig().getPdfaPilotRemoteOutputDir() +
         		File.separatorChar +
         		generatedPdfFilename);
         scpExecCommand.add( getOutputDirectory() );
 		logger.debug("About to launch {}, command: {}", getToolName(), scpExecCommand);
-		processCommand(scpExecCommand, null);
+		ConversionTrace.transferStarted();
+		FlightEvents.Span downloadEvent = FlightEvents.begin(Phase.REMOTE_DOWNLOAD, getToolName(), inputFile);
+		try {
+			processCommand(scpExecCommand, null, inputFile);
+		} finally {
+			if (downloadEvent.isRecording()) {
+				downloadEvent.setBytes(new File(getOutputDirectory(), generatedPdfFilename).length());
+			}
+			downloadEvent.end();
+			ConversionTrace.transferEnded();
+		}
 	}
 	
 	/*
-	 * Removes input file from remote server once the conversion is complete and it is no longer needed.
+	 * Location of the input file on the remote server relative to the remote user's home directory.
 	 */
-	private void removeRemoteInputFile() {
-		List<String> scpRmInputFile = new ArrayList<String>();
-		scpRmInputFile.addAll(tunnelingPrefixCommand);
-		scpRmInputFile.add("rm " +
-				PdfaConvert.getApplicationProperties().getProperty(ApplicationConstants.PDFA_PILOT_REMOTE_INPUT_DIR_PROP) + File.separatorChar + inputFile.getName());
-		logger.debug("About to launch {}, command: {}", getToolName(), scpRmInputFile);
-		processCommand(scpRmInputFile, null);
+	private String getRemoteInputPath() {
+		return getConfig().getPdfaPilotRemoteInputDir() + File.separatorChar + inputFile.getName();
 	}
 
 	/*
-	 * Removes converted file from remote server after it is retrieved and no longer needed remotely.
+	 * Location of the converted file on the remote server relative to the remote user's home directory.
 	 */
-	private void removeRemoteDerivativeFile() {
-        String generatedPdfFilename = getGeneratedPdfFilename(inputFile);
-		List<String> scpRmOutputFile = new ArrayList<String>();
-		scpRmOutputFile.addAll(tunnelingPrefixCommand);
-		scpRmOutputFile.add("rm " +
-				PdfaConvert.getApplicationProperties().getProperty(ApplicationConstants.PDFA_PILOT_REMOTE_OUTPUT_DIR_PROP) + File.separatorChar + generatedPdfFilename);
-		logger.debug("About to launch {}, command: {}", getToolName(), scpRmOutputFile);
-		processCommand(scpRmOutputFile, null);
+	private String getRemoteDerivativePath() {
+		return getConfig().getPdfaPilotRemoteOutputDir() + File.separatorChar + getGeneratedPdfFilename(inputFile);
 	}
 }
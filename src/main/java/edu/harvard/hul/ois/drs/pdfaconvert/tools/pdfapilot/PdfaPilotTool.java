@@ -12,13 +12,13 @@ package edu.harvard.hul.ois.drs.pdfaconvert.tools.pdfapilot;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import edu.harvard.hul.ois.drs.pdfaconvert.ApplicationConstants;
-import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConvert;
+import edu.harvard.hul.ois.drs.pdfaconvert.ConverterConfig;
 import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
 import edu.harvard.hul.ois.drs.pdfaconvert.tools.AbstractPdfaConverterTool;
 
@@ -30,35 +30,26 @@ import edu.harvard.hul.ois.drs.pdfaconvert.tools.AbstractPdfaConverterTool;
 public class PdfaPilotTool extends AbstractPdfaConverterTool {
 
 	private static final String TOOL_NAME = "PdfaPilotTool";
-	private static final String TOOL_LOG_FILE_NAME = "pdfaPilot-output.txt";
+	static final String TOOL_LOG_FILE_NAME = "pdfaPilot-output.txt";
 	private static final String PDFA_PILOT_COMMAND = "pdfaPilot";
 	
-	private static List<String> basicPdfaPilotCommand;
-	
-	private List<String> fullPdfaPilotCommand;
+	// basic command to invoke pdfaPilot -- it is lacking the output location and filename, and input filename
+	private final List<String> basicPdfaPilotCommand;
+	private final List<String> fullPdfaPilotCommand;
 	private boolean useRemoteInputDirSetting = false;
 	
 	private static final Logger logger = LogManager.getLogger();
-	
-	static {		
-		// Basic command to invoke pdfaPilot -- It is lacking the output location and filename, and input filename.
-		basicPdfaPilotCommand = new ArrayList<String>();
-		basicPdfaPilotCommand.add(PdfaConvert.getApplicationProperties().getProperty(ApplicationConstants.PDFA_PILOT_HOME_PROP) + PDFA_PILOT_COMMAND); // executable
-		basicPdfaPilotCommand.add("--onlypdfa"); // convert to PDF/A format
-		basicPdfaPilotCommand.add("--overwrite"); // overwrite existing file rather than add index to file name.
-		// As an alternative the following is to set the output folder only, instead of setting the output file with "--outputfile="
-		// basicPdfaPilotCommand.add("--outputfolder=" + PdfaConvert.applicationProps.getProperty(ApplicationConstants.PDFA_PILOT_REMOTE_OUTPUT_DIR_PROP));
-	}
 
 	/**
 	 * Constructor for use with local execution of pdfaPilot.
 	 * 
-	 * @param pdfaPilotHome Location on system of pdfaPilot home directory.
+	 * @param config Configuration giving the location on system of pdfaPilot home directory.
 	 * @param outputDir Output directory for transformed files.
 	 */
-	public PdfaPilotTool(String pdfaPilotHome, File outputDir) {
-		super(outputDir);
+	public PdfaPilotTool(ConverterConfig config, File outputDir) {
+		super(config, outputDir);
 		logger.debug("Entering C-tor for: {}", PdfaPilotTool.class.getSimpleName());
+		basicPdfaPilotCommand = createBasicCommand(config.getPdfaPilotHome());
 		fullPdfaPilotCommand = new ArrayList<String>();
 		fullPdfaPilotCommand.addAll(basicPdfaPilotCommand);
 	}
@@ -66,18 +57,29 @@ public class PdfaPilotTool extends AbstractPdfaConverterTool {
 	/**
 	 * Constructor for use with remote execution of pdfaPilot.
 	 * 
-	 * @param pdfaPilotHome Location on remote system of pdfaPilot home directory.
+	 * @param config Configuration giving the location on remote system of pdfaPilot home directory and the remote directories.
 	 * @param outputDir Output directory for transformed files on local system.
 	 * @param tunnelingPrefix String for adding to 'ssh' command for tunneling.
 	 */
-	protected PdfaPilotTool(String pdfaPilotHome, File outputDir, List<String> tunnelingPrefix) {
-		super(outputDir);
+	protected PdfaPilotTool(ConverterConfig config, File outputDir, List<String> tunnelingPrefix) {
+		super(config, outputDir);
+		basicPdfaPilotCommand = createBasicCommand(config.getPdfaPilotHome());
 		fullPdfaPilotCommand = new ArrayList<String>();
 		fullPdfaPilotCommand.addAll(tunnelingPrefix);
 		fullPdfaPilotCommand.addAll(basicPdfaPilotCommand);
 		useRemoteInputDirSetting = true;
 	}
 
+	private static List<String> createBasicCommand(String pdfaPilotHome) {
+		List<String> command = new ArrayList<String>();
+		command.add(pdfaPilotHome + PDFA_PILOT_COMMAND); // executable
+		command.add("--onlypdfa"); // convert to PDF/A format
+		command.add("--overwrite"); // overwrite existing file rather than add index to file name.
+		// As an alternative the following is to set the output folder only, instead of setting the output file with "--outputfile="
+		// command.add("--outputfolder=" + getConfig().getPdfaPilotRemoteOutputDir());
+		return Collections.unmodifiableList(command);
+	}
+
 	/**
 	 * @see edu.harvard.hul.ois.drs.pdfaconvert.tools.AbstractPdfaConverterTool#getToolName()
 	 */
@@ -86,6 +88,14 @@ public class PdfaPilotTool extends AbstractPdfaConverterTool {
 		return TOOL_NAME;
 	}
 
+	/**
+	 * The same for local and remote execution, without the tunneling prefix.
+	 */
+	@Override
+	public List<String> getConversionOptions() {
+		return basicPdfaPilotCommand;
+	}
+
 	/**
 	 * @see edu.harvard.hul.ois.drs.pdfaconvert.tools.PdfaConvertable#convert(java.io.File)
 	 */
@@ -109,9 +119,9 @@ public class PdfaPilotTool extends AbstractPdfaConverterTool {
 		execCommand.addAll(fullPdfaPilotCommand);
 		if (useRemoteInputDirSetting) {
 			// set set output file
-			execCommand.add("--outputfile=" + PdfaConvert.getApplicationProperties().getProperty(ApplicationConstants.PDFA_PILOT_REMOTE_OUTPUT_DIR_PROP) + File.separatorChar + generatedPdfFilename);
+			execCommand.add("--outputfile=" + getConfig().getPdfaPilotRemoteOutputDir() + File.separatorChar + generatedPdfFilename);
 			// set input file
-			execCommand.add(PdfaConvert.getApplicationProperties().getProperty(ApplicationConstants.PDFA_PILOT_REMOTE_INPUT_DIR_PROP) + File.separatorChar + inputFile.getName());
+			execCommand.add(getConfig().getPdfaPilotRemoteInputDir() + File.separatorChar + inputFile.getName());
 		} else {
 			// set output file
 			execCommand.add("--outputfile=" + getOutputDirectory() + File.separatorChar + generatedPdfFilename);
@@ -120,11 +130,15 @@ public class PdfaPilotTool extends AbstractPdfaConverterTool {
 		}
 
 		logger.debug("About to launch {}, command: {}", TOOL_NAME, execCommand);
-		ByteArrayOutputStream baos = processCommand(execCommand, null);
-
-		String logFilename = getOutputDirectory() + File.separator + TOOL_LOG_FILE_NAME;
-		logApplicationOutput(logFilename, baos);
-		PdfaConverterOutput converterOutput = retrieveGeneratedOutput(generatedPdfFilename, baos, deleteConvertedFile);
+		String logFilename = getLogDirectory() + File.separator + TOOL_LOG_FILE_NAME;
+		ByteArrayOutputStream baos;
+		try {
+			baos = processCommand(execCommand, null, inputFile);
+		} finally {
+			// log the tool output even if the conversion failed
+			logApplicationOutput(logFilename, inputFile);
+		}
+		PdfaConverterOutput converterOutput = retrieveGeneratedOutput(inputFile, generatedPdfFilename, baos, deleteConvertedFile);
 		logger.debug("Finished running {}", TOOL_NAME);
 		return converterOutput;
 	}
@@ -132,15 +146,16 @@ public class PdfaPilotTool extends AbstractPdfaConverterTool {
 	/**
 	 * Retrieve the generated converted file from output directory.
 	 * 
+	 * @param inputFile The file that was converted.
 	 * @param filename Name of file to retrieve.
 	 * @param baos Output from pdfaPilot executable.
 	 * @param deleteConvertedFile Delete the converted file.
 	 * @return PdfaConverterOutput which wraps both the converted file and text output of pdfaPilot.
 	 */
-	protected PdfaConverterOutput retrieveGeneratedOutput(String filename, ByteArrayOutputStream baos, boolean deleteConvertedFile) {
-		File pdfaOutputFile = retrieveGeneratedFile( filename, deleteConvertedFile);
+	protected PdfaConverterOutput retrieveGeneratedOutput(File inputFile, String filename, ByteArrayOutputStream baos, boolean deleteConvertedFile) {
+		File pdfaOutputFile = retrieveGeneratedFile(inputFile, filename, deleteConvertedFile);
 		String toolOutput = getToolLoggingOutput(baos);
-		PdfaConverterOutput converterOutput = new PdfaConverterOutput(pdfaOutputFile, toolOutput);
+		PdfaConverterOutput converterOutput = new PdfaConverterOutput(pdfaOutputFile, toolOutput, deleteConvertedFile);
 		return converterOutput;
 	}
 }
@@ -0,0 +1,199 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.tools.pdfapilot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.util.StreamGobbler;
+
+/**
+ * Removes files on the remote pdfaPilot system in the background so that a conversion does not wait for it. Paths
+ * are queued and removed with one <code>rm</code> for many files, once enough are queued or at an interval, and files
+ * left behind by runs that died are swept when the converter starts. A path about to be used again is
+ * {@link #claim(String) claimed} first, so its earlier removal cannot remove the new file.
+ */
+class RemoteCleanup {
+
+	/** Default number of queued paths that are removed at once without waiting for the interval. */
+	static final int DEFAULT_BATCH_SIZE = 50;
+
+	/** Default milliseconds between removals of the queued paths. */
+	static final long DEFAULT_INTERVAL_MILLIS = 5000;
+
+	/** Default age in minutes of a remote file left behind by an earlier run that is swept at start up. */
+	static final long DEFAULT_ORPHAN_MINUTES = 60;
+
+	// a hung ssh must not stall the cleanup forever
+	private static final long COMMAND_TIMEOUT_SECONDS = 60;
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final List<String> commandPrefix;
+	private final int batchSize;
+	private final ScheduledExecutorService executor;
+	// guarded by this
+	private final Set<String> pending = new LinkedHashSet<String>();
+	private final Set<String> inFlight = new HashSet<String>();
+	private final AtomicInteger commandCount = new AtomicInteger();
+
+	/**
+	 * @param commandPrefix - The command running a shell command line on the remote system, e.g. <code>ssh user@host</code>.
+	 * @param batchSize - The number of queued paths removed at once without waiting for the interval.
+	 * @param intervalMillis - Milliseconds between removals of the queued paths.
+	 */
+	RemoteCleanup(List<String> commandPrefix, int batchSize, long intervalMillis) {
+		this.commandPrefix = new ArrayList<String>(commandPrefix);
+		this.batchSize = Math.max(1, batchSize);
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "pdfaPilot-remote-cleanup");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(this::flush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Removes in the background the files in the remote directories older than the given age, which no running
+	 * conversion, including another converter's using the same directories, still needs.
+	 */
+	void sweepOrphans(List<String> directories, long olderThanMinutes) {
+		StringBuilder script = new StringBuilder();
+		for (String directory : directories) {
+			script.append(script.length() == 0 ? "" : "; ").append("find ").append(quote(directory))
+					.append(" -maxdepth 1 -type f -mmin +").append(olderThanMinutes).append(" -exec rm -f {} +");
+		}
+		executor.execute(() -> run(script.toString()));
+	}
+
+	/**
+	 * Queues the remote file for removal.
+	 */
+	void remove(String path) {
+		boolean full;
+		synchronized (this) {
+			pending.add(path);
+			full = pending.size() >= batchSize;
+		}
+		if (full) {
+			executor.execute(this::flush);
+		}
+	}
+
+	/**
+	 * Cancels the queued removal of the remote file, waiting for it if it is under way, before the path is used again.
+	 */
+	synchronized void claim(String path) {
+		pending.remove(path);
+		while (inFlight.contains(path)) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Removes the queued remote files, up to the batch size with each command.
+	 */
+	void flush() {
+		while (true) {
+			List<String> paths = new ArrayList<String>();
+			synchronized (this) {
+				Iterator<String> iter = pending.iterator();
+				while (iter.hasNext() && paths.size() < batchSize) {
+					paths.add(iter.next());
+					iter.remove();
+				}
+				if (paths.isEmpty()) {
+					return;
+				}
+				inFlight.addAll(paths);
+			}
+			try {
+				StringBuilder script = new StringBuilder("rm -f --");
+				for (String path : paths) {
+					script.append(' ').append(quote(path));
+				}
+				run(script.toString());
+			} finally {
+				synchronized (this) {
+					inFlight.removeAll(paths);
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The number of remote commands run.
+	 */
+	int getCommandCount() {
+		return commandCount.get();
+	}
+
+	/**
+	 * Removes the files still queued and stops the background removal.
+	 */
+	void shutdown() {
+		executor.shutdownNow();
+		flush();
+	}
+
+	private void run(String script) {
+		List<String> command = new ArrayList<String>(commandPrefix);
+		command.add(script);
+		logger.debug("About to launch remote cleanup, command: {}", command);
+		commandCount.incrementAndGet();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Process proc = null;
+		try {
+			proc = new ProcessBuilder(command).redirectErrorStream(true).start();
+			StreamGobbler outputGobbler = new StreamGobbler(proc.getInputStream(), output);
+			outputGobbler.start();
+			if (!proc.waitFor(COMMAND_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				proc.destroyForcibly();
+				logger.warn("Remote cleanup timed out, files are left to the next sweep: {}", script);
+				return;
+			}
+			outputGobbler.join();
+			if (proc.exitValue() != 0) {
+				logger.warn("Remote cleanup failed with exit code: {} -- {}", proc.exitValue(), output.toString().trim());
+			}
+		} catch (IOException e) {
+			logger.warn("Could not run remote cleanup -- {}", e.getMessage());
+		} catch (InterruptedException e) {
+			proc.destroyForcibly();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Quotes a path for the remote shell.
+	 */
+	private static String quote(String path) {
+		return "'" + path.replace("'", "'\\''") + "'";
+	}
+}
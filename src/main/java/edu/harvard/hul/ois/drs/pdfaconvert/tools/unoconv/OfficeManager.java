@@ -0,0 +1,218 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.tools.unoconv;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ApplicationConstants;
+import edu.harvard.hul.ois.drs.pdfaconvert.ConverterConfig;
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.ResourceProfile;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ShutdownSequence;
+
+/**
+ * Keeps a fixed set of soffice processes running, each with a persistent UNO connection, and hands each
+ * conversion to a free one. A process whose connection was lost is restarted before its next document,
+ * and a process is recycled after a configured number of documents to limit soffice memory growth.
+ */
+class OfficeManager {
+
+	/** soffice executable if not configured. */
+	public static final String DEFAULT_OFFICE_COMMAND = "soffice";
+	/** First port used if not configured; each process listens on the next one. */
+	public static final int DEFAULT_BASE_PORT = 2100;
+	/** Documents converted by a process before it is restarted if not configured. */
+	public static final int DEFAULT_MAX_DOCUMENTS_PER_PROCESS = 200;
+	/** Default seconds a process may spend on one conversion if not configured. */
+	public static final long DEFAULT_TASK_TIMEOUT_SECONDS = 600;
+
+	private static final long STARTUP_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+	// how often a running conversion is checked for timing out or being abandoned
+	private static final long WATCHDOG_INTERVAL_MILLIS = 500;
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private static OfficeManager instance;
+
+	private final int size;
+	private final int maxDocumentsPerProcess;
+	private final long taskTimeoutMillis;
+	private final List<OfficeProcess> allProcesses = new ArrayList<OfficeProcess>();
+	private final BlockingQueue<OfficeProcess> idleProcesses = new LinkedBlockingQueue<OfficeProcess>();
+	private final ScheduledExecutorService watchdog;
+
+	/**
+	 * @param officeCommand - The soffice executable.
+	 * @param profiles - Pool from which each process leases its LibreOffice user profile.
+	 * @param size - Number of soffice processes; the manager is disabled if less than 1.
+	 * @param basePort - Port of the first process; the others use the following ports.
+	 * @param maxDocumentsPerProcess - Documents converted by a process before it is restarted.
+	 * @param taskTimeoutMillis - How long a process may spend on one conversion before it is killed.
+	 * @param resourceProfile - Resources given to the soffice processes.
+	 */
+	OfficeManager(String officeCommand, OfficeProfilePool profiles, int size, int basePort, int maxDocumentsPerProcess, long taskTimeoutMillis,
+			ResourceProfile resourceProfile) {
+		this(createProcesses(officeCommand, profiles, size, basePort, resourceProfile), maxDocumentsPerProcess, taskTimeoutMillis);
+	}
+
+	/**
+	 * @param processes - The processes conversions are handed to, not yet started.
+	 * @param maxDocumentsPerProcess - Documents converted by a process before it is restarted.
+	 * @param taskTimeoutMillis - How long a process may spend on one conversion before it is killed.
+	 */
+	OfficeManager(List<OfficeProcess> processes, int maxDocumentsPerProcess, long taskTimeoutMillis) {
+		this.size = processes.size();
+		this.maxDocumentsPerProcess = maxDocumentsPerProcess;
+		this.taskTimeoutMillis = taskTimeoutMillis;
+		allProcesses.addAll(processes);
+		idleProcesses.addAll(processes);
+		watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "office-watchdog");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Returns the manager, creating it from the configuration on first use. The manager keeps the settings it was
+	 * created with. Processes are started when first needed.
+	 */
+	static synchronized OfficeManager getInstance(ConverterConfig config) {
+		if (instance == null) {
+			instance = new OfficeManager(
+					UnoconvTool.getOfficeCommand(config),
+					OfficeProfilePool.getInstance(config),
+					config.getInt(ApplicationConstants.OFFICE_PROCESSES_PROP, 0),
+					config.getInt(ApplicationConstants.OFFICE_BASE_PORT_PROP, DEFAULT_BASE_PORT),
+					config.getInt(ApplicationConstants.OFFICE_MAX_DOCUMENTS_PER_PROCESS_PROP, DEFAULT_MAX_DOCUMENTS_PER_PROCESS),
+					TimeUnit.SECONDS.toMillis(config.getLong(ApplicationConstants.OFFICE_TASK_TIMEOUT_SECONDS_PROP, DEFAULT_TASK_TIMEOUT_SECONDS)),
+					ResourceProfile.forTool(config, UnoconvTool.TOOL_NAME));
+			if (instance.isEnabled()) {
+				ShutdownSequence.register(ShutdownSequence.Stage.TOOLS, "office manager", instance::shutdown);
+			}
+			logger.info("Office manager has {} processes", instance.size);
+		}
+		return instance;
+	}
+
+	private static List<OfficeProcess> createProcesses(String officeCommand, OfficeProfilePool profiles, int size, int basePort,
+			ResourceProfile resourceProfile) {
+		List<OfficeProcess> processes = new ArrayList<OfficeProcess>();
+		for (int i = 0; i < size; i++) {
+			processes.add(new OfficeProcess(officeCommand, basePort + i, profiles, resourceProfile));
+		}
+		return processes;
+	}
+
+	boolean isEnabled() {
+		return size > 0;
+	}
+
+	/**
+	 * Converts a document to PDF/A on a free office process, waiting for one if all are busy.
+	 *
+	 * @param inputFile - Document to convert.
+	 * @param outputFile - Where the PDF/A file is written.
+	 * @return A description of the conversion for the tool log.
+	 * @throws IOException - If no office process could be started; the document was not attempted.
+	 * @throws ExternalToolException - If the document could not be converted.
+	 */
+	String convert(File inputFile, File outputFile) throws IOException {
+		OfficeProcess process = borrow();
+		try {
+			if (!process.isRunning()) {
+				// never started, recycled, or lost its connection since the last document
+				process.stop();
+				process.start(STARTUP_TIMEOUT_MILLIS);
+			}
+			return convert(process, inputFile, outputFile);
+		} finally {
+			if (process.isRunning() && process.getDocumentCount() >= maxDocumentsPerProcess) {
+				logger.info("Recycling office process on port {} after {} documents", process.getPort(), process.getDocumentCount());
+				process.stop();
+			}
+			idleProcesses.add(process);
+		}
+	}
+
+	/**
+	 * Stops all processes.
+	 */
+	synchronized void shutdown() {
+		watchdog.shutdownNow();
+		for (OfficeProcess process : allProcesses) {
+			process.stop();
+		}
+	}
+
+	private String convert(OfficeProcess process, File inputFile, File outputFile) {
+		final AtomicBoolean timedOut = new AtomicBoolean(false);
+		final AtomicBoolean interrupted = new AtomicBoolean(false);
+		final Thread caller = Thread.currentThread();
+		final long deadline = System.currentTimeMillis() + taskTimeoutMillis;
+		// a UNO call can't be interrupted, so the process is killed if the caller gives up on it
+		ScheduledFuture<?> timer = watchdog.scheduleWithFixedDelay(() -> {
+			if (timedOut.get() || interrupted.get()) {
+				return;
+			}
+			if (System.currentTimeMillis() >= deadline) {
+				timedOut.set(true);
+				logger.warn("Killing office process on port {} after {} ms converting: {}", process.getPort(), taskTimeoutMillis, inputFile);
+				process.kill();
+			} else if (caller.isInterrupted()) {
+				interrupted.set(true);
+				logger.info("Killing office process on port {} as its conversion was abandoned: {}", process.getPort(), inputFile);
+				process.kill();
+			}
+		}, WATCHDOG_INTERVAL_MILLIS, WATCHDOG_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+		try {
+			process.convert(inputFile, outputFile);
+			return "Converted " + inputFile + " to " + outputFile + " with office process on port " + process.getPort()
+					+ " (document " + process.getDocumentCount() + " of " + maxDocumentsPerProcess + ")";
+		} catch (IOException e) {
+			throw new ExternalToolException("Error converting with office process: " + e.getMessage(), e);
+		} catch (com.sun.star.uno.RuntimeException e) {
+			// the connection is gone; the process is restarted with a clean profile before its next document
+			process.stop();
+			process.resetProfile();
+			if (timedOut.get()) {
+				throw new ExternalToolException("Office process timed out after " + taskTimeoutMillis + " ms converting: " + inputFile, e);
+			}
+			if (interrupted.get()) {
+				throw new ExternalToolException("Interrupted converting with office process: " + inputFile, e);
+			}
+			throw new ExternalToolException("Office process failed converting: " + inputFile + " -- " + e.getMessage(), e);
+		} finally {
+			timer.cancel(false);
+		}
+	}
+
+	private OfficeProcess borrow() throws IOException {
+		try {
+			return idleProcesses.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for an office process", e);
+		}
+	}
+}
@@ -0,0 +1,304 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.tools.unoconv;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.sun.star.beans.PropertyValue;
+import com.sun.star.bridge.XBridge;
+import com.sun.star.bridge.XBridgeFactory;
+import com.sun.star.comp.helper.Bootstrap;
+import com.sun.star.connection.NoConnectException;
+import com.sun.star.connection.XConnection;
+import com.sun.star.connection.XConnector;
+import com.sun.star.frame.XComponentLoader;
+import com.sun.star.frame.XDesktop;
+import com.sun.star.frame.XStorable;
+import com.sun.star.lang.EventObject;
+import com.sun.star.lang.XComponent;
+import com.sun.star.lang.XEventListener;
+import com.sun.star.lang.XMultiComponentFactory;
+import com.sun.star.uno.UnoRuntime;
+import com.sun.star.uno.XComponentContext;
+import com.sun.star.util.CloseVetoException;
+import com.sun.star.util.XCloseable;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.ResourceProfile;
+
+/**
+ * One soffice process listening on a local socket together with the UNO connection to it.
+ * Documents are loaded and stored as PDF/A through the connection, so neither a Python interpreter nor a new
+ * connection is needed per document. Not thread-safe; used by one conversion at a time via {@link OfficeManager}.
+ */
+class OfficeProcess {
+
+	private static final String PDF_EXPORT_FILTER = "writer_pdf_Export";
+	private static final long CONNECT_RETRY_MILLIS = 250;
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final String officeCommand;
+	private final int port;
+	private final OfficeProfilePool profiles;
+	private final ResourceProfile resourceProfile;
+	private File profileDir;
+	private Process process;
+	private XBridge bridge;
+	private XComponentLoader loader;
+	private XDesktop desktop;
+	private volatile boolean connected = false;
+	private int documentCount = 0;
+
+	/**
+	 * @param officeCommand - The soffice executable.
+	 * @param port - Local port the process listens on.
+	 * @param profiles - Pool from which the process leases a LibreOffice user profile of its own.
+	 * @param resourceProfile - Resources given to the process.
+	 */
+	OfficeProcess(String officeCommand, int port, OfficeProfilePool profiles, ResourceProfile resourceProfile) {
+		this.officeCommand = officeCommand;
+		this.port = port;
+		this.profiles = profiles;
+		this.resourceProfile = resourceProfile;
+	}
+
+	/**
+	 * Launches soffice and connects to it.
+	 *
+	 * @param timeoutMillis - How long to wait for soffice to accept the connection.
+	 * @throws IOException - If soffice could not be started or connected to; the process is stopped.
+	 */
+	void start(long timeoutMillis) throws IOException {
+		if (profileDir == null) {
+			profileDir = profiles.lease();
+		}
+		List<String> command = new ArrayList<String>();
+		command.add(officeCommand);
+		command.add("-env:UserInstallation=" + toUrl(profileDir));
+		command.add("--accept=socket,host=127.0.0.1,port=" + port + ";urp;");
+		command.add("--headless");
+		command.add("--invisible");
+		command.add("--nocrashreport");
+		command.add("--nodefault");
+		command.add("--nolockcheck");
+		command.add("--nologo");
+		command.add("--norestore");
+		logger.debug("Starting office process with command: {}", command);
+		// the process lives on across conversions so a CPU time cap would eventually kill it
+		ProcessBuilder builder = new ProcessBuilder(resourceProfile.wrap(command, false));
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(ProcessBuilder.Redirect.appendTo(new File(profiles.getRootDir(), "soffice-" + port + ".log")));
+		process = builder.start();
+		documentCount = 0;
+		try {
+			connect(timeoutMillis);
+		} catch (IOException e) {
+			stop();
+			throw e;
+		}
+		logger.info("Started office process on port: {}", port);
+	}
+
+	/**
+	 * Whether the process is running and the connection to it is open.
+	 */
+	boolean isRunning() {
+		return connected && process != null && process.isAlive();
+	}
+
+	int getPort() {
+		return port;
+	}
+
+	int getDocumentCount() {
+		return documentCount;
+	}
+
+	/**
+	 * Converts a document to PDF/A.
+	 *
+	 * @param inputFile - Document to convert.
+	 * @param outputFile - Where the PDF/A file is written.
+	 * @throws IOException - If the document could not be loaded or stored.
+	 * @throws com.sun.star.uno.RuntimeException - If the connection to soffice was lost, e.g. because the document crashed it.
+	 */
+	void convert(File inputFile, File outputFile) throws IOException {
+		documentCount++;
+		PropertyValue[] loadProps = {
+				property("Hidden", Boolean.TRUE),
+				property("ReadOnly", Boolean.TRUE),
+				property("UpdateDocMode", Short.valueOf(com.sun.star.document.UpdateDocMode.NO_UPDATE)) };
+		XComponent document;
+		try {
+			document = loader.loadComponentFromURL(toUrl(inputFile), "_blank", 0, loadProps);
+		} catch (com.sun.star.io.IOException | com.sun.star.lang.IllegalArgumentException e) {
+			throw new IOException("Could not load document: " + inputFile + " -- " + e.getMessage(), e);
+		}
+		if (document == null) {
+			throw new IOException("Could not load document: " + inputFile);
+		}
+		try {
+			PropertyValue[] filterData = { property("SelectPdfVersion", Integer.valueOf(1)) }; // PDF/A output
+			PropertyValue[] storeProps = {
+					property("FilterName", PDF_EXPORT_FILTER),
+					property("FilterData", filterData),
+					property("Overwrite", Boolean.TRUE) };
+			XStorable storable = UnoRuntime.queryInterface(XStorable.class, document);
+			storable.storeToURL(toUrl(outputFile), storeProps);
+		} catch (com.sun.star.io.IOException e) {
+			throw new IOException("Could not store document: " + outputFile + " -- " + e.getMessage(), e);
+		} finally {
+			close(document);
+		}
+	}
+
+	/**
+	 * Asks soffice to exit, killing it if it does not.
+	 */
+	void stop() {
+		if (isRunning()) {
+			try {
+				desktop.terminate();
+			} catch (RuntimeException e) {
+				// terminate() usually disposes the connection before returning
+				logger.debug("Office process on port {} terminated: {}", port, e.getMessage());
+			}
+		}
+		disconnect();
+		if (process != null) {
+			try {
+				if (!process.waitFor(5, TimeUnit.SECONDS)) {
+					process.destroyForcibly();
+				}
+			} catch (InterruptedException e) {
+				process.destroyForcibly();
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Gives the profile back to be restored from the template, since soffice may have left it damaged;
+	 * the next start leases another one. Only call once the process is stopped.
+	 */
+	void resetProfile() {
+		if (profileDir != null) {
+			profiles.release(profileDir, true);
+			profileDir = null;
+		}
+	}
+
+	/**
+	 * Kills soffice without waiting, which makes a UNO call blocked on it fail.
+	 */
+	void kill() {
+		if (process != null) {
+			process.destroyForcibly();
+		}
+	}
+
+	private void connect(long timeoutMillis) throws IOException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		try {
+			XComponentContext localContext = Bootstrap.createInitialComponentContext(null);
+			XMultiComponentFactory localFactory = localContext.getServiceManager();
+			XConnector connector = UnoRuntime.queryInterface(XConnector.class,
+					localFactory.createInstanceWithContext("com.sun.star.connection.Connector", localContext));
+			XConnection connection = null;
+			while (connection == null) {
+				try {
+					connection = connector.connect("socket,host=127.0.0.1,port=" + port);
+				} catch (NoConnectException e) {
+					if (!process.isAlive()) {
+						throw new IOException("Office process exited with code " + process.exitValue() + " before accepting connections on port: " + port);
+					}
+					if (System.currentTimeMillis() > deadline) {
+						throw new IOException("Office process did not accept connections on port " + port + " within " + timeoutMillis + " ms");
+					}
+					Thread.sleep(CONNECT_RETRY_MILLIS);
+				}
+			}
+			XBridgeFactory bridgeFactory = UnoRuntime.queryInterface(XBridgeFactory.class,
+					localFactory.createInstanceWithContext("com.sun.star.bridge.BridgeFactory", localContext));
+			bridge = bridgeFactory.createBridge("", "urp", connection, null);
+			UnoRuntime.queryInterface(XComponent.class, bridge).addEventListener(new XEventListener() {
+				@Override
+				public void disposing(EventObject event) {
+					connected = false;
+					logger.debug("Connection to office process on port {} closed", port);
+				}
+			});
+			XComponentContext remoteContext = UnoRuntime.queryInterface(XComponentContext.class,
+					bridge.getInstance("StarOffice.ComponentContext"));
+			Object desktopService = remoteContext.getServiceManager().createInstanceWithContext("com.sun.star.frame.Desktop", remoteContext);
+			loader = UnoRuntime.queryInterface(XComponentLoader.class, desktopService);
+			desktop = UnoRuntime.queryInterface(XDesktop.class, desktopService);
+			connected = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted connecting to office process on port: " + port, e);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Could not connect to office process on port " + port + " -- " + e.getMessage(), e);
+		}
+	}
+
+	private void disconnect() {
+		connected = false;
+		if (bridge != null) {
+			try {
+				UnoRuntime.queryInterface(XComponent.class, bridge).dispose();
+			} catch (RuntimeException e) {
+				logger.debug("Error closing connection to office process on port {}: {}", port, e.getMessage());
+			}
+			bridge = null;
+		}
+		loader = null;
+		desktop = null;
+	}
+
+	private static void close(XComponent document) {
+		try {
+			XCloseable closeable = UnoRuntime.queryInterface(XCloseable.class, document);
+			if (closeable != null) {
+				closeable.close(true);
+			} else {
+				document.dispose();
+			}
+		} catch (CloseVetoException e) {
+			// the document takes care of closing itself once no longer in use
+			logger.debug("Close of converted document vetoed: {}", e.getMessage());
+		} catch (RuntimeException e) {
+			logger.debug("Error closing converted document: {}", e.getMessage());
+		}
+	}
+
+	private static PropertyValue property(String name, Object value) {
+		PropertyValue property = new PropertyValue();
+		property.Name = name;
+		property.Value = value;
+		return property;
+	}
+
+	/*
+	 * LibreOffice expects file URLs of the form file:///path
+	 */
+	static String toUrl(File file) {
+		return "file://" + file.getAbsoluteFile().toURI().getRawPath();
+	}
+}
@@ -0,0 +1,279 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.tools.unoconv;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ApplicationConstants;
+import edu.harvard.hul.ois.drs.pdfaconvert.ConverterConfig;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ShutdownSequence;
+
+/**
+ * LibreOffice user profiles for soffice instances running at the same time, which can't share a profile.
+ * A template profile is initialized once by running soffice against it, and each pooled profile is a copy of it,
+ * so no conversion pays for creating a profile. A profile that may have been left in a bad state is reset by
+ * copying the template again. If the template can't be built the profiles start out empty and soffice fills them in.
+ * <p>
+ * The template is shared by every converter using the same directory, but the pooled profiles of each process are
+ * kept in a directory of its own within it, so that preparing them never removes profiles another converter's soffice
+ * instances are using. That directory is deleted when the converter shuts down.
+ */
+class OfficeProfilePool {
+
+	/** Number of profiles prepared up front if not configured; more are copied when all are leased. */
+	public static final int DEFAULT_PROFILES = 4;
+
+	private static final String TEMPLATE_DIR_NAME = "template";
+	private static final String PROFILE_DIR_PREFIX = "profile-";
+	private static final String PROCESS_DIR_PREFIX = "profiles-";
+	private static final long TEMPLATE_TIMEOUT_SECONDS = 120;
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private static OfficeProfilePool instance;
+
+	private final String officeCommand;
+	private final File rootDir;
+	private final int size;
+	private final BlockingQueue<File> idleProfiles = new LinkedBlockingQueue<File>();
+	private File templateDir;
+	private File processDir;
+	private boolean provisioned = false;
+	private int profileCount = 0;
+
+	/**
+	 * @param officeCommand - The soffice executable used to initialize the template.
+	 * @param rootDir - Directory holding the template and the directories of pooled profiles of each process.
+	 * @param size - Number of profiles prepared up front.
+	 */
+	OfficeProfilePool(String officeCommand, File rootDir, int size) {
+		this.officeCommand = officeCommand;
+		this.rootDir = rootDir;
+		this.size = size;
+	}
+
+	/**
+	 * Returns the pool, creating it from the configuration on first use. The pool keeps the settings it was
+	 * created with. Profiles are prepared when the first one is leased.
+	 */
+	static synchronized OfficeProfilePool getInstance(ConverterConfig config) {
+		if (instance == null) {
+			String dir = config.getString(ApplicationConstants.OFFICE_PROFILE_DIR_PROP, null);
+			instance = new OfficeProfilePool(
+					UnoconvTool.getOfficeCommand(config),
+					dir == null ? new File(System.getProperty("java.io.tmpdir"), "pdfa-converter-office") : new File(dir),
+					config.getInt(ApplicationConstants.OFFICE_PROFILES_PROP, DEFAULT_PROFILES));
+			ShutdownSequence.register(ShutdownSequence.Stage.OUTPUT, "office profiles", instance::deleteProfiles);
+		}
+		return instance;
+	}
+
+	File getRootDir() {
+		return rootDir;
+	}
+
+	/**
+	 * Takes a profile for the exclusive use of one soffice instance.
+	 *
+	 * @return The profile directory.
+	 * @throws IOException - If a profile could not be prepared.
+	 */
+	File lease() throws IOException {
+		synchronized (this) {
+			if (!provisioned) {
+				provision();
+			}
+		}
+		File profile = idleProfiles.poll();
+		if (profile == null) {
+			synchronized (this) {
+				profile = newProfile();
+			}
+			logger.debug("All office profiles leased, added: {}", profile);
+		}
+		return profile;
+	}
+
+	/**
+	 * Returns a leased profile to the pool.
+	 *
+	 * @param profile - The leased profile directory.
+	 * @param reset - Whether to restore the profile from the template first, e.g. because soffice failed while using it.
+	 */
+	void release(File profile, boolean reset) {
+		if (reset) {
+			try {
+				copyTemplate(profile);
+				logger.debug("Reset office profile: {}", profile);
+			} catch (IOException e) {
+				// leave it out of the pool rather than hand out a profile in an unknown state
+				logger.warn("Could not reset office profile: {} -- {}", profile, e.getMessage());
+				return;
+			}
+		}
+		idleProfiles.add(profile);
+	}
+
+	/*
+	 * Builds the template unless a previous run left one, then copies it into fresh pooled profiles in a new
+	 * directory of this process, so none carries stale locks or state from an earlier run.
+	 */
+	private void provision() throws IOException {
+		rootDir.mkdirs();
+		processDir = Files.createTempDirectory(rootDir.toPath(), PROCESS_DIR_PREFIX).toFile();
+		File template = new File(rootDir, TEMPLATE_DIR_NAME);
+		if (!template.isDirectory()) {
+			buildTemplate(template);
+		}
+		templateDir = template.isDirectory() ? template : null;
+		List<File> profiles = new ArrayList<File>();
+		for (int i = 0; i < size; i++) {
+			profiles.add(newProfile());
+		}
+		idleProfiles.addAll(profiles);
+		provisioned = true;
+		logger.info("Prepared {} office profiles in: {}", size, processDir);
+	}
+
+	/*
+	 * Deletes the profiles of this process, once its soffice instances have stopped.
+	 */
+	synchronized void deleteProfiles() {
+		if (processDir == null) {
+			return;
+		}
+		try {
+			deleteRecursively(processDir.toPath());
+		} catch (IOException e) {
+			logger.warn("Could not delete office profiles: {} -- {}", processDir, e.getMessage());
+		}
+	}
+
+	private File newProfile() throws IOException {
+		File profile = new File(processDir, PROFILE_DIR_PREFIX + profileCount++);
+		copyTemplate(profile);
+		return profile;
+	}
+
+	/*
+	 * Runs soffice once against a temporary directory so it creates and initializes a profile there,
+	 * then moves it into place so a partly built template is never used. If another converter sharing the
+	 * directory moved its own template into place first, that one is used.
+	 */
+	private void buildTemplate(File template) {
+		File buildDir = null;
+		try {
+			// soffice creates the profile itself, so it gets a fresh path within a directory of this build
+			buildDir = new File(Files.createTempDirectory(rootDir.toPath(), TEMPLATE_DIR_NAME + "-").toFile(), "profile");
+			List<String> command = new ArrayList<String>();
+			command.add(officeCommand);
+			command.add("-env:UserInstallation=" + OfficeProcess.toUrl(buildDir));
+			command.add("--headless");
+			command.add("--invisible");
+			command.add("--nocrashreport");
+			command.add("--nologo");
+			command.add("--norestore");
+			command.add("--terminate_after_init");
+			logger.info("Building office profile template with command: {}", command);
+			ProcessBuilder builder = new ProcessBuilder(command);
+			builder.redirectErrorStream(true);
+			builder.redirectOutput(ProcessBuilder.Redirect.appendTo(new File(rootDir, TEMPLATE_DIR_NAME + ".log")));
+			Process process = builder.start();
+			if (!process.waitFor(TEMPLATE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				process.destroyForcibly();
+				logger.warn("Timed out building office profile template, profiles will start empty");
+			} else if (buildDir.isDirectory()) {
+				try {
+					Files.move(buildDir.toPath(), template.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				} catch (IOException e) {
+					if (!template.isDirectory()) {
+						throw e;
+					}
+					logger.debug("Using the office profile template built by another converter: {}", template);
+				}
+			} else {
+				logger.warn("soffice exited with code {} without creating a profile template, profiles will start empty", process.exitValue());
+			}
+		} catch (IOException e) {
+			logger.warn("Could not build office profile template, profiles will start empty -- {}", e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.warn("Interrupted building office profile template, profiles will start empty");
+		} finally {
+			if (buildDir != null) {
+				try {
+					deleteRecursively(buildDir.getParentFile().toPath());
+				} catch (IOException e) {
+					logger.debug("Could not delete office profile build directory: {} -- {}", buildDir, e.getMessage());
+				}
+			}
+		}
+	}
+
+	private void copyTemplate(File profile) throws IOException {
+		deleteRecursively(profile.toPath());
+		if (templateDir == null) {
+			Files.createDirectories(profile.toPath());
+			return;
+		}
+		final Path source = templateDir.toPath();
+		final Path target = profile.toPath();
+		Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				Files.createDirectories(target.resolve(source.relativize(dir)));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.copy(file, target.resolve(source.relativize(file)), StandardCopyOption.COPY_ATTRIBUTES);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private static void deleteRecursively(Path path) throws IOException {
+		if (!Files.exists(path)) {
+			return;
+		}
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				if (e != null) {
+					throw e;
+				}
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
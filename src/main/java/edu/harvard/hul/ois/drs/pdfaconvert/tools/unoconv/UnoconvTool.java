@@ -11,33 +11,61 @@ package edu.harvard.hul.ois.drs.pdfaconvert.tools.unoconv;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import edu.harvard.hul.ois.drs.pdfaconvert.ApplicationConstants;
+import edu.harvard.hul.ois.drs.pdfaconvert.ConverterConfig;
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
 import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
 import edu.harvard.hul.ois.drs.pdfaconvert.tools.AbstractPdfaConverterTool;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.BatchConvertable;
 
 /**
  * Java wrapper for Unoconv tool (which calls LibreOffice) for converting .doc, .docx, .odt, .rtf and .wpd documents into PDF/A.
+ * Conversions are sent over UNO to soffice processes kept running by the {@link OfficeManager} when configured,
+ * otherwise (or if no soffice process could be started) unoconv is launched for each file.
+ * Each unoconv launch leases a LibreOffice profile of its own from the {@link OfficeProfilePool} so concurrent
+ * launches don't lock each other out of a shared profile.
+ * Several documents can also be converted by a single soffice run with {@link #convertBatch(List, boolean)}.
  * 
  * @author dan179
  */
-public class UnoconvTool extends AbstractPdfaConverterTool {
+public class UnoconvTool extends AbstractPdfaConverterTool implements BatchConvertable {
 
 	private List<String> unixCommand = new ArrayList<String>();
+	private OfficeManager officeManager;
+	private OfficeProfilePool profilePool;
+	private String officeCommand;
 
-	private static final String TOOL_NAME = "UnoconvTool";
+	static final String TOOL_NAME = "UnoconvTool";
 	private static final String TOOL_LOG_FILE_NAME = "unoconv-output.txt";
 	private static final String UNOCONV_COMMAND = "unoconv";
+	// PDF/A export options as accepted by soffice --convert-to since LibreOffice 7.4
+	private static final String PDFA_CONVERT_TO = "pdf:writer_pdf_Export:{\"SelectPdfVersion\":{\"type\":\"long\",\"value\":\"1\"}}";
 
 	private static final Logger logger = LogManager.getLogger();
 
-	public UnoconvTool(String unoconvHome, File outputDir) {
-		super(outputDir);
+	/**
+	 * @param config Configuration giving the Unoconv home and the office command.
+	 * @param outputDir Output directory for converted files.
+	 */
+	public UnoconvTool(ConverterConfig config, File outputDir) {
+		super(config, outputDir);
 		logger.debug("Entering C-tor for: {}", UnoconvTool.class.getSimpleName());
+		String unoconvHome = config.getUnoconvHome();
         
         File unoconvDir = new File(unoconvHome);
         logger.info("Unoconv home: {} -- isDirectory: ", unoconvHome, (unoconvHome == null ? "false" : unoconvDir.isDirectory()) );
@@ -45,6 +73,16 @@ public class UnoconvTool extends AbstractPdfaConverterTool {
 		String command = unoconvHome + File.separatorChar + UNOCONV_COMMAND;
 		logger.info("Have command: {}", command);
 		unixCommand.add(command);
+		officeManager = OfficeManager.getInstance(config);
+		profilePool = OfficeProfilePool.getInstance(config);
+		officeCommand = getOfficeCommand(config);
+	}
+
+	/**
+	 * @return The command running LibreOffice, for soffice processes and converting several documents at once.
+	 */
+	public static String getOfficeCommand(ConverterConfig config) {
+		return config.getString(ApplicationConstants.OFFICE_COMMAND_PROP, OfficeManager.DEFAULT_OFFICE_COMMAND);
 	}
 
 	@Override
@@ -52,6 +90,14 @@ public class UnoconvTool extends AbstractPdfaConverterTool {
 		return TOOL_NAME;
 	}
 
+	/**
+	 * The PDF/A export settings, which are the same whether converted by unoconv or a persistent soffice process.
+	 */
+	@Override
+	public List<String> getConversionOptions() {
+		return Arrays.asList("-f", "pdf", "-eSelectPdfVersion=1", PDFA_CONVERT_TO);
+	}
+
 	/**
 	 * @see edu.harvard.hul.ois.drs.pdfaconvert.tools.PdfaConvertable#convert(java.io.File)
 	 */
@@ -70,26 +116,207 @@ public class UnoconvTool extends AbstractPdfaConverterTool {
         logger.debug("file absolute path: {}", inputFile.getAbsolutePath());
 
         String generatedPdfFilename = getGeneratedPdfFilename(inputFile);
+		String logFilename = getLogDirectory() + File.separator + TOOL_LOG_FILE_NAME;
+		String toolOutput = null;
+		if (officeManager.isEnabled()) {
+			toolOutput = convertWithOfficeManager(inputFile, generatedPdfFilename, logFilename);
+		}
+		if (toolOutput == null) {
+			toolOutput = convertWithProcess(inputFile, generatedPdfFilename, logFilename);
+		}
+
+		File pdfaOutputFile = retrieveGeneratedFile(inputFile, generatedPdfFilename, deleteConvertedFile);
+		PdfaConverterOutput converterOutput = new PdfaConverterOutput(pdfaOutputFile, toolOutput, deleteConvertedFile);		
+		logger.debug("Finished running {}", TOOL_NAME);
+		return converterOutput;
+	}
+
+	/*
+	 * Converts through a persistent UNO connection to a running soffice process.
+	 * Returns the tool output or null if no soffice process could be started, so the caller can launch unoconv instead.
+	 */
+	private String convertWithOfficeManager(File inputFile, String generatedPdfFilename, String logFilename) {
+		File outputFile = new File(getOutputDirectory(), generatedPdfFilename);
+		logger.debug("Sending {} to office process", inputFile.getAbsolutePath());
+		long start = System.currentTimeMillis();
+		String toolOutput;
+		try {
+			toolOutput = officeManager.convert(inputFile, outputFile);
+		} catch (IOException e) {
+			logger.warn("Office process unavailable, falling back to {} for {} -- reason: {}", UNOCONV_COMMAND, inputFile, e.getMessage());
+			return null;
+		} catch (RuntimeException e) {
+			logApplicationOutput(logFilename, inputFile, start, System.currentTimeMillis(), 1, String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+			throw e;
+		}
+		logApplicationOutput(logFilename, inputFile, start, System.currentTimeMillis(), 0, toolOutput.getBytes(StandardCharsets.UTF_8));
+		return toolOutput;
+	}
+
+	/*
+	 * Converts by launching unoconv for this file alone, with its own profile and connection pipe.
+	 */
+	private String convertWithProcess(File inputFile, String generatedPdfFilename, String logFilename) {
+		File profile;
+		try {
+			profile = profilePool.lease();
+		} catch (IOException e) {
+			throw new ExternalToolException("Could not prepare a LibreOffice profile for: " + TOOL_NAME, e);
+		}
 		List<String> execCommand = new ArrayList<String>();
 		execCommand.addAll(unixCommand);
 		execCommand.add("-vv"); // for verbosity
 		execCommand.add("-f"); // PDF output format
 		execCommand.add("pdf");
 		execCommand.add("-eSelectPdfVersion=1"); // PDF/A output
+		execCommand.add("--user-profile=" + profile.getAbsolutePath());
+		execCommand.add("--pipe=pdfa-converter-" + profile.getName()); // rather than the shared default port
 		execCommand.add("-o"); // output location - directory or filename
 		execCommand.add( getOutputDirectory() + File.separator + generatedPdfFilename);
 		execCommand.add(inputFile.getAbsolutePath());
 
 		logger.debug("About to launch {}, command: {}", TOOL_NAME, execCommand);
-		ByteArrayOutputStream baos = processCommand(execCommand, null);
-		String logFilename = getOutputDirectory() + File.separator + TOOL_LOG_FILE_NAME;
-		logApplicationOutput(logFilename, baos);
-		
-		File pdfaOutputFile = retrieveGeneratedFile(generatedPdfFilename, deleteConvertedFile);
-		String toolOutput = getToolLoggingOutput(baos);
-		PdfaConverterOutput converterOutput = new PdfaConverterOutput(pdfaOutputFile, toolOutput);		
-		logger.debug("Finished running {}", TOOL_NAME);
-		return converterOutput;
+		ByteArrayOutputStream baos;
+		boolean succeeded = false;
+		try {
+			baos = processCommand(execCommand, null, inputFile);
+			succeeded = true;
+		} finally {
+			// log the tool output even if the conversion failed
+			logApplicationOutput(logFilename, inputFile);
+			// a failed run may have left the profile damaged or locked
+			profilePool.release(profile, !succeeded);
+		}
+		return getToolLoggingOutput(baos);
 	}
 
+	/**
+	 * Converts several documents with one soffice run rather than a process for each. If the run fails, the documents
+	 * it did not convert are split in two and each half is run again, until the document causing the failure is on its own.
+	 * An interrupted run is not split but ends the batch.
+	 * Documents that can't go in the same run because their converted files would have the same name are left out.
+	 * 
+	 * @param inputFiles - The documents to convert.
+	 * @param deleteConvertedFile - <code>true</code> delete each converted file when its output is closed.
+	 * @return The output of each document that was converted; documents missing from the map were not converted.
+	 * @throws ExternalToolException - If interrupted, or no directory for the batch could be created.
+	 */
+	@Override
+	public Map<File, PdfaConverterOutput> convertBatch(List<File> inputFiles, boolean deleteConvertedFile) {
+		Map<File, PdfaConverterOutput> outputs = new LinkedHashMap<File, PdfaConverterOutput>();
+		List<File> batch = new ArrayList<File>();
+		Set<String> names = new HashSet<String>();
+		for (File inputFile : inputFiles) {
+			// soffice names its output after the input, and the converted file after that
+			String sofficeName = getSofficePdfFilename(inputFile);
+			String generatedName = getGeneratedPdfFilename(inputFile);
+			if (!names.contains(sofficeName) && !names.contains(generatedName)) {
+				names.add(sofficeName);
+				names.add(generatedName);
+				batch.add(inputFile);
+			} else {
+				logger.debug("Leaving {} out of batch as its converted file name is already taken", inputFile);
+			}
+		}
+		File scratchDir;
+		try {
+			scratchDir = Files.createTempDirectory(new File(getOutputDirectory()).toPath(), "soffice-batch-").toFile();
+		} catch (IOException e) {
+			throw new ExternalToolException("Could not create a directory for batch conversion in: " + getOutputDirectory(), e);
+		}
+		try {
+			convertBatch(batch, scratchDir, deleteConvertedFile, outputs);
+		} finally {
+			File[] leftovers = scratchDir.listFiles();
+			if (leftovers != null) {
+				for (File leftover : leftovers) {
+					leftover.delete();
+				}
+			}
+			scratchDir.delete();
+		}
+		logger.debug("Converted {} of {} documents in batch", outputs.size(), inputFiles.size());
+		return outputs;
+	}
+
+	private void convertBatch(List<File> batch, File scratchDir, boolean deleteConvertedFile, Map<File, PdfaConverterOutput> outputs) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		List<String> execCommand = new ArrayList<String>();
+		execCommand.add(officeCommand);
+		execCommand.add("--headless");
+		execCommand.add("--invisible");
+		execCommand.add("--nocrashreport");
+		execCommand.add("--nodefault");
+		execCommand.add("--nolockcheck");
+		execCommand.add("--nologo");
+		execCommand.add("--norestore");
+		execCommand.add("--convert-to");
+		execCommand.add(PDFA_CONVERT_TO);
+		execCommand.add("--outdir");
+		execCommand.add(scratchDir.getAbsolutePath());
+		for (File inputFile : batch) {
+			execCommand.add(inputFile.getAbsolutePath());
+		}
+
+		File profile;
+		try {
+			profile = profilePool.lease();
+		} catch (IOException e) {
+			throw new ExternalToolException("Could not prepare a LibreOffice profile for: " + TOOL_NAME, e);
+		}
+		execCommand.add(1, "-env:UserInstallation=" + OfficeProcess.toUrl(profile));
+		logger.debug("About to convert batch of {} documents, command: {}", batch.size(), execCommand);
+		String logFilename = getLogDirectory() + File.separator + TOOL_LOG_FILE_NAME;
+		String toolOutput = "";
+		boolean succeeded = false;
+		try {
+			toolOutput = getToolLoggingOutput(processCommand(execCommand, null, null));
+			succeeded = true;
+		} catch (ExternalToolException e) {
+			if (Thread.currentThread().isInterrupted() || e.getCause() instanceof InterruptedException) {
+				// the batch was cancelled, not failed by a document, so there is nothing to isolate
+				throw e;
+			}
+			logger.warn("soffice failed converting batch of {} documents -- {}", batch.size(), e.getMessage());
+		} finally {
+			// one record for the run, labelled with its first document
+			logApplicationOutput(logFilename, batch.get(0));
+			profilePool.release(profile, !succeeded);
+		}
+
+		List<File> notConverted = new ArrayList<File>();
+		for (File inputFile : batch) {
+			File sofficeOutput = new File(scratchDir, getSofficePdfFilename(inputFile));
+			String generatedPdfFilename = getGeneratedPdfFilename(inputFile);
+			if (sofficeOutput.isFile() && sofficeOutput.length() > 0) {
+				try {
+					Files.move(sofficeOutput.toPath(), new File(getOutputDirectory(), generatedPdfFilename).toPath(), StandardCopyOption.REPLACE_EXISTING);
+					File pdfaOutputFile = retrieveGeneratedFile(inputFile, generatedPdfFilename, deleteConvertedFile);
+					outputs.put(inputFile, new PdfaConverterOutput(pdfaOutputFile, toolOutput, deleteConvertedFile));
+					continue;
+				} catch (IOException e) {
+					logger.warn("Could not move converted file {} into output directory -- {}", sofficeOutput, e.getMessage());
+				}
+			}
+			notConverted.add(inputFile);
+		}
+		// a successful run that skipped a document couldn't load it, which a retry won't change
+		if (!succeeded && notConverted.size() > 1) {
+			int half = notConverted.size() / 2;
+			logger.debug("Splitting {} unconverted documents to isolate the failure", notConverted.size());
+			convertBatch(new ArrayList<File>(notConverted.subList(0, half)), scratchDir, deleteConvertedFile, outputs);
+			convertBatch(new ArrayList<File>(notConverted.subList(half, notConverted.size())), scratchDir, deleteConvertedFile, outputs);
+		}
+	}
+
+	/*
+	 * soffice replaces only the last extension of the input file name.
+	 */
+	private static String getSofficePdfFilename(File inputFile) {
+		String name = inputFile.getName();
+		int dot = name.lastIndexOf('.');
+		return (dot > 0 ? name.substring(0, dot) : name) + ".pdf";
+	}
 }
@@ -0,0 +1,165 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.ToolType;
+
+/**
+ * A document inside a ZIP archive, converted without unzipping the archive: the entries are listed from the
+ * archive's central directory and an entry is copied out only when its conversion starts. Its converted file is
+ * named after its path in the archive, e.g. docs/report.docx in deposit.zip is converted to deposit/docs/report.pdf.
+ */
+public final class ArchiveEntry {
+
+	private static final String ARCHIVE_EXTENSION = "zip";
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final File archive;
+	private final String name;
+	private final long sizeBytes;
+
+	private ArchiveEntry(File archive, String name, long sizeBytes) {
+		this.archive = archive;
+		this.name = name;
+		this.sizeBytes = sizeBytes;
+	}
+
+	/**
+	 * @return <code>true</code> if the file is a ZIP archive, by its extension.
+	 */
+	public static boolean isArchive(File file) {
+		return ARCHIVE_EXTENSION.equals(ToolType.getExtension(file));
+	}
+
+	/**
+	 * Lists the entries of the archive a tool can convert, reading only its central directory. Directories, entries
+	 * of other types and entries whose path would lead out of the output directory are skipped.
+	 *
+	 * @param archive - The ZIP archive.
+	 * @return The convertible entries in archive order.
+	 * @throws IOException - If the archive cannot be read.
+	 */
+	public static List<ArchiveEntry> list(File archive) throws IOException {
+		List<ArchiveEntry> entries = new ArrayList<ArchiveEntry>();
+		try (ZipFile zip = new ZipFile(archive)) {
+			Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+			while (zipEntries.hasMoreElements()) {
+				ZipEntry zipEntry = zipEntries.nextElement();
+				if (zipEntry.isDirectory()) {
+					continue;
+				}
+				String name = zipEntry.getName();
+				if (!isContained(name)) {
+					logger.warn("Skipping entry: {} of archive: {} -- its path leads out of the archive", name, archive);
+				} else if (ToolType.forFile(new File(name)) == null) {
+					logger.debug("Skipping entry: {} of archive: {} -- file type unknown", name, archive);
+				} else {
+					// the size is -1 if the archive doesn't record it
+					entries.add(new ArchiveEntry(archive, name, Math.max(0, zipEntry.getSize())));
+				}
+			}
+		}
+		return entries;
+	}
+
+	/*
+	 * An entry path is only used if it stays under the directory it is resolved against.
+	 */
+	private static boolean isContained(String name) {
+		try {
+			Path path = Paths.get(name).normalize();
+			return !name.contains("\\") && !path.isAbsolute() && !path.toString().isEmpty() && !path.startsWith("..");
+		} catch (InvalidPathException e) {
+			return false;
+		}
+	}
+
+	public File getArchive() {
+		return archive;
+	}
+
+	/**
+	 * @return The path of the entry in the archive.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return Uncompressed size of the entry, or 0 if the archive doesn't record it.
+	 */
+	public long getSizeBytes() {
+		return sizeBytes;
+	}
+
+	/**
+	 * @return The entry as the path it would have if the archive were a directory, e.g. for reporting. No such file exists.
+	 */
+	public File getPath() {
+		return new File(archive, name);
+	}
+
+	/**
+	 * @param outputDir - The directory converted files are written to.
+	 * @return The directory the entry's converted file is written to: a directory named after the archive, without
+	 * 		its extension, with the entry's parent directories under it.
+	 */
+	public File getOutputDirectory(File outputDir) {
+		String archiveName = archive.getName();
+		File dir = new File(outputDir, archiveName.substring(0, archiveName.length() - ARCHIVE_EXTENSION.length() - 1));
+		String parent = new File(name).getParent();
+		return parent == null ? dir : new File(dir, parent);
+	}
+
+	/**
+	 * Copies the entry out of the archive.
+	 *
+	 * @param dir - Existing directory the entry is copied to, under the entry's file name.
+	 * @return The copied file.
+	 * @throws IOException - If the entry cannot be read from the archive or written.
+	 */
+	public File extractTo(File dir) throws IOException {
+		try (ZipFile zip = new ZipFile(archive)) {
+			ZipEntry zipEntry = zip.getEntry(name);
+			if (zipEntry == null) {
+				throw new FileNotFoundException("No entry: " + name + " in archive: " + archive);
+			}
+			File file = new File(dir, new File(name).getName());
+			try (InputStream in = zip.getInputStream(zipEntry)) {
+				Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			return file;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return archive.getPath() + "!/" + name;
+	}
+}
@@ -0,0 +1,175 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * One directory of a {@link ConversionCache}, holding converted files named by their cache key and limited in size
+ * on its own. Entries are written under a temporary name and renamed into place, so readers, including other nodes
+ * sharing the directory, never see a partly written file and no locks are needed. A hit renews the entry's
+ * modification time, and the least recently used entries are evicted once the directory exceeds its size.
+ */
+class CacheTier {
+
+	static final String ENTRY_SUFFIX = ".pdf";
+	static final String TEMP_PREFIX = ".tmp-";
+
+	// evicting down to below the maximum leaves room for a number of entries before the next eviction
+	private static final double EVICT_TO_FRACTION = 0.9;
+	// temporary files older than this were left by a writer that died
+	private static final long ABANDONED_TEMP_MILLIS = 60 * 60 * 1000L;
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final String name;
+	private final Path directory;
+	private final long maxBytes;
+	// this process's view of the size; entries written by other nodes are only counted when evicting
+	private final AtomicLong sizeBytes = new AtomicLong();
+
+	/**
+	 * @param name - Name of the tier for logging.
+	 * @param directory - Directory holding the entries.
+	 * @param maxBytes - Size of the entries above which the least recently used are evicted; unlimited if less than 1.
+	 */
+	CacheTier(String name, File directory, long maxBytes) {
+		this.name = name;
+		this.directory = directory.toPath().toAbsolutePath();
+		this.maxBytes = maxBytes;
+		if (maxBytes > 0) {
+			evict();
+		}
+	}
+
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * @return The entry for the key or <code>null</code> if there is none.
+	 */
+	File get(String key) {
+		Path entry = entryPath(key);
+		if (!Files.isRegularFile(entry)) {
+			return null;
+		}
+		try {
+			Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+			// evicted meanwhile, or a read-only tier
+			logger.trace("Could not renew cache entry: {} -- {}", entry, e.getMessage());
+		}
+		return entry.toFile();
+	}
+
+	/**
+	 * Adds a copy of the file as the entry for the key unless there already is one.
+	 */
+	void put(String key, File file) throws IOException {
+		Path entry = entryPath(key);
+		if (Files.exists(entry)) {
+			return;
+		}
+		Files.createDirectories(entry.getParent());
+		Path temp = entry.resolveSibling(TEMP_PREFIX + UUID.randomUUID() + ENTRY_SUFFIX);
+		try {
+			Files.copy(file.toPath(), temp);
+			Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		if (maxBytes > 0 && sizeBytes.addAndGet(file.length()) > maxBytes) {
+			evict();
+		}
+	}
+
+	/*
+	 * Deletes the least recently used entries until the tier is back under its size.
+	 */
+	private synchronized void evict() {
+		if (!Files.isDirectory(directory)) {
+			return;
+		}
+		List<Path> entries = new ArrayList<Path>();
+		List<BasicFileAttributes> attributes = new ArrayList<BasicFileAttributes>();
+		long total = 0;
+		long now = System.currentTimeMillis();
+		try (Stream<Path> files = Files.walk(directory, 2)) {
+			for (Path file : (Iterable<Path>)files::iterator) {
+				BasicFileAttributes attrs;
+				try {
+					attrs = Files.readAttributes(file, BasicFileAttributes.class);
+				} catch (IOException e) {
+					continue; // evicted by another node meanwhile
+				}
+				String fileName = file.getFileName().toString();
+				if (!attrs.isRegularFile() || !fileName.endsWith(ENTRY_SUFFIX)) {
+					continue;
+				}
+				if (fileName.startsWith(TEMP_PREFIX)) {
+					if (now - attrs.lastModifiedTime().toMillis() > ABANDONED_TEMP_MILLIS) {
+						Files.deleteIfExists(file);
+					}
+					continue;
+				}
+				entries.add(file);
+				attributes.add(attrs);
+				total += attrs.size();
+			}
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Could not list {} cache: {} -- {}", name, directory, e.getMessage());
+			return;
+		}
+		if (total > maxBytes) {
+			List<Integer> order = new ArrayList<Integer>();
+			for (int i = 0; i < entries.size(); i++) {
+				order.add(i);
+			}
+			order.sort(Comparator.comparing(i -> attributes.get(i).lastModifiedTime()));
+			long target = (long)(maxBytes * EVICT_TO_FRACTION);
+			int evicted = 0;
+			for (int i : order) {
+				if (total <= target) {
+					break;
+				}
+				try {
+					Files.deleteIfExists(entries.get(i));
+					evicted++;
+				} catch (IOException e) {
+					logger.debug("Could not evict cache entry: {} -- {}", entries.get(i), e.getMessage());
+				}
+				total -= attributes.get(i).size();
+			}
+			logger.debug("Evicted {} entries from {} cache: {}, now {} bytes", evicted, name, directory, total);
+		}
+		sizeBytes.set(total);
+	}
+
+	private Path entryPath(String key) {
+		// spread over sub-directories to keep directories small
+		return directory.resolve(key.substring(0, 2)).resolve(key + ENTRY_SUFFIX);
+	}
+}
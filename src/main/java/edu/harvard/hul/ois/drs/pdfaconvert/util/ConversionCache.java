@@ -0,0 +1,161 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ApplicationConstants;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.AbstractPdfaConverterTool;
+
+/**
+ * Reuses earlier conversions of the same content by the same tool with the same options. Converted files are kept
+ * in up to two tiers: a local directory on fast storage in front of a directory on a filesystem shared by all ingest
+ * nodes, so a document deposited again through another node is not converted again. A hit in the shared tier is
+ * copied into the local tier. Each tier is limited in size on its own, evicting its least recently used entries.
+ * <p>
+ * Entries are keyed on the SHA-256 digest of the input's content together with the tool and its
+ * {@link AbstractPdfaConverterTool#getConversionOptions() conversion options}, so changing a tool's options does not
+ * reuse conversions made with the old ones. Problems with the cache are logged and the conversion goes ahead.
+ */
+public class ConversionCache {
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final List<CacheTier> tiers = new ArrayList<CacheTier>();
+	private final AtomicInteger hitCount = new AtomicInteger();
+
+	/**
+	 * @param localDir - Directory of the local tier, or <code>null</code> for none.
+	 * @param localMaxBytes - Size of the local tier; unlimited if less than 1.
+	 * @param sharedDir - Directory of the shared tier, or <code>null</code> for none.
+	 * @param sharedMaxBytes - Size of the shared tier; unlimited if less than 1.
+	 */
+	public ConversionCache(File localDir, long localMaxBytes, File sharedDir, long sharedMaxBytes) {
+		if (localDir != null) {
+			tiers.add(new CacheTier("local", localDir, localMaxBytes));
+		}
+		if (sharedDir != null) {
+			tiers.add(new CacheTier("shared", sharedDir, sharedMaxBytes));
+		}
+	}
+
+	/**
+	 * Creates the cache configured in the project properties.
+	 *
+	 * @return The cache or <code>null</code> if no tier is configured.
+	 */
+	public static ConversionCache fromProperties(Properties props) {
+		String localDir = props.getProperty(ApplicationConstants.CACHE_DIR_PROP);
+		String sharedDir = props.getProperty(ApplicationConstants.SHARED_CACHE_DIR_PROP);
+		if (StringUtils.isBlank(localDir) && StringUtils.isBlank(sharedDir)) {
+			return null;
+		}
+		String localMax = props.getProperty(ApplicationConstants.CACHE_MAX_BYTES_PROP);
+		String sharedMax = props.getProperty(ApplicationConstants.SHARED_CACHE_MAX_BYTES_PROP);
+		return new ConversionCache(StringUtils.isBlank(localDir) ? null : new File(localDir.trim()),
+				StringUtils.isBlank(localMax) ? 0 : Long.parseLong(localMax.trim()),
+				StringUtils.isBlank(sharedDir) ? null : new File(sharedDir.trim()),
+				StringUtils.isBlank(sharedMax) ? 0 : Long.parseLong(sharedMax.trim()));
+	}
+
+	/**
+	 * @return The key of the input's conversion by the tool, or <code>null</code> if the input could not be read,
+	 * 		   in which case the conversion fails on its own.
+	 */
+	public String key(File inputFile, AbstractPdfaConverterTool tool) {
+		String inputHash;
+		try {
+			inputHash = ContentHash.sha256(inputFile);
+		} catch (IOException e) {
+			logger.debug("Could not hash input: {} -- {}", inputFile, e.getMessage());
+			return null;
+		}
+		return key(inputHash, tool.getClass().getSimpleName(), tool.getConversionOptions());
+	}
+
+	/**
+	 * @return The key of a conversion of content with the given hash by the named tool with the given options.
+	 */
+	public static String key(String inputHash, String toolName, List<String> options) {
+		StringBuilder key = new StringBuilder(inputHash).append('\n').append(toolName);
+		for (String option : options) {
+			key.append('\n').append(option);
+		}
+		return ContentHash.sha256(key.toString());
+	}
+
+	/**
+	 * Copies the cached conversion for the key to the output file, promoting a shared entry to the local tier.
+	 *
+	 * @param key - The conversion's key.
+	 * @param outputFile - Where the converted file is expected.
+	 * @param deleteConvertedFile - <code>true</code> delete the output file when the returned output is closed. The
+	 * 		   caller tracks the file with the {@link ConvertedFileSweeper} in case the output is never closed.
+	 * @return The output or <code>null</code> if the conversion is not cached.
+	 */
+	public PdfaConverterOutput retrieve(String key, File outputFile, boolean deleteConvertedFile) {
+		for (int i = 0; i < tiers.size(); i++) {
+			File entry = tiers.get(i).get(key);
+			if (entry == null) {
+				continue;
+			}
+			try {
+				Files.copy(entry.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				// evicted between finding and copying it
+				logger.debug("Could not copy {} cache entry: {} -- {}", tiers.get(i).getName(), entry, e.getMessage());
+				continue;
+			}
+			for (int j = 0; j < i; j++) {
+				put(tiers.get(j), key, entry);
+			}
+			hitCount.incrementAndGet();
+			logger.debug("Reused conversion from {} cache for: {}", tiers.get(i).getName(), outputFile.getName());
+			return new PdfaConverterOutput(outputFile, "Reused cached conversion: " + key, deleteConvertedFile);
+		}
+		return null;
+	}
+
+	/**
+	 * Adds a converted file to every tier.
+	 */
+	public void store(String key, File convertedFile) {
+		for (CacheTier tier : tiers) {
+			put(tier, key, convertedFile);
+		}
+	}
+
+	/**
+	 * @return The number of conversions reused from the cache.
+	 */
+	public int getHitCount() {
+		return hitCount.get();
+	}
+
+	private static void put(CacheTier tier, String key, File file) {
+		try {
+			tier.put(key, file);
+		} catch (IOException e) {
+			logger.warn("Could not add to {} cache: {} -- {}", tier.getName(), file.getName(), e.getMessage());
+		}
+	}
+}
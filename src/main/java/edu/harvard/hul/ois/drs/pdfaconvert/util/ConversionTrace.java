@@ -0,0 +1,162 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.util;
+
+/**
+ * Times of the phases of one conversion, collected on the thread running it so that the tools need not pass
+ * anything around: a conversion is {@link #begin() begun} and {@link #end() ended} by whoever runs it, and the
+ * tools mark the phases as they reach them. Marks made on a thread with no conversion begun are ignored.
+ * A tool's run spans from its launch, or the request to a long-running worker, to its exit or reply.
+ * <p>
+ * Part of a conversion run on another thread is traced by handing that thread the {@link #current() current}
+ * trace to {@link #resume(ConversionTrace) resume} while only one thread works on the conversion at a time, as
+ * pipeline stages do, or by tracing it separately and {@link #add(ConversionTrace) adding} the part to the
+ * conversion afterwards, as is done for the attempt that wins a hedged conversion.
+ */
+public final class ConversionTrace {
+
+	private static final ThreadLocal<ConversionTrace> current = new ThreadLocal<ConversionTrace>();
+
+	private String tool;
+	private long spawnMillis;
+	private long exitMillis;
+	private int exitCode = -1;
+	private long transferMillis;
+	private long transferStartMillis;
+
+	private ConversionTrace() {
+	}
+
+	/**
+	 * Starts tracing a conversion on the calling thread.
+	 */
+	public static void begin() {
+		current.set(new ConversionTrace());
+	}
+
+	/**
+	 * Stops tracing the conversion on the calling thread.
+	 *
+	 * @return The trace, or <code>null</code> if none was begun.
+	 */
+	public static ConversionTrace end() {
+		ConversionTrace trace = current.get();
+		current.remove();
+		return trace;
+	}
+
+	/**
+	 * @return The conversion traced on the calling thread, or <code>null</code> if none was begun.
+	 */
+	public static ConversionTrace current() {
+		return current.get();
+	}
+
+	/**
+	 * Continues tracing a conversion begun on another thread on the calling thread, until {@link #end()}.
+	 *
+	 * @param trace - The trace, or <code>null</code> to leave the calling thread untraced.
+	 */
+	public static void resume(ConversionTrace trace) {
+		if (trace == null) {
+			current.remove();
+		} else {
+			current.set(trace);
+		}
+	}
+
+	/**
+	 * Adds the tool runs and transfers of part of the conversion traced separately, after those already marked, to
+	 * the conversion traced on the calling thread.
+	 *
+	 * @param part - The trace of the part, ignored if <code>null</code>.
+	 */
+	public static void add(ConversionTrace part) {
+		ConversionTrace trace = current.get();
+		if (trace == null || part == null) {
+			return;
+		}
+		if (part.spawnMillis != 0) {
+			toolRan(part.tool, part.spawnMillis, part.exitMillis, part.exitCode);
+		}
+		trace.transferMillis += part.transferMillis;
+	}
+
+	/**
+	 * Marks a run of a tool. The first run of a conversion gives its spawn time and the last its exit.
+	 */
+	public static void toolRan(String toolName, long startMillis, long endMillis, int exitCode) {
+		ConversionTrace trace = current.get();
+		if (trace != null) {
+			if (trace.spawnMillis == 0) {
+				trace.tool = toolName;
+				trace.spawnMillis = startMillis;
+			}
+			trace.exitMillis = endMillis;
+			trace.exitCode = exitCode;
+		}
+	}
+
+	/**
+	 * Marks the start of copying files to or from another system.
+	 */
+	public static void transferStarted() {
+		ConversionTrace trace = current.get();
+		if (trace != null) {
+			trace.transferStartMillis = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Marks the end of a transfer, adding its time to that of the conversion's other transfers.
+	 */
+	public static void transferEnded() {
+		ConversionTrace trace = current.get();
+		if (trace != null && trace.transferStartMillis != 0) {
+			trace.transferMillis += System.currentTimeMillis() - trace.transferStartMillis;
+			trace.transferStartMillis = 0;
+		}
+	}
+
+	/**
+	 * @return The name of the tool whose process ran, or <code>null</code> if none did.
+	 */
+	public String getTool() {
+		return tool;
+	}
+
+	/**
+	 * @return Time the tool's process started or 0 if none did.
+	 */
+	public long getSpawnMillis() {
+		return spawnMillis;
+	}
+
+	/**
+	 * @return Time the tool's process exited or 0 if none did.
+	 */
+	public long getExitMillis() {
+		return exitMillis;
+	}
+
+	/**
+	 * @return The exit code of the tool's process or -1 if unknown.
+	 */
+	public int getExitCode() {
+		return exitCode;
+	}
+
+	/**
+	 * @return Total milliseconds spent copying files to and from another system.
+	 */
+	public long getTransferMillis() {
+		return transferMillis;
+	}
+}
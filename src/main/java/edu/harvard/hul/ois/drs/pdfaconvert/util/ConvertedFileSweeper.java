@@ -0,0 +1,156 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.util;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ApplicationConstants;
+import edu.harvard.hul.ois.drs.pdfaconvert.ConverterConfig;
+
+/**
+ * Tracks converted files that were requested to be deleted and removes those whose output was never closed
+ * once a time-to-live has passed. This replaces <code>File.deleteOnExit()</code> which, in a long-running JVM,
+ * keeps every path in memory and every file on disk until shutdown. Files of the shared sweeper still tracked
+ * when the JVM exits are deleted then.
+ */
+public class ConvertedFileSweeper {
+
+	/** Default time-to-live of an abandoned converted file if not configured. */
+	public static final long DEFAULT_TTL_MINUTES = 60;
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private static ConvertedFileSweeper instance;
+
+	// tracked file -> time in millis after which the file is considered abandoned
+	private final Map<File, Long> expirations = new ConcurrentHashMap<File, Long>();
+	private final long ttlMillis;
+	private final ScheduledExecutorService executor;
+
+	/**
+	 * @param ttlMillis Time a tracked file may remain on disk before being deleted.
+	 * @param sweepIntervalMillis How often to check for expired files; no background thread if less than 1.
+	 */
+	public ConvertedFileSweeper(long ttlMillis, long sweepIntervalMillis) {
+		this.ttlMillis = ttlMillis;
+		if (sweepIntervalMillis > 0) {
+			executor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "converted-file-sweeper");
+				thread.setDaemon(true);
+				return thread;
+			});
+			executor.scheduleWithFixedDelay(this::sweep, sweepIntervalMillis, sweepIntervalMillis, TimeUnit.MILLISECONDS);
+		} else {
+			executor = null;
+		}
+	}
+
+	/**
+	 * Returns the shared sweeper, creating it using the configured time-to-live on first use and deleting its
+	 * tracked files when the JVM exits. The sweeper keeps the time-to-live it was created with.
+	 */
+	public static synchronized ConvertedFileSweeper getInstance(ConverterConfig config) {
+		if (instance == null) {
+			long ttlMinutes = config.getLong(ApplicationConstants.CONVERTED_FILE_TTL_MINUTES_PROP, DEFAULT_TTL_MINUTES);
+			long ttlMillis = TimeUnit.MINUTES.toMillis(ttlMinutes);
+			// sweep a few times per TTL so files don't outlive it by much
+			instance = new ConvertedFileSweeper(ttlMillis, Math.max(1000, ttlMillis / 4));
+			// the sweeper thread is a daemon so a short run ends before any file expires
+			ShutdownSequence.register(ShutdownSequence.Stage.OUTPUT, "converted file sweeper", instance::deleteAll);
+			logger.debug("Created converted file sweeper with TTL of {} minutes", ttlMinutes);
+		}
+		return instance;
+	}
+
+	/**
+	 * Stops the shared sweeper tracking a file. Nothing is tracked if the shared sweeper was never created.
+	 */
+	public static synchronized void releaseShared(File file) {
+		if (instance != null) {
+			instance.release(file);
+		}
+	}
+
+	/**
+	 * Start tracking a file to be deleted if not released before its time-to-live expires.
+	 */
+	public void track(File file) {
+		expirations.put(file.getAbsoluteFile(), System.currentTimeMillis() + ttlMillis);
+	}
+
+	/**
+	 * Stop tracking a file, e.g. because its owner has closed it.
+	 */
+	public void release(File file) {
+		expirations.remove(file.getAbsoluteFile());
+	}
+
+	/**
+	 * @return The number of files currently tracked.
+	 */
+	public int getTrackedCount() {
+		return expirations.size();
+	}
+
+	/**
+	 * Deletes tracked files whose time-to-live has passed.
+	 *
+	 * @return The number of files removed from tracking.
+	 */
+	public int sweep() {
+		return sweep(System.currentTimeMillis());
+	}
+
+	/**
+	 * Deletes all tracked files whatever their time-to-live, e.g. when the JVM exits.
+	 *
+	 * @return The number of files removed from tracking.
+	 */
+	public int deleteAll() {
+		return sweep(Long.MAX_VALUE);
+	}
+
+	private int sweep(long now) {
+		int swept = 0;
+		Iterator<Map.Entry<File, Long>> iter = expirations.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<File, Long> entry = iter.next();
+			if (entry.getValue() <= now) {
+				iter.remove();
+				File file = entry.getKey();
+				if (file.exists() && !file.delete()) {
+					logger.warn("Could not delete abandoned converted file: {}", file);
+				} else {
+					logger.debug("Swept abandoned converted file: {}", file);
+				}
+				swept++;
+			}
+		}
+		return swept;
+	}
+
+	/**
+	 * Stops the background sweep. Tracked files are left as they are.
+	 */
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+}
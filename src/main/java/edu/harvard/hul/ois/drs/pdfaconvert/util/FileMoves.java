@@ -0,0 +1,85 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.util;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+/**
+ * Moves files without replacing a file already at the target, which a rename would silently do.
+ */
+public final class FileMoves {
+
+	// numbered names tried for a file moved where its name is taken
+	private static final int MAX_NUMBERED_NAMES = 1000;
+
+	private FileMoves() {
+	}
+
+	/**
+	 * Moves a file into a directory under its own name, or a numbered name if that is taken, e.g. report-1.docx.
+	 *
+	 * @param source - The file to move.
+	 * @param dir - The directory to move it into.
+	 * @return Where the file was moved to.
+	 * @throws IOException - If the file could not be moved, e.g. as all the numbered names are taken.
+	 */
+	public static Path moveToDirectory(Path source, Path dir) throws IOException {
+		String name = source.getFileName().toString();
+		// numbered before the first dot as the converted file is named after the part before it
+		int dot = name.indexOf('.', 1);
+		String base = dot < 0 ? name : name.substring(0, dot);
+		String extension = dot < 0 ? "" : name.substring(dot);
+		Path target = dir.resolve(name);
+		for (int i = 1; ; i++) {
+			try {
+				moveNoReplace(source, target);
+				return target;
+			} catch (FileAlreadyExistsException e) {
+				if (i > MAX_NUMBERED_NAMES) {
+					throw e;
+				}
+				target = dir.resolve(base + "-" + i + extension);
+			}
+		}
+	}
+
+	/**
+	 * Moves a file, failing with FileAlreadyExistsException rather than replacing a file at the target as a rename
+	 * would. The file is linked at the target, which fails if it exists, then removed from the source. Of several
+	 * processes moving the same file at once only one removes it; the others undo their link and fail as if it were gone.
+	 * A file that can't be linked at the target, e.g. as it is on another file system, is moved by the file system
+	 * instead, which also refuses to replace the target but may not be alone in moving the file.
+	 *
+	 * @param source - The file to move.
+	 * @param target - Where to move it.
+	 * @throws IOException - If the file could not be moved, FileAlreadyExistsException if the target exists.
+	 */
+	public static void moveNoReplace(Path source, Path target) throws IOException {
+		try {
+			Files.createLink(target, source);
+		} catch (FileAlreadyExistsException | NoSuchFileException e) {
+			throw e;
+		} catch (FileSystemException | UnsupportedOperationException e) {
+			Files.move(source, target);
+			return;
+		}
+		try {
+			Files.delete(source);
+		} catch (IOException e) {
+			Files.deleteIfExists(target);
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.util;
+
+import java.io.File;
+
+/**
+ * Records the phases of conversions as Java Flight Recorder events, so that a recording shows what the converter
+ * was doing alongside garbage collection, I/O and CPU samples. A phase is {@link #begin(Phase, String, File) begun}
+ * where it starts and its {@link Span} ended where it ends, on the same thread.
+ * <p>
+ * The events are only created when running on a JVM with Flight Recorder and only while a recording has them
+ * enabled; otherwise a span does nothing, so phases can be marked unconditionally.
+ */
+public final class FlightEvents {
+
+	/** Phases of a conversion recorded as events. */
+	public enum Phase {
+		/** Conversion of an input file, from the choice of tool to the converted file. */
+		CONVERSION,
+		/** Launch of a tool's process. */
+		PROCESS_SPAWN,
+		/** A tool's process, from its launch to its exit and the end of its output. */
+		PROCESS,
+		/** Reading the rest of a tool's output once its process exits. */
+		OUTPUT_DRAIN,
+		/** Checking and handing over a converted file. */
+		FILE_RETRIEVAL,
+		/** Copying an input file to another system. */
+		REMOTE_UPLOAD,
+		/** Copying a converted file from another system. */
+		REMOTE_DOWNLOAD
+	}
+
+	private static final boolean AVAILABLE = isAvailable();
+
+	static final Span DISABLED = new Span();
+
+	private FlightEvents() {
+	}
+
+	/**
+	 * Begins a phase on the calling thread.
+	 *
+	 * @param phase - The phase begun.
+	 * @param tool - Name of the tool doing the phase.
+	 * @param inputFile - The file being converted, or <code>null</code> if not known where the phase begins.
+	 * @return The span to end when the phase ends.
+	 */
+	public static Span begin(Phase phase, String tool, File inputFile) {
+		return AVAILABLE ? JfrEvents.begin(phase, tool, inputFile) : DISABLED;
+	}
+
+	private static boolean isAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+
+	/**
+	 * A phase being recorded. Does nothing unless Flight Recorder is recording the phase's event.
+	 */
+	public static class Span {
+
+		Span() {
+		}
+
+		/**
+		 * @return <code>true</code> if the phase is being recorded, e.g. to skip looking up values only recorded.
+		 */
+		public boolean isRecording() {
+			return false;
+		}
+
+		/**
+		 * @param exitCode - The exit code of the tool's process.
+		 */
+		public Span setExitCode(int exitCode) {
+			return this;
+		}
+
+		/**
+		 * @param bytes - The number of bytes produced or moved by the phase.
+		 */
+		public Span setBytes(long bytes) {
+			return this;
+		}
+
+		/**
+		 * @param failure - Why the phase failed.
+		 */
+		public Span setFailure(Throwable failure) {
+			return this;
+		}
+
+		/**
+		 * Ends the phase and records its event.
+		 */
+		public void end() {
+		}
+	}
+}
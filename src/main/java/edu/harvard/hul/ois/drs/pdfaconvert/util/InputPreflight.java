@@ -0,0 +1,359 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.CorruptInputException;
+import edu.harvard.hul.ois.drs.pdfaconvert.EncryptedInputException;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.ToolType;
+
+/**
+ * Cheap checks of an input before an external tool is launched for it, rejecting inputs the tools cannot
+ * convert and would only fail on slowly or hang on. Reads only the parts of the file that give it away:
+ * <ul>
+ * <li>ZIP containers (DOCX, ODT, EPUB): the central directory at the end of the file, which is missing from a
+ * truncated file, and the ODF manifest, which lists encryption data for password protected documents.</li>
+ * <li>OLE2 compound files (DOC, and password protected DOCX which are stored as OLE2): the sector allocation table
+ * and directory, which reference sectors past the end of a truncated file, the encryption streams of protected
+ * OOXML and PowerPoint files, and the encryption flag in a Word document's header.</li>
+ * <li>PDF: the header, the <code>%%EOF</code> marker missing from a truncated file, and an <code>/Encrypt</code>
+ * entry in the trailer.</li>
+ * </ul>
+ * The type is recognized from the file's content, not its extension. Other inputs are only checked for being empty.
+ */
+public final class InputPreflight {
+
+	private static final byte[] ZIP_SIGNATURE = {'P', 'K', 3, 4};
+	private static final int MAX_MANIFEST_BYTES = 1024 * 1024;
+	private static final byte[] OLE2_SIGNATURE = {(byte)0xD0, (byte)0xCF, 0x11, (byte)0xE0, (byte)0xA1, (byte)0xB1, 0x1A, (byte)0xE1};
+	private static final String PDF_HEADER = "%PDF-";
+	// the header and end marker may be preceded or followed by some junk
+	private static final int PDF_HEADER_WINDOW = 1024;
+	private static final int PDF_EOF_WINDOW = 1024;
+	private static final int PDF_TRAILER_WINDOW = 64 * 1024;
+	private static final int PDF_XREF_STREAM_WINDOW = 16 * 1024;
+	private static final Pattern PDF_ENCRYPT = Pattern.compile("/Encrypt(?![A-Za-z])");
+	private static final Pattern PDF_STARTXREF = Pattern.compile("startxref\\s+(\\d+)");
+
+	private static final int OLE2_END_OF_CHAIN = 0xFFFFFFFE;
+	private static final int OLE2_FREE_SECTOR = 0xFFFFFFFF;
+	private static final int OLE2_HEADER_DIFAT_ENTRIES = 109;
+	private static final int OLE2_DIRECTORY_ENTRY_SIZE = 128;
+	private static final int OLE2_MINI_SECTOR_SIZE = 64;
+	private static final int WORD_FIB_IDENT = 0xA5EC;
+	private static final int WORD_FIB_ENCRYPTED = 0x0100;
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private InputPreflight() {
+	}
+
+	/**
+	 * Checks the input, returning quietly unless it is certain to fail conversion.
+	 *
+	 * @param inputFile - The input to check.
+	 * @throws EncryptedInputException - If the input is password protected.
+	 * @throws CorruptInputException - If the input is empty, truncated or not of the type its extension claims.
+	 */
+	public static void check(File inputFile) {
+		long start = System.currentTimeMillis();
+		try (RandomAccessFile file = new RandomAccessFile(inputFile, "r")) {
+			if (file.length() == 0) {
+				throw new CorruptInputException("Input is empty: " + inputFile.getName());
+			}
+			byte[] head = read(file, 0, (int)Math.min(file.length(), PDF_HEADER_WINDOW));
+			if (startsWith(head, OLE2_SIGNATURE)) {
+				checkOle2(inputFile, file);
+			} else if (startsWith(head, ZIP_SIGNATURE)) {
+				checkZip(inputFile);
+			} else if (new String(head, StandardCharsets.ISO_8859_1).contains(PDF_HEADER)) {
+				checkPdf(inputFile, file);
+			} else if (ToolType.PDFA_PILOT == ToolType.forFile(inputFile)) {
+				throw new CorruptInputException("Input has no PDF header: " + inputFile.getName());
+			}
+		} catch (IOException e) {
+			// let the tool report a file it can't read
+			logger.debug("Could not pre-flight input: {} -- {}", inputFile, e.getMessage());
+		}
+		logger.debug("Pre-flight of {} passed in {} ms", inputFile.getName(), System.currentTimeMillis() - start);
+	}
+
+	/*
+	 * Opening the file reads the central directory, which is the last thing written so is lost if the file is truncated.
+	 */
+	private static void checkZip(File inputFile) throws IOException {
+		try (ZipFile zip = new ZipFile(inputFile)) {
+			ZipEntry manifest = zip.getEntry("META-INF/manifest.xml");
+			if (manifest != null && manifest.getSize() < MAX_MANIFEST_BYTES) {
+				try (InputStream in = zip.getInputStream(manifest)) {
+					String text = new String(readFully(in), StandardCharsets.UTF_8);
+					if (text.contains("encryption-data")) {
+						throw new EncryptedInputException("Input is password protected: " + inputFile.getName());
+					}
+				}
+			}
+		} catch (ZipException e) {
+			throw new CorruptInputException("Input is a damaged or truncated ZIP container: " + inputFile.getName() + " -- " + e.getMessage(), e);
+		}
+	}
+
+	/*
+	 * Reads the allocation table and directory of a compound file, checking every sector they use is in the file.
+	 */
+	private static void checkOle2(File inputFile, RandomAccessFile file) throws IOException {
+		long length = file.length();
+		if (length < 512) {
+			throw truncated(inputFile);
+		}
+		ByteBuffer header = ByteBuffer.wrap(read(file, 0, 512)).order(ByteOrder.LITTLE_ENDIAN);
+		int sectorSize = 1 << header.getShort(0x1E);
+		if (sectorSize != 512 && sectorSize != 4096) {
+			throw new CorruptInputException("Input is a damaged compound file: " + inputFile.getName());
+		}
+		long maxSectors = length / sectorSize;
+		int fatSectorCount = header.getInt(0x2C);
+		int directoryStart = header.getInt(0x30);
+		long miniStreamCutoff = header.getInt(0x38) & 0xFFFFFFFFL;
+		int difatStart = header.getInt(0x44);
+		if (fatSectorCount < 0 || fatSectorCount > maxSectors) {
+			throw truncated(inputFile);
+		}
+
+		// locate the sectors of the allocation table, first listed in the header then in a chain of DIFAT sectors
+		List<Integer> fatSectors = new ArrayList<Integer>();
+		for (int i = 0; i < OLE2_HEADER_DIFAT_ENTRIES && fatSectors.size() < fatSectorCount; i++) {
+			fatSectors.add(header.getInt(0x4C + i * 4));
+		}
+		int difatSector = difatStart;
+		for (int hops = 0; fatSectors.size() < fatSectorCount; hops++) {
+			if (hops > maxSectors) {
+				throw truncated(inputFile);
+			}
+			ByteBuffer difat = readSector(inputFile, file, difatSector, sectorSize);
+			for (int i = 0; i < sectorSize / 4 - 1 && fatSectors.size() < fatSectorCount; i++) {
+				fatSectors.add(difat.getInt(i * 4));
+			}
+			difatSector = difat.getInt(sectorSize - 4);
+		}
+		for (int fatSector : fatSectors) {
+			if (fatSector < 0 || (fatSector + 2L) * sectorSize > length) {
+				throw truncated(inputFile);
+			}
+		}
+		Fat fat = new Fat(inputFile, file, fatSectors, sectorSize);
+		// the allocation table is a small fraction of the file and tells whether all its sectors are present
+		if ((fat.highestAllocated() + 2L) * sectorSize > length) {
+			throw truncated(inputFile);
+		}
+
+		// read the directory, which names the streams in the file
+		Map<String, int[]> streams = new HashMap<String, int[]>();
+		int rootStart = OLE2_END_OF_CHAIN;
+		int sector = directoryStart;
+		for (int hops = 0; sector != OLE2_END_OF_CHAIN; hops++) {
+			if (hops > maxSectors) {
+				throw truncated(inputFile);
+			}
+			ByteBuffer directory = readSector(inputFile, file, sector, sectorSize);
+			for (int offset = 0; offset < sectorSize; offset += OLE2_DIRECTORY_ENTRY_SIZE) {
+				int nameLength = directory.getShort(offset + 0x40);
+				int type = directory.get(offset + 0x42);
+				if (nameLength < 2 || nameLength > 64) {
+					continue;
+				}
+				String name = new String(directory.array(), offset, nameLength - 2, StandardCharsets.UTF_16LE);
+				int startSector = directory.getInt(offset + 0x74);
+				int size = directory.getInt(offset + 0x78);
+				if (type == 5) {
+					rootStart = startSector;
+				} else if (type == 2) {
+					streams.put(name, new int[] {startSector, size});
+				}
+			}
+			sector = fat.next(sector);
+		}
+
+		if (streams.containsKey("EncryptionInfo") && streams.containsKey("EncryptedPackage")
+				|| streams.containsKey("EncryptedSummary")) {
+			throw new EncryptedInputException("Input is password protected: " + inputFile.getName());
+		}
+		int[] wordDocument = streams.get("WordDocument");
+		if (wordDocument != null) {
+			ByteBuffer fib = readStreamStart(inputFile, file, wordDocument, fat, rootStart, sectorSize, miniStreamCutoff);
+			if (fib.remaining() >= 12 && (fib.getShort(0) & 0xFFFF) == WORD_FIB_IDENT && (fib.getShort(0x0A) & WORD_FIB_ENCRYPTED) != 0) {
+				throw new EncryptedInputException("Input is password protected: " + inputFile.getName());
+			}
+		}
+	}
+
+	/*
+	 * Reads the first sector of a stream, which is in the mini stream if the stream is small.
+	 */
+	private static ByteBuffer readStreamStart(File inputFile, RandomAccessFile file, int[] stream, Fat fat, int rootStart,
+			int sectorSize, long miniStreamCutoff) throws IOException {
+		if ((stream[1] & 0xFFFFFFFFL) >= miniStreamCutoff) {
+			return readSector(inputFile, file, stream[0], sectorSize);
+		}
+		// the mini stream is a chain of regular sectors starting at the root entry's start sector
+		long offset = (long)stream[0] * OLE2_MINI_SECTOR_SIZE;
+		int sector = rootStart;
+		for (long skip = offset / sectorSize; skip > 0; skip--) {
+			sector = fat.next(sector);
+		}
+		ByteBuffer container = readSector(inputFile, file, sector, sectorSize);
+		container.position((int)(offset % sectorSize));
+		return container.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static ByteBuffer readSector(File inputFile, RandomAccessFile file, int sector, int sectorSize) throws IOException {
+		long position = (sector + 1L) * sectorSize;
+		if (sector < 0 || position + sectorSize > file.length()) {
+			throw truncated(inputFile);
+		}
+		return ByteBuffer.wrap(read(file, position, sectorSize)).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/*
+	 * Checks the end marker and looks for an /Encrypt entry in the last trailer, or in the dictionary of the last
+	 * cross-reference stream which takes the trailer's place in newer files.
+	 */
+	private static void checkPdf(File inputFile, RandomAccessFile file) throws IOException {
+		long length = file.length();
+		String end = new String(read(file, Math.max(0, length - PDF_EOF_WINDOW), (int)Math.min(length, PDF_EOF_WINDOW)), StandardCharsets.ISO_8859_1);
+		if (!end.contains("%%EOF")) {
+			throw truncated(inputFile);
+		}
+		String tail = new String(read(file, Math.max(0, length - PDF_TRAILER_WINDOW), (int)Math.min(length, PDF_TRAILER_WINDOW)), StandardCharsets.ISO_8859_1);
+		int startxref = tail.lastIndexOf("startxref");
+		if (startxref < 0) {
+			throw truncated(inputFile);
+		}
+		int trailer = tail.lastIndexOf("trailer", startxref);
+		String dictionary;
+		if (trailer >= 0) {
+			dictionary = tail.substring(trailer, startxref);
+		} else {
+			Matcher matcher = PDF_STARTXREF.matcher(tail.substring(startxref));
+			if (!matcher.lookingAt()) {
+				throw new CorruptInputException("Input has a damaged trailer: " + inputFile.getName());
+			}
+			long xrefOffset = Long.parseLong(matcher.group(1));
+			if (xrefOffset >= length) {
+				throw truncated(inputFile);
+			}
+			dictionary = new String(read(file, xrefOffset, (int)Math.min(length - xrefOffset, PDF_XREF_STREAM_WINDOW)), StandardCharsets.ISO_8859_1);
+			int stream = dictionary.indexOf("stream");
+			if (stream >= 0) {
+				dictionary = dictionary.substring(0, stream);
+			}
+		}
+		if (PDF_ENCRYPT.matcher(dictionary).find()) {
+			throw new EncryptedInputException("Input is password protected: " + inputFile.getName());
+		}
+	}
+
+	/*
+	 * The sector allocation table, read an entry at a time as only a few chains are followed.
+	 */
+	private static class Fat {
+		private final File inputFile;
+		private final RandomAccessFile file;
+		private final List<Integer> sectors;
+		private final int sectorSize;
+
+		Fat(File inputFile, RandomAccessFile file, List<Integer> sectors, int sectorSize) {
+			this.inputFile = inputFile;
+			this.file = file;
+			this.sectors = sectors;
+			this.sectorSize = sectorSize;
+		}
+
+		/*
+		 * Returns the highest numbered sector in use, or -1 if none.
+		 */
+		long highestAllocated() throws IOException {
+			int perSector = sectorSize / 4;
+			for (int i = sectors.size() - 1; i >= 0; i--) {
+				ByteBuffer sector = ByteBuffer.wrap(read(file, (sectors.get(i) + 1L) * sectorSize, sectorSize)).order(ByteOrder.LITTLE_ENDIAN);
+				for (int j = perSector - 1; j >= 0; j--) {
+					if (sector.getInt(j * 4) != OLE2_FREE_SECTOR) {
+						return (long)i * perSector + j;
+					}
+				}
+			}
+			return -1;
+		}
+
+		/*
+		 * Returns the sector following the given one in its chain.
+		 */
+		int next(int sector) throws IOException {
+			int perSector = sectorSize / 4;
+			if (sector < 0 || sector / perSector >= sectors.size()) {
+				throw truncated(inputFile);
+			}
+			long position = (sectors.get(sector / perSector) + 1L) * sectorSize + (sector % perSector) * 4L;
+			return ByteBuffer.wrap(read(file, position, 4)).order(ByteOrder.LITTLE_ENDIAN).getInt();
+		}
+	}
+
+	private static CorruptInputException truncated(File inputFile) {
+		return new CorruptInputException("Input is truncated or damaged: " + inputFile.getName());
+	}
+
+	private static boolean startsWith(byte[] bytes, byte[] prefix) {
+		if (bytes.length < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (bytes[i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[] read(RandomAccessFile file, long position, int length) throws IOException {
+		byte[] bytes = new byte[length];
+		file.seek(position);
+		file.readFully(bytes);
+		return bytes;
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,173 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.util;
+
+import java.io.File;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.util.FlightEvents.Phase;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.FlightEvents.Span;
+
+/*
+ * The Flight Recorder events of the phases. Only loaded by FlightEvents once it knows the jdk.jfr API is there, so
+ * nothing else may refer to this class.
+ */
+final class JfrEvents {
+
+	private static final String PREFIX = "edu.harvard.hul.ois.drs.pdfaconvert.";
+
+	private JfrEvents() {
+	}
+
+	static Span begin(Phase phase, String tool, File inputFile) {
+		PhaseEvent event = create(phase);
+		// costs no more than the allocation, which escape analysis can remove, when not recording
+		if (!event.isEnabled()) {
+			return FlightEvents.DISABLED;
+		}
+		event.tool = tool;
+		if (inputFile != null) {
+			event.inputFile = inputFile.getPath();
+			event.inputBytes = inputFile.length();
+		}
+		event.begin();
+		return new EventSpan(event);
+	}
+
+	private static PhaseEvent create(Phase phase) {
+		switch (phase) {
+		case CONVERSION:
+			return new ConversionEvent();
+		case PROCESS_SPAWN:
+			return new ProcessSpawnEvent();
+		case PROCESS:
+			return new ProcessEvent();
+		case OUTPUT_DRAIN:
+			return new OutputDrainEvent();
+		case FILE_RETRIEVAL:
+			return new FileRetrievalEvent();
+		case REMOTE_UPLOAD:
+			return new RemoteUploadEvent();
+		case REMOTE_DOWNLOAD:
+			return new RemoteDownloadEvent();
+		default:
+			throw new IllegalArgumentException("Unknown phase: " + phase);
+		}
+	}
+
+	private static class EventSpan extends Span {
+		private final PhaseEvent event;
+
+		EventSpan(PhaseEvent event) {
+			this.event = event;
+		}
+
+		@Override
+		public boolean isRecording() {
+			return true;
+		}
+
+		@Override
+		public Span setExitCode(int exitCode) {
+			event.exitCode = exitCode;
+			return this;
+		}
+
+		@Override
+		public Span setBytes(long bytes) {
+			event.bytes = bytes;
+			return this;
+		}
+
+		@Override
+		public Span setFailure(Throwable failure) {
+			event.failure = failure.getClass().getSimpleName() + ": " + failure.getMessage();
+			return this;
+		}
+
+		@Override
+		public void end() {
+			event.commit();
+		}
+	}
+
+	@Category("PDF/A Converter")
+	abstract static class PhaseEvent extends Event {
+		@Label("Tool")
+		String tool;
+
+		@Label("Input File")
+		String inputFile;
+
+		@Label("Input Size")
+		@DataAmount
+		long inputBytes;
+
+		@Label("Exit Code")
+		@Description("Exit code of the tool's process, or -1 if none")
+		int exitCode = -1;
+
+		@Label("Bytes")
+		@Description("Bytes produced or moved by the phase")
+		@DataAmount
+		long bytes;
+
+		@Label("Failure")
+		String failure;
+	}
+
+	@Name(PREFIX + "Conversion")
+	@Label("Conversion")
+	@Description("Conversion of an input file; Bytes is the size of the converted file")
+	static class ConversionEvent extends PhaseEvent {
+	}
+
+	@Name(PREFIX + "ProcessSpawn")
+	@Label("Process Spawn")
+	@Description("Launch of a tool's process")
+	static class ProcessSpawnEvent extends PhaseEvent {
+	}
+
+	@Name(PREFIX + "Process")
+	@Label("Process")
+	@Description("A tool's process from launch to exit; Bytes is the size of its output")
+	static class ProcessEvent extends PhaseEvent {
+	}
+
+	@Name(PREFIX + "OutputDrain")
+	@Label("Output Drain")
+	@Description("Reading the rest of a tool's output after its process exits; Bytes is the size of its output")
+	static class OutputDrainEvent extends PhaseEvent {
+	}
+
+	@Name(PREFIX + "FileRetrieval")
+	@Label("File Retrieval")
+	@Description("Checking and handing over a converted file; Bytes is its size")
+	static class FileRetrievalEvent extends PhaseEvent {
+	}
+
+	@Name(PREFIX + "RemoteUpload")
+	@Label("Remote Upload")
+	@Description("Copying an input file to the remote system")
+	static class RemoteUploadEvent extends PhaseEvent {
+	}
+
+	@Name(PREFIX + "RemoteDownload")
+	@Label("Remote Download")
+	@Description("Copying a converted file from the remote system; Bytes is its size")
+	static class RemoteDownloadEvent extends PhaseEvent {
+	}
+}
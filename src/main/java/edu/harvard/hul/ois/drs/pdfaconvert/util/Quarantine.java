@@ -0,0 +1,249 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.util;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
+import edu.harvard.hul.ois.drs.pdfaconvert.GeneratedFileUnavailableException;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+import edu.harvard.hul.ois.drs.pdfaconvert.QuarantinedInputException;
+
+/**
+ * Keeps inputs that repeatedly crash or time out the external tools from being converted again and again.
+ * Failures are recorded by the SHA-256 digest of the input's content together with the exception class, so a
+ * resubmitted copy under another name is recognized. Once an input has failed the configured number of times it
+ * is quarantined: the input is moved into the quarantine directory and later submissions of the same content are
+ * rejected at once with a {@link QuarantinedInputException} until it is released with {@link #release(String)}.
+ * <p>
+ * Only failures of the tools themselves count ({@link ExternalToolException} and
+ * {@link GeneratedFileUnavailableException}); a successful conversion clears an input's failures.
+ * The failure records are kept in a properties file in the quarantine directory.
+ */
+public class Quarantine {
+
+	/** Name of the file within the quarantine directory recording failures. */
+	public static final String FAILURES_FILE_NAME = "failures.properties";
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private static final Map<File, Quarantine> instances = new ConcurrentHashMap<File, Quarantine>();
+
+	private final File directory;
+	private final File failuresFile;
+	private final int maxFailures;
+	private final Properties failures = new Properties();
+
+	/**
+	 * @param directory - Directory into which quarantined inputs are moved and failures are recorded.
+	 * @param maxFailures - Number of failures after which an input is quarantined.
+	 */
+	public Quarantine(File directory, int maxFailures) {
+		this.directory = directory;
+		this.failuresFile = new File(directory, FAILURES_FILE_NAME);
+		this.maxFailures = Math.max(1, maxFailures);
+		load();
+	}
+
+	/**
+	 * Returns the quarantine kept in a directory, shared by all converters using that directory.
+	 */
+	public static Quarantine forDirectory(File directory, int maxFailures) {
+		return instances.computeIfAbsent(directory.getAbsoluteFile(), dir -> new Quarantine(dir, maxFailures));
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Runs a conversion of the input unless it is quarantined, recording its outcome.
+	 *
+	 * @param inputFile - The input being converted.
+	 * @param conversion - Converts the input.
+	 * @return The output of the conversion.
+	 * @throws QuarantinedInputException - If the input is quarantined; the conversion is not run.
+	 */
+	public PdfaConverterOutput guard(File inputFile, Supplier<PdfaConverterOutput> conversion) {
+		String hash = check(inputFile);
+		PdfaConverterOutput output;
+		try {
+			output = conversion.get();
+		} catch (ExternalToolException | GeneratedFileUnavailableException e) {
+			recordFailure(hash, inputFile, e);
+			throw e;
+		}
+		recordSuccess(hash);
+		return output;
+	}
+
+	/**
+	 * Rejects the input if it is quarantined.
+	 *
+	 * @return The input's content hash for recording the outcome of its conversion, or <code>null</code> if the
+	 * 		   input could not be read, in which case the conversion fails on its own.
+	 * @throws QuarantinedInputException - If the input is quarantined.
+	 */
+	public String check(File inputFile) {
+		String hash;
+		try {
+			hash = ContentHash.sha256(inputFile);
+		} catch (IOException e) {
+			logger.debug("Could not hash input: {} -- {}", inputFile, e.getMessage());
+			return null;
+		}
+		synchronized (this) {
+			if (isQuarantined(hash)) {
+				throw new QuarantinedInputException("Input " + inputFile.getName() + " failed " + failures.getProperty(hash + ".failures")
+						+ " times with " + failures.getProperty(hash + ".exception") + " and is quarantined as: " + hash);
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Clears the failures of an input after it converted.
+	 */
+	public synchronized void recordSuccess(String hash) {
+		if (hash != null && failures.containsKey(hash + ".failures")) {
+			remove(hash);
+			save();
+		}
+	}
+
+	/**
+	 * Counts a failure of an input, quarantining it once it reaches the configured number of failures.
+	 * Failures other than of the external tools are ignored.
+	 */
+	public synchronized void recordFailure(String hash, File inputFile, Throwable failure) {
+		if (hash == null || !(failure instanceof ExternalToolException || failure instanceof GeneratedFileUnavailableException)) {
+			return;
+		}
+		int count = Integer.parseInt(failures.getProperty(hash + ".failures", "0")) + 1;
+		failures.setProperty(hash + ".failures", Integer.toString(count));
+		failures.setProperty(hash + ".exception", failure.getClass().getSimpleName());
+		failures.setProperty(hash + ".message", StringUtils.defaultString(failure.getMessage()));
+		failures.setProperty(hash + ".path", inputFile.getAbsolutePath());
+		if (count >= maxFailures && !isQuarantined(hash)) {
+			File quarantined = new File(directory, hash + "-" + inputFile.getName());
+			directory.mkdirs();
+			try {
+				Files.move(inputFile.toPath(), quarantined.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				logger.warn("Could not move quarantined input: {} to: {} -- {}", inputFile, quarantined, e.getMessage());
+				quarantined = inputFile;
+			}
+			failures.setProperty(hash + ".quarantined", quarantined.getAbsolutePath());
+			logger.warn("Quarantined input: {} after {} failures, moved to: {} -- release with content hash: {}",
+					inputFile, count, quarantined, hash);
+		}
+		save();
+	}
+
+	/**
+	 * Releases a quarantined input so that it is converted again, moving it back to where it was found if that
+	 * location is free.
+	 *
+	 * @param hash - The content hash the input was quarantined as.
+	 * @return Where the released input now is.
+	 * @throws IllegalArgumentException - If no input is quarantined with that hash.
+	 */
+	public synchronized File release(String hash) {
+		if (!isQuarantined(hash)) {
+			throw new IllegalArgumentException("No input quarantined with content hash: " + hash);
+		}
+		File quarantined = new File(failures.getProperty(hash + ".quarantined"));
+		File original = new File(failures.getProperty(hash + ".path"));
+		File released = quarantined;
+		if (!quarantined.equals(original) && quarantined.isFile() && !original.exists()) {
+			try {
+				Files.move(quarantined.toPath(), original.toPath());
+				released = original;
+			} catch (IOException e) {
+				logger.warn("Could not move released input: {} back to: {} -- {}", quarantined, original, e.getMessage());
+			}
+		}
+		remove(hash);
+		save();
+		logger.info("Released quarantined input: {} now at: {}", hash, released);
+		return released;
+	}
+
+	/**
+	 * @return The content hashes of the quarantined inputs.
+	 */
+	public synchronized List<String> getQuarantined() {
+		List<String> hashes = new ArrayList<String>();
+		for (String key : failures.stringPropertyNames()) {
+			if (key.endsWith(".quarantined")) {
+				hashes.add(key.substring(0, key.length() - ".quarantined".length()));
+			}
+		}
+		return hashes;
+	}
+
+	private boolean isQuarantined(String hash) {
+		return failures.containsKey(hash + ".quarantined");
+	}
+
+	private void remove(String hash) {
+		for (String suffix : new String[] {".failures", ".exception", ".message", ".path", ".quarantined"}) {
+			failures.remove(hash + suffix);
+		}
+	}
+
+	/*
+	 * Writes the failure records, replacing the file atomically.
+	 */
+	private void save() {
+		directory.mkdirs();
+		File tempFile = new File(failuresFile.getAbsolutePath() + ".tmp");
+		try (Writer writer = new FileWriter(tempFile)) {
+			failures.store(writer, "Conversion failures by input content hash");
+		} catch (IOException e) {
+			logger.error("Could not write quarantine file: {}", tempFile, e);
+			return;
+		}
+		try {
+			Files.move(tempFile.toPath(), failuresFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.error("Could not replace quarantine file: {}", failuresFile, e);
+		}
+	}
+
+	private void load() {
+		if (!failuresFile.isFile()) {
+			return;
+		}
+		try (Reader reader = new FileReader(failuresFile)) {
+			failures.load(reader);
+			logger.debug("Loaded {} quarantined inputs from: {}", getQuarantined().size(), failuresFile);
+		} catch (IOException e) {
+			logger.error("Could not read quarantine file: {} -- starting without failure records", failuresFile, e);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.util;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The converter's one JVM shutdown hook, running the shutdown actions of its components a stage at a time. The JVM
+ * starts all its hooks at once in no order, so with a hook of their own the tool backends could be stopped, and
+ * the tool logs closed, while a watched directory or shared queue is still letting its running conversions finish.
+ * Components register their actions here instead; the actions of a stage run one after the other, in the order
+ * registered, once those of the stages before it have returned.
+ */
+public final class ShutdownSequence {
+
+	/** The stages of shutting down, in the order they run. */
+	public enum Stage {
+		/** Stop taking work and let running conversions finish. */
+		WORK,
+		/** Stop the tool backends, such as soffice processes, Calibre workers and remote cleanup. */
+		TOOLS,
+		/** Close the tool logs and remove converted files and office profiles no longer wanted. */
+		OUTPUT
+	}
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private static final ShutdownSequence jvmSequence = new ShutdownSequence();
+	private static boolean hookAdded;
+
+	private final Map<Stage, List<Action>> actions = new EnumMap<Stage, List<Action>>(Stage.class);
+
+	ShutdownSequence() {
+	}
+
+	/**
+	 * Adds an action to be run when the JVM shuts down.
+	 *
+	 * @param stage - The stage in which the action runs.
+	 * @param name - Name of the action for logging.
+	 * @param action - The action, which should return within a few seconds unless it is in the {@link Stage#WORK} stage.
+	 */
+	public static void register(Stage stage, String name, Runnable action) {
+		synchronized (ShutdownSequence.class) {
+			if (!hookAdded) {
+				Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+					jvmSequence.run();
+					// log4j's own hook is turned off in log4j2.xml so that the stages above can still log
+					LogManager.shutdown();
+				}, "pdfa-converter-shutdown"));
+				hookAdded = true;
+			}
+		}
+		jvmSequence.add(stage, name, action);
+	}
+
+	synchronized void add(Stage stage, String name, Runnable action) {
+		List<Action> stageActions = actions.get(stage);
+		if (stageActions == null) {
+			stageActions = new ArrayList<Action>();
+			actions.put(stage, stageActions);
+		}
+		stageActions.add(new Action(name, action));
+	}
+
+	/*
+	 * Runs the actions of each stage in turn; a failed action is logged and the rest still run.
+	 */
+	void run() {
+		for (Stage stage : Stage.values()) {
+			List<Action> stageActions;
+			synchronized (this) {
+				stageActions = actions.containsKey(stage) ? new ArrayList<Action>(actions.get(stage)) : new ArrayList<Action>();
+			}
+			for (Action action : stageActions) {
+				logger.debug("Shutting down: {}", action.name);
+				try {
+					action.runnable.run();
+				} catch (RuntimeException e) {
+					logger.warn("Could not shut down: {} -- {}", action.name, e.getMessage());
+				}
+			}
+		}
+	}
+
+	private static class Action {
+		final String name;
+		final Runnable runnable;
+
+		Action(String name, Runnable runnable) {
+			this.name = name;
+			this.runnable = runnable;
+		}
+	}
+}
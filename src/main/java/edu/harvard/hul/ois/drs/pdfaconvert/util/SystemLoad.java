@@ -0,0 +1,135 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Tells whether the machine is overloaded, judged by load average per CPU and available memory.
+ * Readings are cached briefly since they are checked after every conversion.
+ */
+public class SystemLoad {
+
+	private static final long CACHE_MILLIS = 1000;
+	private static final File MEMINFO = new File("/proc/meminfo");
+	private static final Method FREE_MEMORY_SIZE = findFreeMemorySize();
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final double maxLoadPerCpu;
+	private final long minAvailableMemoryBytes;
+	private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+	private long checkedMillis = 0;
+	private String overloadReason;
+
+	/**
+	 * @param maxLoadPerCpu - Load average per CPU above which the machine is overloaded; not checked if not positive.
+	 * @param minAvailableMemoryBytes - Available memory below which the machine is overloaded; not checked if not positive.
+	 */
+	public SystemLoad(double maxLoadPerCpu, long minAvailableMemoryBytes) {
+		this.maxLoadPerCpu = maxLoadPerCpu;
+		this.minAvailableMemoryBytes = minAvailableMemoryBytes;
+	}
+
+	/**
+	 * @return Why the machine is overloaded or <code>null</code> if it is not.
+	 */
+	public synchronized String getOverloadReason() {
+		long now = System.currentTimeMillis();
+		if (now - checkedMillis > CACHE_MILLIS) {
+			checkedMillis = now;
+			overloadReason = checkOverload();
+		}
+		return overloadReason;
+	}
+
+	/**
+	 * @return The one minute load average divided by the number of CPUs, or a negative value if not available.
+	 */
+	public double getLoadPerCpu() {
+		double load = os.getSystemLoadAverage();
+		return load < 0 ? load : load / os.getAvailableProcessors();
+	}
+
+	/**
+	 * @return Memory available to new processes without swapping, or a negative value if not available.
+	 */
+	public long getAvailableMemoryBytes() {
+		// MemAvailable counts reclaimable cache, unlike the JVM's free physical memory
+		if (MEMINFO.canRead()) {
+			try {
+				for (String line : Files.readAllLines(MEMINFO.toPath(), StandardCharsets.US_ASCII)) {
+					if (line.startsWith("MemAvailable:")) {
+						String[] parts = line.trim().split("\\s+");
+						return Long.parseLong(parts[1]) * 1024;
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				logger.debug("Could not read {}: {}", MEMINFO, e.getMessage());
+			}
+		}
+		if (FREE_MEMORY_SIZE != null) {
+			try {
+				return ((Number)FREE_MEMORY_SIZE.invoke(os)).longValue();
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				logger.debug("Could not read free memory: {}", e.getMessage());
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * The JDK's free memory getter, named getFreeMemorySize since Java 14 and getFreePhysicalMemorySize, now
+	 * deprecated, before it; looked up on the interface as the platform's implementing class is not accessible.
+	 */
+	private static Method findFreeMemorySize() {
+		try {
+			Class<?> type = Class.forName("com.sun.management.OperatingSystemMXBean");
+			if (!type.isInstance(ManagementFactory.getOperatingSystemMXBean())) {
+				return null;
+			}
+			for (String name : new String[] { "getFreeMemorySize", "getFreePhysicalMemorySize" }) {
+				try {
+					return type.getMethod(name);
+				} catch (NoSuchMethodException e) {
+					// try the older name
+				}
+			}
+		} catch (ClassNotFoundException e) {
+			// not a JDK that reports it
+		}
+		return null;
+	}
+
+	private String checkOverload() {
+		if (maxLoadPerCpu > 0) {
+			double loadPerCpu = getLoadPerCpu();
+			if (loadPerCpu > maxLoadPerCpu) {
+				return String.format("load average per CPU %.2f above %.2f", loadPerCpu, maxLoadPerCpu);
+			}
+		}
+		if (minAvailableMemoryBytes > 0) {
+			long available = getAvailableMemoryBytes();
+			if (available >= 0 && available < minAvailableMemoryBytes) {
+				return "available memory " + available + " bytes below " + minAvailableMemoryBytes;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,207 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Writes and reads tar streams of plain files, so that files can be sent to and received from a remote
+ * <code>tar</code> through a pipe without an archive on disk. Only what is needed for that is supported: entries
+ * written are regular files with names of up to 100 characters, and entries other than regular files are skipped
+ * when reading.
+ */
+public final class TarStreams {
+
+	private static final int BLOCK_SIZE = 512;
+	private static final int NAME_LENGTH = 100;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private TarStreams() {
+	}
+
+	/**
+	 * Writes the files as a tar stream ending with the end-of-archive blocks. The stream is not closed.
+	 *
+	 * @param out - Where the stream is written.
+	 * @param entries - The files by the names they have in the archive.
+	 */
+	public static void write(OutputStream out, Map<String, File> entries) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		for (Map.Entry<String, File> entry : entries.entrySet()) {
+			File file = entry.getValue();
+			long size = file.length();
+			out.write(header(entry.getKey(), size, file.lastModified() / 1000));
+			long written = 0;
+			try (InputStream in = Files.newInputStream(file.toPath())) {
+				int read;
+				while (written < size && (read = in.read(buffer, 0, (int)Math.min(buffer.length, size - written))) != -1) {
+					out.write(buffer, 0, read);
+					written += read;
+				}
+			}
+			if (written != size) {
+				throw new IOException("File changed while being archived: " + file);
+			}
+			pad(out, size);
+		}
+		out.write(new byte[BLOCK_SIZE * 2]);
+		out.flush();
+	}
+
+	/**
+	 * Reads a tar stream, writing each regular file straight to where the target function says.
+	 *
+	 * @param in - The tar stream, read to its end-of-archive blocks.
+	 * @param target - Gives the file to write each entry to from its name without any leading <code>./</code>,
+	 * 		  or <code>null</code> to skip the entry.
+	 * @return The names of the entries written.
+	 */
+	public static List<String> extract(InputStream in, Function<String, File> target) throws IOException {
+		List<String> extracted = new ArrayList<String>();
+		byte[] header = new byte[BLOCK_SIZE];
+		byte[] buffer = new byte[BUFFER_SIZE];
+		while (readBlock(in, header)) {
+			if (isZero(header)) {
+				break;
+			}
+			String name = field(header, 0, NAME_LENGTH);
+			String prefix = field(header, 345, 155);
+			if (!prefix.isEmpty()) {
+				name = prefix + "/" + name;
+			}
+			while (name.startsWith("./")) {
+				name = name.substring(2);
+			}
+			String sizeField = field(header, 124, 12).trim();
+			long size = sizeField.isEmpty() ? 0 : Long.parseLong(sizeField, 8);
+			byte type = header[156];
+			File file = (type == '0' || type == 0) && !name.isEmpty() ? target.apply(name) : null;
+			long remaining = size;
+			try (OutputStream out = file == null ? null : Files.newOutputStream(file.toPath())) {
+				while (remaining > 0) {
+					int read = in.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+					if (read == -1) {
+						throw new EOFException("Tar stream ended within entry: " + name);
+					}
+					if (out != null) {
+						out.write(buffer, 0, read);
+					}
+					remaining -= read;
+				}
+			} catch (IOException e) {
+				if (file != null) {
+					file.delete();
+				}
+				throw e;
+			}
+			skip(in, (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+			if (file != null) {
+				extracted.add(name);
+			}
+		}
+		return extracted;
+	}
+
+	private static byte[] header(String name, long size, long mtimeSeconds) throws IOException {
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		if (nameBytes.length > NAME_LENGTH) {
+			throw new IOException("Name too long for tar entry: " + name);
+		}
+		byte[] header = new byte[BLOCK_SIZE];
+		System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+		octal(header, 100, 8, 0644);
+		octal(header, 108, 8, 0);
+		octal(header, 116, 8, 0);
+		octal(header, 124, 12, size);
+		octal(header, 136, 12, mtimeSeconds);
+		header[156] = '0';
+		System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+		// the checksum is computed with its own field as spaces
+		for (int i = 148; i < 156; i++) {
+			header[i] = ' ';
+		}
+		long checksum = 0;
+		for (byte b : header) {
+			checksum += b & 0xff;
+		}
+		octal(header, 148, 7, checksum);
+		return header;
+	}
+
+	/*
+	 * Writes a zero padded octal number terminated by a NUL into a field.
+	 */
+	private static void octal(byte[] header, int offset, int length, long value) {
+		String digits = Long.toOctalString(value);
+		while (digits.length() < length - 1) {
+			digits = "0" + digits;
+		}
+		System.arraycopy(digits.getBytes(StandardCharsets.US_ASCII), 0, header, offset, length - 1);
+		header[offset + length - 1] = 0;
+	}
+
+	private static String field(byte[] header, int offset, int length) {
+		int end = offset;
+		while (end < offset + length && header[end] != 0) {
+			end++;
+		}
+		return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+	}
+
+	private static void pad(OutputStream out, long size) throws IOException {
+		int padding = (int)((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+		out.write(new byte[padding]);
+	}
+
+	private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+		int total = 0;
+		while (total < block.length) {
+			int read = in.read(block, total, block.length - total);
+			if (read == -1) {
+				if (total == 0) {
+					return false;
+				}
+				throw new EOFException("Tar stream ended within a header");
+			}
+			total += read;
+		}
+		return true;
+	}
+
+	private static void skip(InputStream in, long count) throws IOException {
+		byte[] discard = new byte[BLOCK_SIZE];
+		while (count > 0) {
+			int read = in.read(discard, 0, (int)Math.min(discard.length, count));
+			if (read == -1) {
+				throw new EOFException("Tar stream ended within padding");
+			}
+			count -= read;
+		}
+	}
+
+	private static boolean isZero(byte[] block) {
+		for (byte b : block) {
+			if (b != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
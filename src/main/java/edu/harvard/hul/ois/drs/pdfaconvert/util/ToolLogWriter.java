@@ -0,0 +1,224 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ApplicationConstants;
+import edu.harvard.hul.ois.drs.pdfaconvert.ConverterConfig;
+
+/**
+ * Appends the output of external tools to a log file from a single background thread per file.
+ * Each conversion is written as one framed record so that output from concurrent conversions never interleaves.
+ * The file channel is kept open between records and the file is rotated once it exceeds a configured size.
+ * Submitting a record never blocks the conversion; if the queue is full the record is dropped with a warning.
+ */
+public class ToolLogWriter {
+
+	/** Default size in bytes at which a tool log file is rotated if not configured. */
+	public static final long DEFAULT_MAX_BYTES = 10L * 1024 * 1024;
+
+	/** Default number of rotated tool log files to keep if not configured. */
+	public static final int DEFAULT_MAX_BACKUPS = 5;
+
+	private static final int QUEUE_CAPACITY = 1000;
+	private static final long SHUTDOWN_WAIT_MILLIS = 5000;
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private static final ConcurrentMap<Path, ToolLogWriter> writers = new ConcurrentHashMap<Path, ToolLogWriter>();
+
+	static {
+		// after the conversions still running at shutdown have logged their output
+		ShutdownSequence.register(ShutdownSequence.Stage.OUTPUT, "tool log writers", ToolLogWriter::closeAll);
+	}
+
+	private final Path logPath;
+	private final long maxBytes;
+	private final int maxBackups;
+	private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_CAPACITY);
+	private final Thread writerThread;
+	private volatile boolean closing = false;
+	private FileChannel channel;
+
+	/**
+	 * @param logPath File to append records to.
+	 * @param maxBytes Size at which the file is rotated; never rotated if less than 1.
+	 * @param maxBackups Number of rotated files to keep.
+	 */
+	public ToolLogWriter(Path logPath, long maxBytes, int maxBackups) {
+		this.logPath = logPath;
+		this.maxBytes = maxBytes;
+		this.maxBackups = maxBackups;
+		writerThread = new Thread(this::drain, "tool-log-writer-" + logPath.getFileName());
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Returns the shared writer for the given log file, creating it using the configured rotation settings on first use.
+	 *
+	 * @param logFilePath - The log file.
+	 * @param config - The configuration the rotation settings are read from if the writer is created.
+	 */
+	public static ToolLogWriter forFile(String logFilePath, ConverterConfig config) {
+		Path path = Paths.get(logFilePath).toAbsolutePath().normalize();
+		return writers.computeIfAbsent(path, p -> new ToolLogWriter(p, config.getLong(ApplicationConstants.TOOL_LOG_MAX_BYTES_PROP, DEFAULT_MAX_BYTES),
+				config.getInt(ApplicationConstants.TOOL_LOG_MAX_BACKUPS_PROP, DEFAULT_MAX_BACKUPS)));
+	}
+
+	/**
+	 * Closes all shared writers after writing any queued records.
+	 */
+	public static void closeAll() {
+		for (ToolLogWriter writer : writers.values()) {
+			writer.close();
+		}
+		writers.clear();
+	}
+
+	/**
+	 * Queues the output of one tool execution to be written as a framed record.
+	 *
+	 * @param toolName Name of the tool that was executed.
+	 * @param inputFile File that was being converted.
+	 * @param startMillis Time the tool was launched.
+	 * @param endMillis Time the tool finished.
+	 * @param exitCode Exit code of the tool; -1 if it could not be determined.
+	 * @param output Output of the tool.
+	 * @return <code>true</code> if the record was queued; <code>false</code> if it was dropped.
+	 */
+	public boolean submit(String toolName, File inputFile, long startMillis, long endMillis, int exitCode, byte[] output) {
+		String inputPath = inputFile == null ? "<none>" : inputFile.getAbsolutePath();
+		StringBuilder header = new StringBuilder();
+		header.append("==== BEGIN ").append(toolName)
+			.append(" | file: ").append(inputPath)
+			.append(" | started: ").append(Instant.ofEpochMilli(startMillis))
+			.append(" | finished: ").append(Instant.ofEpochMilli(endMillis))
+			.append(" | elapsed ms: ").append(endMillis - startMillis)
+			.append(" | exit code: ").append(exitCode)
+			.append(" ====").append(System.lineSeparator());
+		String footer = "==== END " + toolName + " | file: " + inputPath + " ====" + System.lineSeparator();
+		byte[] headerBytes = header.toString().getBytes(StandardCharsets.UTF_8);
+		byte[] footerBytes = footer.getBytes(StandardCharsets.UTF_8);
+		byte[] record = new byte[headerBytes.length + output.length + footerBytes.length];
+		System.arraycopy(headerBytes, 0, record, 0, headerBytes.length);
+		System.arraycopy(output, 0, record, headerBytes.length, output.length);
+		System.arraycopy(footerBytes, 0, record, headerBytes.length + output.length, footerBytes.length);
+
+		if (closing || !queue.offer(record)) {
+			logger.warn("Dropped {} output for {} -- log writer for {} is full or closed", toolName, inputPath, logPath);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes any queued records and closes the log file.
+	 */
+	public void close() {
+		closing = true;
+		try {
+			writerThread.join(SHUTDOWN_WAIT_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Body of the writer thread -- writes records until closed and the queue is empty.
+	 */
+	private void drain() {
+		try {
+			while (!closing || !queue.isEmpty()) {
+				byte[] record = queue.poll(200, TimeUnit.MILLISECONDS);
+				if (record != null) {
+					write(record);
+				}
+			}
+		} catch (InterruptedException e) {
+			logger.warn("Tool log writer for {} interrupted with {} records unwritten", logPath, queue.size());
+		} finally {
+			closeChannel();
+		}
+	}
+
+	private void write(byte[] record) {
+		try {
+			if (channel == null) {
+				channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			}
+			if (maxBytes > 0 && channel.size() > 0 && channel.size() + record.length > maxBytes) {
+				rotate();
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(record);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} catch (IOException ioe) {
+			logger.error("Problem writing to application logging output: {}", logPath, ioe);
+			closeChannel();
+		}
+	}
+
+	/*
+	 * Shifts log.N-1 to log.N, ..., log to log.1 and opens a new empty log file.
+	 */
+	private void rotate() throws IOException {
+		closeChannel();
+		if (maxBackups < 1) {
+			Files.deleteIfExists(logPath);
+		} else {
+			Files.deleteIfExists(backupPath(maxBackups));
+			for (int i = maxBackups - 1; i >= 1; i--) {
+				Path backup = backupPath(i);
+				if (Files.exists(backup)) {
+					Files.move(backup, backupPath(i + 1), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			Files.move(logPath, backupPath(1), StandardCopyOption.REPLACE_EXISTING);
+		}
+		logger.debug("Rotated tool log file: {}", logPath);
+		channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	private Path backupPath(int index) {
+		return logPath.resolveSibling(logPath.getFileName() + "." + index);
+	}
+
+	private void closeChannel() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.error("Couldn't close tool log file: {}", logPath, e);
+			}
+			channel = null;
+		}
+	}
+}
@@ -0,0 +1,354 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.watch;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ApplicationConstants;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConvert;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+import edu.harvard.hul.ois.drs.pdfaconvert.batch.BatchListener;
+import edu.harvard.hul.ois.drs.pdfaconvert.batch.BatchScheduler;
+import edu.harvard.hul.ois.drs.pdfaconvert.batch.ConversionJob;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.FileMoves;
+
+/**
+ * Converts files as they arrive in a watched directory until stopped. A file is only queued once it is complete:
+ * either its size and modification time have not changed for a settle period, or, if a marker suffix is configured,
+ * a marker file named after it (e.g. <code>report.docx.ready</code>) has appeared. Converted inputs are moved to the
+ * done directory and failed ones to the failed directory along with a <code>.error</code> file giving the reason,
+ * under a numbered name such as <code>report-1.docx</code> if one of the same name is already there.
+ * <p>
+ * Files already in the directory when the daemon starts are picked up as well. Stopping the daemon stops watching,
+ * returns queued files that have not started to the directory for the next run and waits for running conversions.
+ */
+public class WatchFolderDaemon {
+
+	/** Default milliseconds a file's size and modification time must be unchanged before it is queued. */
+	public static final long DEFAULT_SETTLE_MILLIS = 2000;
+
+	/** Name of the default directory within the watched directory for converted inputs. */
+	public static final String DEFAULT_DONE_DIR_NAME = "done";
+
+	/** Name of the default directory within the watched directory for inputs that could not be converted. */
+	public static final String DEFAULT_FAILED_DIR_NAME = "failed";
+
+	/** Suffix of the file written next to a failed input giving the reason it failed. */
+	public static final String ERROR_FILE_SUFFIX = ".error";
+
+	// how often files waiting to settle are looked at
+	private static final long POLL_MILLIS = 250;
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final PdfaConvert converter;
+	private final BatchScheduler scheduler;
+	private final Path watchDir;
+	private final Path doneDir;
+	private final Path failedDir;
+	private final long settleMillis;
+	private final String markerSuffix; // null unless files wait for a marker
+	private final Map<Path, Candidate> candidates = new HashMap<Path, Candidate>(); // only used by the watching thread
+	private final Set<Path> inFlight = ConcurrentHashMap.newKeySet();
+	private final Set<CompletableFuture<PdfaConverterOutput>> pipelined = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger doneCount = new AtomicInteger();
+	private final AtomicInteger failedCount = new AtomicInteger();
+	private final CountDownLatch stopped = new CountDownLatch(1);
+	private volatile boolean stopping = false;
+
+	/**
+	 * @param converter - Converts the files, through its pipelines if it has one for a file.
+	 * @param scheduler - Schedules the other conversions; started by {@link #run()} and shut down when stopped.
+	 * @param watchDir - The directory to watch.
+	 * @param doneDir - Directory converted inputs are moved to.
+	 * @param failedDir - Directory inputs that could not be converted are moved to.
+	 * @param settleMillis - Milliseconds a file must be unchanged before it is queued; ignored if a marker suffix is given.
+	 * @param markerSuffix - Suffix of the marker file announcing a file is complete, or <code>null</code> to wait for it to settle.
+	 */
+	public WatchFolderDaemon(PdfaConvert converter, BatchScheduler scheduler, File watchDir, File doneDir, File failedDir,
+			long settleMillis, String markerSuffix) {
+		this.converter = converter;
+		this.scheduler = scheduler;
+		this.watchDir = watchDir.toPath().toAbsolutePath();
+		this.doneDir = doneDir.toPath().toAbsolutePath();
+		this.failedDir = failedDir.toPath().toAbsolutePath();
+		this.settleMillis = settleMillis;
+		this.markerSuffix = StringUtils.trimToNull(markerSuffix);
+		scheduler.addListener(new BatchListener() {
+			@Override
+			public void jobSucceeded(ConversionJob job, PdfaConverterOutput output) {
+				finish(job.getInputFile(), null);
+			}
+
+			@Override
+			public void jobFailed(ConversionJob job, Exception error) {
+				finish(job.getInputFile(), error);
+			}
+		});
+	}
+
+	/**
+	 * Creates a daemon watching a directory as configured in the project properties.
+	 */
+	public static WatchFolderDaemon create(PdfaConvert converter, File watchDir, Properties props) {
+		String settle = props.getProperty(ApplicationConstants.WATCH_SETTLE_MILLIS_PROP);
+		String doneDir = props.getProperty(ApplicationConstants.WATCH_DONE_DIR_PROP);
+		String failedDir = props.getProperty(ApplicationConstants.WATCH_FAILED_DIR_PROP);
+		return new WatchFolderDaemon(converter, BatchScheduler.create(converter, props), watchDir,
+				StringUtils.isBlank(doneDir) ? new File(watchDir, DEFAULT_DONE_DIR_NAME) : new File(doneDir.trim()),
+				StringUtils.isBlank(failedDir) ? new File(watchDir, DEFAULT_FAILED_DIR_NAME) : new File(failedDir.trim()),
+				StringUtils.isBlank(settle) ? DEFAULT_SETTLE_MILLIS : Long.parseLong(settle.trim()),
+				props.getProperty(ApplicationConstants.WATCH_MARKER_SUFFIX_PROP));
+	}
+
+	/**
+	 * Watches the directory and converts the files arriving in it until {@link #stop()} is called.
+	 * Returns once running conversions have finished.
+	 *
+	 * @throws IOException - If the directory cannot be watched.
+	 */
+	public void run() throws IOException {
+		try {
+			Files.createDirectories(doneDir);
+			Files.createDirectories(failedDir);
+			scheduler.start();
+			try (WatchService watcher = watchDir.getFileSystem().newWatchService()) {
+				watchDir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+				scan();
+				logger.info("Watching directory: {} for files to convert, {}", watchDir,
+						markerSuffix == null ? "queued once unchanged for " + settleMillis + " ms" : "queued once marked with " + markerSuffix);
+				while (!stopping) {
+					WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+					if (key != null) {
+						for (WatchEvent<?> event : key.pollEvents()) {
+							if (event.kind() == OVERFLOW) {
+								scan();
+							} else {
+								consider(watchDir.resolve((Path)event.context()));
+							}
+						}
+						key.reset();
+					}
+					queueCompleted(System.currentTimeMillis());
+				}
+			} catch (InterruptedException e) {
+				logger.warn("Interrupted while watching directory: {}", watchDir);
+				Thread.currentThread().interrupt();
+			}
+		} finally {
+			drain();
+			stopped.countDown();
+		}
+	}
+
+	/**
+	 * Stops watching and waits until running conversions have finished. Suitable for a shutdown hook.
+	 */
+	public void stop() throws InterruptedException {
+		stopping = true;
+		stopped.await();
+	}
+
+	public int getDoneCount() {
+		return doneCount.get();
+	}
+
+	public int getFailedCount() {
+		return failedCount.get();
+	}
+
+	/*
+	 * Picks up the files already in the directory, e.g. those that arrived while the daemon was not running.
+	 */
+	private void scan() throws IOException {
+		try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(watchDir)) {
+			for (Path file : dirStream) {
+				consider(file);
+			}
+		}
+	}
+
+	private void consider(Path file) {
+		String name = file.getFileName().toString();
+		if (name.startsWith(".")) {
+			return;
+		}
+		if (markerSuffix != null && name.endsWith(markerSuffix)) {
+			file = file.resolveSibling(name.substring(0, name.length() - markerSuffix.length()));
+		}
+		if (!inFlight.contains(file) && !candidates.containsKey(file) && Files.isRegularFile(file)) {
+			candidates.put(file, new Candidate());
+		}
+	}
+
+	/*
+	 * Queues the candidates that are complete and forgets those that have disappeared.
+	 */
+	private void queueCompleted(long now) {
+		Iterator<Map.Entry<Path, Candidate>> it = candidates.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Path, Candidate> entry = it.next();
+			Path file = entry.getKey();
+			Candidate candidate = entry.getValue();
+			BasicFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(file, BasicFileAttributes.class);
+			} catch (IOException e) {
+				logger.debug("File gone before it was queued: {}", file);
+				it.remove();
+				continue;
+			}
+			boolean complete;
+			if (markerSuffix != null) {
+				complete = Files.exists(markerFor(file));
+			} else {
+				long modified = attrs.lastModifiedTime().toMillis();
+				if (attrs.size() != candidate.size || modified != candidate.modifiedMillis) {
+					candidate.size = attrs.size();
+					candidate.modifiedMillis = modified;
+					candidate.changedMillis = now;
+				}
+				complete = now - candidate.changedMillis >= settleMillis;
+			}
+			if (complete) {
+				it.remove();
+				queue(file);
+			}
+		}
+	}
+
+	private void queue(Path file) {
+		File inputFile = file.toFile();
+		inFlight.add(file);
+		logger.debug("Queueing arrived file: {}", file);
+		try {
+			if (converter.isPipelined(inputFile)) {
+				CompletableFuture<PdfaConverterOutput> future = converter.examineAsync(inputFile, false);
+				pipelined.add(future);
+				future.whenComplete((output, e) -> {
+					pipelined.remove(future);
+					finish(inputFile, e == null ? null : e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+				});
+			} else {
+				scheduler.submit(inputFile);
+			}
+		} catch (InterruptedException e) {
+			inFlight.remove(file);
+			stopping = true;
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			// rejected before conversion, e.g. by the pre-flight checks
+			finish(inputFile, e);
+		}
+	}
+
+	/*
+	 * Moves a finished input to the done or failed directory, under a numbered name if its own is taken.
+	 */
+	private void finish(File inputFile, Throwable error) {
+		Path source = inputFile.toPath();
+		Path targetDir = error == null ? doneDir : failedDir;
+		if (error == null) {
+			doneCount.incrementAndGet();
+			logger.info("Converted arrived file: {}", inputFile.getName());
+		} else {
+			failedCount.incrementAndGet();
+			logger.error("Problem processing arrived file: {} -- Error message: {}", inputFile.getName(), error.getMessage());
+		}
+		try {
+			// a quarantined input has already been moved aside
+			if (Files.exists(source)) {
+				// an earlier input of the same name and its error file are kept
+				Path target = FileMoves.moveToDirectory(source, targetDir);
+				if (error != null) {
+					String reason = error.getClass().getSimpleName() + ": " + StringUtils.defaultString(error.getMessage()) + System.lineSeparator();
+					Files.write(targetDir.resolve(target.getFileName() + ERROR_FILE_SUFFIX), reason.getBytes(StandardCharsets.UTF_8));
+				}
+			}
+			if (markerSuffix != null) {
+				Files.deleteIfExists(markerFor(source));
+			}
+		} catch (IOException e) {
+			logger.error("Could not move finished file: {} to: {}", source, targetDir, e);
+		} finally {
+			inFlight.remove(source);
+		}
+	}
+
+	/*
+	 * Leaves queued files for the next run and waits for running conversions.
+	 */
+	private void drain() {
+		stopping = true;
+		List<ConversionJob> cancelled = scheduler.cancelPending();
+		for (ConversionJob job : cancelled) {
+			inFlight.remove(job.getInputFile().toPath());
+		}
+		logger.info("Stopped watching directory: {} -- left {} queued files for the next run, waiting for {} running conversions",
+				watchDir, cancelled.size(), inFlight.size());
+		try {
+			scheduler.shutdown();
+			for (CompletableFuture<PdfaConverterOutput> future : pipelined) {
+				try {
+					future.join();
+				} catch (RuntimeException e) {
+					// already handled
+				}
+			}
+			converter.shutdownPipelines();
+		} catch (InterruptedException e) {
+			logger.error("Interrupted while waiting for conversions to finish", e);
+			Thread.currentThread().interrupt();
+		}
+		logger.info("Converted {} and failed {} arrived files", doneCount.get(), failedCount.get());
+	}
+
+	private Path markerFor(Path file) {
+		return file.resolveSibling(file.getFileName() + markerSuffix);
+	}
+
+	/*
+	 * A file seen in the directory but not yet queued, with its size and modification time when last looked at.
+	 */
+	private static class Candidate {
+		long size = -1;
+		long modifiedMillis = -1;
+		long changedMillis;
+	}
+}
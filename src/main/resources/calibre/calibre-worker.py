@@ -0,0 +1,50 @@
+# Long-lived Calibre conversion worker used by CalibreTool, run with: calibre-debug -e calibre-worker.py
+# Importing Calibre's conversion stack once here avoids paying for it on every ebook-convert launch.
+#
+# Protocol (UTF-8, one line each):
+#   stdout <- "READY" once the conversion code is loaded
+#   stdin  -> "<input path><TAB><output path>" for each job
+#   stdout <- "ACCEPTED" once the job is read
+#   stderr <- conversion output of the job followed by the line "==== END OF JOB ===="
+#   stdout <- "OK" or "ERROR <message>" for each job
+# The worker exits when stdin is closed.
+import sys
+import traceback
+
+from calibre.ebooks.conversion.cli import main as ebook_convert
+
+JOB_END_MARKER = '==== END OF JOB ===='
+
+
+def run():
+    status_out = sys.stdout
+    # anything Calibre prints goes with the job output rather than into the status channel
+    sys.stdout = sys.stderr
+    status_out.write('READY\n')
+    status_out.flush()
+    while True:
+        line = sys.stdin.readline()
+        if not line:
+            break
+        line = line.rstrip('\r\n')
+        if not line:
+            continue
+        status_out.write('ACCEPTED\n')
+        status_out.flush()
+        try:
+            source, target = line.split('\t', 1)
+            try:
+                code = ebook_convert(['ebook-convert', source, target])
+            except SystemExit as e:
+                code = e.code
+            status = 'OK' if not code else 'ERROR exit code %s' % code
+        except Exception as e:
+            traceback.print_exc()
+            status = 'ERROR ' + str(e).replace('\n', ' ')
+        sys.stderr.write('\n' + JOB_END_MARKER + '\n')
+        sys.stderr.flush()
+        status_out.write(status + '\n')
+        status_out.flush()
+
+
+run()
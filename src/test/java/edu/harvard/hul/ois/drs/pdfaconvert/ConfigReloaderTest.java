@@ -0,0 +1,86 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.pdfapilot.PdfaPilotTool;
+
+public class ConfigReloaderTest {
+
+	// for creating a temporary directory in the transient "target" directory of the Maven build
+	private static String tempDir = "target" + File.separator + "temp" + File.separator + "config";
+
+	/**
+	 * Test that a snapshot is not changed by changes to the properties it was taken from or handed out.
+	 */
+	@Test
+	public void testSnapshotIsImmutable() {
+		Properties props = new Properties();
+		props.setProperty(ApplicationConstants.PDFA_PILOT_HOME_PROP, "/opt/pdfaPilot/");
+		props.setProperty(ApplicationConstants.PDFA_PILOT_AGENT_PORT_PROP, " 9000 ");
+		ConverterConfig config = ConverterConfig.fromProperties(props);
+		props.setProperty(ApplicationConstants.PDFA_PILOT_HOME_PROP, "/elsewhere/");
+		config.getProperties().setProperty(ApplicationConstants.PDFA_PILOT_HOME_PROP, "/elsewhere/");
+
+		assertEquals("/opt/pdfaPilot/", config.getPdfaPilotHome());
+		assertEquals("/opt/pdfaPilot/", config.getProperties().getProperty(ApplicationConstants.PDFA_PILOT_HOME_PROP));
+		assertEquals(9000, config.getPdfaPilotAgentPort());
+		assertEquals(7, config.getInt(ApplicationConstants.PDFA_PILOT_REMOTE_BATCH_SIZE_PROP, 7));
+		assertFalse(config.isPdfaPilotRemote());
+	}
+
+	/**
+	 * Test that a changed properties file gives the converter a new snapshot for the tools it creates from then on,
+	 * while a tool already created keeps its own, and that a file with a bad value is not taken.
+	 */
+	@Test
+	public void testReloadChangedFile() throws IOException {
+		File dir = new File(tempDir);
+		dir.mkdirs();
+		File propsFile = new File(dir, "reload.properties");
+		File outputDir = new File(dir, "out");
+		writeProperties(propsFile, "output_dir=" + outputDir.getPath() + "\npdfaPilot_home=/old/\n");
+		ConverterConfig original = ConverterConfig.load(propsFile);
+		PdfaConvert converter = new PdfaConvert(original, null);
+		PdfaPilotTool runningTool = new PdfaPilotTool(converter.getConfig(), outputDir);
+		ConfigReloader reloader = new ConfigReloader(converter);
+		assertFalse(reloader.reloadIfModified());
+
+		writeProperties(propsFile, "output_dir=" + outputDir.getPath() + "\npdfaPilot_home=/new/\n");
+		propsFile.setLastModified(original.getSourceFile().lastModified() + 2000);
+		assertTrue(reloader.reloadIfModified());
+		assertEquals("/new/", converter.getConfig().getPdfaPilotHome());
+		assertEquals("/old/pdfaPilot", runningTool.getConversionOptions().get(0));
+		assertEquals("/new/pdfaPilot", new PdfaPilotTool(converter.getConfig(), outputDir).getConversionOptions().get(0));
+
+		ConverterConfig reloaded = converter.getConfig();
+		writeProperties(propsFile, "output_dir=" + outputDir.getPath() + "\npdfaPilotAgentPort=not a port\n");
+		propsFile.setLastModified(original.getSourceFile().lastModified() + 4000);
+		assertFalse(reloader.reloadIfModified());
+		assertSame(reloaded, converter.getConfig());
+		reloader.stop();
+	}
+
+	private static void writeProperties(File file, String content) throws IOException {
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.ISO_8859_1));
+	}
+}
@@ -0,0 +1,68 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+	/**
+	 * Test that the limit grows to the maximum while latency stays flat and backs off once it climbs.
+	 */
+	@Test
+	public void testLatency() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 1, 4, null);
+		for (int i = 0; i < 100; i++) {
+			runFull(limiter, 1.0);
+		}
+		assertEquals(4, limiter.getLimit());
+
+		for (int i = 0; i < 5; i++) {
+			runFull(limiter, 5.0);
+		}
+		assertTrue(limiter.getLimit() < 4);
+		assertTrue(limiter.getLimit() >= 1);
+	}
+
+	/**
+	 * Test that the limit backs off when many conversions fail and never holds more conversions than allowed.
+	 */
+	@Test
+	public void testFailures() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 4, 4, null);
+		assertTrue(limiter.tryAcquire());
+		assertTrue(limiter.tryAcquire());
+		assertTrue(limiter.tryAcquire());
+		assertTrue(limiter.tryAcquire());
+		assertFalse(limiter.tryAcquire());
+		for (int i = 0; i < 4; i++) {
+			limiter.onFailure();
+		}
+		assertTrue(limiter.getLimit() < 4);
+		assertEquals(0, limiter.getInFlight());
+	}
+
+	/*
+	 * Starts as many conversions as the limit allows, then completes them with the given latency ratio.
+	 */
+	private static void runFull(AdaptiveConcurrencyLimiter limiter, double latencyRatio) {
+		int started = 0;
+		while (limiter.tryAcquire()) {
+			started++;
+		}
+		for (int i = 0; i < started; i++) {
+			limiter.onSuccess(latencyRatio);
+		}
+	}
+}
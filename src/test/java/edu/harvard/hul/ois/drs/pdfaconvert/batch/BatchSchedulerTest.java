@@ -0,0 +1,386 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConvert;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.ToolType;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ConversionTrace;
+
+public class BatchSchedulerTest {
+
+	// for creating a temporary directory in the transient "target" directory of the Maven build
+	private static String tempDir = "target" + File.separator + "temp" + File.separator + "batch";
+
+	/**
+	 * Test that the cost model learns the fixed overhead and time per byte of a tool.
+	 */
+	@Test
+	public void testCostModelLearnsLinearFit() {
+		ConversionCostModel model = new ConversionCostModel(null);
+		for (int i = 1; i <= 10; i++) {
+			long size = i * 1000L;
+			model.record(ToolType.PDFA_PILOT, size, 500 + size / 10);
+		}
+		assertEquals(500 + 5000, model.estimateMillis(ToolType.PDFA_PILOT, 50000), 5);
+		assertEquals(0, model.estimateMillis(null, 50000));
+	}
+
+	/**
+	 * Test that the cost model history survives a save and reload.
+	 */
+	@Test
+	public void testCostModelPersistence() {
+		File historyFile = new File(createDirectory(), "history.properties");
+		historyFile.delete();
+		ConversionCostModel model = new ConversionCostModel(historyFile);
+		for (int i = 1; i <= 10; i++) {
+			model.record(ToolType.CALIBRE, i * 1000L, i * 100L);
+		}
+		model.save();
+		assertTrue(historyFile.isFile());
+		ConversionCostModel reloaded = new ConversionCostModel(historyFile);
+		assertEquals(model.estimateMillis(ToolType.CALIBRE, 123456), reloaded.estimateMillis(ToolType.CALIBRE, 123456));
+	}
+
+	/**
+	 * Test that a single worker converts the smallest estimated jobs first.
+	 */
+	@Test
+	public void testShortestJobFirst() throws IOException, InterruptedException {
+		File dir = createDirectory();
+		File large = createFile(dir, "large.pdf", 300000);
+		File small = createFile(dir, "small.pdf", 1000);
+		File medium = createFile(dir, "medium.pdf", 50000);
+
+		final List<File> converted = Collections.synchronizedList(new ArrayList<File>());
+		PdfaConvert converter = new PdfaConvert() {
+			@Override
+			public PdfaConverterOutput examine(File inputFile) {
+				converted.add(inputFile);
+				return new PdfaConverterOutput(inputFile, "");
+			}
+		};
+		// no aging so the order depends only on the estimate
+		BatchScheduler scheduler = new BatchScheduler(converter, new ConversionCostModel(null), 1, 0);
+		scheduler.submit(large);
+		scheduler.submit(small);
+		scheduler.submit(medium);
+		assertEquals(3, scheduler.getPendingCount());
+		assertTrue(scheduler.estimateCompletionMillis() > 0);
+		scheduler.start();
+		scheduler.shutdown();
+
+		assertEquals(3, converted.size());
+		assertEquals(small, converted.get(0));
+		assertEquals(medium, converted.get(1));
+		assertEquals(large, converted.get(2));
+	}
+
+	/**
+	 * Test that a large input running in its own lane does not hold up the main lane.
+	 */
+	@Test
+	public void testLargeFileLane() throws IOException, InterruptedException {
+		File dir = createDirectory();
+		File large = createFile(dir, "lane-large.pdf", 200000);
+		File small = createFile(dir, "lane-small.pdf", 1000);
+
+		final CountDownLatch smallConverted = new CountDownLatch(1);
+		final List<File> converted = Collections.synchronizedList(new ArrayList<File>());
+		PdfaConvert converter = new PdfaConvert() {
+			@Override
+			public PdfaConverterOutput examine(File inputFile) {
+				if (inputFile.length() > 100000) {
+					// the large conversion only finishes once the small one got through
+					try {
+						assertTrue(smallConverted.await(10, TimeUnit.SECONDS));
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					converted.add(inputFile);
+				} else {
+					converted.add(inputFile);
+					smallConverted.countDown();
+				}
+				return new PdfaConverterOutput(inputFile, "");
+			}
+		};
+		BatchScheduler scheduler = new BatchScheduler(converter, new ConversionCostModel(null), 1, 0);
+		scheduler.configureLargeFileLane(100000, 1, 0);
+		assertEquals(2, scheduler.getWorkerCount());
+		scheduler.submit(large);
+		scheduler.start();
+		Thread.sleep(100); // let the large conversion start first
+		scheduler.submit(small);
+		scheduler.shutdown();
+
+		assertEquals(2, converted.size());
+		assertEquals(small, converted.get(0));
+		assertEquals(large, converted.get(1));
+	}
+
+	/**
+	 * Test that queued jobs for a batched tool are converted together and any the batch missed are converted on their own.
+	 */
+	@Test
+	public void testBatching() throws IOException, InterruptedException {
+		File dir = createDirectory();
+		File first = createFile(dir, "batch-first.docx", 1000);
+		File bad = createFile(dir, "batch-bad.doc", 2000);
+		File third = createFile(dir, "batch-third.odt", 3000);
+		File pdf = createFile(dir, "batch-other.pdf", 1500);
+
+		final List<List<File>> batches = Collections.synchronizedList(new ArrayList<List<File>>());
+		final List<File> single = Collections.synchronizedList(new ArrayList<File>());
+		final List<File> failed = Collections.synchronizedList(new ArrayList<File>());
+		PdfaConvert converter = new PdfaConvert() {
+			@Override
+			public Map<File, PdfaConverterOutput> examineBatch(List<File> inputFiles) {
+				batches.add(new ArrayList<File>(inputFiles));
+				Map<File, PdfaConverterOutput> outputs = new HashMap<File, PdfaConverterOutput>();
+				for (File inputFile : inputFiles) {
+					if (!inputFile.getName().contains("bad")) {
+						outputs.put(inputFile, new PdfaConverterOutput(inputFile, ""));
+					}
+				}
+				return outputs;
+			}
+
+			@Override
+			public PdfaConverterOutput examine(File inputFile) {
+				single.add(inputFile);
+				if (inputFile.getName().contains("bad")) {
+					throw new ExternalToolException("bad input");
+				}
+				return new PdfaConverterOutput(inputFile, "");
+			}
+		};
+		BatchScheduler scheduler = new BatchScheduler(converter, new ConversionCostModel(null), 1, 0);
+		scheduler.configureBatching(ToolType.UNOCONV, 10);
+		scheduler.addListener(new BatchListener() {
+			@Override
+			public void jobSucceeded(ConversionJob job, PdfaConverterOutput output) {
+			}
+
+			@Override
+			public void jobFailed(ConversionJob job, Exception e) {
+				failed.add(job.getInputFile());
+			}
+		});
+		scheduler.submit(third);
+		scheduler.submit(pdf);
+		scheduler.submit(bad);
+		scheduler.submit(first);
+		scheduler.start();
+		scheduler.shutdown();
+
+		// the PDF has the shortest estimate and is not batched; the office documents go in one batch in priority order
+		assertEquals(1, batches.size());
+		assertEquals(Arrays.asList(first, bad, third), batches.get(0));
+		assertEquals(Arrays.asList(pdf, bad), single);
+		assertEquals(Arrays.asList(bad), failed);
+	}
+
+	/**
+	 * Test that a conversion running past the usual latency is duplicated, the duplicate wins and the original is
+	 * stopped, and that the duplicate's time is not taken for the conversion's latency.
+	 */
+	@Test
+	public void testHedging() throws IOException, InterruptedException {
+		File dir = createDirectory();
+		File fast = createFile(dir, "fast.docx", 1000);
+		File slow = createFile(dir, "slow.docx", 1000);
+
+		final CountDownLatch originalStopped = new CountDownLatch(1);
+		final List<File> attempts = Collections.synchronizedList(new ArrayList<File>());
+		PdfaConvert converter = new PdfaConvert() {
+			@Override
+			public PdfaConverterOutput examine(File inputFile) {
+				return new PdfaConverterOutput(inputFile, "");
+			}
+
+			@Override
+			public PdfaConverterOutput examine(File inputFile, File outputDir) {
+				attempts.add(outputDir);
+				// the hedge's thread may get here first, so the original is told by its scratch directory
+				if (outputDir.getName().equals("attempt-1")) {
+					// the original stalls until it is abandoned
+					try {
+						Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+					} catch (InterruptedException e) {
+						originalStopped.countDown();
+						throw new ExternalToolException("Interrupted", e);
+					}
+				}
+				outputDir.mkdirs();
+				File outputFile = new File(outputDir, "slow.pdf");
+				try {
+					createFile(outputDir, outputFile.getName(), 10);
+				} catch (IOException e) {
+					throw new ExternalToolException(e);
+				}
+				return new PdfaConverterOutput(outputFile, "duplicate");
+			}
+		};
+		StragglerHedger hedger = new StragglerHedger(converter, EnumSet.of(ToolType.UNOCONV), 95, 2, 1);
+		for (int i = 0; i < 2; i++) {
+			hedger.convert(new ConversionJob(fast, ToolType.UNOCONV, 1000, 50, 0, 0, i, 0));
+		}
+		PdfaConverterOutput output = hedger.convert(new ConversionJob(slow, ToolType.UNOCONV, 1000, 50, 0, 0, 2, 0));
+
+		assertEquals(new File(converter.getOutputDirectory(), "slow.pdf"), output.getPdfaConvertedFile());
+		assertTrue(output.getPdfaConvertedFile().isFile());
+		assertEquals(1, hedger.getHedgeCount());
+		assertEquals(1, hedger.getHedgeWinCount());
+		// only the latencies of the conversions that weren't hedged are recorded
+		assertEquals(2, hedger.getLatencySampleCount(ToolType.UNOCONV));
+		assertTrue(originalStopped.await(10, TimeUnit.SECONDS));
+		// the original removes its files once it has stopped
+		for (int i = 0; i < 100 && (attempts.get(0).exists() || attempts.get(1).exists()); i++) {
+			Thread.sleep(50);
+		}
+		assertFalse(attempts.get(0).exists());
+		assertFalse(attempts.get(1).exists());
+	}
+
+	/**
+	 * Test that the timing report gets a record of each job as it finishes, including the tool run marked by the
+	 * converter on the worker thread, and a summary at the end.
+	 */
+	@Test
+	public void testTimingReport() throws IOException, InterruptedException {
+		File dir = createDirectory();
+		File good = createFile(dir, "good.pdf", 1000);
+		File bad = createFile(dir, "bad,name.pdf", 2000);
+		PdfaConvert converter = new PdfaConvert() {
+			@Override
+			public PdfaConverterOutput examine(File inputFile) {
+				long now = System.currentTimeMillis();
+				boolean failing = inputFile.equals(bad);
+				ConversionTrace.toolRan("FakeTool", now, now + 5, failing ? 3 : 0);
+				if (failing) {
+					throw new ExternalToolException("exit code 3");
+				}
+				return new PdfaConverterOutput(inputFile, "");
+			}
+		};
+		StringWriter records = new StringWriter();
+		TimingReport report = new TimingReport(records, TimingReport.Format.CSV);
+		BatchScheduler scheduler = new BatchScheduler(converter, new ConversionCostModel(null), 1, 0);
+		scheduler.addListener(report);
+		scheduler.submit(good);
+		scheduler.submit(bad);
+		scheduler.start();
+		scheduler.shutdown();
+		report.close();
+
+		String[] lines = records.toString().split("\n");
+		assertEquals(3, lines.length);
+		assertTrue(lines[0].startsWith("input,tool,outcome,exitCode,inputBytes,outputBytes,enqueued,dispatched,spawned"));
+		assertTrue(lines[1], lines[1].startsWith("good.pdf,FakeTool,succeeded,0,1000,1000,"));
+		assertTrue(lines[2], lines[2].startsWith("\"bad,name.pdf\",FakeTool,failed,3,2000,,"));
+		assertTrue(lines[2], lines[2].endsWith(",exit code 3"));
+		assertTrue(report.getSummary(), report.getSummary().startsWith("Timing of 2 conversions (1 succeeded, 1 failed)"));
+		assertTrue(report.getSummary(), report.getSummary().contains("tool: 5/5/5/5"));
+	}
+
+	/**
+	 * Test that the timing report of a hedged conversion has the tool run of the winning attempt, which ran on a
+	 * thread of its own, and not that of the attempt it beat.
+	 */
+	@Test
+	public void testTimingReportHedged() throws IOException, InterruptedException {
+		File dir = createDirectory();
+		File fast1 = createFile(dir, "fast1.docx", 1000);
+		File fast2 = createFile(dir, "fast2.docx", 1000);
+		File slow = createFile(dir, "stalled.docx", 2000);
+		PdfaConvert converter = new PdfaConvert() {
+			@Override
+			public PdfaConverterOutput examine(File inputFile) {
+				long now = System.currentTimeMillis();
+				ConversionTrace.toolRan("FakeTool", now, now + 5, 0);
+				return new PdfaConverterOutput(inputFile, "");
+			}
+
+			@Override
+			public PdfaConverterOutput examine(File inputFile, File outputDir) {
+				long now = System.currentTimeMillis();
+				if (outputDir.getName().equals("attempt-1")) {
+					// the original launches its tool, then stalls until it is abandoned
+					ConversionTrace.toolRan("StalledTool", now, now + 1, 9);
+					try {
+						Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+					} catch (InterruptedException e) {
+						throw new ExternalToolException("Interrupted", e);
+					}
+				}
+				ConversionTrace.toolRan("HedgeTool", now, now + 7, 0);
+				outputDir.mkdirs();
+				try {
+					return new PdfaConverterOutput(createFile(outputDir, "stalled.pdf", 10), "");
+				} catch (IOException e) {
+					throw new ExternalToolException(e);
+				}
+			}
+		};
+		StringWriter records = new StringWriter();
+		TimingReport report = new TimingReport(records, TimingReport.Format.CSV);
+		BatchScheduler scheduler = new BatchScheduler(converter, new ConversionCostModel(null), 1, 0);
+		scheduler.enableHedging(new StragglerHedger(converter, EnumSet.of(ToolType.UNOCONV), 95, 2, 1));
+		scheduler.addListener(report);
+		scheduler.submit(fast1);
+		scheduler.submit(fast2);
+		scheduler.submit(slow);
+		scheduler.start();
+		scheduler.shutdown();
+		report.close();
+
+		String[] lines = records.toString().split("\n");
+		assertEquals(4, lines.length);
+		assertTrue(lines[3], lines[3].startsWith("stalled.docx,HedgeTool,succeeded,0,2000,10,"));
+		assertTrue(report.getSummary(), report.getSummary().contains("tool: 5/7/7/7"));
+	}
+
+	private File createDirectory() {
+		File directory = new File(tempDir);
+		directory.mkdirs();
+		return directory;
+	}
+
+	private File createFile(File dir, String filename, long size) throws IOException {
+		File file = new File(dir, filename);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(size);
+		}
+		return file;
+	}
+}
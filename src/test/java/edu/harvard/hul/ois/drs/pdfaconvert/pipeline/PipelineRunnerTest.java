@@ -0,0 +1,204 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.PdfaConvertable;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.ToolFactory;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.ToolType;
+import edu.harvard.hul.ois.drs.pdfaconvert.util.ConversionTrace;
+
+public class PipelineRunnerTest {
+
+	// for creating a temporary directory in the transient "target" directory of the Maven build
+	private static String tempDir = "target" + File.separator + "temp" + File.separator + "pipeline";
+
+	/**
+	 * Test reading pipelines from properties and rejecting invalid ones.
+	 */
+	@Test
+	public void testFromProperties() {
+		Properties props = new Properties();
+		props.setProperty("pipeline.epub", "calibre, PDFA_PILOT");
+		Map<String, ConversionPipeline> pipelines = ConversionPipeline.fromProperties(props);
+		assertEquals(1, pipelines.size());
+		assertEquals(Arrays.asList(ToolType.CALIBRE, ToolType.PDFA_PILOT), pipelines.get("epub").getStages());
+
+		// Calibre can't convert the PDF produced by unoconv
+		props.setProperty("pipeline.docx", "UNOCONV,CALIBRE");
+		try {
+			ConversionPipeline.fromProperties(props);
+			fail("Expected invalid pipeline to be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Test that a later stage of one file overlaps an earlier stage of the next, and that scratch files are removed.
+	 */
+	@Test
+	public void testStagesOverlap() throws Exception {
+		File dir = createDirectory();
+		File outputDir = new File(dir, "output");
+		File scratchDir = new File(dir, "scratch");
+		outputDir.mkdirs();
+		File first = createFile(dir, "first.epub");
+		File second = createFile(dir, "second.epub");
+
+		final CountDownLatch secondStarted = new CountDownLatch(1);
+		ToolFactory tools = (toolType, toolOutputDir) -> new CopyTool(toolOutputDir) {
+			@Override
+			public PdfaConverterOutput convert(File inputFile, boolean deleteConvertedFile) {
+				if (toolType == ToolType.CALIBRE && inputFile.getName().startsWith("second")) {
+					secondStarted.countDown();
+				} else if (toolType == ToolType.PDFA_PILOT && inputFile.getName().startsWith("first")) {
+					// only finishes if the first stage moved on to the second file meanwhile
+					await(secondStarted);
+				}
+				return super.convert(inputFile, deleteConvertedFile);
+			}
+		};
+		ConversionPipeline pipeline = new ConversionPipeline("epub", Arrays.asList(ToolType.CALIBRE, ToolType.PDFA_PILOT));
+		PipelineRunner runner = new PipelineRunner(pipeline, tools, scratchDir, 1);
+		CompletableFuture<PdfaConverterOutput> firstResult = runner.submit(first, outputDir, false);
+		CompletableFuture<PdfaConverterOutput> secondResult = runner.submit(second, outputDir, false);
+		assertEquals(new File(outputDir, "first.pdf"), firstResult.get(10, TimeUnit.SECONDS).getPdfaConvertedFile());
+		assertEquals(new File(outputDir, "second.pdf"), secondResult.get(10, TimeUnit.SECONDS).getPdfaConvertedFile());
+		runner.shutdown();
+		assertEquals(0, scratchDir.list().length);
+	}
+
+	/**
+	 * Test that the failure of a stage fails the file without stopping the pipeline.
+	 */
+	@Test
+	public void testStageFailure() throws Exception {
+		File dir = createDirectory();
+		File outputDir = new File(dir, "output");
+		outputDir.mkdirs();
+		File bad = createFile(dir, "bad.epub");
+		File good = createFile(dir, "good.epub");
+
+		ToolFactory tools = (toolType, toolOutputDir) -> new CopyTool(toolOutputDir) {
+			@Override
+			public PdfaConverterOutput convert(File inputFile, boolean deleteConvertedFile) {
+				if (toolType == ToolType.PDFA_PILOT && inputFile.getName().startsWith("bad")) {
+					throw new ExternalToolException("bad input");
+				}
+				return super.convert(inputFile, deleteConvertedFile);
+			}
+		};
+		ConversionPipeline pipeline = new ConversionPipeline("epub", Arrays.asList(ToolType.CALIBRE, ToolType.PDFA_PILOT));
+		PipelineRunner runner = new PipelineRunner(pipeline, tools, new File(dir, "scratch-failure"), 2);
+		CompletableFuture<PdfaConverterOutput> badResult = runner.submit(bad, outputDir, false);
+		CompletableFuture<PdfaConverterOutput> goodResult = runner.submit(good, outputDir, false);
+		try {
+			badResult.get(10, TimeUnit.SECONDS);
+			fail("Expected the failing stage to fail the file");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ExternalToolException);
+		}
+		assertTrue(goodResult.get(10, TimeUnit.SECONDS).getPdfaConvertedFile().isFile());
+		runner.shutdown();
+	}
+
+	/**
+	 * Test that the tool runs of each stage, on the stage threads, are marked on the submitter's trace.
+	 */
+	@Test
+	public void testStagesTraced() throws Exception {
+		File dir = createDirectory();
+		File outputDir = new File(dir, "output");
+		outputDir.mkdirs();
+		File input = createFile(dir, "traced.epub");
+
+		ToolFactory tools = (toolType, toolOutputDir) -> new CopyTool(toolOutputDir) {
+			@Override
+			public PdfaConverterOutput convert(File inputFile, boolean deleteConvertedFile) {
+				long start = toolType == ToolType.CALIBRE ? 1000 : 2000;
+				ConversionTrace.toolRan(toolType.name(), start, start + 100, 0);
+				return super.convert(inputFile, deleteConvertedFile);
+			}
+		};
+		ConversionPipeline pipeline = new ConversionPipeline("epub", Arrays.asList(ToolType.CALIBRE, ToolType.PDFA_PILOT));
+		PipelineRunner runner = new PipelineRunner(pipeline, tools, new File(dir, "scratch-traced"), 1);
+		ConversionTrace.begin();
+		runner.submit(input, outputDir, false).get(10, TimeUnit.SECONDS);
+		ConversionTrace trace = ConversionTrace.end();
+		runner.shutdown();
+		// the first stage's run gives the spawn time and the last's the exit
+		assertEquals("CALIBRE", trace.getTool());
+		assertEquals(1000, trace.getSpawnMillis());
+		assertEquals(2100, trace.getExitMillis());
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private File createDirectory() {
+		File directory = new File(tempDir);
+		directory.mkdirs();
+		return directory;
+	}
+
+	private File createFile(File dir, String filename) throws IOException {
+		File file = new File(dir, filename);
+		Files.write(file.toPath(), filename.getBytes());
+		return file;
+	}
+
+	/*
+	 * Stands in for a tool by copying the input to a PDF of the same base name in its output directory.
+	 */
+	private static class CopyTool implements PdfaConvertable {
+		private final File outputDir;
+
+		CopyTool(File outputDir) {
+			this.outputDir = outputDir;
+		}
+
+		@Override
+		public PdfaConverterOutput convert(File inputFile, boolean deleteConvertedFile) {
+			String name = inputFile.getName();
+			File outputFile = new File(outputDir, name.substring(0, name.indexOf('.')) + ".pdf");
+			try {
+				Files.copy(inputFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				throw new ExternalToolException(e);
+			}
+			return new PdfaConverterOutput(outputFile, name + " converted");
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConvert;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+import edu.harvard.hul.ois.drs.pdfaconvert.batch.BatchScheduler;
+import edu.harvard.hul.ois.drs.pdfaconvert.batch.ConversionCostModel;
+
+public class SharedWorkQueueTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	/**
+	 * Test that two nodes convert every queued input exactly once between them, including the inputs claimed by a
+	 * node that stopped renewing its lease.
+	 */
+	@Test
+	public void testNodesShareQueueAndReclaimDeadNode() throws Exception {
+		File queueDir = temp.getRoot();
+		File pending = new File(queueDir, SharedWorkQueue.PENDING_DIR_NAME);
+		pending.mkdirs();
+		for (int i = 0; i < 6; i++) {
+			Files.write(new File(pending, "input-" + i + ".pdf").toPath(), new byte[100]);
+		}
+		File deadNodeDir = new File(queueDir, SharedWorkQueue.CLAIMED_DIR_NAME + File.separator + "dead-node");
+		deadNodeDir.mkdirs();
+		Files.write(new File(deadNodeDir, "orphan.pdf").toPath(), new byte[100]);
+
+		final Map<String, String> convertedBy = new ConcurrentHashMap<String, String>();
+		SharedWorkQueue first = startNode(queueDir, "node-a", convertedBy);
+		SharedWorkQueue second = startNode(queueDir, "node-b", convertedBy);
+
+		long deadline = System.currentTimeMillis() + 20000;
+		while (first.getDoneCount() + second.getDoneCount() < 7 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		first.stop();
+		second.stop();
+
+		assertEquals(7, first.getDoneCount() + second.getDoneCount());
+		assertEquals(7, convertedBy.size());
+		assertTrue(convertedBy.containsKey("orphan.pdf"));
+		assertEquals(7, new File(queueDir, SharedWorkQueue.DONE_DIR_NAME).list().length);
+		assertEquals(0, pending.list().length);
+		assertFalse(deadNodeDir.exists());
+		assertEquals(0, new File(queueDir, SharedWorkQueue.LEASES_DIR_NAME).list().length);
+	}
+
+	/**
+	 * Test that inputs of the same name never replace one another: an input isn't claimed while one of its name is
+	 * in flight, and one returned to the queue or finished where its name is taken gets a numbered name.
+	 */
+	@Test
+	public void testSameNamedInputsKept() throws Exception {
+		File queueDir = temp.getRoot();
+		File pending = new File(queueDir, SharedWorkQueue.PENDING_DIR_NAME);
+		File claimed = new File(queueDir, SharedWorkQueue.CLAIMED_DIR_NAME + File.separator + "node-a");
+		File done = new File(queueDir, SharedWorkQueue.DONE_DIR_NAME);
+		pending.mkdirs();
+		claimed.mkdirs();
+		done.mkdirs();
+		write(new File(done, "report.pdf"), "earlier");
+		write(new File(pending, "report.pdf"), "first");
+		// left claimed by this node before a restart
+		write(new File(claimed, "report.pdf"), "leftover");
+
+		final List<String> converted = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch release = new CountDownLatch(1);
+		PdfaConvert converter = new PdfaConvert() {
+			@Override
+			public PdfaConverterOutput examine(File inputFile) {
+				try {
+					converted.add(new String(Files.readAllBytes(inputFile.toPath()), StandardCharsets.UTF_8));
+					release.await(10, TimeUnit.SECONDS);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return new PdfaConverterOutput(inputFile, "");
+			}
+		};
+		SharedWorkQueue node = startNode(queueDir, "node-a", 3, converter);
+		long deadline = System.currentTimeMillis() + 10000;
+		while (converted.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		// arrives while an input of its name is in flight
+		write(new File(pending, "report.pdf"), "second");
+		Thread.sleep(1000);
+		assertTrue(new File(pending, "report.pdf").isFile());
+		release.countDown();
+
+		while (node.getDoneCount() < 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		node.stop();
+
+		assertEquals(new HashSet<String>(Arrays.asList("first", "leftover", "second")), new HashSet<String>(converted));
+		List<String> finished = new ArrayList<String>();
+		for (File file : done.listFiles()) {
+			finished.add(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+		}
+		assertEquals(new HashSet<String>(Arrays.asList("earlier", "first", "leftover", "second")), new HashSet<String>(finished));
+		assertEquals(4, finished.size());
+	}
+
+	private static void write(File file, String content) throws IOException {
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static SharedWorkQueue startNode(File queueDir, String nodeId, Map<String, String> convertedBy) {
+		PdfaConvert converter = new PdfaConvert() {
+			@Override
+			public PdfaConverterOutput examine(File inputFile) {
+				String previous = convertedBy.put(inputFile.getName(), nodeId);
+				if (previous != null) {
+					throw new IllegalStateException(inputFile.getName() + " converted by both " + previous + " and " + nodeId);
+				}
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return new PdfaConverterOutput(inputFile, "");
+			}
+		};
+		return startNode(queueDir, nodeId, 1, converter);
+	}
+
+	private static SharedWorkQueue startNode(File queueDir, String nodeId, int prefetch, PdfaConvert converter) {
+		SharedWorkQueue queue = new SharedWorkQueue(converter, new BatchScheduler(converter, new ConversionCostModel(null), 1, 0),
+				queueDir, nodeId, 300, 100, prefetch);
+		new Thread(() -> {
+			try {
+				queue.run();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}, nodeId).start();
+		return queue;
+	}
+}
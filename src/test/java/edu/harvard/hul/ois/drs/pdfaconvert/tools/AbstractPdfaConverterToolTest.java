@@ -9,18 +9,28 @@ See the License for the specific language governing permission and limitations u
 */
 package edu.harvard.hul.ois.drs.pdfaconvert.tools;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.junit.Test;
 
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
 import edu.harvard.hul.ois.drs.pdfaconvert.GeneratedFileUnavailableException;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConvert;
 
 /**
  * @author dan179
@@ -48,7 +58,7 @@ public class AbstractPdfaConverterToolTest {
 			fail("Could not create file: " + e.getMessage());
 		}
 		AbstractPdfaConverterTool tool = createAbstractPdfaConverterTool();
-		File retrievedFile = tool.retrieveGeneratedFile(filename, false);
+		File retrievedFile = tool.retrieveGeneratedFile(testFile, filename, false);
 		assertNotNull(retrievedFile);
 		assertTrue(retrievedFile.exists());
 		assertTrue(retrievedFile.isFile());
@@ -73,16 +83,61 @@ public class AbstractPdfaConverterToolTest {
 		}
 		AbstractPdfaConverterTool tool = createAbstractPdfaConverterTool();
 		// attempt to retrieve file from a different location
-		File retrievedFile = tool.retrieveGeneratedFile("wrong-filename.txt", false);
+		File retrievedFile = tool.retrieveGeneratedFile(testFile, "wrong-filename.txt", false);
 		assertNotNull(retrievedFile);
 		assertTrue(retrievedFile.exists());
 		assertTrue(retrievedFile.isFile());
 		assertTrue(retrievedFile.canRead());
 	}
 	
+	/**
+	 * Tests that running a tool and retrieving its converted file are recorded as Flight Recorder events naming the input.
+	 */
+	@Test
+	public void testFlightRecorderEvents() throws IOException {
+		File directory = new File(tempDir);
+		directory.mkdir();
+		File testFile = new File(directory, filename);
+		testFile.createNewFile();
+		File recordingFile = new File(directory, "events.jfr");
+		AbstractPdfaConverterTool tool = createAbstractPdfaConverterTool();
+		try (Recording recording = new Recording()) {
+			for (String name : Arrays.asList("ProcessSpawn", "Process", "OutputDrain", "FileRetrieval")) {
+				recording.enable("edu.harvard.hul.ois.drs.pdfaconvert." + name);
+			}
+			recording.start();
+			try {
+				tool.processCommand(Arrays.asList("sh", "-c", "echo converted; exit 3"), null, testFile);
+				fail("Expected the command to fail");
+			} catch (ExternalToolException e) {
+				// expected
+			}
+			tool.retrieveGeneratedFile(testFile, filename, false);
+			recording.stop();
+			recording.dump(recordingFile.toPath());
+		}
+		Map<String, RecordedEvent> events = new HashMap<String, RecordedEvent>();
+		for (RecordedEvent event : RecordingFile.readAllEvents(recordingFile.toPath())) {
+			events.put(event.getEventType().getName().replace("edu.harvard.hul.ois.drs.pdfaconvert.", ""), event);
+		}
+		assertEquals(4, events.size());
+		RecordedEvent process = events.get("Process");
+		assertEquals("Test AbstractPdfaConverterTool", process.getString("tool"));
+		assertEquals(3, process.getInt("exitCode"));
+		assertEquals("converted\n".length(), process.getLong("bytes"));
+		assertEquals("converted\n".length(), events.get("OutputDrain").getLong("bytes"));
+		assertTrue(events.get("ProcessSpawn").getStartTime().compareTo(process.getStartTime()) >= 0);
+		assertEquals(0, events.get("FileRetrieval").getLong("bytes"));
+		for (RecordedEvent event : events.values()) {
+			assertEquals(event.getEventType().getName(), testFile.getPath(), event.getString("inputFile"));
+		}
+		recordingFile.delete();
+		testFile.delete();
+	}
+
 	private AbstractPdfaConverterTool createAbstractPdfaConverterTool() {
 		File outputDirFile = new File(tempDir);
-		return new AbstractPdfaConverterTool(outputDirFile) {
+		return new AbstractPdfaConverterTool(PdfaConvert.getApplicationConfig(), outputDirFile) {
 
 			@Override
 			protected String getToolName() {
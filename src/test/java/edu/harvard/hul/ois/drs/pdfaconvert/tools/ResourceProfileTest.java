@@ -0,0 +1,51 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class ResourceProfileTest {
+
+	/**
+	 * Test reading a profile and wrapping a command in the utilities it needs.
+	 */
+	@Test
+	public void testWrap() {
+		assumeTrue(System.getProperty("os.name", "").toLowerCase().contains("linux"));
+		for (String command : new String[] {"taskset", "nice", "ionice", "prlimit"}) {
+			assumeTrue(new File("/usr/bin", command).canExecute());
+		}
+		Properties props = new Properties();
+		assertSame(ResourceProfile.NONE, ResourceProfile.fromProperties("TestTool", props));
+
+		props.setProperty("toolResources.TestTool.cpuSet", "0-1");
+		props.setProperty("toolResources.TestTool.nice", "10");
+		props.setProperty("toolResources.TestTool.ioClass", "2");
+		props.setProperty("toolResources.TestTool.ioLevel", "7");
+		props.setProperty("toolResources.TestTool.memoryLimitBytes", "1073741824");
+		props.setProperty("toolResources.TestTool.cpuTimeLimitSeconds", "60");
+		ResourceProfile profile = ResourceProfile.fromProperties("TestTool", props);
+		List<String> command = Arrays.asList("unoconv", "input.docx");
+		assertEquals(Arrays.asList("taskset", "--cpu-list", "0-1", "nice", "-n", "10", "ionice", "-c", "2", "-n", "7",
+				"prlimit", "--as=1073741824", "--cpu=60", "--", "unoconv", "input.docx"), profile.wrap(command));
+		// long-running processes are not given a CPU time cap
+		assertEquals(Arrays.asList("taskset", "--cpu-list", "0-1", "nice", "-n", "10", "ionice", "-c", "2", "-n", "7",
+				"prlimit", "--as=1073741824", "--", "unoconv", "input.docx"), profile.wrap(command, false));
+	}
+}
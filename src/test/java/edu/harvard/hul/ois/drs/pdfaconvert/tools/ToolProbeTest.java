@@ -0,0 +1,86 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ApplicationConstants;
+import edu.harvard.hul.ois.drs.pdfaconvert.ConverterConfig;
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConvert;
+
+public class ToolProbeTest {
+
+	// for creating a temporary directory in the transient "target" directory of the Maven build
+	private static String tempDir = "target" + File.separator + "temp" + File.separator + "probe";
+
+	/**
+	 * Test that each tool is found available or not with the reason, that results are reused until invalidated, and
+	 * that a file for an unavailable tool is rejected without running it.
+	 */
+	@Test
+	public void testProbeTools() throws IOException {
+		File dir = new File(tempDir);
+		File unoconvHome = new File(dir, "unoconv");
+		File pdfaPilotHome = new File(dir, "pdfaPilot");
+		unoconvHome.mkdirs();
+		pdfaPilotHome.mkdirs();
+		writeScript(new File(unoconvHome, "unoconv"), "echo; echo unoconv 0.7");
+		writeScript(new File(pdfaPilotHome, "pdfaPilot"), "echo 'Error: no valid license found'; exit 1");
+		Properties props = new Properties();
+		props.setProperty(ApplicationConstants.OUTPUT_DIR_PROP, new File(dir, "out").getPath());
+		props.setProperty(ApplicationConstants.UNOCONV_HOME_PROP, unoconvHome.getPath());
+		props.setProperty(ApplicationConstants.CALIBRE_HOME_PROP, new File(dir, "missing").getPath());
+		props.setProperty(ApplicationConstants.PDFA_PILOT_HOME_PROP, pdfaPilotHome.getPath() + File.separator);
+		props.setProperty(ApplicationConstants.PREFLIGHT_CHECKS_PROP, "false");
+		ConverterConfig config = ConverterConfig.fromProperties(props);
+
+		ToolProbe probe = new ToolProbe(() -> config, 60000);
+		Map<ToolType, ToolProbe.Result> results = probe.probeAll();
+		assertTrue(results.get(ToolType.UNOCONV).isAvailable());
+		assertEquals("unoconv 0.7", results.get(ToolType.UNOCONV).getVersion());
+		assertFalse(results.get(ToolType.CALIBRE).isAvailable());
+		assertTrue(results.get(ToolType.CALIBRE).getProblem().startsWith("No executable at:"));
+		assertFalse(results.get(ToolType.PDFA_PILOT).isAvailable());
+		assertTrue(results.get(ToolType.PDFA_PILOT).getProblem().startsWith("Not licensed"));
+
+		assertSame(results.get(ToolType.UNOCONV), probe.getResult(ToolType.UNOCONV));
+		probe.invalidate();
+		assertNotSame(results.get(ToolType.UNOCONV), probe.getResult(ToolType.UNOCONV));
+
+		File epub = new File(dir, "book.epub");
+		epub.createNewFile();
+		try {
+			new PdfaConvert(config, null).examine(epub);
+			fail("Expected the file to be rejected");
+		} catch (ExternalToolException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Tool for CALIBRE is not available"));
+		}
+	}
+
+	private static void writeScript(File file, String body) throws IOException {
+		Files.write(file.toPath(), ("#!/bin/sh\n" + body + "\n").getBytes(StandardCharsets.UTF_8));
+		file.setExecutable(true);
+	}
+}
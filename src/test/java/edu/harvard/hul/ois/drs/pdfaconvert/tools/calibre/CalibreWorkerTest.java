@@ -0,0 +1,144 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.tools.calibre;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
+
+public class CalibreWorkerTest {
+
+	// for creating a temporary directory in the transient "target" directory of the Maven build
+	private static String tempDir = "target" + File.separator + "temp" + File.separator + "calibre";
+
+	// follows the protocol of calibre-worker.py, misbehaving for inputs with certain names
+	private static final String FAKE_WORKER = String.join("\n",
+			"#!/bin/sh",
+			"[ \"$1\" = silent ] && exit 1",
+			"echo READY",
+			"while read -r line; do",
+			"  case \"$line\" in",
+			"    *vanish*) exit 0 ;;",
+			"  esac",
+			"  echo ACCEPTED",
+			"  case \"$line\" in",
+			"    *hang*) sleep 10 ;;",
+			"    *crash*) exit 3 ;;",
+			"    *unmarked*) echo OK ;;",
+			"    *bad*) echo 'conversion failed' >&2; printf '\\n==== END OF JOB ====\\n' >&2; echo 'ERROR exit code 1' ;;",
+			"    *) echo \"converted $line\" >&2; printf '\\n==== END OF JOB ====\\n' >&2; echo OK ;;",
+			"  esac",
+			"done",
+			"");
+
+	private static File script;
+
+	@BeforeClass
+	public static void createScript() throws IOException {
+		File dir = new File(tempDir);
+		dir.mkdirs();
+		script = new File(dir, "fake-calibre-worker.sh");
+		Files.write(script.toPath(), FAKE_WORKER.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Test that each job's status is paired with its own output, whether it succeeded or failed.
+	 */
+	@Test
+	public void testJobsOnOneWorker() throws IOException {
+		CalibreWorker worker = startWorker();
+		CalibreWorker.Result bad = worker.convert(new File("bad.epub"), new File("bad.pdf"), 10000);
+		assertFalse(bad.isSuccess());
+		assertEquals("ERROR exit code 1", bad.getStatus());
+		assertTrue(bad.getOutput(), bad.getOutput().contains("conversion failed"));
+
+		CalibreWorker.Result good = worker.convert(new File("good.epub"), new File("good.pdf"), 10000);
+		assertTrue(good.isSuccess());
+		assertTrue(good.getOutput(), good.getOutput().contains("converted"));
+		assertFalse(good.getOutput(), good.getOutput().contains("conversion failed"));
+		assertEquals(2, worker.getJobCount());
+		worker.destroy();
+	}
+
+	/**
+	 * Test that a worker that doesn't become ready is reported as not started.
+	 */
+	@Test(expected = IOException.class)
+	public void testWorkerNotStarted() throws IOException {
+		new CalibreWorker(Arrays.asList("sh", script.getPath(), "silent"), 10000);
+	}
+
+	/**
+	 * Test that a job that takes too long fails, and kills the worker, rather than leaving the file to be converted again.
+	 */
+	@Test
+	public void testJobTimeout() throws IOException {
+		CalibreWorker worker = startWorker();
+		try {
+			worker.convert(new File("hang.epub"), new File("hang.pdf"), 500);
+			fail("Expected a timeout");
+		} catch (ExternalToolException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("timed out"));
+		}
+		assertFalse(worker.isAlive());
+	}
+
+	/**
+	 * Test that a worker dying before it accepts a job allows the file to be converted otherwise, while one dying
+	 * during the conversion fails it.
+	 */
+	@Test
+	public void testDeadWorker() throws IOException {
+		CalibreWorker worker = startWorker();
+		try {
+			worker.convert(new File("vanish.epub"), new File("vanish.pdf"), 10000);
+			fail("Expected the worker to be unavailable");
+		} catch (IOException e) {
+			// the caller falls back to launching ebook-convert
+			assertTrue(e.getMessage(), e.getMessage().contains("before accepting"));
+		}
+
+		worker = startWorker();
+		try {
+			worker.convert(new File("crash.epub"), new File("crash.pdf"), 10000);
+			fail("Expected the conversion to fail");
+		} catch (ExternalToolException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("exited while converting"));
+		}
+	}
+
+	/**
+	 * Test that a worker whose job output doesn't end is discarded so its output can't be taken for the next job's.
+	 */
+	@Test
+	public void testMissingOutputMarker() throws IOException {
+		CalibreWorker worker = startWorker();
+		CalibreWorker.Result result = worker.convert(new File("unmarked.epub"), new File("unmarked.pdf"), 10000);
+		assertTrue(result.isSuccess());
+		assertEquals("", result.getOutput());
+		assertFalse(worker.isAlive());
+	}
+
+	private static CalibreWorker startWorker() throws IOException {
+		return new CalibreWorker(Arrays.asList("sh", script.getPath()), 10000);
+	}
+}
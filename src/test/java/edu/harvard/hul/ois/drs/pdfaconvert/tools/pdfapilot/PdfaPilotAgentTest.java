@@ -0,0 +1,245 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.tools.pdfapilot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ApplicationConstants;
+import edu.harvard.hul.ois.drs.pdfaconvert.ConverterConfig;
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConvert;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+
+public class PdfaPilotAgentTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	// stands in for pdfaPilot: copies the input to the output file, failing on inputs containing "bad" and hanging on
+	// those containing "slow"
+	private static final List<String> FAKE_PDFA_PILOT = Arrays.asList("sh", "-c",
+			"for a; do case $a in --outputfile=*) o=${a#--outputfile=};; *) i=$a;; esac; done; "
+			+ "if grep -q bad \"$i\"; then echo cannot convert; exit 3; fi; "
+			+ "if grep -q slow \"$i\"; then exec sleep 30; fi; cp \"$i\" \"$o\"", "pdfaPilot");
+
+	private static final byte[] SECRET = "agent-test-secret".getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Test that concurrent conversions share one connection to an agent on loopback, that a large file arrives
+	 * intact, that a failed conversion fails only its own file, and that the agent leaves no scratch files.
+	 */
+	@Test
+	public void testConcurrentConversionsOverLoopback() throws Exception {
+		File dir = temp.getRoot();
+		File inputDir = new File(dir, "in");
+		File outputDir = new File(dir, "out");
+		File scratchDir = new File(dir, "scratch");
+		inputDir.mkdirs();
+		outputDir.mkdirs();
+		PdfaPilotAgent agent = new PdfaPilotAgent(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), SECRET, scratchDir, FAKE_PDFA_PILOT, 2, 60000);
+		agent.start();
+		try {
+			List<File> inputs = new ArrayList<File>();
+			for (int i = 0; i < 4; i++) {
+				// several chunks for the first
+				byte[] content = new byte[i == 0 ? 3 * 1024 * 1024 + 17 : 1000 + i];
+				Arrays.fill(content, (byte)('a' + i));
+				File input = new File(inputDir, "doc" + i + ".pdf");
+				Files.write(input.toPath(), content);
+				inputs.add(input);
+			}
+			File bad = new File(inputDir, "broken.pdf");
+			Files.write(bad.toPath(), "bad".getBytes(StandardCharsets.UTF_8));
+			inputs.add(bad);
+
+			PdfaPilotAgentTool tool = new PdfaPilotAgentTool(PdfaConvert.getApplicationConfig(), "127.0.0.1", agent.getPort(), SECRET, outputDir);
+			ExecutorService pool = Executors.newFixedThreadPool(inputs.size());
+			List<Future<PdfaConverterOutput>> futures = new ArrayList<Future<PdfaConverterOutput>>();
+			for (File input : inputs) {
+				futures.add(pool.submit(() -> tool.convert(input)));
+			}
+			for (int i = 0; i < 4; i++) {
+				PdfaConverterOutput output = futures.get(i).get();
+				assertArrayEquals(Files.readAllBytes(inputs.get(i).toPath()), Files.readAllBytes(output.getPdfaConvertedFile().toPath()));
+			}
+			try {
+				futures.get(4).get();
+				fail("Expected the bad input to fail");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof ExternalToolException);
+			}
+			pool.shutdown();
+			// the agent cleans up after sending each result
+			long deadline = System.currentTimeMillis() + 5000;
+			while (agent.getJobCount() < 5 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(20);
+			}
+			assertEquals(5, agent.getJobCount());
+			assertEquals(0, scratchDir.list().length);
+		} finally {
+			agent.stop();
+		}
+	}
+
+	/**
+	 * Test that a client without the secret cannot connect.
+	 */
+	@Test(expected = IOException.class)
+	public void testWrongSecretRejected() throws Exception {
+		PdfaPilotAgent agent = new PdfaPilotAgent(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+				"right".getBytes(StandardCharsets.UTF_8), new File(temp.getRoot(), "scratch-rejected"), FAKE_PDFA_PILOT, 1, 60000);
+		agent.start();
+		try {
+			AgentConnection.get("127.0.0.1", agent.getPort(), "wrong".getBytes(StandardCharsets.UTF_8));
+		} finally {
+			agent.stop();
+		}
+	}
+
+	/**
+	 * Test that the agent kills a conversion running past the job timeout and reports it failed.
+	 */
+	@Test(timeout = 20000)
+	public void testJobTimeout() throws Exception {
+		PdfaPilotAgent agent = new PdfaPilotAgent(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), SECRET,
+				temp.newFolder("scratch"), FAKE_PDFA_PILOT, 1, 500);
+		agent.start();
+		try {
+			File input = temp.newFile("hung.pdf");
+			Files.write(input.toPath(), "slow".getBytes(StandardCharsets.UTF_8));
+			PdfaPilotAgentTool tool = new PdfaPilotAgentTool(PdfaConvert.getApplicationConfig(), "127.0.0.1", agent.getPort(), SECRET, temp.newFolder("out"));
+			try {
+				tool.convert(input);
+				fail("Expected the conversion to time out");
+			} catch (ExternalToolException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("exit code: -1"));
+			}
+			// counted once the job's files are deleted, just after its result is sent
+			while (agent.getJobCount() < 1) {
+				Thread.sleep(20);
+			}
+		} finally {
+			agent.stop();
+		}
+	}
+
+	/**
+	 * Test that a client stops waiting for a result after the result timeout, failing only that file, and that the
+	 * connection still serves the next one.
+	 */
+	@Test(timeout = 20000)
+	public void testResultTimeout() throws Exception {
+		PdfaPilotAgent agent = new PdfaPilotAgent(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), SECRET,
+				temp.newFolder("scratch"), FAKE_PDFA_PILOT, 2, 60000);
+		agent.start();
+		try {
+			Properties props = PdfaConvert.getApplicationConfig().getProperties();
+			props.setProperty(ApplicationConstants.PDFA_PILOT_AGENT_RESULT_TIMEOUT_SECONDS_PROP, "1");
+			PdfaPilotAgentTool tool = new PdfaPilotAgentTool(ConverterConfig.fromProperties(props), "127.0.0.1", agent.getPort(), SECRET, temp.newFolder("out"));
+			File hung = temp.newFile("hung.pdf");
+			Files.write(hung.toPath(), "slow".getBytes(StandardCharsets.UTF_8));
+			try {
+				tool.convert(hung);
+				fail("Expected the wait for the result to time out");
+			} catch (ExternalToolException e) {
+				assertTrue(String.valueOf(e.getCause()), e.getCause().getMessage().startsWith("No result from pdfaPilot agent"));
+			}
+			File input = temp.newFile("doc.pdf");
+			Files.write(input.toPath(), "content".getBytes(StandardCharsets.UTF_8));
+			PdfaConverterOutput output = tool.convert(input);
+			assertArrayEquals(Files.readAllBytes(input.toPath()), Files.readAllBytes(output.getPdfaConvertedFile().toPath()));
+		} finally {
+			agent.stop();
+		}
+	}
+
+	/**
+	 * Test that interrupting a conversion part way through its upload, as the hedger does to a losing attempt,
+	 * fails only that conversion: the shared connection stays open for the others, and the agent discards the
+	 * cancelled input.
+	 */
+	@Test(timeout = 30000)
+	public void testInterruptedUploadLeavesConnectionOpen() throws Exception {
+		File scratchDir = temp.newFolder("scratch");
+		PdfaPilotAgent agent = new PdfaPilotAgent(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), SECRET,
+				scratchDir, FAKE_PDFA_PILOT, 2, 60000);
+		agent.start();
+		try {
+			File large = temp.newFile("large.pdf");
+			Files.write(large.toPath(), new byte[32 * AgentProtocol.CHUNK_SIZE]);
+			File other = temp.newFile("other.pdf");
+			byte[] content = new byte[4 * AgentProtocol.CHUNK_SIZE + 5];
+			Arrays.fill(content, (byte)'o');
+			Files.write(other.toPath(), content);
+			File outputDir = temp.newFolder("out");
+			AgentConnection connection = AgentConnection.get("127.0.0.1", agent.getPort(), SECRET);
+
+			ExecutorService pool = Executors.newFixedThreadPool(2);
+			Future<?> interrupted = pool.submit(() -> connection.convert(large, new File(outputDir, "large.pdf"), 60000));
+			Future<AgentConnection.Result> converted = pool.submit(() -> connection.convert(other, new File(outputDir, "other.pdf"), 60000));
+			Thread.sleep(50);
+			interrupted.cancel(true);
+			assertTrue(converted.get().converted);
+			assertArrayEquals(content, Files.readAllBytes(new File(outputDir, "other.pdf").toPath()));
+			pool.shutdown();
+
+			// the same connection still takes new conversions
+			assertTrue(AgentConnection.get("127.0.0.1", agent.getPort(), SECRET) == connection);
+			assertTrue(connection.convert(other, new File(outputDir, "again.pdf"), 60000).converted);
+			while (scratchDir.list().length > 0) {
+				Thread.sleep(20);
+			}
+		} finally {
+			agent.stop();
+		}
+	}
+
+	/**
+	 * Test that the agent drops a connection whose client doesn't answer the challenge in time.
+	 */
+	@Test(timeout = 20000)
+	public void testHandshakeTimeout() throws Exception {
+		PdfaPilotAgent agent = new PdfaPilotAgent(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), SECRET,
+				temp.newFolder("scratch"), FAKE_PDFA_PILOT, 1, 60000, 300);
+		agent.start();
+		try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), agent.getPort()))) {
+			ByteBuffer hello = ByteBuffer.allocate(8 + AgentProtocol.CHALLENGE_LENGTH);
+			AgentProtocol.readFully(channel, hello, false);
+			// says nothing, and is disconnected
+			assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+		} finally {
+			agent.stop();
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.tools.pdfapilot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class RemoteCleanupTest {
+
+	// for creating a temporary directory in the transient "target" directory of the Maven build
+	private static String tempDir = "target" + File.separator + "temp" + File.separator + "remote-cleanup";
+
+	/**
+	 * Test that queued files are removed together by one command once the batch is full, that a claimed path is
+	 * not removed, and that only old files are swept as orphans. The "remote" shell is a local one.
+	 */
+	@Test
+	public void testBatchedRemovalAndOrphanSweep() throws Exception {
+		File dir = new File(tempDir);
+		File[] old = dir.listFiles();
+		if (old != null) {
+			for (File file : old) {
+				file.delete();
+			}
+		}
+		dir.mkdirs();
+		File orphan = createFile(dir, "orphan's file.pdf");
+		orphan.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000L);
+		File recent = createFile(dir, "recent.pdf");
+		RemoteCleanup cleanup = new RemoteCleanup(Arrays.asList("sh", "-c"), 3, 60000);
+		cleanup.sweepOrphans(Collections.singletonList(dir.getPath()), 60);
+
+		File[] files = { createFile(dir, "a.pdf"), createFile(dir, "b b.pdf"), createFile(dir, "c.pdf"), createFile(dir, "d.pdf") };
+		cleanup.remove(files[0].getPath());
+		cleanup.remove(files[3].getPath());
+		// used again before its removal
+		cleanup.claim(files[3].getPath());
+		cleanup.remove(files[1].getPath());
+		cleanup.remove(files[2].getPath());
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (files[2].exists() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		cleanup.shutdown();
+		assertFalse(files[0].exists());
+		assertFalse(files[1].exists());
+		assertFalse(files[2].exists());
+		assertTrue(files[3].exists());
+		assertFalse(orphan.exists());
+		assertTrue(recent.exists());
+		// the sweep and one removal
+		assertEquals(2, cleanup.getCommandCount());
+	}
+
+	private static File createFile(File dir, String name) throws IOException {
+		File file = new File(dir, name);
+		file.createNewFile();
+		return file;
+	}
+}
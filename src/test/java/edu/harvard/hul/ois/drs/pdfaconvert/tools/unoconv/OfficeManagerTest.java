@@ -0,0 +1,177 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.tools.unoconv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
+import edu.harvard.hul.ois.drs.pdfaconvert.tools.ResourceProfile;
+
+public class OfficeManagerTest {
+
+	/**
+	 * Test that a process is restarted after converting the configured number of documents.
+	 */
+	@Test
+	public void testRecycling() throws IOException {
+		StubProcess process = new StubProcess();
+		OfficeManager manager = new OfficeManager(Collections.<OfficeProcess>singletonList(process), 2, 10000);
+		for (int i = 0; i < 3; i++) {
+			manager.convert(new File("doc" + i + ".docx"), new File("doc" + i + ".pdf"));
+		}
+		assertEquals(2, process.starts);
+		assertEquals(1, process.getDocumentCount());
+		manager.shutdown();
+	}
+
+	/**
+	 * Test that a process whose connection is lost is stopped and given a clean profile, then restarted for the
+	 * next document.
+	 */
+	@Test
+	public void testRestartAfterFailure() throws IOException {
+		StubProcess process = new StubProcess();
+		OfficeManager manager = new OfficeManager(Collections.<OfficeProcess>singletonList(process), 200, 10000);
+		try {
+			manager.convert(new File("crash.docx"), new File("crash.pdf"));
+			fail("Expected the conversion to fail");
+		} catch (ExternalToolException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Office process failed converting"));
+		}
+		assertEquals(1, process.profileResets);
+		manager.convert(new File("next.docx"), new File("next.pdf"));
+		assertEquals(2, process.starts);
+		manager.shutdown();
+	}
+
+	/**
+	 * Test that the watchdog kills a process whose conversion runs past the timeout.
+	 */
+	@Test
+	public void testWatchdogTimeout() throws IOException {
+		StubProcess process = new StubProcess();
+		OfficeManager manager = new OfficeManager(Collections.<OfficeProcess>singletonList(process), 200, 600);
+		try {
+			manager.convert(new File("hang.docx"), new File("hang.pdf"));
+			fail("Expected the conversion to time out");
+		} catch (ExternalToolException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Office process timed out"));
+		}
+		assertEquals(1, process.kills);
+		manager.shutdown();
+	}
+
+	/**
+	 * Test that the watchdog kills a process whose caller was interrupted, as a UNO call can't be.
+	 */
+	@Test
+	public void testWatchdogInterrupt() throws Exception {
+		StubProcess process = new StubProcess();
+		OfficeManager manager = new OfficeManager(Collections.<OfficeProcess>singletonList(process), 200, 60000);
+		AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		Thread caller = new Thread(() -> {
+			try {
+				manager.convert(new File("hang.docx"), new File("hang.pdf"));
+			} catch (Exception e) {
+				failure.set(e);
+			}
+		});
+		caller.start();
+		while (!process.converting) {
+			Thread.sleep(10);
+		}
+		caller.interrupt();
+		caller.join(TimeUnit.SECONDS.toMillis(10));
+		assertTrue(String.valueOf(failure.get()), failure.get() instanceof ExternalToolException);
+		assertTrue(failure.get().getMessage(), failure.get().getMessage().startsWith("Interrupted converting"));
+		assertEquals(1, process.kills);
+		manager.shutdown();
+	}
+
+	/*
+	 * Stands in for soffice: files named crash lose the connection and files named hang block until killed.
+	 */
+	private static class StubProcess extends OfficeProcess {
+		volatile int starts;
+		volatile int kills;
+		volatile int profileResets;
+		volatile boolean converting;
+		private volatile boolean running;
+		private volatile boolean killed;
+		private int documentCount;
+
+		StubProcess() {
+			super("soffice-not-used", 2100, null, ResourceProfile.NONE);
+		}
+
+		@Override
+		void start(long timeoutMillis) {
+			starts++;
+			running = true;
+			killed = false;
+			documentCount = 0;
+		}
+
+		@Override
+		boolean isRunning() {
+			return running;
+		}
+
+		@Override
+		int getDocumentCount() {
+			return documentCount;
+		}
+
+		@Override
+		void convert(File inputFile, File outputFile) {
+			documentCount++;
+			if (inputFile.getName().startsWith("crash")) {
+				running = false;
+				throw new com.sun.star.uno.RuntimeException("Connection lost");
+			}
+			if (inputFile.getName().startsWith("hang")) {
+				converting = true;
+				// like a UNO call, not woken by an interrupt
+				while (!killed) {
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+				}
+				throw new com.sun.star.uno.RuntimeException("Connection lost");
+			}
+		}
+
+		@Override
+		void stop() {
+			running = false;
+		}
+
+		@Override
+		void resetProfile() {
+			profileResets++;
+		}
+
+		@Override
+		void kill() {
+			kills++;
+			killed = true;
+			running = false;
+		}
+	}
+}
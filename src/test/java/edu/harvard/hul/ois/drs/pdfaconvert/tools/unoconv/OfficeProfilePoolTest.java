@@ -0,0 +1,82 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.tools.unoconv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+public class OfficeProfilePoolTest {
+
+	// for creating a temporary directory in the transient "target" directory of the Maven build
+	private static String tempDir = "target" + File.separator + "temp" + File.separator + "office-profiles";
+
+	/**
+	 * Test that leased profiles are copies of the template, distinct while leased, and restored on reset.
+	 */
+	@Test
+	public void testLeaseAndReset() throws IOException {
+		File rootDir = new File(tempDir);
+		File settings = new File(rootDir, "template" + File.separator + "user" + File.separator + "registrymodifications.xcu");
+		settings.getParentFile().mkdirs();
+		Files.write(settings.toPath(), "template".getBytes(StandardCharsets.UTF_8));
+
+		// the template already exists so soffice is never run
+		OfficeProfilePool pool = new OfficeProfilePool("soffice-not-used", rootDir, 1);
+		File first = pool.lease();
+		File second = pool.lease();
+		assertNotEquals(first, second);
+		File copied = new File(first, "user" + File.separator + "registrymodifications.xcu");
+		assertEquals("template", new String(Files.readAllBytes(copied.toPath()), StandardCharsets.UTF_8));
+
+		File lock = new File(first, ".lock");
+		assertTrue(lock.createNewFile());
+		Files.write(copied.toPath(), "changed".getBytes(StandardCharsets.UTF_8));
+		pool.release(first, true);
+		assertFalse(lock.exists());
+		assertEquals("template", new String(Files.readAllBytes(copied.toPath()), StandardCharsets.UTF_8));
+		assertEquals(first, pool.lease());
+	}
+
+	/**
+	 * Test that converters sharing a profile directory share only the template, one preparing its profiles leaving
+	 * those leased by the other in place, and that each deletes only its own profiles.
+	 */
+	@Test
+	public void testProcessesShareOnlyTemplate() throws IOException {
+		File rootDir = new File(tempDir + "-shared");
+		File settings = new File(rootDir, "template" + File.separator + "user" + File.separator + "registrymodifications.xcu");
+		settings.getParentFile().mkdirs();
+		Files.write(settings.toPath(), "template".getBytes(StandardCharsets.UTF_8));
+
+		OfficeProfilePool pool = new OfficeProfilePool("soffice-not-used", rootDir, 1);
+		File leased = pool.lease();
+		File lock = new File(leased, ".lock");
+		assertTrue(lock.createNewFile());
+		OfficeProfilePool other = new OfficeProfilePool("soffice-not-used", rootDir, 1);
+		File otherLeased = other.lease();
+		assertNotEquals(leased.getParentFile(), otherLeased.getParentFile());
+		assertTrue(lock.exists());
+
+		other.deleteProfiles();
+		assertFalse(otherLeased.exists());
+		assertTrue(lock.exists());
+		assertTrue(settings.exists());
+		pool.deleteProfiles();
+	}
+}
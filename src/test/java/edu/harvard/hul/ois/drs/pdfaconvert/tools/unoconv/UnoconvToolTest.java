@@ -0,0 +1,145 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.tools.unoconv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ApplicationConstants;
+import edu.harvard.hul.ois.drs.pdfaconvert.ConverterConfig;
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+
+public class UnoconvToolTest {
+
+	// for creating a temporary directory in the transient "target" directory of the Maven build
+	private static String tempDir = "target" + File.separator + "temp" + File.separator + "unoconv-batch";
+
+	// stands in for soffice: records each run, then converts the inputs in order until it fails on one named poison
+	private static final String FAKE_SOFFICE = String.join("\n",
+			"#!/bin/sh",
+			"echo \"$*\" >> \"$(dirname \"$0\")/runs.log\"",
+			"while [ $# -gt 0 ]; do",
+			"  case \"$1\" in",
+			"    --outdir) outdir=$2; shift ;;",
+			"    --convert-to) shift ;;",
+			"    -*) ;;",
+			"    *) name=$(basename \"$1\")",
+			"       case \"$name\" in poison.*) exit 1 ;; esac",
+			"       echo '%PDF-1.4' > \"$outdir/${name%.*}.pdf\" ;;",
+			"  esac",
+			"  shift",
+			"done",
+			"");
+
+	/**
+	 * Test that a failed soffice run is split until the document causing it is on its own, that a document whose
+	 * converted file name is already taken is left out, and that converted files are moved out of the scratch directory.
+	 */
+	@Test
+	public void testConvertBatch() throws IOException {
+		File dir = new File(tempDir).getAbsoluteFile();
+		File inputDir = new File(dir, "in");
+		File outputDir = new File(dir, "out");
+		inputDir.mkdirs();
+		outputDir.mkdirs();
+		for (File old : outputDir.listFiles()) {
+			old.delete();
+		}
+		File runsLog = new File(dir, "runs.log");
+		UnoconvTool tool = createTool(dir, outputDir);
+
+		List<File> inputs = new ArrayList<File>();
+		for (String name : Arrays.asList("a.doc", "a.docx", "b.docx", "poison.docx", "d.docx")) {
+			File input = new File(inputDir, name);
+			Files.write(input.toPath(), name.getBytes(StandardCharsets.UTF_8));
+			inputs.add(input);
+		}
+		Map<File, PdfaConverterOutput> outputs = tool.convertBatch(inputs, false);
+
+		assertEquals(Arrays.asList(inputs.get(0), inputs.get(2), inputs.get(4)), new ArrayList<File>(outputs.keySet()));
+		for (PdfaConverterOutput output : outputs.values()) {
+			assertEquals(outputDir, output.getPdfaConvertedFile().getParentFile());
+			assertTrue(output.getPdfaConvertedFile().length() > 0);
+		}
+		// the failed run of four converted two, then the remaining two are run one at a time
+		List<String> runs = Files.readAllLines(runsLog.toPath(), StandardCharsets.UTF_8);
+		assertEquals(3, runs.size());
+		assertFalse(runs.get(0), runs.get(0).contains("a.docx"));
+		assertTrue(runs.get(1), runs.get(1).endsWith("poison.docx"));
+		assertTrue(runs.get(2), runs.get(2).endsWith("d.docx"));
+		for (String name : outputDir.list()) {
+			assertFalse(name, name.startsWith("soffice-batch-"));
+		}
+	}
+
+	/**
+	 * Test that an interrupted batch is not split and run again, but ends with the interrupt.
+	 */
+	@Test
+	public void testInterruptedBatchNotSplit() throws IOException {
+		File dir = new File(tempDir + "-interrupted").getAbsoluteFile();
+		File inputDir = new File(dir, "in");
+		File outputDir = new File(dir, "out");
+		inputDir.mkdirs();
+		outputDir.mkdirs();
+		File runsLog = new File(dir, "runs.log");
+		UnoconvTool tool = createTool(dir, outputDir);
+		List<File> inputs = new ArrayList<File>();
+		for (String name : Arrays.asList("a.docx", "b.docx", "c.docx", "d.docx")) {
+			File input = new File(inputDir, name);
+			Files.write(input.toPath(), name.getBytes(StandardCharsets.UTF_8));
+			inputs.add(input);
+		}
+		Thread.currentThread().interrupt();
+		try {
+			tool.convertBatch(inputs, false);
+			fail("Expected the interrupted batch to fail");
+		} catch (ExternalToolException e) {
+			assertTrue(Thread.currentThread().isInterrupted());
+		} finally {
+			Thread.interrupted();
+		}
+		// at most the one interrupted run
+		assertTrue(!runsLog.exists() || Files.readAllLines(runsLog.toPath(), StandardCharsets.UTF_8).size() <= 1);
+	}
+
+	private static UnoconvTool createTool(File dir, File outputDir) throws IOException {
+		File script = new File(dir, "soffice");
+		Files.write(script.toPath(), FAKE_SOFFICE.getBytes(StandardCharsets.UTF_8));
+		script.setExecutable(true);
+		new File(dir, "runs.log").delete();
+		// the template already exists so soffice is never run to build one
+		File profileDir = new File(dir, "profiles");
+		new File(profileDir, "template").mkdirs();
+
+		Properties props = new Properties();
+		props.setProperty(ApplicationConstants.OUTPUT_DIR_PROP, outputDir.getPath());
+		props.setProperty(ApplicationConstants.UNOCONV_HOME_PROP, dir.getPath());
+		props.setProperty(ApplicationConstants.OFFICE_COMMAND_PROP, script.getPath());
+		props.setProperty(ApplicationConstants.OFFICE_PROCESSES_PROP, "0");
+		props.setProperty(ApplicationConstants.OFFICE_PROFILE_DIR_PROP, profileDir.getPath());
+		return new UnoconvTool(ConverterConfig.fromProperties(props), outputDir);
+	}
+}
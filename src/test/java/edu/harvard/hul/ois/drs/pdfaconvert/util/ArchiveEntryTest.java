@@ -0,0 +1,123 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConvert;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+import edu.harvard.hul.ois.drs.pdfaconvert.batch.BatchScheduler;
+import edu.harvard.hul.ois.drs.pdfaconvert.batch.ConversionCostModel;
+
+public class ArchiveEntryTest {
+
+	// for creating a temporary directory in the transient "target" directory of the Maven build
+	private static String tempDir = "target" + File.separator + "temp" + File.separator + "archive";
+
+	/**
+	 * Test that only the documents a tool converts are listed, that entries leading out of the archive are skipped,
+	 * and that an entry is copied out under its own name and converted to a directory named after its path.
+	 */
+	@Test
+	public void testListAndExtract() throws IOException {
+		File dir = new File(tempDir);
+		dir.mkdirs();
+		File archive = createArchive(new File(dir, "deposit.zip"));
+
+		List<ArchiveEntry> entries = ArchiveEntry.list(archive);
+		assertEquals(2, entries.size());
+		assertEquals("docs/report.docx", entries.get(0).getName());
+		assertEquals("scan.pdf", entries.get(1).getName());
+		assertEquals(11, entries.get(0).getSizeBytes());
+		assertEquals(new File(archive, "docs/report.docx"), entries.get(0).getPath());
+		File outputDir = new File(dir, "out");
+		assertEquals(new File(new File(outputDir, "deposit"), "docs"), entries.get(0).getOutputDirectory(outputDir));
+		assertEquals(new File(outputDir, "deposit"), entries.get(1).getOutputDirectory(outputDir));
+
+		File scratchDir = new File(dir, "scratch");
+		scratchDir.mkdirs();
+		File extracted = entries.get(0).extractTo(scratchDir);
+		assertEquals(new File(scratchDir, "report.docx"), extracted);
+		assertEquals("report body", new String(Files.readAllBytes(extracted.toPath()), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Test that scheduled archive entries are each converted from a scratch copy that is removed afterwards, into
+	 * the directory named after the entry's path.
+	 */
+	@Test
+	public void testConvertScheduledEntries() throws IOException, InterruptedException {
+		File dir = new File(tempDir);
+		dir.mkdirs();
+		File archive = createArchive(new File(dir, "batch.zip"));
+		final List<File> inputs = Collections.synchronizedList(new ArrayList<File>());
+		final List<File> outputDirs = Collections.synchronizedList(new ArrayList<File>());
+		PdfaConvert converter = new PdfaConvert() {
+			@Override
+			public PdfaConverterOutput examine(File inputFile, File outputDir) {
+				assertTrue(inputFile.isFile());
+				inputs.add(inputFile);
+				outputDirs.add(outputDir);
+				if (inputFile.getName().endsWith(".pdf")) {
+					throw new ExternalToolException("exit code 1");
+				}
+				return new PdfaConverterOutput(new File(outputDir, "report.pdf"), "");
+			}
+		};
+		BatchScheduler scheduler = new BatchScheduler(converter, new ConversionCostModel(null), 1, 0);
+		for (ArchiveEntry entry : ArchiveEntry.list(archive)) {
+			scheduler.submit(entry);
+		}
+		scheduler.start();
+		scheduler.shutdown();
+
+		assertEquals(2, inputs.size());
+		for (File input : inputs) {
+			assertFalse(input.exists());
+			assertFalse(input.getParentFile().exists());
+		}
+		File archiveOutputDir = new File(converter.getOutputDirectory(), "batch");
+		assertTrue(outputDirs.contains(new File(archiveOutputDir, "docs")));
+		assertTrue(outputDirs.contains(archiveOutputDir));
+	}
+
+	private static File createArchive(File file) throws IOException {
+		try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))) {
+			zip.putNextEntry(new ZipEntry("docs/"));
+			addEntry(zip, "docs/report.docx", "report body");
+			addEntry(zip, "docs/notes.txt", "notes");
+			addEntry(zip, "../escaped.docx", "escaped");
+			addEntry(zip, "scan.pdf", "%PDF-1.4");
+		}
+		return file;
+	}
+
+	private static void addEntry(ZipOutputStream zip, String name, String content) throws IOException {
+		zip.putNextEntry(new ZipEntry(name));
+		zip.write(content.getBytes(StandardCharsets.UTF_8));
+		zip.closeEntry();
+	}
+}
@@ -0,0 +1,96 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+
+public class ConversionCacheTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	/**
+	 * Test that a conversion cached through one node is found by another through the shared tier and promoted to
+	 * that node's local tier, and that the key depends on the tool options.
+	 */
+	@Test
+	public void testSharedTierHitIsPromoted() throws IOException {
+		File dir = temp.getRoot();
+		File shared = new File(dir, "shared");
+		ConversionCache firstNode = new ConversionCache(new File(dir, "local-1"), 0, shared, 0);
+		ConversionCache secondNode = new ConversionCache(new File(dir, "local-2"), 0, shared, 0);
+
+		String key = ConversionCache.key("0123abcd", "UnoconvTool", Arrays.asList("-f", "pdf"));
+		assertNotEquals(key, ConversionCache.key("0123abcd", "UnoconvTool", Arrays.asList("-f", "pdf", "-eSelectPdfVersion=1")));
+		File converted = createFile(dir, "converted.pdf", 1000);
+		firstNode.store(key, converted);
+
+		File output = new File(dir, "output.pdf");
+		PdfaConverterOutput reused = secondNode.retrieve(key, output, false);
+		assertNotNull(reused);
+		assertEquals(output, reused.getPdfaConvertedFile());
+		assertArrayEquals(Files.readAllBytes(converted.toPath()), Files.readAllBytes(output.toPath()));
+		assertTrue(new File(dir, "local-2" + File.separator + key.substring(0, 2) + File.separator + key + ".pdf").isFile());
+		assertEquals(1, secondNode.getHitCount());
+		assertNull(secondNode.retrieve(ConversionCache.key("0123abcd", "CalibreTool", Arrays.asList("-f", "pdf")), output, false));
+	}
+
+	/**
+	 * Test that a tier over its size evicts its least recently used entries without affecting the other tier.
+	 */
+	@Test
+	public void testTiersEvictedOnTheirOwn() throws IOException {
+		File dir = temp.getRoot();
+		ConversionCache cache = new ConversionCache(new File(dir, "local"), 2500, new File(dir, "shared"), 0);
+		File converted = createFile(dir, "converted.pdf", 1000);
+		File output = new File(dir, "output.pdf");
+		String[] keys = new String[3];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = ConversionCache.key("input" + i, "CalibreTool", Arrays.asList("ebook-convert"));
+			cache.store(keys[i], converted);
+			File entry = new File(dir, "local" + File.separator + keys[i].substring(0, 2) + File.separator + keys[i] + ".pdf");
+			if (entry.isFile()) {
+				// distinct access times in spite of coarse file time resolution
+				entry.setLastModified(System.currentTimeMillis() - (keys.length - i) * 10000L);
+			}
+		}
+		assertFalse(new File(dir, "local" + File.separator + keys[0].substring(0, 2) + File.separator + keys[0] + ".pdf").exists());
+		assertTrue(new File(dir, "local" + File.separator + keys[2].substring(0, 2) + File.separator + keys[2] + ".pdf").exists());
+		// still in the shared tier, and promoted again
+		assertNotNull(cache.retrieve(keys[0], output, false));
+		assertTrue(new File(dir, "local" + File.separator + keys[0].substring(0, 2) + File.separator + keys[0] + ".pdf").exists());
+	}
+
+	private static File createFile(File dir, String name, int size) throws IOException {
+		dir.mkdirs();
+		File file = new File(dir, name);
+		byte[] content = new byte[size];
+		Arrays.fill(content, (byte)'x');
+		Files.write(file.toPath(), content);
+		return file;
+	}
+}
@@ -0,0 +1,102 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+
+public class ConvertedFileSweeperTest {
+
+	// for creating a temporary directory in the transient "target" directory of the Maven build
+	private static String tempDir = "target" + File.separator + "temp";
+
+	/**
+	 * Test that a tracked file past its time-to-live is deleted and one that was released is kept.
+	 */
+	@Test
+	public void testSweepExpiredFile() throws IOException {
+		File expiredFile = createFile("expired.pdf");
+		File releasedFile = createFile("released.pdf");
+		ConvertedFileSweeper sweeper = new ConvertedFileSweeper(0, 0);
+		sweeper.track(expiredFile);
+		sweeper.track(releasedFile);
+		sweeper.release(releasedFile);
+
+		assertEquals(1, sweeper.sweep());
+		assertFalse(expiredFile.exists());
+		assertTrue(releasedFile.exists());
+		assertEquals(0, sweeper.getTrackedCount());
+		releasedFile.delete();
+	}
+
+	/**
+	 * Test that a file is kept until its time-to-live expires.
+	 */
+	@Test
+	public void testSweepUnexpiredFile() throws IOException {
+		File file = createFile("unexpired.pdf");
+		ConvertedFileSweeper sweeper = new ConvertedFileSweeper(60000, 0);
+		sweeper.track(file);
+
+		assertEquals(0, sweeper.sweep());
+		assertTrue(file.exists());
+		assertEquals(1, sweeper.getTrackedCount());
+		file.delete();
+	}
+
+	/**
+	 * Test that all tracked files are deleted at exit, expired or not.
+	 */
+	@Test
+	public void testDeleteAll() throws IOException {
+		File file = createFile("exiting.pdf");
+		ConvertedFileSweeper sweeper = new ConvertedFileSweeper(60000, 0);
+		sweeper.track(file);
+
+		assertEquals(1, sweeper.deleteAll());
+		assertFalse(file.exists());
+		assertEquals(0, sweeper.getTrackedCount());
+	}
+
+	/**
+	 * Test that closing an output deletes its file only if requested.
+	 */
+	@Test
+	public void testOutputClose() throws IOException {
+		File deletedFile = createFile("deleted.pdf");
+		try (PdfaConverterOutput output = new PdfaConverterOutput(deletedFile, "", true)) {
+			assertTrue(output.getPdfaConvertedFile().exists());
+		}
+		assertFalse(deletedFile.exists());
+
+		File keptFile = createFile("kept.pdf");
+		try (PdfaConverterOutput output = new PdfaConverterOutput(keptFile, "")) {
+			assertTrue(output.getPdfaConvertedFile().exists());
+		}
+		assertTrue(keptFile.exists());
+		keptFile.delete();
+	}
+
+	private File createFile(String filename) throws IOException {
+		File directory = new File(tempDir);
+		directory.mkdirs();
+		File file = new File(directory, filename);
+		file.createNewFile();
+		return file;
+	}
+}
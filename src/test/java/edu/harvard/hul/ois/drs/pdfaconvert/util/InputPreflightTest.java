@@ -0,0 +1,139 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.util;
+
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.CorruptInputException;
+import edu.harvard.hul.ois.drs.pdfaconvert.EncryptedInputException;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConversionException;
+
+public class InputPreflightTest {
+
+	// for creating a temporary directory in the transient "target" directory of the Maven build
+	private static String tempDir = "target" + File.separator + "temp" + File.separator + "preflight";
+
+	private static final String TEST_FILES = "src/test/resources/test-files/";
+
+	/**
+	 * Test that intact inputs pass and truncated copies of them are rejected as corrupt.
+	 */
+	@Test
+	public void testTruncatedInputs() throws IOException {
+		for (String name : new String[] {"TrivialDocument.docx", "Calibre_has_tables.epub", "Trivial.pdf", "Has_document_properties.pdf"}) {
+			File intact = new File(TEST_FILES + name);
+			InputPreflight.check(intact);
+			byte[] content = Files.readAllBytes(intact.toPath());
+			File truncated = write("truncated-" + name, Arrays.copyOf(content, content.length * 2 / 3));
+			assertRejected(truncated, CorruptInputException.class);
+		}
+		assertRejected(write("empty.docx", new byte[0]), CorruptInputException.class);
+		assertRejected(write("not-a.pdf", "plain text".getBytes(StandardCharsets.US_ASCII)), CorruptInputException.class);
+	}
+
+	/**
+	 * Test that password protected PDF, ODT and Word inputs are rejected as encrypted.
+	 */
+	@Test
+	public void testEncryptedInputs() throws IOException {
+		String pdf = "%PDF-1.4\n1 0 obj << /Type /Catalog >> endobj\n"
+				+ "trailer\n<< /Size 3 /Root 1 0 R /Encrypt 2 0 R >>\nstartxref\n9\n%%EOF\n";
+		assertRejected(write("encrypted.pdf", pdf.getBytes(StandardCharsets.ISO_8859_1)), EncryptedInputException.class);
+		InputPreflight.check(write("plain.pdf", pdf.replace("/Encrypt 2 0 R ", "").getBytes(StandardCharsets.ISO_8859_1)));
+
+		File odt = new File(createDirectory(), "encrypted.odt");
+		try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(odt))) {
+			zip.putNextEntry(new ZipEntry("META-INF/manifest.xml"));
+			zip.write("<manifest:file-entry><manifest:encryption-data/></manifest:file-entry>".getBytes(StandardCharsets.UTF_8));
+			zip.closeEntry();
+		}
+		assertRejected(odt, EncryptedInputException.class);
+
+		assertRejected(write("encrypted.doc", compoundFile(0x0100)), EncryptedInputException.class);
+		File plainDoc = write("plain.doc", compoundFile(0));
+		InputPreflight.check(plainDoc);
+		byte[] content = Files.readAllBytes(plainDoc.toPath());
+		assertRejected(write("truncated.doc", Arrays.copyOf(content, content.length - 1024)), CorruptInputException.class);
+	}
+
+	private static void assertRejected(File file, Class<? extends PdfaConversionException> expected) {
+		try {
+			InputPreflight.check(file);
+			fail("Expected " + expected.getSimpleName() + " for: " + file.getName());
+		} catch (PdfaConversionException e) {
+			if (!expected.isInstance(e)) {
+				fail("Expected " + expected.getSimpleName() + " for: " + file.getName() + " but was: " + e);
+			}
+		}
+	}
+
+	/*
+	 * A minimal compound file holding a Word document stream with the given header flags:
+	 * sector 0 is the allocation table, sector 1 the directory and sectors 2 to 9 the WordDocument stream.
+	 */
+	private static byte[] compoundFile(int fibFlags) {
+		int endOfChain = 0xFFFFFFFE;
+		int free = 0xFFFFFFFF;
+		ByteBuffer file = ByteBuffer.allocate(512 * 11).order(ByteOrder.LITTLE_ENDIAN);
+		file.put(new byte[] {(byte)0xD0, (byte)0xCF, 0x11, (byte)0xE0, (byte)0xA1, (byte)0xB1, 0x1A, (byte)0xE1});
+		file.putShort(0x18, (short)0x3E).putShort(0x1A, (short)3).putShort(0x1C, (short)0xFFFE);
+		file.putShort(0x1E, (short)9).putShort(0x20, (short)6);
+		file.putInt(0x2C, 1).putInt(0x30, 1).putInt(0x38, 4096).putInt(0x3C, endOfChain).putInt(0x44, endOfChain);
+		for (int i = 0; i < 109; i++) {
+			file.putInt(0x4C + i * 4, i == 0 ? 0 : free);
+		}
+		int fat = 512;
+		for (int i = 0; i < 128; i++) {
+			int next = i == 0 ? 0xFFFFFFFD : i == 1 || i == 9 ? endOfChain : i < 9 ? i + 1 : free;
+			file.putInt(fat + i * 4, next);
+		}
+		int directory = 1024;
+		putDirectoryEntry(file, directory, "Root Entry", 5, endOfChain, 0);
+		putDirectoryEntry(file, directory + 128, "WordDocument", 2, 2, 4096);
+		int wordDocument = 1536;
+		file.putShort(wordDocument, (short)0xA5EC).putShort(wordDocument + 0x0A, (short)fibFlags);
+		return file.array();
+	}
+
+	private static void putDirectoryEntry(ByteBuffer file, int offset, String name, int type, int startSector, int size) {
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_16LE);
+		for (int i = 0; i < nameBytes.length; i++) {
+			file.put(offset + i, nameBytes[i]);
+		}
+		file.putShort(offset + 0x40, (short)(nameBytes.length + 2));
+		file.put(offset + 0x42, (byte)type);
+		file.putInt(offset + 0x74, startSector).putInt(offset + 0x78, size);
+	}
+
+	private File write(String name, byte[] content) throws IOException {
+		File file = new File(createDirectory(), name);
+		Files.write(file.toPath(), content);
+		return file;
+	}
+
+	private File createDirectory() {
+		File directory = new File(tempDir);
+		directory.mkdirs();
+		return directory;
+	}
+}
@@ -0,0 +1,141 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ApplicationConstants;
+import edu.harvard.hul.ois.drs.pdfaconvert.ConverterConfig;
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConvert;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+import edu.harvard.hul.ois.drs.pdfaconvert.QuarantinedInputException;
+
+public class QuarantineTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	/**
+	 * Test that an input is quarantined after repeated failures, a copy under another name is rejected without
+	 * being converted, and a released input is moved back and converted again.
+	 */
+	@Test
+	public void testQuarantineAndRelease() throws IOException {
+		File dir = temp.getRoot();
+		File quarantineDir = new File(dir, "store");
+		File input = createFile(dir, "poison.docx", "always fails");
+		File copy = createFile(dir, "poison-copy.docx", "always fails");
+		Quarantine quarantine = new Quarantine(quarantineDir, 2);
+
+		for (int i = 0; i < 2; i++) {
+			try {
+				quarantine.guard(input, () -> {
+					throw new ExternalToolException("soffice crashed");
+				});
+				fail("Expected the conversion to fail");
+			} catch (ExternalToolException e) {
+				// expected
+			}
+		}
+		assertFalse(input.exists());
+		assertEquals(1, quarantine.getQuarantined().size());
+		String hash = quarantine.getQuarantined().get(0);
+		assertEquals(ContentHash.sha256(copy), hash);
+
+		try {
+			quarantine.guard(copy, () -> {
+				fail("A quarantined input must not be converted");
+				return null;
+			});
+			fail("Expected the quarantined input to be rejected");
+		} catch (QuarantinedInputException e) {
+			assertTrue(e.getMessage().contains("ExternalToolException"));
+		}
+		// the record survives a restart
+		assertEquals(hash, new Quarantine(quarantineDir, 2).getQuarantined().get(0));
+
+		assertEquals(input.getAbsoluteFile(), quarantine.release(hash));
+		assertTrue(input.isFile());
+		PdfaConverterOutput output = quarantine.guard(input, () -> new PdfaConverterOutput(input, "converted"));
+		assertEquals("converted", output.getToolLoggingOutput());
+	}
+
+	/**
+	 * Test that a quarantined input is left out of a batch conversion and rejected when converted on its own.
+	 */
+	@Test
+	public void testBatchLeavesOutQuarantined() throws IOException {
+		File dir = temp.getRoot();
+		File quarantineDir = new File(dir, "store");
+		// stands in for soffice, converting every input
+		File script = createFile(dir, "soffice", "#!/bin/sh\n"
+				+ "while [ $# -gt 0 ]; do\n"
+				+ "  case \"$1\" in\n"
+				+ "    --outdir) outdir=$2; shift ;;\n"
+				+ "    --convert-to) shift ;;\n"
+				+ "    -*) ;;\n"
+				+ "    *) name=$(basename \"$1\"); echo converted > \"$outdir/${name%.*}.pdf\" ;;\n"
+				+ "  esac\n"
+				+ "  shift\n"
+				+ "done\n");
+		script.setExecutable(true);
+		File profileDir = new File(dir, "profiles");
+		new File(profileDir, "template").mkdirs();
+		Properties props = new Properties();
+		props.setProperty(ApplicationConstants.OUTPUT_DIR_PROP, new File(dir, "out").getPath());
+		props.setProperty(ApplicationConstants.UNOCONV_HOME_PROP, dir.getPath());
+		props.setProperty(ApplicationConstants.OFFICE_COMMAND_PROP, script.getPath());
+		props.setProperty(ApplicationConstants.OFFICE_PROCESSES_PROP, "0");
+		props.setProperty(ApplicationConstants.OFFICE_PROFILE_DIR_PROP, profileDir.getPath());
+		props.setProperty(ApplicationConstants.QUARANTINE_AFTER_FAILURES_PROP, "1");
+		props.setProperty(ApplicationConstants.QUARANTINE_DIR_PROP, quarantineDir.getPath());
+		props.setProperty(ApplicationConstants.PREFLIGHT_CHECKS_PROP, "false");
+		props.setProperty(ApplicationConstants.TOOL_PROBE_TTL_SECONDS_PROP, "0");
+		PdfaConvert converter = new PdfaConvert(ConverterConfig.fromProperties(props), null);
+
+		File failed = createFile(dir, "poison.docx", "always fails");
+		Quarantine quarantine = converter.getQuarantine();
+		quarantine.recordFailure(quarantine.check(failed), failed, new ExternalToolException("soffice crashed"));
+		File copy = createFile(dir, "poison-copy.docx", "always fails");
+		File good = createFile(dir, "good.docx", "converts");
+
+		Map<File, PdfaConverterOutput> outputs = converter.examineBatch(Arrays.asList(copy, good));
+		assertEquals(1, outputs.size());
+		assertTrue(outputs.containsKey(good));
+		try {
+			converter.examine(copy);
+			fail("Expected the quarantined input to be rejected");
+		} catch (QuarantinedInputException e) {
+			// expected
+		}
+	}
+
+	private static File createFile(File dir, String name, String content) throws IOException {
+		dir.mkdirs();
+		File file = new File(dir, name);
+		Files.write(file.toPath(), content.getBytes());
+		return file;
+	}
+}
@@ -0,0 +1,40 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ShutdownSequenceTest {
+
+	/**
+	 * Test that running conversions are drained before the tools are stopped and the logs closed, whatever the
+	 * order the actions were registered in, and that a failing action doesn't stop the rest.
+	 */
+	@Test
+	public void testStagesInOrder() {
+		List<String> ran = new ArrayList<String>();
+		ShutdownSequence sequence = new ShutdownSequence();
+		sequence.add(ShutdownSequence.Stage.OUTPUT, "logs", () -> ran.add("logs"));
+		sequence.add(ShutdownSequence.Stage.TOOLS, "office", () -> {
+			ran.add("office");
+			throw new IllegalStateException("already stopped");
+		});
+		sequence.add(ShutdownSequence.Stage.TOOLS, "calibre", () -> ran.add("calibre"));
+		sequence.add(ShutdownSequence.Stage.WORK, "watch folder", () -> ran.add("watch folder"));
+		sequence.run();
+		assertEquals(Arrays.asList("watch folder", "office", "calibre", "logs"), ran);
+	}
+}
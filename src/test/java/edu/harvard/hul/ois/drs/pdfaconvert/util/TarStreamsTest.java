@@ -0,0 +1,70 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+public class TarStreamsTest {
+
+	// for creating a temporary directory in the transient "target" directory of the Maven build
+	private static String tempDir = "target" + File.separator + "temp" + File.separator + "tar";
+
+	/**
+	 * Test that files written to a compressed tar stream are extracted straight to the files chosen by name,
+	 * with a leading "./" ignored and unwanted entries skipped.
+	 */
+	@Test
+	public void testRoundTripThroughCompressedStream() throws IOException {
+		File dir = new File(tempDir);
+		File in = new File(dir, "in");
+		File out = new File(dir, "out");
+		in.mkdirs();
+		out.mkdirs();
+		byte[] small = "small".getBytes("UTF-8");
+		byte[] large = new byte[100000];
+		Arrays.fill(large, (byte)'x');
+		Files.write(new File(in, "small.doc").toPath(), small);
+		Files.write(new File(in, "large.doc").toPath(), large);
+		Files.write(new File(in, "empty.doc").toPath(), new byte[0]);
+		Map<String, File> entries = new LinkedHashMap<String, File>();
+		entries.put("./0.doc", new File(in, "small.doc"));
+		entries.put("1.doc", new File(in, "large.doc"));
+		entries.put("2.doc", new File(in, "empty.doc"));
+
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(archive)) {
+			TarStreams.write(gzip, entries);
+		}
+		new File(out, "1.doc.pdf").delete();
+		List<String> extracted = TarStreams.extract(new GZIPInputStream(new ByteArrayInputStream(archive.toByteArray())),
+				name -> name.equals("1.doc") ? null : new File(out, name + ".pdf"));
+
+		assertEquals(Arrays.asList("0.doc", "2.doc"), extracted);
+		assertArrayEquals(small, Files.readAllBytes(new File(out, "0.doc.pdf").toPath()));
+		assertEquals(0, new File(out, "2.doc.pdf").length());
+		assertFalse(new File(out, "1.doc.pdf").exists());
+	}
+}
@@ -0,0 +1,83 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+public class ToolLogWriterTest {
+
+	// for creating a temporary directory in the transient "target" directory of the Maven build
+	private static String tempDir = "target" + File.separator + "temp" + File.separator + "tool-log";
+
+	/**
+	 * Test that records are framed and written in submission order.
+	 */
+	@Test
+	public void testFramedRecords() throws IOException {
+		Path logPath = createLogPath("framed-output.txt");
+		ToolLogWriter writer = new ToolLogWriter(logPath, 0, 0);
+		assertTrue(writer.submit("TestTool", new File("first.docx"), 1000, 3000, 0, "first output\n".getBytes()));
+		assertTrue(writer.submit("TestTool", new File("second.docx"), 4000, 5000, 1, "second output\n".getBytes()));
+		writer.close();
+
+		String content = new String(Files.readAllBytes(logPath), StandardCharsets.UTF_8);
+		int firstBegin = content.indexOf("==== BEGIN TestTool | file: " + new File("first.docx").getAbsolutePath());
+		int firstEnd = content.indexOf("==== END TestTool | file: " + new File("first.docx").getAbsolutePath());
+		int secondBegin = content.indexOf("==== BEGIN TestTool | file: " + new File("second.docx").getAbsolutePath());
+		assertTrue(firstBegin >= 0);
+		assertTrue(firstBegin < content.indexOf("first output"));
+		assertTrue(content.indexOf("first output") < firstEnd);
+		assertTrue(firstEnd < secondBegin);
+		assertTrue(content.contains("elapsed ms: 2000 | exit code: 0"));
+		assertTrue(content.contains("elapsed ms: 1000 | exit code: 1"));
+		assertFalse(writer.submit("TestTool", new File("late.docx"), 0, 0, 0, new byte[0]));
+	}
+
+	/**
+	 * Test that the log file is rotated once it would exceed the configured size.
+	 */
+	@Test
+	public void testRotation() throws IOException {
+		Path logPath = createLogPath("rotated-output.txt");
+		ToolLogWriter writer = new ToolLogWriter(logPath, 300, 2);
+		for (int i = 0; i < 5; i++) {
+			writer.submit("TestTool", new File("file" + i + ".docx"), 0, 0, 0, new byte[200]);
+		}
+		writer.close();
+
+		assertTrue(Files.exists(logPath));
+		assertTrue(Files.exists(logPath.resolveSibling("rotated-output.txt.1")));
+		assertTrue(Files.exists(logPath.resolveSibling("rotated-output.txt.2")));
+		assertFalse(Files.exists(logPath.resolveSibling("rotated-output.txt.3")));
+		String content = new String(Files.readAllBytes(logPath), StandardCharsets.UTF_8);
+		assertEquals(1, content.split("==== BEGIN").length - 1);
+		assertTrue(content.contains("file4.docx"));
+	}
+
+	private Path createLogPath(String filename) throws IOException {
+		File directory = new File(tempDir);
+		directory.mkdirs();
+		Path logPath = new File(directory, filename).toPath();
+		for (int i = 0; i <= 3; i++) {
+			Files.deleteIfExists(i == 0 ? logPath : logPath.resolveSibling(filename + "." + i));
+		}
+		return logPath;
+	}
+}
@@ -0,0 +1,103 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.watch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConvert;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+import edu.harvard.hul.ois.drs.pdfaconvert.batch.BatchScheduler;
+import edu.harvard.hul.ois.drs.pdfaconvert.batch.ConversionCostModel;
+
+public class WatchFolderDaemonTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	/**
+	 * Test that files present at start and arriving later are converted only once completely written,
+	 * and are moved to the done or failed directory without replacing an earlier input of the same name.
+	 */
+	@Test
+	public void testConvertsSettledFiles() throws Exception {
+		File watchDir = temp.getRoot();
+		Files.write(new File(watchDir, "before.pdf").toPath(), new byte[1000]);
+		File failedDir = new File(watchDir, "failed");
+		failedDir.mkdirs();
+		Files.write(new File(failedDir, "bad.pdf").toPath(), new byte[1]);
+		Files.write(new File(failedDir, "bad.pdf.error").toPath(), "earlier".getBytes(StandardCharsets.UTF_8));
+
+		final Map<String, Long> convertedLengths = new ConcurrentHashMap<String, Long>();
+		PdfaConvert converter = new PdfaConvert() {
+			@Override
+			public PdfaConverterOutput examine(File inputFile) {
+				if (inputFile.getName().startsWith("bad")) {
+					throw new ExternalToolException("bad input");
+				}
+				convertedLengths.put(inputFile.getName(), inputFile.length());
+				return new PdfaConverterOutput(inputFile, "");
+			}
+		};
+		WatchFolderDaemon daemon = new WatchFolderDaemon(converter, new BatchScheduler(converter, new ConversionCostModel(null), 1, 0),
+				watchDir, new File(watchDir, "done"), new File(watchDir, "failed"), 500, null);
+		Thread watcher = new Thread(() -> {
+			try {
+				daemon.run();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		watcher.start();
+
+		// written slowly, so only complete once the writes stop
+		try (OutputStream out = new FileOutputStream(new File(watchDir, "arriving.pdf"))) {
+			for (int i = 0; i < 8; i++) {
+				out.write(new byte[100]);
+				out.flush();
+				Thread.sleep(100);
+			}
+		}
+		Files.write(new File(watchDir, "bad.pdf").toPath(), new byte[10]);
+
+		long deadline = System.currentTimeMillis() + 20000;
+		while (daemon.getDoneCount() + daemon.getFailedCount() < 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		daemon.stop();
+		watcher.join();
+
+		assertEquals(2, daemon.getDoneCount());
+		assertEquals(1, daemon.getFailedCount());
+		assertEquals(Long.valueOf(800), convertedLengths.get("arriving.pdf"));
+		assertTrue(new File(watchDir, "done/before.pdf").isFile());
+		assertTrue(new File(watchDir, "done/arriving.pdf").isFile());
+		assertEquals(10, new File(watchDir, "failed/bad-1.pdf").length());
+		assertTrue(new String(Files.readAllBytes(new File(watchDir, "failed/bad-1.pdf.error").toPath())).contains("bad input"));
+		assertEquals(1, new File(watchDir, "failed/bad.pdf").length());
+		assertEquals("earlier", new String(Files.readAllBytes(new File(watchDir, "failed/bad.pdf.error").toPath()), StandardCharsets.UTF_8));
+		assertFalse(new File(watchDir, "arriving.pdf").exists());
+	}
+}